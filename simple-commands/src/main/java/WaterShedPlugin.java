@@ -1,12 +1,27 @@
+import java.awt.Rectangle;
 import java.awt.Scrollbar;
 
+import dataTypes.LabelStatistics;
 import ij.IJ;
 import ij.ImageJ;
 import ij.ImagePlus;
 import ij.WindowManager;
 import ij.gui.GenericDialog;
+import ij.gui.Roi;
+import ij.measure.ResultsTable;
 import ij.plugin.PlugIn;
+import watershed.AutoThreshold;
+import watershed.Cancellation;
+import watershed.CancelledException;
+import watershed.Engine;
+import watershed.Markers;
+import watershed.MeasureResult;
+import watershed.ResultCache;
+import watershed.RoiExport;
+import watershed.VolumeWatershed;
 import watershed.Watershed;
+import watershed.WatershedEngine;
+import watershed.WatershedParams;
 
 /**
  * First attempt at creating a working plugin, aimed at performing a basic
@@ -18,8 +33,18 @@ public class WaterShedPlugin implements PlugIn {
 	/*
 	 * 8 bit images are being processed so the bounds for the thresholding are decided here
 	 */
-	public static double hMin = 0;
-	public static double hMax = 255;
+	public static final double hMin = 0;
+	public static final double hMax = 255;
+	
+	/*
+	 * results of earlier runs, so that watershedding an unchanged image again with
+	 * the same settings is immediate
+	 */
+	private static final ResultCache cache = new ResultCache(256L << 20);
+	
+	private static final String[] SEED_CHOICES = new String[]{"Erosion", "Distance transform", "Points selected on the input"};
+	
+	private static final String[] CONNECTIVITIES = new String[]{"6 (faces)", "26 (faces, edges and corners)"};
 	
 	/**
 	 * Run method that offers the user the choice of currently open images to run
@@ -59,7 +84,35 @@ public class WaterShedPlugin implements PlugIn {
 		
 		gd.addChoice("Input", imgNames, imgNames[0]);
 		gd.addSlider("Threshold value", hMin, hMax, 54);
+		String[] thresholdChoices = new String[AutoThreshold.values().length + 1];
+		thresholdChoices[0] = "Slider value";
+		System.arraycopy(AutoThreshold.displayNames(), 0, thresholdChoices, 1, AutoThreshold.values().length);
+		gd.addChoice("Threshold method", thresholdChoices, thresholdChoices[0]);
 		gd.addSlider("Erosion/Dilation counter", 0, 10, 5);
+		gd.addChoice("Engine", Engine.displayNames(), Engine.AUTO.getDisplayName());
+		gd.addNumericField("Adaptive threshold radius (0 for the threshold value)", 0, 0);
+		gd.addNumericField("Adaptive threshold offset", 10, 1);
+		gd.addNumericField("Gaussian smoothing sigma (0 for none)", 0, 1);
+		gd.addCheckbox("Threshold the gradient magnitude (Sobel)", false);
+		gd.addNumericField("Merge cells whose boundary dips less than (0 for none)", 0, 1);
+		String[] seedChoices = new String[SEED_CHOICES.length + imgCount];
+		System.arraycopy(SEED_CHOICES, 0, seedChoices, 0, SEED_CHOICES.length);
+		for(int i = 0; i < imgCount; i++){
+			seedChoices[SEED_CHOICES.length + i] = "Marker image: " + imgNames[i];
+		}
+		gd.addChoice("Cell body seeds", seedChoices, SEED_CHOICES[0]);
+		gd.addNumericField("Seed height (pixels)", 1, 1);
+		gd.addNumericField("Minimum seed area (pixels, 0 for none)", 0, 0);
+		gd.addNumericField("Maximum seed area (pixels, 0 for none)", 0, 0);
+		gd.addCheckbox("Discard seeds touching the image (or selection bounds) edge", false);
+		gd.addNumericField("Time limit in seconds (0 for none; Esc also stops)", 0, 0);
+		gd.addCheckbox("Geodesic reconstruction (grow inside threshold mask)", false);
+		gd.addCheckbox("Grow until mask is filled", false);
+		gd.addCheckbox("Add cell outlines to ROI Manager", false);
+		gd.addCheckbox("Only measure the cells (no label image)", false);
+		gd.addCheckbox("Only watershed the selection", true);
+		gd.addCheckbox("Watershed stacks in 3D", true);
+		gd.addChoice("3D connectivity", CONNECTIVITIES, CONNECTIVITIES[1]);
 		gd.showDialog();
 		
 		/*
@@ -72,32 +125,245 @@ public class WaterShedPlugin implements PlugIn {
 			Scrollbar eroDilScroll = (Scrollbar) gd.getSliders().get(1);
 			double threshVal = hMax - threshScroll.getValue();
 			double eroDilCount = eroDilScroll.getValue();
+			int thresholdChoice = gd.getNextChoiceIndex();
+			AutoThreshold autoThreshold = thresholdChoice == 0 ? null : AutoThreshold.values()[thresholdChoice - 1];
+			Engine engine = Engine.values()[gd.getNextChoiceIndex()];
+			double adaptiveRadius = gd.getNextNumber();
+			if(!(adaptiveRadius > 0)){
+				adaptiveRadius = 0;
+			}
+			double adaptiveOffset = gd.getNextNumber();
+			if(Double.isNaN(adaptiveOffset)){
+				adaptiveOffset = 0;
+			}
+			double sigma = gd.getNextNumber();
+			if(!(sigma > 0)){
+				sigma = 0;
+			}
+			boolean gradient = gd.getNextBoolean();
+			double mergeThreshold = gd.getNextNumber();
+			if(!(mergeThreshold > 0)){
+				mergeThreshold = 0;
+			}
+			int seedChoice = gd.getNextChoiceIndex();
+			boolean distanceSeeds = seedChoice == 1;
+			double seedHeight = gd.getNextNumber();
+			if(!(seedHeight >= 0)){
+				seedHeight = 0;
+			}
+			double minSeedArea = gd.getNextNumber();
+			if(!(minSeedArea > 0)){
+				minSeedArea = 0;
+			}
+			double maxSeedArea = gd.getNextNumber();
+			if(!(maxSeedArea > 0)){
+				maxSeedArea = 0;
+			}
+			boolean excludeBorderSeeds = gd.getNextBoolean();
+			double timeLimit = gd.getNextNumber();
+			boolean geodesic = gd.getNextBoolean();
+			boolean untilFilled = gd.getNextBoolean();
+			boolean addRois = gd.getNextBoolean();
+			boolean measureOnly = gd.getNextBoolean();
+			boolean useSelection = gd.getNextBoolean();
+			boolean volume = gd.getNextBoolean() && chosenImg.getStackSize() > 1;
+			int connectivity = gd.getNextChoiceIndex() == 0 ? VolumeWatershed.FACES : VolumeWatershed.VERTICES;
+			
+			WatershedParams params;
+			try {
+				params = new WatershedParams.Builder()
+						.threshVal(threshVal)
+						.autoThreshold(autoThreshold)
+						.eroDilCount((int) eroDilCount)
+						.engine(engine)
+						.geodesic(geodesic)
+						.untilFilled(untilFilled)
+						.adaptiveRadius((int) adaptiveRadius)
+						.adaptiveOffset(adaptiveOffset)
+						.sigma(sigma)
+						.gradient(gradient)
+						.mergeThreshold(mergeThreshold)
+						.distanceSeeds(distanceSeeds)
+						.seedHeight(seedHeight)
+						.minSeedArea((int) minSeedArea)
+						.maxSeedArea((int) maxSeedArea)
+						.excludeBorderSeeds(excludeBorderSeeds)
+						.build();
+			} catch(IllegalArgumentException e){
+				IJ.error("Watershed", e.getMessage());
+				return;
+			}
 			
-			ImagePlus result = process(chosenImg, hMin, hMax, threshVal, eroDilCount);
+			/*
+			 * stacks are watershedded as a volume, which only erodes to find its seeds
+			 */
+			if(volume){
+				if(seedChoice >= 2){
+					IJ.error("Watershed", "Markers are not offered for stacks. Untick \"Watershed stacks in 3D\" to grow the cells of the current slice from them.");
+					return;
+				}
+				try {
+					VolumeWatershed.checkParams(params);
+				} catch(IllegalArgumentException e){
+					IJ.error("Watershed", e.getMessage() + ". Untick \"Watershed stacks in 3D\" to watershed the current slice with them.");
+					return;
+				}
+			}
+			
+			/*
+			 * markers from a point selection or another image, which replace the erosion
+			 */
+			Markers markers = null;
+			try {
+				if(seedChoice == 2){
+					markers = Markers.fromRoi(chosenImg.getRoi());
+				} else if(seedChoice > 2){
+					markers = Markers.fromImage(WindowManager.getImage(seedChoice - SEED_CHOICES.length + 1).getProcessor());
+				}
+			} catch(IllegalArgumentException e){
+				IJ.error("Watershed", e.getMessage());
+				return;
+			}
+			
+			/*
+			 * measuring grows the cells of the whole of a single image, without a
+			 * label image to crop or stack
+			 */
+			if(measureOnly){
+				Roi roi = chosenImg.getRoi();
+				if(volume){
+					IJ.error("Watershed", "Cells are only measured on a single image. Untick \"Watershed stacks in 3D\" to measure the current slice.");
+					return;
+				}
+				if(useSelection && roi != null && roi.isArea()){
+					IJ.error("Watershed", "Cells are only measured on the whole image. Untick \"Only watershed the selection\" to measure them.");
+					return;
+				}
+			}
+			
+			/*
+			 * the run stops at its next row once Esc is pressed or the time limit passes
+			 */
+			Cancellation cancellation;
+			if(timeLimit > 0){
+				cancellation = new EscapeCancellation((long) (timeLimit * 1000));
+			} else {
+				cancellation = new EscapeCancellation();
+			}
+			IJ.resetEscape();
+			Cancellation previous = cancellation.enter();
+			
+			ImagePlus result;
+			try {
+				if(measureOnly){
+					measure(chosenImg, params, markers);
+					return;
+				} else if(volume){
+					result = Watershed.computeVolume(chosenImg, params, connectivity);
+				} else if(markers != null){
+					result = Watershed.computeWatershed(chosenImg, params, useSelection, markers);
+				} else {
+					result = process(chosenImg, params, useSelection);
+				}
+			} catch(IllegalStateException e){
+				/*
+				 * the run was refused before starting, as it would not fit in memory
+				 */
+				IJ.error("Watershed", e.getMessage());
+				return;
+			} catch(IllegalArgumentException e){
+				/*
+				 * the cells cannot be measured with these parameters
+				 */
+				IJ.error("Watershed", e.getMessage() + ".");
+				return;
+			} catch(CancelledException e){
+				IJ.log("Watershedding stopped: " + e.getMessage() + ".");
+				if(e.getMetrics() != null){
+					IJ.log(e.getMetrics().toString());
+				}
+				IJ.showStatus("Watershedding stopped");
+				return;
+			} finally {
+				Cancellation.exit(previous);
+			}
 			
 			result.show();
+			
+			if(addRois){
+				RoiExport.addToManager(RoiExport.traceLabels(result.getProcessor(), Watershed.WSHED_LABEL));
+			}
 		}
 		
 	}
 
+	/**
+	 * a cancellation that also stops the run when Esc is pressed
+	 */
+	private static class EscapeCancellation extends Cancellation {
+
+		EscapeCancellation(){
+		}
+
+		EscapeCancellation(long timeoutMillis){
+			super(timeoutMillis);
+		}
+
+		public boolean isCancelled(){
+			return super.isCancelled() || IJ.escapePressed();
+		}
+	}
+
 	/**
 	 * method that passes off the users image for watershedding
 	 * @param chosenImg the chosen image
-	 * @param hMin the minimum value of the pixels in the image
-	 * @param hMax the maximum value of the pixels in the image
-	 * @param threshVal the chosen thresholding value
+	 * @param params the parameters chosen in the dialog
+	 * @param useSelection true if only the image's selection should be watershedded
 	 * @return the resultant image
 	 */
-	private ImagePlus process(ImagePlus chosenImg, double hMin, double hMax, double threshVal, double eroDilCount) {
+	private ImagePlus process(ImagePlus chosenImg, WatershedParams params, boolean useSelection) {
 		final long start = System.currentTimeMillis();
 		
-		ImagePlus resultImg = Watershed.computeWatershed(chosenImg, hMin, hMax, threshVal, eroDilCount);
+		ImagePlus resultImg = cache.computeWatershed(chosenImg, params, useSelection);
 		final long end = System.currentTimeMillis();
 		IJ.log("Watershedding took " + (end-start) + " ms.");
+		IJ.log(cache.toString());
 		
 		return resultImg;
 	}
 	
+	/**
+	 * method that counts and measures the cells of the users image without
+	 * building a label image, listing them in a results table
+	 * @param chosenImg the chosen image
+	 * @param params the parameters chosen in the dialog
+	 * @param markers the markers to grow the cells from, or null to find the cell
+	 * bodies as usual
+	 */
+	private void measure(ImagePlus chosenImg, WatershedParams params, Markers markers) {
+		IJ.showStatus("Measuring cells");
+		IJ.log("Measuring the cells of " + chosenImg.getTitle() + " with " + params);
+		MeasureResult result = new WatershedEngine(params).measure(chosenImg.getProcessor(), markers);
+		IJ.log(result.getMetrics().toString());
+		IJ.log(result.getCellCount() + " cells found.");
+		
+		ResultsTable table = new ResultsTable();
+		for(LabelStatistics cell : result.getStatistics()){
+			table.incrementCounter();
+			table.addValue("Label", cell.getLabel());
+			table.addValue("Area", cell.getArea());
+			table.addValue("X", cell.getCentroidX());
+			table.addValue("Y", cell.getCentroidY());
+			Rectangle bounds = cell.getBounds();
+			table.addValue("BX", bounds.x);
+			table.addValue("BY", bounds.y);
+			table.addValue("Width", bounds.width);
+			table.addValue("Height", bounds.height);
+		}
+		table.show("Cells of " + chosenImg.getShortTitle());
+		IJ.showStatus("");
+	}
+	
 	public static void main(String[] args) {
 		new ImageJ();
 //	    ImagePlus image1 = IJ.openImage("/Users/Mark/Documents/Project/Test_Images/BMP/large_dots.bmp");
@@ -0,0 +1,131 @@
+package dataTypes;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * a union-find over provisional cell body labels that only holds the labels
+ * still in use. Every label records the last row it was seen in, and labels that
+ * have not been seen for long enough can be forgotten, so the table stays the
+ * size of the components that are still open rather than growing with the image.
+ *
+ * When two labels are joined the smaller becomes the root, so a component keeps
+ * the label it was first given.
+ * @author Mark
+ *
+ */
+public class LabelEquivalence {
+
+	private static class Entry {
+		int parent;
+		int lastRow;
+		boolean emitted;
+
+		Entry(int parent, int lastRow){
+			this.parent = parent;
+			this.lastRow = lastRow;
+		}
+	}
+
+	private final Map<Integer, Entry> entries = new HashMap<Integer, Entry>();
+	private int nextLabel = 1;
+
+	/**
+	 * gives out a new label
+	 * @param row the row the label is first used in
+	 * @return the new label
+	 */
+	public int newLabel(int row){
+		int label = nextLabel++;
+		entries.put(label, new Entry(label, row));
+		return label;
+	}
+
+	/**
+	 * @param label a label still in the table
+	 * @return the label of the component it belongs to
+	 */
+	public int find(int label){
+		Entry entry = entries.get(label);
+		while(entry.parent != label){
+			Entry parent = entries.get(entry.parent);
+			if(parent.parent != entry.parent){
+				entry.parent = parent.parent;
+			}
+			label = entry.parent;
+			entry = entries.get(label);
+		}
+		return label;
+	}
+
+	/**
+	 * joins the components of two labels
+	 * @return the label of the component that was absorbed, or 0 if they were
+	 * already the same component
+	 */
+	public int union(int a, int b){
+		int rootA = find(a);
+		int rootB = find(b);
+		if(rootA == rootB){
+			return 0;
+		}
+		int root = Math.min(rootA, rootB);
+		int absorbed = Math.max(rootA, rootB);
+		Entry rootEntry = entries.get(root);
+		Entry absorbedEntry = entries.get(absorbed);
+		absorbedEntry.parent = root;
+		rootEntry.lastRow = Math.max(rootEntry.lastRow, absorbedEntry.lastRow);
+		return absorbed;
+	}
+
+	/**
+	 * records that a component has been seen in a row
+	 * @param label any label of the component
+	 * @param row the row
+	 */
+	public void seen(int label, int row){
+		Entry entry = entries.get(find(label));
+		entry.lastRow = Math.max(entry.lastRow, row);
+	}
+
+	/**
+	 * records that a label has been handed on, so that joining it later has to be
+	 * reported
+	 */
+	public void setEmitted(int label){
+		entries.get(label).emitted = true;
+	}
+
+	public boolean isEmitted(int label){
+		return entries.get(label).emitted;
+	}
+
+	/**
+	 * forgets every label whose component was last seen before the given row
+	 * @param row the first row that must still be remembered
+	 */
+	public void forgetBefore(int row){
+		/*
+		 * a component's root is always seen last, so a component is only forgotten
+		 * once its root has been
+		 */
+		List<Integer> forgotten = new ArrayList<Integer>();
+		for(Map.Entry<Integer, Entry> entry : entries.entrySet()){
+			if(entries.get(find(entry.getKey())).lastRow < row){
+				forgotten.add(entry.getKey());
+			}
+		}
+		for(Integer label : forgotten){
+			entries.remove(label);
+		}
+	}
+
+	/**
+	 * @return the number of labels currently remembered
+	 */
+	public int size(){
+		return entries.size();
+	}
+}
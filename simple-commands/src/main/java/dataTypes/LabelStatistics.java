@@ -0,0 +1,217 @@
+package dataTypes;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+
+import ij.process.ImageProcessor;
+
+/**
+ * a data type that accumulates the size, bounding box and centroid of the pixels
+ * belonging to a single label of a watershedded image
+ * @author Mark
+ *
+ */
+public class LabelStatistics {
+
+	private int label;
+	private long area;
+	private int minX;
+	private int minY;
+	private int maxX;
+	private int maxY;
+	private long sumX;
+	private long sumY;
+
+	/**
+	 * constructor for an empty set of statistics
+	 * @param label the label the statistics belong to
+	 */
+	public LabelStatistics(int label){
+		this.label = label;
+		this.area = 0;
+		this.minX = Integer.MAX_VALUE;
+		this.minY = Integer.MAX_VALUE;
+		this.maxX = Integer.MIN_VALUE;
+		this.maxY = Integer.MIN_VALUE;
+	}
+
+	/**
+	 * constructor for statistics that have already been measured, such as those
+	 * read back from a file
+	 */
+	public LabelStatistics(int label, long area, int minX, int minY, int maxX, int maxY, long sumX, long sumY){
+		this.label = label;
+		this.area = area;
+		this.minX = minX;
+		this.minY = minY;
+		this.maxX = maxX;
+		this.maxY = maxY;
+		this.sumX = sumX;
+		this.sumY = sumY;
+	}
+
+	/**
+	 * adds a run of pixels in a single row to the statistics
+	 * @param y the row of the run
+	 * @param start the x co-ordinate of the first pixel in the run
+	 * @param end the x co-ordinate after the last pixel in the run
+	 */
+	public void addRun(int y, int start, int end){
+		long length = end - start;
+		area += length;
+		sumX += (long) (start + end - 1) * length / 2;
+		sumY += y * length;
+		minX = Math.min(minX, start);
+		maxX = Math.max(maxX, end - 1);
+		minY = Math.min(minY, y);
+		maxY = Math.max(maxY, y);
+	}
+
+	public int getLabel() {
+		return label;
+	}
+
+	/**
+	 * @return the number of pixels with this label
+	 */
+	public long getArea() {
+		return area;
+	}
+
+	public int getMinX() {
+		return minX;
+	}
+
+	public int getMinY() {
+		return minY;
+	}
+
+	public int getMaxX() {
+		return maxX;
+	}
+
+	public int getMaxY() {
+		return maxY;
+	}
+
+	public long getSumX() {
+		return sumX;
+	}
+
+	public long getSumY() {
+		return sumY;
+	}
+
+	/**
+	 * @return the smallest rectangle containing every pixel with this label
+	 */
+	public Rectangle getBounds() {
+		return new Rectangle(minX, minY, maxX - minX + 1, maxY - minY + 1);
+	}
+
+	/**
+	 * @return the mean x co-ordinate of the pixels with this label
+	 */
+	public double getCentroidX() {
+		return (double) sumX / area;
+	}
+
+	/**
+	 * @return the mean y co-ordinate of the pixels with this label
+	 */
+	public double getCentroidY() {
+		return (double) sumY / area;
+	}
+
+	/**
+	 * measures every non-zero label of a label image in a single pass
+	 * @param labels the label image
+	 * @return the statistics of every label present, in order of label value
+	 */
+	public static LabelStatistics[] measure(ImageProcessor labels){
+		return measure(labels, 0);
+	}
+
+	/**
+	 * measures every non-zero label of a label image in a single pass, leaving
+	 * out one value, such as that of the watershed lines
+	 * @param labels the label image
+	 * @param ignored the value to leave out, or 0 to measure every label
+	 * @return the statistics of every label present, in order of label value
+	 */
+	public static LabelStatistics[] measure(ImageProcessor labels, int ignored){
+		final int width = labels.getWidth();
+		final int height = labels.getHeight();
+
+		LabelStatistics[] stats = new LabelStatistics[256];
+		int labelCount = 0;
+
+		for(int y = 0; y < height; y++){
+			int x = 0;
+			while(x < width){
+				int value = (int) labels.getf(x, y);
+				if(value == 0){
+					x++;
+					continue;
+				}
+				int start = x;
+				while(x < width && (int) labels.getf(x, y) == value){
+					x++;
+				}
+				if(value == ignored){
+					continue;
+				}
+				if(value >= stats.length){
+					stats = Arrays.copyOf(stats, Math.max(value + 1, stats.length * 2));
+				}
+				if(stats[value] == null){
+					stats[value] = new LabelStatistics(value);
+					labelCount++;
+				}
+				stats[value].addRun(y, start, x);
+			}
+		}
+
+		return present(stats, labelCount);
+	}
+
+	/**
+	 * measures the cell bodies of labelled runs straight from the runs, without
+	 * building a label image
+	 * @param runs the labelled runs
+	 * @param offset the amount added to each cell body to give its label, as when
+	 * the runs are written to a label image
+	 * @return the statistics of every cell body present, in order of label value
+	 */
+	public static LabelStatistics[] measure(LabelledRuns runs, int offset){
+		LabelStatistics[] stats = new LabelStatistics[runs.getCellBodyCount() + offset + 1];
+		int labelCount = 0;
+		for(int y = 0; y < runs.getHeight(); y++){
+			int[] cells = runs.getCells(y);
+			for(int c = 0; c < cells.length; c += 3){
+				int value = cells[c + 2] + offset;
+				if(stats[value] == null){
+					stats[value] = new LabelStatistics(value);
+					labelCount++;
+				}
+				stats[value].addRun(y, cells[c], cells[c + 1]);
+			}
+		}
+		return present(stats, labelCount);
+	}
+
+	private static LabelStatistics[] present(LabelStatistics[] stats, int labelCount){
+		LabelStatistics[] present = new LabelStatistics[labelCount];
+		int i = 0;
+		for(LabelStatistics stat : stats){
+			if(stat != null){
+				present[i++] = stat;
+			}
+		}
+		return present;
+	}
+
+	public String toString(){
+		return "" + label + ": " + area + " px at " + getCentroidX() + "," + getCentroidY();
+	}
+}
@@ -0,0 +1,185 @@
+package dataTypes;
+
+import java.util.Arrays;
+
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * a row-major array of labels that starts out one byte per pixel and is widened
+ * to two, then four, bytes per pixel the first time a label too large for the
+ * current width is stored. Most images hold fewer than 250 cell bodies, so their
+ * labels are kept (and output) as bytes, while images with more than 65535 cell
+ * bodies are still labelled correctly.
+ *
+ * Labels must not be negative.
+ *
+ * @author Mark
+ *
+ */
+public class LabelStore {
+
+	public final static int BYTE_MAX = 0xFF;
+	public final static int SHORT_MAX = 0xFFFF;
+	/*
+	 * the largest label that a float can hold exactly, and so the largest that
+	 * can be output
+	 */
+	public final static int FLOAT_MAX = 1 << 24;
+
+	private final int width;
+	private final int height;
+	private byte[] bytes;
+	private short[] shorts;
+	private int[] ints;
+
+	/**
+	 * constructor for an empty (all zero) store of byte labels
+	 * @param width the width of the image
+	 * @param height the height of the image
+	 */
+	public LabelStore(int width, int height){
+		this(width, height, 0);
+	}
+
+	/**
+	 * constructor for an empty (all zero) store already wide enough for the
+	 * largest label it will be given, so that it need not be widened while filling
+	 * @param width the width of the image
+	 * @param height the height of the image
+	 * @param maxLabel the largest label expected
+	 */
+	public LabelStore(int width, int height, int maxLabel){
+		this.width = width;
+		this.height = height;
+		if(maxLabel > SHORT_MAX){
+			ints = new int[width * height];
+		} else if(maxLabel > BYTE_MAX){
+			shorts = new short[width * height];
+		} else {
+			bytes = new byte[width * height];
+		}
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * @return the number of bits currently used for each label (8, 16 or 32)
+	 */
+	public int getBitDepth() {
+		if(bytes != null){
+			return 8;
+		} else if(shorts != null){
+			return 16;
+		} else {
+			return 32;
+		}
+	}
+
+	/**
+	 * @param index the row-major index of the pixel
+	 * @return the label of the pixel
+	 */
+	public int get(int index) {
+		if(bytes != null){
+			return bytes[index] & BYTE_MAX;
+		} else if(shorts != null){
+			return shorts[index] & SHORT_MAX;
+		} else {
+			return ints[index];
+		}
+	}
+
+	/**
+	 * sets the label of a pixel, widening the store first if needed
+	 * @param index the row-major index of the pixel
+	 * @param label the new label
+	 */
+	public void set(int index, int label) {
+		reserve(label);
+		if(bytes != null){
+			bytes[index] = (byte) label;
+		} else if(shorts != null){
+			shorts[index] = (short) label;
+		} else {
+			ints[index] = label;
+		}
+	}
+
+	/**
+	 * sets the label of a run of pixels in a row, widening the store first if needed
+	 * @param y the row of the run
+	 * @param start the x co-ordinate of the first pixel in the run
+	 * @param end the x co-ordinate after the last pixel in the run
+	 * @param label the new label
+	 */
+	public void fillRun(int y, int start, int end, int label) {
+		reserve(label);
+		int from = y * width + start;
+		int to = y * width + end;
+		if(bytes != null){
+			Arrays.fill(bytes, from, to, (byte) label);
+		} else if(shorts != null){
+			Arrays.fill(shorts, from, to, (short) label);
+		} else {
+			Arrays.fill(ints, from, to, label);
+		}
+	}
+
+	/**
+	 * widens the store, if needed, so that it can hold the given label
+	 * @param label the largest label that is about to be stored
+	 */
+	public void reserve(int label) {
+		if(label > SHORT_MAX){
+			if(ints == null){
+				int[] wider = new int[width * height];
+				for(int i = 0; i < wider.length; i++){
+					wider[i] = get(i);
+				}
+				ints = wider;
+				bytes = null;
+				shorts = null;
+			}
+		} else if(label > BYTE_MAX && bytes != null){
+			short[] wider = new short[width * height];
+			for(int i = 0; i < wider.length; i++){
+				wider[i] = (short) (bytes[i] & BYTE_MAX);
+			}
+			shorts = wider;
+			bytes = null;
+		}
+	}
+
+	/**
+	 * turns the labels into an image of the matching type: byte labels into a
+	 * ByteProcessor and short labels into a ShortProcessor, both sharing the
+	 * store's array, and int labels into a FloatProcessor
+	 * @return the label image
+	 * @throws IllegalStateException if a label is too large to be held exactly
+	 * by a FloatProcessor
+	 */
+	public ImageProcessor toProcessor() {
+		if(bytes != null){
+			return new ByteProcessor(width, height, bytes, null);
+		} else if(shorts != null){
+			return new ShortProcessor(width, height, shorts, null);
+		}
+		float[] pixels = new float[ints.length];
+		for(int i = 0; i < ints.length; i++){
+			if(ints[i] > FLOAT_MAX){
+				throw new IllegalStateException("Label " + ints[i] + " is too large to be output");
+			}
+			pixels[i] = ints[i];
+		}
+		return new FloatProcessor(width, height, pixels, null);
+	}
+}
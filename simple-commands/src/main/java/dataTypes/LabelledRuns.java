@@ -0,0 +1,123 @@
+package dataTypes;
+
+/**
+ * the run length equivalent of a grid of cell body labels. Each row holds the
+ * runs of cell body pixels as (start, end, cellBody) triples, with the end being
+ * exclusive, alongside the runs of watershed pixels for that row as (start, end)
+ * pairs. Background pixels are not stored.
+ * @author Mark
+ *
+ */
+public class LabelledRuns {
+
+	private static final int[] NORUNS = new int[0];
+
+	private int width;
+	private int height;
+	private int[][] cells;
+	private int[][] watershed;
+	private int cellBodyCount;
+
+	/**
+	 * constructor for the data type
+	 * @param width the width of the image the labels cover
+	 * @param height the height of the image the labels cover
+	 * @param cells the (start, end, cellBody) triples for each row
+	 * @param watershed the (start, end) pairs of watershed pixels for each row,
+	 * or null if there are none yet
+	 * @param cellBodyCount the number of distinct cell bodies, labelled 1 to cellBodyCount
+	 */
+	public LabelledRuns(int width, int height, int[][] cells, int[][] watershed, int cellBodyCount){
+		this.width = width;
+		this.height = height;
+		this.cells = cells;
+		this.watershed = watershed == null ? new int[height][] : watershed;
+		this.cellBodyCount = cellBodyCount;
+		for(int y = 0; y < height; y++){
+			if(this.cells[y] == null){
+				this.cells[y] = NORUNS;
+			}
+			if(this.watershed[y] == null){
+				this.watershed[y] = NORUNS;
+			}
+		}
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * the cell body runs of a single row
+	 * @param y the row
+	 * @return the (start, end, cellBody) triples of the row, which must not be altered
+	 */
+	public int[] getCells(int y) {
+		return cells[y];
+	}
+
+	/**
+	 * the watershed runs of a single row
+	 * @param y the row
+	 * @return the (start, end) pairs of the row, which must not be altered
+	 */
+	public int[] getWatershed(int y) {
+		return watershed[y];
+	}
+
+	public int getCellBodyCount() {
+		return cellBodyCount;
+	}
+
+	/**
+	 * @return the number of pixels that belong to a cell body
+	 */
+	public long getCellArea() {
+		long area = 0;
+		for(int[] row : cells){
+			for(int i = 0; i < row.length; i += 3){
+				area += row[i + 1] - row[i];
+			}
+		}
+		return area;
+	}
+
+	/**
+	 * the pixels of a row that belong to any cell body, ignoring which one
+	 * @param y the row
+	 * @return the (start, end) pairs of the cell body pixels in the row
+	 */
+	public int[] getForeground(int y) {
+		int[] row = cells[y];
+		RunLengthMask.RunBuilder out = new RunLengthMask.RunBuilder(row.length);
+		for(int i = 0; i < row.length; i += 3){
+			out.add(row[i], row[i + 1]);
+		}
+		return out.toArray();
+	}
+
+	/**
+	 * writes the labels into a label store, widening it first if the largest
+	 * label will not fit
+	 * @param labels the store to fill, of the same size as the image
+	 * @param offset the amount to add to every cell body label
+	 * @param watershedValue the value to give watershed pixels
+	 */
+	public void fill(LabelStore labels, int offset, int watershedValue) {
+		labels.reserve(Math.max(cellBodyCount + offset, watershedValue));
+		for(int y = 0; y < height; y++){
+			int[] row = cells[y];
+			for(int i = 0; i < row.length; i += 3){
+				labels.fillRun(y, row[i], row[i + 1], row[i + 2] + offset);
+			}
+			int[] lines = watershed[y];
+			for(int i = 0; i < lines.length; i += 2){
+				labels.fillRun(y, lines[i], lines[i + 1], watershedValue);
+			}
+		}
+	}
+}
@@ -0,0 +1,180 @@
+package dataTypes;
+
+import java.util.Arrays;
+
+/**
+ * a hash map from long keys to int values, held in two primitive arrays with
+ * open addressing, so that counting millions of keys neither boxes them nor
+ * allocates an entry for each. The key 0 cannot be stored, as it marks an empty
+ * slot.
+ *
+ * The entries are read by slot: every slot from 0 to getCapacity() - 1 whose key
+ * is not 0 holds an entry.
+ * @author Mark
+ *
+ */
+public class LongIntMap {
+
+	private static final int MIN_CAPACITY = 16;
+
+	private long[] keys;
+	private int[] values;
+	private int size;
+	private int mask;
+
+	/**
+	 * constructor for an empty map
+	 * @param expected the number of entries expected, so that the map need not
+	 * grow while they are added
+	 */
+	public LongIntMap(int expected){
+		int capacity = MIN_CAPACITY;
+		while(capacity < expected * 2){
+			capacity <<= 1;
+		}
+		keys = new long[capacity];
+		values = new int[capacity];
+		mask = capacity - 1;
+	}
+
+	/**
+	 * @return the number of entries
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the number of slots, some of which are empty
+	 */
+	public int getCapacity() {
+		return keys.length;
+	}
+
+	/**
+	 * @param slot the slot
+	 * @return the key held in the slot, or 0 if it is empty
+	 */
+	public long getKey(int slot) {
+		return keys[slot];
+	}
+
+	/**
+	 * @param slot the slot
+	 * @return the value held in the slot
+	 */
+	public int getValue(int slot) {
+		return values[slot];
+	}
+
+	/**
+	 * @param key the key
+	 * @param missing the value to return if the key is not in the map
+	 * @return the value of the key
+	 */
+	public int get(long key, int missing) {
+		int slot = find(key);
+		return keys[slot] == key ? values[slot] : missing;
+	}
+
+	/**
+	 * sets the value of a key
+	 * @param key the key, which must not be 0
+	 * @param value the new value
+	 */
+	public void put(long key, int value) {
+		int slot = insert(key);
+		values[slot] = value;
+	}
+
+	/**
+	 * adds to the value of a key, which starts at 0 if it is not in the map
+	 * @param key the key, which must not be 0
+	 * @param amount the amount to add
+	 */
+	public void add(long key, int amount) {
+		int slot = insert(key);
+		values[slot] += amount;
+	}
+
+	/**
+	 * adds every value of another map to this map's value of the same key
+	 * @param other the map to add
+	 */
+	public void addAll(LongIntMap other) {
+		for(int slot = 0; slot < other.keys.length; slot++){
+			if(other.keys[slot] != 0){
+				add(other.keys[slot], other.values[slot]);
+			}
+		}
+	}
+
+	/**
+	 * @return the slot holding the key, adding it with a value of 0 if needed
+	 */
+	private int insert(long key) {
+		if(key == 0){
+			throw new IllegalArgumentException("The key 0 cannot be stored");
+		}
+		int slot = find(key);
+		if(keys[slot] == 0){
+			if(2 * (size + 1) > keys.length){
+				grow();
+				slot = find(key);
+			}
+			keys[slot] = key;
+			size++;
+		}
+		return slot;
+	}
+
+	/**
+	 * @return the slot holding the key, or the empty slot where it would go
+	 */
+	private int find(long key) {
+		int slot = hash(key) & mask;
+		while(keys[slot] != 0 && keys[slot] != key){
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private void grow() {
+		long[] oldKeys = keys;
+		int[] oldValues = values;
+		keys = new long[oldKeys.length * 2];
+		values = new int[oldKeys.length * 2];
+		mask = keys.length - 1;
+		for(int slot = 0; slot < oldKeys.length; slot++){
+			if(oldKeys[slot] != 0){
+				int to = find(oldKeys[slot]);
+				keys[to] = oldKeys[slot];
+				values[to] = oldValues[slot];
+			}
+		}
+	}
+
+	/**
+	 * spreads the bits of the key, so that keys differing only in their high or
+	 * low half still land in differing slots
+	 */
+	private static int hash(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	/**
+	 * @return the keys of every entry, in ascending order
+	 */
+	public long[] sortedKeys() {
+		long[] sorted = new long[size];
+		int i = 0;
+		for(long key : keys){
+			if(key != 0){
+				sorted[i++] = key;
+			}
+		}
+		Arrays.sort(sorted);
+		return sorted;
+	}
+}
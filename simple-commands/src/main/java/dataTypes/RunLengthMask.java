@@ -0,0 +1,243 @@
+package dataTypes;
+
+/**
+ * a binary mask stored as horizontal runs of foreground pixels. Each row holds
+ * its runs as pairs of (start, end) x co-ordinates, with the end being exclusive
+ * and the runs sorted and non-overlapping. Background pixels take up no space, so
+ * the size of the mask depends on the number of foreground boundaries rather than
+ * the area of the image.
+ * @author Mark
+ *
+ */
+public class RunLengthMask {
+
+	private static final int[] NORUNS = new int[0];
+
+	private int width;
+	private int height;
+	private int[][] rows;
+
+	/**
+	 * constructor for the data type
+	 * @param width the width of the image the mask covers
+	 * @param height the height of the image the mask covers
+	 * @param rows the (start, end) pairs for each row, or null for an empty row
+	 */
+	public RunLengthMask(int width, int height, int[][] rows){
+		this.width = width;
+		this.height = height;
+		this.rows = rows;
+		for(int y = 0; y < height; y++){
+			if(rows[y] == null){
+				rows[y] = NORUNS;
+			}
+		}
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * the runs of a single row, as (start, end) pairs
+	 * @param y the row
+	 * @return the runs of the row, which must not be altered
+	 */
+	public int[] getRow(int y) {
+		return rows[y];
+	}
+
+	/**
+	 * @param y the row
+	 * @return the number of runs in that row
+	 */
+	public int getRunCount(int y) {
+		return rows[y].length / 2;
+	}
+
+	/**
+	 * @return the total number of runs in the mask
+	 */
+	public int getRunCount() {
+		int count = 0;
+		for(int[] row : rows){
+			count += row.length / 2;
+		}
+		return count;
+	}
+
+	/**
+	 * @return the number of foreground pixels in the mask
+	 */
+	public long getArea() {
+		long area = 0;
+		for(int[] row : rows){
+			for(int i = 0; i < row.length; i += 2){
+				area += row[i + 1] - row[i];
+			}
+		}
+		return area;
+	}
+
+	/**
+	 * checks whether a single pixel is foreground
+	 * @param x the x co-ordinate of the pixel
+	 * @param y the y co-ordinate of the pixel
+	 * @return true if the pixel lies inside one of the runs
+	 */
+	public boolean isForeground(int x, int y) {
+		int[] row = rows[y];
+		for(int i = 0; i < row.length; i += 2){
+			if(x < row[i]){
+				return false;
+			} else if(x < row[i + 1]){
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * the intersection of two rows of runs
+	 * @param a the first row of (start, end) pairs
+	 * @param b the second row of (start, end) pairs
+	 * @return the pixels that are foreground in both rows
+	 */
+	public static int[] intersect(int[] a, int[] b){
+		RunBuilder out = new RunBuilder(Math.min(a.length, b.length) + 2);
+		int i = 0;
+		int j = 0;
+		while(i < a.length && j < b.length){
+			int start = Math.max(a[i], b[j]);
+			int end = Math.min(a[i + 1], b[j + 1]);
+			if(start < end){
+				out.add(start, end);
+			}
+			if(a[i + 1] < b[j + 1]){
+				i += 2;
+			} else {
+				j += 2;
+			}
+		}
+		return out.toArray();
+	}
+
+	/**
+	 * the union of two rows of runs
+	 * @param a the first row of (start, end) pairs
+	 * @param b the second row of (start, end) pairs
+	 * @return the pixels that are foreground in either row
+	 */
+	public static int[] union(int[] a, int[] b){
+		RunBuilder out = new RunBuilder(a.length + b.length);
+		int i = 0;
+		int j = 0;
+		while(i < a.length || j < b.length){
+			if(j >= b.length || (i < a.length && a[i] <= b[j])){
+				out.add(a[i], a[i + 1]);
+				i += 2;
+			} else {
+				out.add(b[j], b[j + 1]);
+				j += 2;
+			}
+		}
+		return out.toArray();
+	}
+
+	/**
+	 * the pixels of one row of runs that are not in another
+	 * @param a the row of (start, end) pairs to subtract from
+	 * @param b the row of (start, end) pairs to remove
+	 * @return the pixels that are foreground in a but not in b
+	 */
+	public static int[] subtract(int[] a, int[] b){
+		RunBuilder out = new RunBuilder(a.length + b.length);
+		int j = 0;
+		for(int i = 0; i < a.length; i += 2){
+			int start = a[i];
+			int end = a[i + 1];
+			while(j < b.length && b[j + 1] <= start){
+				j += 2;
+			}
+			int k = j;
+			while(k < b.length && b[k] < end){
+				if(b[k] > start){
+					out.add(start, b[k]);
+				}
+				start = Math.max(start, b[k + 1]);
+				k += 2;
+			}
+			if(start < end){
+				out.add(start, end);
+			}
+		}
+		return out.toArray();
+	}
+
+	/**
+	 * grows (or shrinks, for a negative amount) every run of a row
+	 * horizontally. Runs that touch the edges of the image are not shrunk from
+	 * that edge, as pixels outside the image are not treated as neighbours.
+	 * @param row the row of (start, end) pairs
+	 * @param amount the number of pixels to move each end of each run by
+	 * @param width the width of the image
+	 * @return the altered row
+	 */
+	public static int[] stretch(int[] row, int amount, int width){
+		RunBuilder out = new RunBuilder(row.length);
+		for(int i = 0; i < row.length; i += 2){
+			int start = row[i] == 0 ? 0 : Math.max(0, row[i] - amount);
+			int end = row[i + 1] == width ? width : Math.min(width, row[i + 1] + amount);
+			if(start < end){
+				out.add(start, end);
+			}
+		}
+		return out.toArray();
+	}
+
+	/**
+	 * a growable list of runs, which merges touching or overlapping runs as long as
+	 * they are added in order of their start position
+	 * @author Mark
+	 *
+	 */
+	public static class RunBuilder {
+
+		private int[] runs;
+		private int size;
+
+		public RunBuilder(int capacity){
+			this.runs = new int[Math.max(capacity, 4)];
+			this.size = 0;
+		}
+
+		public void add(int start, int end){
+			if(size > 0 && start <= runs[size - 1]){
+				if(end > runs[size - 1]){
+					runs[size - 1] = end;
+				}
+				return;
+			}
+			if(size + 2 > runs.length){
+				int[] grown = new int[runs.length * 2];
+				System.arraycopy(runs, 0, grown, 0, size);
+				runs = grown;
+			}
+			runs[size++] = start;
+			runs[size++] = end;
+		}
+
+		public int[] toArray(){
+			if(size == 0){
+				return NORUNS;
+			}
+			int[] out = new int[size];
+			System.arraycopy(runs, 0, out, 0, size);
+			return out;
+		}
+	}
+}
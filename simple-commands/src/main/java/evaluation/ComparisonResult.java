@@ -0,0 +1,142 @@
+package evaluation;
+
+/**
+ * the outcome of comparing a segmentation with a reference segmentation: the
+ * object each object was matched with and their IoU, the number of reference
+ * objects split and segmentation objects merged, and the match scores at each
+ * IoU threshold.
+ *
+ * Objects are listed in order of label on each side. An object's match is the
+ * label of the object on the other side it was paired with, or 0 if it was left
+ * unmatched.
+ * @author Mark
+ *
+ */
+public class ComparisonResult {
+
+	private int[] labels;
+	private int[] matches;
+	private double[] ious;
+	private int[] referenceLabels;
+	private int[] referenceMatches;
+	private double[] referenceIoUs;
+	private int splitCount;
+	private int mergeCount;
+	private MatchScore[] scores;
+
+	/**
+	 * @param labels the labels of the segmentation's objects, ascending
+	 * @param matches the reference label each was matched with, or 0
+	 * @param ious the IoU of each with its match, or 0
+	 * @param referenceLabels the labels of the reference's objects, ascending
+	 * @param referenceMatches the segmentation label each was matched with, or 0
+	 * @param referenceIoUs the IoU of each with its match, or 0
+	 * @param splitCount the number of reference objects split
+	 * @param mergeCount the number of segmentation objects that merge others
+	 * @param scores the match scores at each IoU threshold
+	 */
+	public ComparisonResult(int[] labels, int[] matches, double[] ious, int[] referenceLabels, int[] referenceMatches,
+			double[] referenceIoUs, int splitCount, int mergeCount, MatchScore[] scores){
+		this.labels = labels;
+		this.matches = matches;
+		this.ious = ious;
+		this.referenceLabels = referenceLabels;
+		this.referenceMatches = referenceMatches;
+		this.referenceIoUs = referenceIoUs;
+		this.splitCount = splitCount;
+		this.mergeCount = mergeCount;
+		this.scores = scores;
+	}
+
+	/**
+	 * @return the number of objects in the segmentation
+	 */
+	public int getObjectCount() {
+		return labels.length;
+	}
+
+	/**
+	 * @return the number of objects in the reference
+	 */
+	public int getReferenceObjectCount() {
+		return referenceLabels.length;
+	}
+
+	/**
+	 * @return the labels of the segmentation's objects, ascending
+	 */
+	public int[] getLabels() {
+		return labels;
+	}
+
+	/**
+	 * @return the reference label each of the segmentation's objects was
+	 * matched with, or 0
+	 */
+	public int[] getMatches() {
+		return matches;
+	}
+
+	/**
+	 * @return the IoU of each of the segmentation's objects with its match, or 0
+	 */
+	public double[] getIoUs() {
+		return ious;
+	}
+
+	/**
+	 * @return the labels of the reference's objects, ascending
+	 */
+	public int[] getReferenceLabels() {
+		return referenceLabels;
+	}
+
+	/**
+	 * @return the segmentation label each of the reference's objects was
+	 * matched with, or 0
+	 */
+	public int[] getReferenceMatches() {
+		return referenceMatches;
+	}
+
+	/**
+	 * @return the IoU of each of the reference's objects with its match, or 0
+	 */
+	public double[] getReferenceIoUs() {
+		return referenceIoUs;
+	}
+
+	/**
+	 * @return the number of reference objects that more than half of each of two
+	 * or more segmentation objects lies in
+	 */
+	public int getSplitCount() {
+		return splitCount;
+	}
+
+	/**
+	 * @return the number of segmentation objects that more than half of each of
+	 * two or more reference objects lies in
+	 */
+	public int getMergeCount() {
+		return mergeCount;
+	}
+
+	/**
+	 * @return the match scores at each IoU threshold, in the order the
+	 * thresholds were given
+	 */
+	public MatchScore[] getScores() {
+		return scores;
+	}
+
+	public String toString(){
+		StringBuilder sb = new StringBuilder();
+		sb.append(labels.length).append(" objects against ").append(referenceLabels.length).append(" reference objects, ")
+			.append(splitCount).append(" split and ").append(mergeCount).append(" merged.");
+		for(MatchScore score : scores){
+			sb.append('\n').append(score).append('.');
+		}
+		return sb.toString();
+	}
+}
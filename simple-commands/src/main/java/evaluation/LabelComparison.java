@@ -0,0 +1,291 @@
+package evaluation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import dataTypes.LongIntMap;
+import ij.process.ImageProcessor;
+import watershed.RowBands;
+import watershed.Watershed;
+
+/**
+ * a class that compares a label image with a reference label image, such as a
+ * watershed against a hand-drawn ground truth.
+ *
+ * Both images are read once, in parallel bands. Each band counts the pixels
+ * of every (label, reference label) pair in a sparse table held in a primitive
+ * hash map. Pixels are counted a run at a time, so the table is only touched
+ * where either label changes. Pairs with a label of 0 count the pixels of an
+ * object lying on the other image's background, so the same table gives each
+ * object's area. The bands' tables are then added together, and everything
+ * else is worked out from the table, whose size grows with the number of
+ * overlapping objects rather than with the image.
+ *
+ * Objects are paired greedily from the highest IoU down, with each object used
+ * at most once. Above an IoU of 0.5 an object can overlap only one other object
+ * that well, so the pairing is the only one possible. A pair counts as a match
+ * at every threshold its IoU reaches.
+ * @author Mark
+ *
+ */
+public final class LabelComparison {
+
+	/*
+	 * the IoU thresholds scored when none are given: 0.5 to 0.95 in steps of 0.05
+	 */
+	private static final double[] DEFAULT_THRESHOLDS = {0.5, 0.55, 0.6, 0.65, 0.7, 0.75, 0.8, 0.85, 0.9, 0.95};
+
+	private LabelComparison(){
+	}
+
+	/**
+	 * compares the output of a watershed with a reference, leaving out the
+	 * watershed's lines and scoring the default thresholds
+	 * @param labels the watershed's label image
+	 * @param reference the reference label image, with 0 as its background
+	 * @return the comparison
+	 */
+	public static ComparisonResult compareWatershed(ImageProcessor labels, ImageProcessor reference){
+		return compare(labels, Watershed.WSHED_LABEL, reference, 0, DEFAULT_THRESHOLDS);
+	}
+
+	/**
+	 * compares two label images whose background is 0, scoring the default
+	 * thresholds
+	 * @param labels the label image being judged
+	 * @param reference the reference label image
+	 * @return the comparison
+	 */
+	public static ComparisonResult compare(ImageProcessor labels, ImageProcessor reference){
+		return compare(labels, 0, reference, 0, DEFAULT_THRESHOLDS);
+	}
+
+	/**
+	 * compares two label images
+	 * @param labels the label image being judged
+	 * @param ignored a value of labels to treat as background, such as that of
+	 * watershed lines, or 0
+	 * @param reference the reference label image
+	 * @param referenceIgnored a value of the reference to treat as background, or 0
+	 * @param thresholds the IoU thresholds to score
+	 * @return the comparison
+	 * @throws IllegalArgumentException if the images differ in size
+	 */
+	public static ComparisonResult compare(ImageProcessor labels, int ignored, ImageProcessor reference, int referenceIgnored, double[] thresholds){
+		if(labels.getWidth() != reference.getWidth() || labels.getHeight() != reference.getHeight()){
+			throw new IllegalArgumentException("The label images differ in size: " + labels.getWidth() + "x" + labels.getHeight()
+					+ " and " + reference.getWidth() + "x" + reference.getHeight());
+		}
+		LongIntMap overlaps = overlaps(labels, ignored, reference, referenceIgnored);
+
+		/*
+		 * the objects on each side, in order of label, and their areas
+		 */
+		LongIntMap indexes = new LongIntMap(overlaps.size());
+		LongIntMap referenceIndexes = new LongIntMap(overlaps.size());
+		for(int slot = 0; slot < overlaps.getCapacity(); slot++){
+			long key = overlaps.getKey(slot);
+			if(key != 0){
+				if(label(key) != 0){
+					indexes.put(label(key), 0);
+				}
+				if(referenceLabel(key) != 0){
+					referenceIndexes.put(referenceLabel(key), 0);
+				}
+			}
+		}
+		int[] objects = index(indexes);
+		int[] referenceObjects = index(referenceIndexes);
+		long[] areas = new long[objects.length];
+		long[] referenceAreas = new long[referenceObjects.length];
+
+		int pairCount = 0;
+		for(int slot = 0; slot < overlaps.getCapacity(); slot++){
+			long key = overlaps.getKey(slot);
+			if(key != 0){
+				int count = overlaps.getValue(slot);
+				if(label(key) != 0){
+					areas[indexes.get(label(key), -1)] += count;
+				}
+				if(referenceLabel(key) != 0){
+					referenceAreas[referenceIndexes.get(referenceLabel(key), -1)] += count;
+				}
+				if(label(key) != 0 && referenceLabel(key) != 0){
+					pairCount++;
+				}
+			}
+		}
+
+		/*
+		 * the IoU of every overlapping pair, and the objects more than half of
+		 * which lie in another
+		 */
+		int[] pairs = new int[pairCount];
+		int[] pairReferences = new int[pairCount];
+		double[] pairIoUs = new double[pairCount];
+		long[] order = new long[pairCount];
+		int[] parts = new int[objects.length];
+		int[] referenceParts = new int[referenceObjects.length];
+		for(int slot = 0, p = 0; slot < overlaps.getCapacity(); slot++){
+			long key = overlaps.getKey(slot);
+			if(key == 0 || label(key) == 0 || referenceLabel(key) == 0){
+				continue;
+			}
+			int object = indexes.get(label(key), -1);
+			int referenceObject = referenceIndexes.get(referenceLabel(key), -1);
+			long intersection = overlaps.getValue(slot);
+			pairs[p] = object;
+			pairReferences[p] = referenceObject;
+			pairIoUs[p] = (double) intersection / (areas[object] + referenceAreas[referenceObject] - intersection);
+			/*
+			 * a positive float's bits sort as its value does
+			 */
+			order[p] = ((long) Float.floatToIntBits((float) pairIoUs[p]) << 32) | p;
+			if(2 * intersection > areas[object]){
+				referenceParts[referenceObject]++;
+			}
+			if(2 * intersection > referenceAreas[referenceObject]){
+				parts[object]++;
+			}
+			p++;
+		}
+		Arrays.sort(order);
+
+		/*
+		 * pairing greedily from the highest IoU down
+		 */
+		int[] matches = new int[objects.length];
+		double[] ious = new double[objects.length];
+		int[] referenceMatches = new int[referenceObjects.length];
+		double[] referenceIoUs = new double[referenceObjects.length];
+		double[] matchedIoUs = new double[Math.min(objects.length, referenceObjects.length)];
+		int matchCount = 0;
+		for(int o = order.length - 1; o >= 0; o--){
+			int p = (int) order[o];
+			int object = pairs[p];
+			int referenceObject = pairReferences[p];
+			if(matches[object] == 0 && referenceMatches[referenceObject] == 0){
+				matches[object] = referenceObjects[referenceObject];
+				ious[object] = pairIoUs[p];
+				referenceMatches[referenceObject] = objects[object];
+				referenceIoUs[referenceObject] = pairIoUs[p];
+				matchedIoUs[matchCount++] = pairIoUs[p];
+			}
+		}
+
+		MatchScore[] scores = new MatchScore[thresholds.length];
+		for(int t = 0; t < thresholds.length; t++){
+			int truePositives = 0;
+			double iouSum = 0;
+			for(int m = 0; m < matchCount; m++){
+				if(matchedIoUs[m] >= thresholds[t]){
+					truePositives++;
+					iouSum += matchedIoUs[m];
+				}
+			}
+			scores[t] = new MatchScore(thresholds[t], truePositives, objects.length - truePositives,
+					referenceObjects.length - truePositives, truePositives == 0 ? Double.NaN : iouSum / truePositives);
+		}
+
+		return new ComparisonResult(objects, matches, ious, referenceObjects, referenceMatches, referenceIoUs,
+				count(referenceParts), count(parts), scores);
+	}
+
+	/**
+	 * @param iou an IoU
+	 * @return the Dice coefficient of a pair of objects with that IoU
+	 */
+	public static double dice(double iou){
+		return 2 * iou / (1 + iou);
+	}
+
+	/**
+	 * counts the pixels of every pair of labels, in parallel bands of rows
+	 */
+	private static LongIntMap overlaps(final ImageProcessor labels, final int ignored, final ImageProcessor reference, final int referenceIgnored){
+		final int width = labels.getWidth();
+		final List<LongIntMap> tables = new ArrayList<LongIntMap>();
+		RowBands.forEach(labels.getHeight(), new RowBands.Band(){
+			public void run(int start, int end){
+				LongIntMap table = new LongIntMap(1024);
+				for(int y = start; y < end; y++){
+					int i = y * width;
+					long runKey = 0;
+					int runLength = 0;
+					for(int x = 0; x < width; x++, i++){
+						long key = key(value(labels, i, ignored), value(reference, i, referenceIgnored));
+						if(key != runKey){
+							if(runKey != 0){
+								table.add(runKey, runLength);
+							}
+							runKey = key;
+							runLength = 0;
+						}
+						runLength++;
+					}
+					if(runKey != 0){
+						table.add(runKey, runLength);
+					}
+				}
+				synchronized(tables){
+					tables.add(table);
+				}
+			}
+		});
+
+		LongIntMap overlaps = tables.get(0);
+		for(int t = 1; t < tables.size(); t++){
+			overlaps.addAll(tables.get(t));
+		}
+		return overlaps;
+	}
+
+	/**
+	 * @return the label of a pixel, or 0 if it is background or ignored
+	 */
+	private static int value(ImageProcessor ip, int i, int ignored){
+		float value = ip.getf(i);
+		if(!(value > 0) || value == ignored){
+			return 0;
+		}
+		return (int) value;
+	}
+
+	private static long key(int label, int referenceLabel){
+		return ((long) label << 32) | referenceLabel;
+	}
+
+	private static int label(long key){
+		return (int) (key >>> 32);
+	}
+
+	private static int referenceLabel(long key){
+		return (int) key;
+	}
+
+	/**
+	 * numbers the labels held as keys of a map from 0 in order of label, storing
+	 * each one's number as its value
+	 * @return the labels in order
+	 */
+	private static int[] index(LongIntMap indexes){
+		long[] sorted = indexes.sortedKeys();
+		int[] labels = new int[sorted.length];
+		for(int i = 0; i < sorted.length; i++){
+			labels[i] = (int) sorted[i];
+			indexes.put(sorted[i], i);
+		}
+		return labels;
+	}
+
+	private static int count(int[] parts){
+		int count = 0;
+		for(int part : parts){
+			if(part >= 2){
+				count++;
+			}
+		}
+		return count;
+	}
+}
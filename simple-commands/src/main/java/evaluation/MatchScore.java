@@ -0,0 +1,96 @@
+package evaluation;
+
+/**
+ * how well the objects of a segmentation match those of a reference at one IoU
+ * threshold: a pair of objects matched with at least the threshold's IoU is a
+ * true positive, an object of the segmentation left unmatched is a false
+ * positive, and an object of the reference left unmatched is a false negative.
+ * @author Mark
+ *
+ */
+public class MatchScore {
+
+	private double threshold;
+	private int truePositives;
+	private int falsePositives;
+	private int falseNegatives;
+	private double meanIoU;
+
+	/**
+	 * @param threshold the IoU a matched pair needs
+	 * @param truePositives the number of matched pairs
+	 * @param falsePositives the number of objects of the segmentation left unmatched
+	 * @param falseNegatives the number of objects of the reference left unmatched
+	 * @param meanIoU the mean IoU of the matched pairs, or NaN if there are none
+	 */
+	public MatchScore(double threshold, int truePositives, int falsePositives, int falseNegatives, double meanIoU){
+		this.threshold = threshold;
+		this.truePositives = truePositives;
+		this.falsePositives = falsePositives;
+		this.falseNegatives = falseNegatives;
+		this.meanIoU = meanIoU;
+	}
+
+	public double getThreshold() {
+		return threshold;
+	}
+
+	public int getTruePositives() {
+		return truePositives;
+	}
+
+	public int getFalsePositives() {
+		return falsePositives;
+	}
+
+	public int getFalseNegatives() {
+		return falseNegatives;
+	}
+
+	/**
+	 * @return the mean IoU of the matched pairs, or NaN if there are none
+	 */
+	public double getMeanIoU() {
+		return meanIoU;
+	}
+
+	/**
+	 * @return the mean Dice coefficient of the matched pairs, or NaN if there
+	 * are none
+	 */
+	public double getMeanDice() {
+		return LabelComparison.dice(meanIoU);
+	}
+
+	/**
+	 * @return the fraction of the segmentation's objects that were matched, or
+	 * NaN if it has none
+	 */
+	public double getPrecision() {
+		return ratio(truePositives, truePositives + falsePositives);
+	}
+
+	/**
+	 * @return the fraction of the reference's objects that were matched, or NaN
+	 * if it has none
+	 */
+	public double getRecall() {
+		return ratio(truePositives, truePositives + falseNegatives);
+	}
+
+	/**
+	 * @return the F1 score, or NaN if neither segmentation has any objects
+	 */
+	public double getF1() {
+		return ratio(2 * truePositives, 2 * truePositives + falsePositives + falseNegatives);
+	}
+
+	private static double ratio(int numerator, int denominator) {
+		return denominator == 0 ? Double.NaN : (double) numerator / denominator;
+	}
+
+	public String toString(){
+		return String.format("IoU %.2f: %d matched, %d false positives, %d false negatives, precision %.3f, recall %.3f, F1 %.3f",
+				threshold, truePositives, falsePositives, falseNegatives, getPrecision(), getRecall(), getF1());
+	}
+}
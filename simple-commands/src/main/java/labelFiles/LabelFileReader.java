@@ -0,0 +1,300 @@
+package labelFiles;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import dataTypes.LabelStatistics;
+import dataTypes.LabelStore;
+import ij.process.ImageProcessor;
+
+/**
+ * reads label images written by the LabelFileWriter. The file is memory mapped,
+ * and only the header, statistics table and row index are read when it is opened,
+ * so a band of rows, or the bounding box of a single label, can be decoded
+ * without reading the rest of the file.
+ *
+ * Files larger than 2GB cannot be mapped in one piece and are not supported.
+ * A file that is truncated or corrupt gives an IOException when it is opened, or
+ * when a row that cannot be decoded is read.
+ *
+ * @author Mark
+ *
+ */
+public class LabelFileReader implements Closeable {
+
+	private RandomAccessFile file;
+	private MappedByteBuffer buffer;
+
+	private int width;
+	private int height;
+	private double threshVal;
+	private int eroDilCount;
+	private String engine;
+	private LabelStatistics[] statistics;
+	private int indexStart;
+	private int dataStart;
+	private long dataLength;
+
+	/**
+	 * opens a label file and reads its header
+	 * @param path the file to open
+	 * @throws IOException if the file cannot be read or is not a label file
+	 */
+	public LabelFileReader(File path) throws IOException{
+		file = new RandomAccessFile(path, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+			if(buffer.getInt() != LabelFileWriter.MAGIC){
+				throw new IOException(path + " is not a label file");
+			}
+			int version = buffer.getInt();
+			if(version != LabelFileWriter.VERSION){
+				throw new IOException("Unsupported label file version " + version);
+			}
+			width = buffer.getInt();
+			height = buffer.getInt();
+			if(width <= 0 || height <= 0 || (long) width * height > Integer.MAX_VALUE){
+				throw new IOException("Corrupt label file " + path + ": its size is " + width + "x" + height);
+			}
+			threshVal = buffer.getDouble();
+			eroDilCount = buffer.getInt();
+			byte[] engineBytes = new byte[buffer.getShort() & 0xFFFF];
+			buffer.get(engineBytes);
+			engine = new String(engineBytes, "UTF-8");
+
+			int labelCount = buffer.getInt();
+			if(labelCount < 0 || (long) labelCount * LabelFileWriter.STATS_ENTRY_SIZE > buffer.remaining()){
+				throw new IOException("Truncated label file " + path + ": it is too short for " + labelCount + " labels");
+			}
+			statistics = new LabelStatistics[labelCount];
+			for(int i = 0; i < statistics.length; i++){
+				LabelStatistics stat = new LabelStatistics(buffer.getInt(), buffer.getLong(), buffer.getInt(),
+						buffer.getInt(), buffer.getInt(), buffer.getInt(), buffer.getLong(), buffer.getLong());
+				/*
+				 * labels are in order, and their boxes are used to size the arrays
+				 * single labels are decoded into
+				 */
+				if(stat.getLabel() <= (i == 0 ? 0 : statistics[i - 1].getLabel())
+						|| stat.getMinX() < 0 || stat.getMinX() > stat.getMaxX() || stat.getMaxX() >= width
+						|| stat.getMinY() < 0 || stat.getMinY() > stat.getMaxY() || stat.getMaxY() >= height){
+					throw new IOException("Corrupt label file " + path + ": the statistics of label " + stat.getLabel() + " are out of order or outside the image");
+				}
+				statistics[i] = stat;
+			}
+
+			indexStart = buffer.position();
+			if(indexStart + (height + 1L) * 8 > buffer.limit()){
+				throw new IOException("Truncated label file " + path + ": its row index is incomplete");
+			}
+			dataStart = indexStart + (height + 1) * 8;
+			dataLength = buffer.getLong(indexStart + height * 8);
+			if(dataLength != buffer.limit() - dataStart){
+				throw new IOException("Truncated label file " + path + ": its rows should take " + dataLength
+						+ " bytes, but " + (buffer.limit() - dataStart) + " are left");
+			}
+		} catch(BufferUnderflowException e){
+			file.close();
+			throw new IOException("Truncated label file " + path + ": its header is incomplete");
+		} catch(IOException e){
+			file.close();
+			throw e;
+		}
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public double getThreshVal() {
+		return threshVal;
+	}
+
+	public int getEroDilCount() {
+		return eroDilCount;
+	}
+
+	public String getEngine() {
+		return engine;
+	}
+
+	/**
+	 * @return the statistics of every label in the file, in order of label value
+	 */
+	public LabelStatistics[] getStatistics() {
+		return statistics.clone();
+	}
+
+	/**
+	 * finds the statistics of a single label
+	 * @param label the label to find
+	 * @return the statistics of the label, or null if it is not in the file
+	 */
+	public LabelStatistics getStatistics(int label) {
+		int low = 0;
+		int high = statistics.length - 1;
+		while(low <= high){
+			int mid = (low + high) >>> 1;
+			int midLabel = statistics[mid].getLabel();
+			if(midLabel < label){
+				low = mid + 1;
+			} else if(midLabel > label){
+				high = mid - 1;
+			} else {
+				return statistics[mid];
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * decodes a band of whole rows
+	 * @param startRow the first row of the band
+	 * @param endRow the row after the last row of the band
+	 * @return the labels of the band, as a row-major array
+	 * @throws IOException if a row of the band is corrupt
+	 */
+	public int[] readRows(int startRow, int endRow) throws IOException {
+		int[] labels = new int[(endRow - startRow) * width];
+		decode(labels, startRow, endRow, 0, width, -1);
+		return labels;
+	}
+
+	/**
+	 * decodes the whole label image
+	 * @return the label image
+	 * @throws IOException if a row is corrupt
+	 */
+	public ImageProcessor read() throws IOException {
+		return readBand(0, height);
+	}
+
+	/**
+	 * decodes a band of whole rows
+	 * @param startRow the first row of the band
+	 * @param endRow the row after the last row of the band
+	 * @return the labels of the band as an image
+	 * @throws IOException if a row of the band is corrupt
+	 */
+	public ImageProcessor readBand(int startRow, int endRow) throws IOException {
+		return toProcessor(readRows(startRow, endRow), width, endRow - startRow);
+	}
+
+	/**
+	 * decodes the bounding box of a single label, with all other labels cleared
+	 * @param label the label to decode
+	 * @return an image the size of the label's bounding box, or null if the label
+	 * is not in the file
+	 * @throws IOException if a row of the label's bounding box is corrupt
+	 */
+	public ImageProcessor readLabel(int label) throws IOException {
+		LabelStatistics stat = getStatistics(label);
+		if(stat == null){
+			return null;
+		}
+		int boxWidth = stat.getMaxX() - stat.getMinX() + 1;
+		int boxHeight = stat.getMaxY() - stat.getMinY() + 1;
+		int[] labels = new int[boxWidth * boxHeight];
+		decode(labels, stat.getMinY(), stat.getMaxY() + 1, stat.getMinX(), stat.getMaxX() + 1, label);
+		return toProcessor(labels, boxWidth, boxHeight);
+	}
+
+	/**
+	 * decodes a rectangle of the label image into an array
+	 * @param out the row-major array to fill, the size of the rectangle
+	 * @param startRow the first row of the rectangle
+	 * @param endRow the row after the last row of the rectangle
+	 * @param startX the first column of the rectangle
+	 * @param endX the column after the last column of the rectangle
+	 * @param only the single label to keep, or -1 to keep every label
+	 * @throws IOException if a row's runs do not stay inside the row or its bytes
+	 */
+	private void decode(int[] out, int startRow, int endRow, int startX, int endX, int only) throws IOException {
+		int outWidth = endX - startX;
+		int maxLabel = getMaxLabel();
+		int[] position = new int[1];
+		for(int y = startRow; y < endRow; y++){
+			long from = buffer.getLong(indexStart + y * 8);
+			long to = buffer.getLong(indexStart + (y + 1) * 8);
+			if(from < 0 || from > to || to > dataLength){
+				throw new IOException("Corrupt label file: row " + y + " is indexed outside the file");
+			}
+			position[0] = dataStart + (int) from;
+			int rowEnd = dataStart + (int) to;
+			int rowStart = (y - startRow) * outWidth;
+			int runCount = readVarint(position, rowEnd, y);
+			int prevEnd = 0;
+			int prevLabel = 0;
+			for(int r = 0; r < runCount; r++){
+				long start = (long) prevEnd + readVarint(position, rowEnd, y);
+				long end = start + readVarint(position, rowEnd, y) + 1;
+				int label = prevLabel + LabelFileWriter.unZigZag(readVarint(position, rowEnd, y));
+				if(start < prevEnd || end <= start || end > width || label <= 0 || label > maxLabel){
+					throw new IOException("Corrupt label file: run " + r + " of row " + y + " does not fit in the row");
+				}
+				prevEnd = (int) end;
+				prevLabel = label;
+				if(start >= endX){
+					break;
+				}
+				if(only != -1 && label != only){
+					continue;
+				}
+				for(int x = Math.max((int) start, startX); x < Math.min((int) end, endX); x++){
+					out[rowStart + x - startX] = label;
+				}
+			}
+		}
+	}
+
+	/**
+	 * reads a varint, which must end before the end of its row's bytes and fit in
+	 * an int
+	 */
+	private int readVarint(int[] position, int rowEnd, int y) throws IOException {
+		int value = 0;
+		int shift = 0;
+		byte b;
+		do {
+			if(position[0] >= rowEnd || shift > 28){
+				throw new IOException("Corrupt label file: row " + y + " runs past its end");
+			}
+			b = buffer.get(position[0]++);
+			value |= (b & 0x7F) << shift;
+			shift += 7;
+		} while((b & 0x80) != 0);
+		return value;
+	}
+
+	private ImageProcessor toProcessor(int[] labels, int width, int height) {
+		LabelStore store = new LabelStore(width, height, getMaxLabel());
+		for(int i = 0; i < labels.length; i++){
+			store.set(i, labels[i]);
+		}
+		return store.toProcessor();
+	}
+
+	/**
+	 * @return the largest label in the file, or 0 if it has none
+	 */
+	public int getMaxLabel() {
+		return statistics.length == 0 ? 0 : statistics[statistics.length - 1].getLabel();
+	}
+
+	/**
+	 * releases the file. The mapping itself is released when it is garbage collected.
+	 */
+	public void close() throws IOException {
+		file.close();
+	}
+}
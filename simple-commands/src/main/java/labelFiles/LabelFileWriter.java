@@ -0,0 +1,201 @@
+package labelFiles;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import dataTypes.LabelStatistics;
+import ij.process.ImageProcessor;
+
+/**
+ * writes watershedded label images in a compact binary format.
+ *
+ * The file begins with a header holding the image size and the parameters the
+ * labels were produced with, followed by a table of statistics for every label and
+ * an index giving the offset of every row. Each row is then stored as its runs of
+ * non-zero labels: a varint holding the number of runs, and for each run a varint
+ * gap from the end of the previous run, a varint length (less one) and the zig-zag
+ * varint difference between its label and the previous run's label. Gaps and labels
+ * start again from zero on every row, so any row can be decoded on its own.
+ *
+ * @author Mark
+ *
+ */
+public class LabelFileWriter {
+
+	public static final int MAGIC = 0x57534C42; // "WSLB"
+	public static final int VERSION = 1;
+
+	/*
+	 * bytes used by each entry of the statistics table: the label, the area,
+	 * the bounding box and the sums of the co-ordinates
+	 */
+	public static final int STATS_ENTRY_SIZE = 4 + 8 + 4 * 4 + 8 + 8;
+
+	/**
+	 * writes a label image to a file
+	 * @param labels the label image
+	 * @param threshVal the threshold value the labels were produced with
+	 * @param eroDilCount the number of erosions and dilations the labels were produced with
+	 * @param engine the name of the engine the labels were produced with
+	 * @param file the file to write
+	 * @throws IOException if the file cannot be written
+	 */
+	public static void write(ImageProcessor labels, double threshVal, int eroDilCount, String engine, File file) throws IOException{
+		OutputStream out = new FileOutputStream(file);
+		try {
+			write(labels, threshVal, eroDilCount, engine, out);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * writes a label image to a stream, such as a socket, in the same format as a
+	 * label file. The stream is flushed but not closed.
+	 * @param labels the label image
+	 * @param threshVal the threshold value the labels were produced with
+	 * @param eroDilCount the number of erosions and dilations the labels were produced with
+	 * @param engine the name of the engine the labels were produced with
+	 * @param stream the stream to write to
+	 * @throws IOException if the stream cannot be written to
+	 */
+	public static void write(ImageProcessor labels, double threshVal, int eroDilCount, String engine, OutputStream stream) throws IOException{
+		final int width = labels.getWidth();
+		final int height = labels.getHeight();
+
+		LabelStatistics[] stats = new LabelStatistics[256];
+		int labelCount = 0;
+		long[] rowOffset = new long[height + 1];
+		VarintBuffer data = new VarintBuffer(width * height / 8 + 64);
+		VarintBuffer row = new VarintBuffer(64);
+
+		for(int y = 0; y < height; y++){
+			row.clear();
+			int runCount = 0;
+			int prevEnd = 0;
+			int prevLabel = 0;
+			int x = 0;
+			while(x < width){
+				int value = (int) labels.getf(x, y);
+				if(value == 0){
+					x++;
+					continue;
+				}
+				int start = x;
+				while(x < width && (int) labels.getf(x, y) == value){
+					x++;
+				}
+				row.writeVarint(start - prevEnd);
+				row.writeVarint(x - start - 1);
+				row.writeVarint(zigZag(value - prevLabel));
+				runCount++;
+				prevEnd = x;
+				prevLabel = value;
+
+				if(value >= stats.length){
+					stats = Arrays.copyOf(stats, Math.max(value + 1, stats.length * 2));
+				}
+				if(stats[value] == null){
+					stats[value] = new LabelStatistics(value);
+					labelCount++;
+				}
+				stats[value].addRun(y, start, x);
+			}
+			data.writeVarint(runCount);
+			data.write(row);
+			rowOffset[y + 1] = data.size();
+		}
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 1 << 16));
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(width);
+		out.writeInt(height);
+		out.writeDouble(threshVal);
+		out.writeInt(eroDilCount);
+		out.writeUTF(engine);
+
+		out.writeInt(labelCount);
+		for(LabelStatistics stat : stats){
+			if(stat != null){
+				out.writeInt(stat.getLabel());
+				out.writeLong(stat.getArea());
+				out.writeInt(stat.getMinX());
+				out.writeInt(stat.getMinY());
+				out.writeInt(stat.getMaxX());
+				out.writeInt(stat.getMaxY());
+				out.writeLong(stat.getSumX());
+				out.writeLong(stat.getSumY());
+			}
+		}
+
+		for(long offset : rowOffset){
+			out.writeLong(offset);
+		}
+		data.writeTo(out);
+		out.flush();
+	}
+
+	/**
+	 * maps signed values onto unsigned ones so that small negative differences
+	 * also take few bytes
+	 */
+	static int zigZag(int value){
+		return (value << 1) ^ (value >> 31);
+	}
+
+	static int unZigZag(int value){
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	/**
+	 * a growable byte array that values are written to as varints
+	 */
+	private static class VarintBuffer {
+
+		private byte[] bytes;
+		private int size;
+
+		VarintBuffer(int capacity){
+			bytes = new byte[capacity];
+		}
+
+		void writeVarint(int value){
+			ensure(5);
+			while((value & ~0x7F) != 0){
+				bytes[size++] = (byte) ((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			bytes[size++] = (byte) value;
+		}
+
+		void write(VarintBuffer other){
+			ensure(other.size);
+			System.arraycopy(other.bytes, 0, bytes, size, other.size);
+			size += other.size;
+		}
+
+		void clear(){
+			size = 0;
+		}
+
+		int size(){
+			return size;
+		}
+
+		void writeTo(DataOutputStream out) throws IOException{
+			out.write(bytes, 0, size);
+		}
+
+		private void ensure(int extra){
+			if(size + extra > bytes.length){
+				bytes = Arrays.copyOf(bytes, Math.max(size + extra, bytes.length * 2));
+			}
+		}
+	}
+}
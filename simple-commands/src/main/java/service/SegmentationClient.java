@@ -0,0 +1,173 @@
+package service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+
+import dataTypes.LabelStatistics;
+import ij.process.ImageProcessor;
+import labelFiles.LabelFileReader;
+import watershed.Engine;
+
+/**
+ * a client for the SegmentationServer. One connection is kept open for the life
+ * of the client, and jobs sent through it are answered in order, so a client
+ * should only be used by one thread at a time.
+ *
+ * @author Mark
+ *
+ */
+public class SegmentationClient implements Closeable {
+
+	private Socket socket;
+	private DataInputStream in;
+	private DataOutputStream out;
+
+	/**
+	 * connects to a server on this machine
+	 * @param port the port the server is listening on
+	 * @throws IOException if the server cannot be reached
+	 */
+	public SegmentationClient(int port) throws IOException{
+		this.socket = new Socket(InetAddress.getLoopbackAddress(), port);
+		this.socket.setTcpNoDelay(true);
+		this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+		this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+	}
+
+	/**
+	 * segments an image the server can open and returns the label statistics
+	 * @param imagePath the path of the image on the server's machine
+	 * @return the statistics of every label
+	 */
+	public LabelStatistics[] measure(String imagePath, double threshVal, int eroDilCount, Engine engine, boolean geodesic, boolean untilFilled) throws IOException{
+		sendJob(SegmentationProtocol.INPUT_PATH, SegmentationProtocol.RESULT_STATISTICS, threshVal, eroDilCount, engine, geodesic, untilFilled);
+		out.writeUTF(imagePath);
+		out.flush();
+		readStatus();
+		return SegmentationProtocol.readStatistics(in);
+	}
+
+	/**
+	 * sends the pixels of an image to be segmented and returns the label statistics
+	 * @param image an 8, 16 or 32 bit image
+	 * @return the statistics of every label
+	 */
+	public LabelStatistics[] measure(ImageProcessor image, double threshVal, int eroDilCount, Engine engine, boolean geodesic, boolean untilFilled) throws IOException{
+		sendJob(SegmentationProtocol.INPUT_PIXELS, SegmentationProtocol.RESULT_STATISTICS, threshVal, eroDilCount, engine, geodesic, untilFilled);
+		SegmentationProtocol.writePixels(out, image);
+		out.flush();
+		readStatus();
+		return SegmentationProtocol.readStatistics(in);
+	}
+
+	/**
+	 * segments an image the server can open and saves the labels as a label file
+	 * @param imagePath the path of the image on the server's machine
+	 * @param labelFile the file to save the labels to, which can be opened with
+	 * a LabelFileReader
+	 */
+	public void segment(String imagePath, double threshVal, int eroDilCount, Engine engine, boolean geodesic, boolean untilFilled, File labelFile) throws IOException{
+		sendJob(SegmentationProtocol.INPUT_PATH, SegmentationProtocol.RESULT_LABELS, threshVal, eroDilCount, engine, geodesic, untilFilled);
+		out.writeUTF(imagePath);
+		out.flush();
+		readLabels(labelFile);
+	}
+
+	/**
+	 * sends the pixels of an image to be segmented and saves the labels as a label file
+	 * @param image an 8, 16 or 32 bit image
+	 * @param labelFile the file to save the labels to, which can be opened with
+	 * a LabelFileReader
+	 */
+	public void segment(ImageProcessor image, double threshVal, int eroDilCount, Engine engine, boolean geodesic, boolean untilFilled, File labelFile) throws IOException{
+		sendJob(SegmentationProtocol.INPUT_PIXELS, SegmentationProtocol.RESULT_LABELS, threshVal, eroDilCount, engine, geodesic, untilFilled);
+		SegmentationProtocol.writePixels(out, image);
+		out.flush();
+		readLabels(labelFile);
+	}
+
+	private void sendJob(byte input, byte result, double threshVal, int eroDilCount, Engine engine, boolean geodesic, boolean untilFilled) throws IOException{
+		out.writeInt(SegmentationProtocol.MAGIC);
+		out.writeByte(input);
+		out.writeByte(result);
+		out.writeDouble(threshVal);
+		out.writeInt(eroDilCount);
+		out.writeBoolean(geodesic);
+		out.writeBoolean(untilFilled);
+		out.writeUTF(engine.name());
+	}
+
+	private void readStatus() throws IOException{
+		if(in.readByte() != SegmentationProtocol.STATUS_OK){
+			throw new IOException(in.readUTF());
+		}
+	}
+
+	/**
+	 * copies a label reply straight from the socket into a file
+	 */
+	private void readLabels(File labelFile) throws IOException{
+		readStatus();
+		long remaining = in.readLong();
+		byte[] chunk = new byte[1 << 16];
+		OutputStream file = new FileOutputStream(labelFile);
+		try {
+			while(remaining > 0){
+				int read = in.read(chunk, 0, (int) Math.min(chunk.length, remaining));
+				if(read < 0){
+					throw new IOException("Connection closed part way through the labels");
+				}
+				file.write(chunk, 0, read);
+				remaining -= read;
+			}
+		} finally {
+			file.close();
+		}
+	}
+
+	public void close() throws IOException{
+		socket.close();
+	}
+
+	/**
+	 * segments an image from the command line
+	 * @param args the port, the image path, the threshold value, the
+	 * erosion/dilation count and, optionally, a label file to save to. If no label
+	 * file is given the label statistics are printed instead.
+	 */
+	public static void main(String[] args) throws IOException{
+		if(args.length < 4){
+			System.err.println("Usage: SegmentationClient <port> <image> <threshold> <erosions> [labelFile]");
+			return;
+		}
+		int port = Integer.parseInt(args[0]);
+		double threshVal = Double.parseDouble(args[2]);
+		int eroDilCount = Integer.parseInt(args[3]);
+
+		SegmentationClient client = new SegmentationClient(port);
+		try {
+			if(args.length > 4){
+				File labelFile = new File(args[4]);
+				client.segment(args[1], threshVal, eroDilCount, Engine.RUN_LENGTH, false, false, labelFile);
+				LabelFileReader reader = new LabelFileReader(labelFile);
+				System.out.println(reader.getStatistics().length + " labels saved to " + labelFile);
+				reader.close();
+			} else {
+				for(LabelStatistics stat : client.measure(args[1], threshVal, eroDilCount, Engine.RUN_LENGTH, false, false)){
+					System.out.println(stat);
+				}
+			}
+		} finally {
+			client.close();
+		}
+	}
+}
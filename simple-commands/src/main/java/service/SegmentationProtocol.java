@@ -0,0 +1,166 @@
+package service;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import dataTypes.LabelStatistics;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * the messages passed between the SegmentationClient and SegmentationServer.
+ *
+ * A job is made up of a magic number, the kind of input and result, the
+ * watershedding parameters, and then either the path of an image the server can
+ * open or the raw pixels of the image. The reply starts with a status byte. A
+ * successful label reply is followed by the length of a label file and its bytes,
+ * and a successful statistics reply by the label statistics table. Several jobs
+ * may be sent over one connection.
+ *
+ * @author Mark
+ *
+ */
+final class SegmentationProtocol {
+
+	static final int MAGIC = 0x5753484A; // "WSHJ"
+
+	static final byte INPUT_PATH = 1;
+	static final byte INPUT_PIXELS = 2;
+
+	static final byte RESULT_LABELS = 1;
+	static final byte RESULT_STATISTICS = 2;
+
+	static final byte STATUS_OK = 0;
+	static final byte STATUS_ERROR = 1;
+
+	/**
+	 * the most pixels an image sent over a connection may have, 2^28, so that a
+	 * corrupt or hostile header cannot make the server allocate more than a
+	 * gigabyte for a single 32 bit image
+	 */
+	static final long MAX_PIXELS = 1L << 28;
+
+	private SegmentationProtocol(){
+	}
+
+	/**
+	 * writes the raw pixels of an 8, 16 or 32 bit image
+	 */
+	static void writePixels(DataOutputStream out, ImageProcessor image) throws IOException{
+		int width = image.getWidth();
+		int height = image.getHeight();
+		int bitDepth = image.getBitDepth();
+		out.writeInt(width);
+		out.writeInt(height);
+		out.writeByte(bitDepth);
+		Object pixels = image.getPixels();
+		if(bitDepth == 8){
+			out.write((byte[]) pixels, 0, width * height);
+		} else if(bitDepth == 16){
+			for(short value : (short[]) pixels){
+				out.writeShort(value);
+			}
+		} else if(bitDepth == 32){
+			for(float value : (float[]) pixels){
+				out.writeFloat(value);
+			}
+		} else {
+			throw new IllegalArgumentException("Only 8, 16 and 32 bit images can be sent");
+		}
+	}
+
+	/**
+	 * reads the raw pixels of an image into a reusable buffer
+	 * @param in the stream to read from
+	 * @param buffer a buffer that may be reused, or null
+	 * @return the image, backed by the buffer where the pixel type allows it
+	 * @throws IllegalArgumentException if the header gives a size or bit depth that
+	 * cannot be read, in which case none of the pixels have been read
+	 */
+	static ImageProcessor readPixels(DataInputStream in, PixelBuffer buffer) throws IOException{
+		int width = in.readInt();
+		int height = in.readInt();
+		int bitDepth = in.readByte();
+		if(width <= 0 || height <= 0 || (long) width * height > MAX_PIXELS){
+			throw new IllegalArgumentException("Invalid image size " + width + "x" + height + ", images may have up to " + MAX_PIXELS + " pixels");
+		}
+		int size = width * height;
+		if(bitDepth == 8){
+			byte[] pixels = buffer.bytes(size);
+			in.readFully(pixels, 0, size);
+			return new ByteProcessor(width, height, pixels, null);
+		} else if(bitDepth == 16){
+			short[] pixels = buffer.shorts(size);
+			for(int i = 0; i < size; i++){
+				pixels[i] = in.readShort();
+			}
+			return new ShortProcessor(width, height, pixels, null);
+		} else if(bitDepth == 32){
+			float[] pixels = buffer.floats(size);
+			for(int i = 0; i < size; i++){
+				pixels[i] = in.readFloat();
+			}
+			return new FloatProcessor(width, height, pixels, null);
+		}
+		throw new IllegalArgumentException("Unsupported bit depth " + bitDepth);
+	}
+
+	static void writeStatistics(DataOutputStream out, LabelStatistics[] stats) throws IOException{
+		out.writeInt(stats.length);
+		for(LabelStatistics stat : stats){
+			out.writeInt(stat.getLabel());
+			out.writeLong(stat.getArea());
+			out.writeInt(stat.getMinX());
+			out.writeInt(stat.getMinY());
+			out.writeInt(stat.getMaxX());
+			out.writeInt(stat.getMaxY());
+			out.writeLong(stat.getSumX());
+			out.writeLong(stat.getSumY());
+		}
+	}
+
+	static LabelStatistics[] readStatistics(DataInputStream in) throws IOException{
+		LabelStatistics[] stats = new LabelStatistics[in.readInt()];
+		for(int i = 0; i < stats.length; i++){
+			stats[i] = new LabelStatistics(in.readInt(), in.readLong(), in.readInt(),
+					in.readInt(), in.readInt(), in.readInt(), in.readLong(), in.readLong());
+		}
+		return stats;
+	}
+
+	/**
+	 * pixel arrays kept by a connection so that they can be reused from job to job.
+	 * The arrays are only replaced when an image of a different size arrives, so an
+	 * image must be finished with before the next job on the same connection is read.
+	 */
+	static class PixelBuffer {
+
+		private byte[] bytes = new byte[0];
+		private short[] shorts = new short[0];
+		private float[] floats = new float[0];
+
+		byte[] bytes(int size){
+			if(bytes.length != size){
+				bytes = new byte[size];
+			}
+			return bytes;
+		}
+
+		short[] shorts(int size){
+			if(shorts.length != size){
+				shorts = new short[size];
+			}
+			return shorts;
+		}
+
+		float[] floats(int size){
+			if(floats.length != size){
+				floats = new float[size];
+			}
+			return floats;
+		}
+	}
+}
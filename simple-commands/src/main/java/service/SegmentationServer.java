@@ -0,0 +1,364 @@
+package service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+import dataTypes.LabelStatistics;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import labelFiles.LabelFileWriter;
+import watershed.Cancellation;
+import watershed.CancelledException;
+import watershed.Engine;
+import watershed.ResultCache;
+import watershed.Watershed;
+import watershed.WatershedEngine;
+import watershed.WatershedParams;
+import watershed.WatershedResult;
+
+/**
+ * a long-lived watershedding service that listens on a loopback port, so that a
+ * pipeline can send many images to one warmed-up JVM rather than starting Fiji
+ * for each one.
+ *
+ * Each connection is read by its own thread, but only a fixed number of jobs are
+ * segmented at once. Once every connection slot is in use the server stops
+ * accepting, and once every worker is busy the connection threads stop reading,
+ * so a client sending too much work is slowed down by the socket rather than the
+ * server running out of memory.
+ *
+ * @author Mark
+ *
+ */
+public class SegmentationServer implements Closeable {
+
+	public static final int DEFAULT_PORT = 7755;
+
+	private ServerSocket serverSocket;
+	private ExecutorService connections;
+	private Semaphore connectionSlots;
+	private Semaphore workers;
+	private volatile boolean running;
+	private volatile ResultCache cache;
+	private volatile long jobTimeoutMillis;
+
+	/**
+	 * opens the server socket on the loopback address
+	 * @param port the port to listen on, or 0 for any free port
+	 * @param workerCount the number of jobs that may be segmented at the same time
+	 * @param maxConnections the number of client connections that may be open at once
+	 * @throws IOException if the port cannot be opened
+	 */
+	public SegmentationServer(int port, int workerCount, int maxConnections) throws IOException{
+		this.serverSocket = new ServerSocket(port, maxConnections, InetAddress.getLoopbackAddress());
+		this.connections = Executors.newFixedThreadPool(maxConnections);
+		this.connectionSlots = new Semaphore(maxConnections);
+		this.workers = new Semaphore(workerCount);
+		this.running = true;
+	}
+
+	/**
+	 * puts a cache in front of the segmentation, so that a job repeating an
+	 * earlier one is answered without using a worker
+	 * @param cache the cache to use, or null for none
+	 */
+	public void setCache(ResultCache cache){
+		this.cache = cache;
+	}
+
+	public ResultCache getCache(){
+		return cache;
+	}
+
+	/**
+	 * limits how long a single job may be segmented for. A job that runs past the
+	 * limit is stopped at its next row and answered with an error, freeing its
+	 * worker.
+	 * @param jobTimeoutMillis the limit in milliseconds, or 0 for none
+	 */
+	public void setJobTimeout(long jobTimeoutMillis){
+		if(jobTimeoutMillis < 0){
+			throw new IllegalArgumentException("The job timeout must not be negative, but was " + jobTimeoutMillis);
+		}
+		this.jobTimeoutMillis = jobTimeoutMillis;
+	}
+
+	public long getJobTimeout(){
+		return jobTimeoutMillis;
+	}
+
+	/**
+	 * @return the port the server is listening on
+	 */
+	public int getPort(){
+		return serverSocket.getLocalPort();
+	}
+
+	/**
+	 * runs every engine a few times on a synthetic image, so that the first real
+	 * jobs do not pay for class loading and just-in-time compilation
+	 */
+	public void warmUp(){
+		ByteProcessor image = new ByteProcessor(256, 256);
+		for(int y = 0; y < 256; y++){
+			for(int x = 0; x < 256; x++){
+				int dx = x % 64 - 32;
+				int dy = y % 64 - 32;
+				image.set(x, y, dx * dx + dy * dy < 400 ? 200 : 20);
+			}
+		}
+		for(int i = 0; i < 5; i++){
+			for(Engine engine : Engine.values()){
+				WatershedParams params = new WatershedParams.Builder().threshVal(100).eroDilCount(3).engine(engine).build();
+				new WatershedEngine(params).run(image);
+				new WatershedEngine(params.toBuilder().geodesic(true).untilFilled(true).build()).run(image);
+			}
+		}
+	}
+
+	/**
+	 * accepts connections until the server is closed
+	 */
+	public void serve(){
+		while(running){
+			try {
+				connectionSlots.acquire();
+			} catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+				return;
+			}
+			final Socket socket;
+			try {
+				socket = serverSocket.accept();
+			} catch(IOException e){
+				connectionSlots.release();
+				if(running){
+					IJ.log("Segmentation server could not accept a connection: " + e.getMessage());
+				}
+				continue;
+			}
+			connections.execute(new Runnable(){
+				public void run(){
+					try {
+						handle(socket);
+					} finally {
+						connectionSlots.release();
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * accepts connections on a background thread
+	 */
+	public void start(){
+		Thread acceptor = new Thread(new Runnable(){
+			public void run(){
+				serve();
+			}
+		}, "segmentation-server");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	/**
+	 * reads and answers jobs from a single connection until it is closed
+	 */
+	private void handle(Socket socket){
+		SegmentationProtocol.PixelBuffer buffer = new SegmentationProtocol.PixelBuffer();
+		ByteArrayOutputStream labelBytes = new ByteArrayOutputStream();
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+			while(true){
+				int magic;
+				try {
+					magic = in.readInt();
+				} catch(EOFException e){
+					break;
+				}
+				if(magic != SegmentationProtocol.MAGIC){
+					throw new IOException("Not a segmentation job");
+				}
+				byte input = in.readByte();
+				byte result = in.readByte();
+				double threshVal = in.readDouble();
+				int eroDilCount = in.readInt();
+				boolean geodesic = in.readBoolean();
+				boolean untilFilled = in.readBoolean();
+				String engineName = in.readUTF();
+
+				ImageProcessor image = null;
+				String error = null;
+				if(input == SegmentationProtocol.INPUT_PATH){
+					String path = in.readUTF();
+					ImagePlus opened = IJ.openImage(path);
+					if(opened == null){
+						error = "Could not open " + path;
+					} else {
+						image = opened.getProcessor();
+					}
+				} else {
+					/*
+					 * the header is checked before anything is allocated. If it is
+					 * refused the pixels that follow cannot be skipped, so the
+					 * connection is closed once the error is sent.
+					 */
+					try {
+						image = SegmentationProtocol.readPixels(in, buffer);
+					} catch(IllegalArgumentException e){
+						out.writeByte(SegmentationProtocol.STATUS_ERROR);
+						out.writeUTF("Invalid image: " + e.getMessage());
+						out.flush();
+						break;
+					}
+				}
+
+				WatershedParams params = null;
+				try {
+					params = new WatershedParams.Builder()
+							.threshVal(threshVal)
+							.eroDilCount(eroDilCount)
+							.engine(Engine.valueOf(engineName))
+							.geodesic(geodesic)
+							.untilFilled(untilFilled)
+							.build();
+				} catch(IllegalArgumentException e){
+					error = "Invalid parameters: " + e.getMessage();
+				}
+
+				if(error != null){
+					out.writeByte(SegmentationProtocol.STATUS_ERROR);
+					out.writeUTF(error);
+					out.flush();
+					continue;
+				}
+
+				/*
+				 * a repeated job is answered from the cache without waiting for a worker
+				 */
+				ResultCache cache = this.cache;
+				String key = cache == null ? null : ResultCache.key(image, null, null, params);
+				ImageProcessor labels = cache == null ? null : cache.get(key);
+				LabelStatistics[] statistics = null;
+				boolean cacheable = false;
+
+				if(labels == null){
+					try {
+						workers.acquire();
+					} catch(InterruptedException e){
+						Thread.currentThread().interrupt();
+						break;
+					}
+					long timeout = jobTimeoutMillis;
+					Cancellation previous = timeout > 0 ? Cancellation.withTimeout(timeout).enter() : null;
+					try {
+						/*
+						 * when the run length cells are grown until they fill the
+						 * mask, their statistics are measured without building a
+						 * label image, so there is nothing to cache
+						 */
+						if(result == SegmentationProtocol.RESULT_STATISTICS && params.isFilling() && params.getEngine() != Engine.PIXEL){
+							statistics = new WatershedEngine(params).measure(image).getStatistics();
+						} else {
+							WatershedResult run = new WatershedEngine(params).run(image);
+							labels = run.getLabels();
+							cacheable = ResultCache.isCacheable(run.getMetrics());
+						}
+					} catch(CancelledException e){
+						out.writeByte(SegmentationProtocol.STATUS_ERROR);
+						out.writeUTF("Segmentation stopped: " + e.getMessage());
+						out.flush();
+						continue;
+					} catch(RuntimeException e){
+						out.writeByte(SegmentationProtocol.STATUS_ERROR);
+						out.writeUTF("Segmentation failed: " + e);
+						out.flush();
+						continue;
+					} finally {
+						if(timeout > 0){
+							Cancellation.exit(previous);
+						}
+						workers.release();
+					}
+					if(cache != null && cacheable){
+						cache.put(key, labels, params);
+					}
+				}
+
+				out.writeByte(SegmentationProtocol.STATUS_OK);
+				if(result == SegmentationProtocol.RESULT_STATISTICS){
+					if(statistics == null){
+						statistics = LabelStatistics.measure(labels, Watershed.WSHED_LABEL);
+					}
+					SegmentationProtocol.writeStatistics(out, statistics);
+				} else {
+					labelBytes.reset();
+					LabelFileWriter.write(labels, threshVal, eroDilCount, engineName, labelBytes);
+					out.writeLong(labelBytes.size());
+					labelBytes.writeTo(out);
+				}
+				out.flush();
+			}
+		} catch(SocketException e){
+			/*the client went away*/
+		} catch(IOException e){
+			IJ.log("Segmentation server connection failed: " + e.getMessage());
+		} finally {
+			try {
+				socket.close();
+			} catch(IOException e){
+				/*already closed*/
+			}
+		}
+	}
+
+	/**
+	 * stops accepting connections. Jobs that are already running are finished.
+	 */
+	public void close() throws IOException{
+		running = false;
+		serverSocket.close();
+		connections.shutdown();
+	}
+
+	/**
+	 * starts a server from the command line
+	 * @param args the port, the number of workers, the number of connections, a
+	 * directory to cache results in and a job timeout in milliseconds, all optional
+	 */
+	public static void main(String[] args) throws IOException{
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+		int workerCount = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+		int maxConnections = args.length > 2 ? Integer.parseInt(args[2]) : workerCount * 4;
+
+		SegmentationServer server = new SegmentationServer(port, workerCount, maxConnections);
+		if(args.length > 3){
+			server.setCache(new ResultCache(Runtime.getRuntime().maxMemory() / 4, new File(args[3])));
+		}
+		if(args.length > 4){
+			server.setJobTimeout(Long.parseLong(args[4]));
+		}
+		System.out.println("Warming up");
+		server.warmUp();
+		System.out.println("Listening on " + server.getPort());
+		server.serve();
+	}
+}
@@ -0,0 +1,87 @@
+package watershed;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * a class that measures the memory allocated by the current thread, using the
+ * HotSpot extension of the ThreadMXBean. Work that RowBands hands to its pool is
+ * charged to the thread that handed it out, so a stage's allocations are counted
+ * however many threads carried it out.
+ *
+ * On virtual machines without the extension nothing is measured, and
+ * threadBytes() always returns -1.
+ * @author Mark
+ *
+ */
+public final class Allocations {
+
+	private static final com.sun.management.ThreadMXBean BEAN = bean();
+
+	/*
+	 * the bytes allocated on the pool on behalf of each thread
+	 */
+	private static final ThreadLocal<long[]> CHARGED = new ThreadLocal<long[]>(){
+		protected long[] initialValue(){
+			return new long[1];
+		}
+	};
+
+	private Allocations(){
+	}
+
+	/**
+	 * @return true if allocations can be measured on this virtual machine
+	 */
+	public static boolean isSupported(){
+		return BEAN != null;
+	}
+
+	/**
+	 * @return the total bytes allocated by the current thread so far, including
+	 * the work it has handed to other threads, or -1 if allocations cannot be
+	 * measured
+	 */
+	public static long threadBytes(){
+		if(BEAN == null){
+			return -1;
+		}
+		return BEAN.getThreadAllocatedBytes(Thread.currentThread().getId()) + CHARGED.get()[0];
+	}
+
+	/**
+	 * charges bytes allocated by other threads to the current thread
+	 * @param bytes the bytes allocated on the current thread's behalf
+	 */
+	static void charge(long bytes){
+		CHARGED.get()[0] += bytes;
+	}
+
+	private static com.sun.management.ThreadMXBean bean(){
+		try {
+			ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+			if(threads instanceof com.sun.management.ThreadMXBean){
+				com.sun.management.ThreadMXBean hotSpot = (com.sun.management.ThreadMXBean) threads;
+				if(hotSpot.isThreadAllocatedMemorySupported()){
+					if(!hotSpot.isThreadAllocatedMemoryEnabled()){
+						hotSpot.setThreadAllocatedMemoryEnabled(true);
+					}
+					return hotSpot;
+				}
+			}
+		} catch(UnsupportedOperationException e){
+			/*
+			 * fall through to measuring nothing
+			 */
+		} catch(SecurityException e){
+			/*
+			 * fall through to measuring nothing
+			 */
+		} catch(NoClassDefFoundError e){
+			/*
+			 * not a HotSpot virtual machine
+			 */
+		}
+		return null;
+	}
+}
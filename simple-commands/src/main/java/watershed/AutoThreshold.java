@@ -0,0 +1,242 @@
+package watershed;
+
+/**
+ * the ways in which the threshold value can be worked out from the histogram of
+ * an image's coloration values, rather than being set by eye. The histogram has
+ * a bin for each whole coloration value from 0 to 255, and is built by the
+ * engines while they read the image, so working out the threshold costs no more
+ * than a pass over its 256 bins.
+ *
+ * Each method splits the histogram in two after a bin. The bins up to and
+ * including it are the foreground, so the threshold value is one more than the
+ * bin, as pixels pass if their coloration value is below it.
+ * @author Mark
+ *
+ */
+public enum AutoThreshold {
+
+	/**
+	 * maximises the variance between the two classes (Otsu, 1979)
+	 */
+	OTSU("Otsu"){
+		int split(long[] histogram, int first, int last){
+			long total = 0;
+			double sum = 0;
+			for(int i = first; i <= last; i++){
+				total += histogram[i];
+				sum += (double) i * histogram[i];
+			}
+			long below = 0;
+			double belowSum = 0;
+			double best = -1;
+			int split = first;
+			for(int i = first; i < last; i++){
+				below += histogram[i];
+				belowSum += (double) i * histogram[i];
+				long above = total - below;
+				if(below == 0 || above == 0){
+					continue;
+				}
+				double difference = belowSum / below - (sum - belowSum) / above;
+				double between = (double) below * above * difference * difference;
+				if(between > best){
+					best = between;
+					split = i;
+				}
+			}
+			return split;
+		}
+	},
+
+	/**
+	 * draws a line from the peak of the histogram to the far end of its longer
+	 * tail, and splits at the bin furthest below the line (Zack, Rogers and
+	 * Latt, 1977). It suits a single large peak of background with the cells in
+	 * a long tail.
+	 */
+	TRIANGLE("Triangle"){
+		int split(long[] histogram, int first, int last){
+			int peak = first;
+			for(int i = first; i <= last; i++){
+				if(histogram[i] > histogram[peak]){
+					peak = i;
+				}
+			}
+			int end = peak - first > last - peak ? first : last;
+			if(end == peak){
+				return peak;
+			}
+			/*
+			 * the distance of each bin below the line, scaled by the line's
+			 * length, which is the same for every bin
+			 */
+			double rise = histogram[end] - histogram[peak];
+			double run = end - peak;
+			int split = peak;
+			double furthest = 0;
+			int step = end > peak ? 1 : -1;
+			for(int i = peak + step; i != end; i += step){
+				double below = rise * (i - peak) - run * (histogram[i] - histogram[peak]);
+				below = end > peak ? below : -below;
+				if(below > furthest){
+					furthest = below;
+					split = i;
+				}
+			}
+			/*
+			 * the split is on the peak's side of the bin when the tail is on the
+			 * left, so that the tail is the foreground
+			 */
+			return end > peak ? split : split - 1;
+		}
+	},
+
+	/**
+	 * minimises the cross entropy between the image and its thresholded
+	 * version, iterating from the mean (Li and Tam, 1998)
+	 */
+	LI("Li"){
+		int split(long[] histogram, int first, int last){
+			/*
+			 * the values are taken as one more than their bins, so that none is 0
+			 */
+			long total = 0;
+			double sum = 0;
+			for(int i = first; i <= last; i++){
+				total += histogram[i];
+				sum += (i + 1.0) * histogram[i];
+			}
+			double threshold = sum / total;
+			for(int iteration = 0; iteration < MAX_ITERATIONS; iteration++){
+				long below = 0;
+				double belowSum = 0;
+				for(int i = first; i <= last && i + 1 <= threshold; i++){
+					below += histogram[i];
+					belowSum += (i + 1.0) * histogram[i];
+				}
+				long above = total - below;
+				if(below == 0 || above == 0){
+					break;
+				}
+				double belowMean = belowSum / below;
+				double aboveMean = (sum - belowSum) / above;
+				double next = (aboveMean - belowMean) / (Math.log(aboveMean) - Math.log(belowMean));
+				boolean settled = Math.abs(next - threshold) < 0.5;
+				threshold = next;
+				if(settled){
+					break;
+				}
+			}
+			return Math.min(Math.max((int) Math.floor(threshold) - 1, first), last);
+		}
+	},
+
+	/**
+	 * minimises the fuzziness of each bin's membership of its class, measured by
+	 * Shannon's entropy of how far the bin is from its class's mean (Huang and
+	 * Wang, 1995). Each split scores every bin, which on 256 bins is still far
+	 * less work than a row of the image.
+	 */
+	HUANG("Huang"){
+		int split(long[] histogram, int first, int last){
+			long[] counts = new long[last + 2];
+			double[] sums = new double[last + 2];
+			for(int i = first; i <= last; i++){
+				counts[i + 1] = counts[i] + histogram[i];
+				sums[i + 1] = sums[i] + (double) i * histogram[i];
+			}
+			double spread = last - first;
+			double best = Double.MAX_VALUE;
+			int split = first;
+			for(int t = first; t < last; t++){
+				long below = counts[t + 1] - counts[first];
+				long above = counts[last + 1] - counts[t + 1];
+				if(below == 0 || above == 0){
+					continue;
+				}
+				double belowMean = (sums[t + 1] - sums[first]) / below;
+				double aboveMean = (sums[last + 1] - sums[t + 1]) / above;
+				double entropy = 0;
+				for(int i = first; i <= last; i++){
+					if(histogram[i] == 0){
+						continue;
+					}
+					double membership = 1 / (1 + Math.abs(i - (i <= t ? belowMean : aboveMean)) / spread);
+					entropy += histogram[i] * shannon(membership);
+				}
+				if(entropy < best){
+					best = entropy;
+					split = t;
+				}
+			}
+			return split;
+		}
+	};
+
+	/*
+	 * Li's iteration settles in a handful of steps, this only stops a histogram
+	 * that makes it oscillate
+	 */
+	private static final int MAX_ITERATIONS = 1000;
+
+	private String displayName;
+
+	private AutoThreshold(String displayName){
+		this.displayName = displayName;
+	}
+
+	public String getDisplayName() {
+		return displayName;
+	}
+
+	/**
+	 * @param histogram the number of pixels with each whole coloration value,
+	 * from 0 to 255
+	 * @return the threshold value, which the coloration value of a pixel has to
+	 * be below for it to pass, or 0 if the histogram is empty
+	 */
+	public double threshold(long[] histogram){
+		int first = 0;
+		while(first < histogram.length && histogram[first] == 0){
+			first++;
+		}
+		if(first == histogram.length){
+			return 0;
+		}
+		int last = histogram.length - 1;
+		while(histogram[last] == 0){
+			last--;
+		}
+		if(first == last){
+			return first + 1;
+		}
+		return split(histogram, first, last) + 1;
+	}
+
+	/**
+	 * @param histogram the histogram
+	 * @param first the first bin that is not empty
+	 * @param last the last bin that is not empty, after first
+	 * @return the last bin of the foreground, from first - 1 to last
+	 */
+	abstract int split(long[] histogram, int first, int last);
+
+	private static double shannon(double membership){
+		if(membership <= 0 || membership >= 1){
+			return 0;
+		}
+		return -membership * Math.log(membership) - (1 - membership) * Math.log(1 - membership);
+	}
+
+	/**
+	 * @return the display names of every method, in order, for use in a dialog
+	 */
+	public static String[] displayNames(){
+		AutoThreshold[] methods = values();
+		String[] names = new String[methods.length];
+		for(int i = 0; i < methods.length; i++){
+			names[i] = methods[i].getDisplayName();
+		}
+		return names;
+	}
+}
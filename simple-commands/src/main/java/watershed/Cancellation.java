@@ -0,0 +1,137 @@
+package watershed;
+
+/**
+ * a token that stops a run part way through, because the user asked to or
+ * because it has run past its deadline.
+ *
+ * A token is made current for the thread carrying out a run, and the stages of
+ * the engines call checkpoint() once a row (or a band, slice or step), which
+ * throws a CancelledException once the token is cancelled. Work that RowBands
+ * hands to its pool sees the token of the thread that handed it out, so every
+ * band stops at its next row. With no current token checkpoint() does nothing
+ * but look it up.
+ *
+ * Subclasses may override isCancelled() to poll another source, such as
+ * ImageJ's escape key.
+ * @author Mark
+ *
+ */
+public class Cancellation {
+
+	private static final ThreadLocal<Cancellation> CURRENT = new ThreadLocal<Cancellation>();
+
+	private volatile boolean cancelled;
+	private final boolean hasDeadline;
+	private final long deadline;
+	private final long timeoutMillis;
+
+	/**
+	 * constructor for a token without a deadline, which is only cancelled by
+	 * cancel()
+	 */
+	public Cancellation(){
+		this.hasDeadline = false;
+		this.deadline = 0;
+		this.timeoutMillis = 0;
+	}
+
+	/**
+	 * constructor for a token that cancels itself once the time has passed,
+	 * counting from now
+	 * @param timeoutMillis the time allowed, in milliseconds
+	 */
+	protected Cancellation(long timeoutMillis){
+		if(timeoutMillis < 0){
+			throw new IllegalArgumentException("The timeout must not be negative, but was " + timeoutMillis);
+		}
+		this.hasDeadline = true;
+		this.deadline = System.nanoTime() + timeoutMillis * 1000000L;
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	/**
+	 * makes a token that cancels itself once the time has passed, counting
+	 * from now
+	 * @param timeoutMillis the time allowed, in milliseconds
+	 * @return the token
+	 */
+	public static Cancellation withTimeout(long timeoutMillis){
+		return new Cancellation(timeoutMillis);
+	}
+
+	/**
+	 * cancels the token. The run stops at its next checkpoint.
+	 */
+	public void cancel(){
+		cancelled = true;
+	}
+
+	/**
+	 * @return true once the token has been cancelled or its deadline has passed
+	 */
+	public boolean isCancelled(){
+		return cancelled || pastDeadline();
+	}
+
+	/**
+	 * @throws CancelledException if the token has been cancelled
+	 */
+	public void check(){
+		if(isCancelled()){
+			throw new CancelledException(pastDeadline() ? "Ran past its deadline of " + timeoutMillis + " ms" : "Cancelled");
+		}
+	}
+
+	private boolean pastDeadline(){
+		return hasDeadline && System.nanoTime() - deadline >= 0;
+	}
+
+	/**
+	 * makes this token current for the calling thread, until exit is called
+	 * with the token returned
+	 * @return the token that was current before, to be restored by exit
+	 */
+	public Cancellation enter(){
+		return swap(this);
+	}
+
+	/**
+	 * restores the token that was current before enter was called
+	 * @param previous the token enter returned
+	 */
+	public static void exit(Cancellation previous){
+		swap(previous);
+	}
+
+	/**
+	 * @return the token current for the calling thread, or null if there is none
+	 */
+	public static Cancellation current(){
+		return CURRENT.get();
+	}
+
+	/**
+	 * stops the run by throwing a CancelledException if the calling thread's
+	 * token has been cancelled
+	 */
+	public static void checkpoint(){
+		Cancellation cancellation = CURRENT.get();
+		if(cancellation != null){
+			cancellation.check();
+		}
+	}
+
+	/**
+	 * makes a token current for the calling thread
+	 * @return the token that was current before
+	 */
+	static Cancellation swap(Cancellation next){
+		Cancellation previous = CURRENT.get();
+		if(next == null){
+			CURRENT.remove();
+		} else {
+			CURRENT.set(next);
+		}
+		return previous;
+	}
+}
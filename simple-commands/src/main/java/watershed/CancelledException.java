@@ -0,0 +1,51 @@
+package watershed;
+
+/**
+ * thrown when a run is stopped by its Cancellation. Where the run was started
+ * through WatershedEngine or VolumeWatershed, the exception carries the metrics
+ * of the stages finished before it stopped.
+ * @author Mark
+ *
+ */
+public class CancelledException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final RunMetrics metrics;
+
+	/**
+	 * @param message why the run was stopped
+	 */
+	public CancelledException(String message){
+		this(message, null);
+	}
+
+	/**
+	 * @param message why the run was stopped
+	 * @param metrics the metrics of the stages finished before it stopped
+	 */
+	public CancelledException(String message, RunMetrics metrics){
+		super(message);
+		this.metrics = metrics;
+	}
+
+	/**
+	 * ends the stage a run was stopped in, as "Cancelled", and gives the
+	 * exception the run's metrics
+	 * @param e the exception thrown at the checkpoint
+	 * @param metrics the metrics of the run
+	 * @return the exception to rethrow
+	 */
+	static CancelledException withMetrics(CancelledException e, RunMetrics metrics){
+		metrics.endStage("Cancelled");
+		return new CancelledException(e.getMessage(), metrics);
+	}
+
+	/**
+	 * @return the metrics of the stages finished before the run stopped, or null
+	 * if they were not kept
+	 */
+	public RunMetrics getMetrics() {
+		return metrics;
+	}
+}
@@ -1,11 +1,13 @@
 package watershed;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 
+import dataTypes.LabelledRuns;
 import dataTypes.PixelPos;
+import dataTypes.RunLengthMask;
 import dataTypes.ThresholdDataPoint;
-import ij.IJ;
 
 /**
  * a class that performs dilation of an image. This establishes and maintains cellbody
@@ -15,6 +17,13 @@ import ij.IJ;
  * The dilation does not allow two uniquely labelled cell bodies to dilate into the same
  * area.
  * 
+ * A geodesic variant is also offered, which grows the cell bodies outwards from
+ * their eroded seeds using a FIFO queue, but only into pixels that passed the
+ * original thresholding.
+ * 
+ * Both forms of dilation are also offered on run length labels, in which case the
+ * work done depends on the number of runs rather than the number of pixels.
+ * 
  * @author Mark
  *
  */
@@ -23,13 +32,10 @@ public class Dilate {
 	public static final int NOCELLBODY = 0;
 
 	public static void dilate(ThresholdDataPoint[][] labelled, int backgroundLabel, int foregroundLabel, int width, int height){
-		IJ.showStatus("Dilating");
-		IJ.log("Dilating");
-		long start = System.currentTimeMillis();
-
 		ThresholdDataPoint[][] newLabels = new ThresholdDataPoint[width][height];
 		
 		for(int x = 0; x < width; x++){
+			Cancellation.checkpoint();
 			for(int y = 0; y < height; y++){
 				PixelPos pixelPos = new PixelPos(x,y);
 				newLabels[x][y] = new ThresholdDataPoint(backgroundLabel, pixelPos);
@@ -48,6 +54,7 @@ public class Dilate {
 		}
 		
 		for(int y = 0; y < height; y++){
+			Cancellation.checkpoint();
 			for(int x = 0; x < width; x++){
 				if(newLabels[x][y].getLabel() == backgroundLabel){
 					newLabels[x][y].establishNeighbourCellBodies(Watershed.CONNEC);
@@ -56,6 +63,7 @@ public class Dilate {
 		}
 		
 		for(int y = 0; y < height; y++){
+			Cancellation.checkpoint();
 			for(int x = 0; x < width; x++){
 				if(newLabels[x][y].getNeighbourCellBodies().size() != 0){
 					if(!newLabels[x][y].isWatershed()){
@@ -81,24 +89,432 @@ public class Dilate {
 		}
 		
 		Watershed.establishNeighbours(labelled, width, height);
-		
+
+	}	
+
+	/**
+	 * geodesic reconstruction of the cell bodies. Rather than dilating the whole image
+	 * a fixed number of times, the labelled pixels are used as seeds for a breadth
+	 * first flood that is only allowed to enter pixels inside the original threshold
+	 * mask. Each pixel is added to the queue at most once, so the cost does not depend
+	 * on how far the cell bodies have to grow.
+	 * 
+	 * As with the standard dilation, a pixel that is reached by two different cell
+	 * bodies at the same step (or that would touch a differing cell body grown in the
+	 * same step) is marked as a watershed pixel rather than being claimed.
+	 * 
+	 * @param labelled the threshold data points, with their initial cell body labels
+	 * @param mask the foreground pixels as they were immediately after thresholding
+	 * @param backgroundLabel the integer used for labelling background elements
+	 * @param foregroundLabel the integer used for labelling foreground elements
+	 * @param width the width of the image
+	 * @param height the height of the image
+	 * @param maxSteps the maximum number of pixels a cell body may grow by, or a
+	 * negative number to keep growing until the mask has been filled
+	 */
+	public static void geodesicDilate(ThresholdDataPoint[][] labelled, boolean[][] mask, int backgroundLabel, int foregroundLabel, int width, int height, int maxSteps){
 		/*
-		 * DEBUG log the result
+		 * the step at which each pixel was reached, -1 if it has not been reached
 		 */
-		String currLine = "";
-
-		for(int heightPr = 90; heightPr < 160; heightPr++){
-			for(int widthPr = 170; widthPr < 220; widthPr++){
-				currLine += " " + labelled[widthPr][heightPr].getCellBody();
+		int[][] reached = new int[width][height];
+		ArrayDeque<ThresholdDataPoint> queue = new ArrayDeque<ThresholdDataPoint>();
+		
+		for(int y = 0; y < height; y++){
+			for(int x = 0; x < width; x++){
+				ThresholdDataPoint element = labelled[x][y];
+				if(element.getLabel() == foregroundLabel && element.getCellBody() != NOCELLBODY){
+					reached[x][y] = 0;
+					queue.add(element);
+				} else {
+					reached[x][y] = -1;
+				}
 			}
-			IJ.log(currLine);
-			currLine = "";
 		}
 		
-		long end = System.currentTimeMillis();
-		IJ.log("Dilating took " + (end-start) + " ms.");
+		int polled = 0;
+		while(!queue.isEmpty()){
+			/*checking for cancellation every 4096 pixels*/
+			if((polled++ & 0xFFF) == 0){
+				Cancellation.checkpoint();
+			}
+			ThresholdDataPoint current = queue.poll();
+			int curX = current.getPixelPos().getX();
+			int curY = current.getPixelPos().getY();
+			int step = reached[curX][curY];
+			
+			if(step > 0){
+				claim(current, reached, step, backgroundLabel, foregroundLabel);
+			}
+			
+			/*watershed pixels and pixels at the growth limit do not spread any further*/
+			if(current.getLabel() != foregroundLabel || (maxSteps >= 0 && step >= maxSteps)){
+				continue;
+			}
+			
+			for(ThresholdDataPoint neigh : current.getNeighbours(Watershed.CONNEC)){
+				int neighX = neigh.getPixelPos().getX();
+				int neighY = neigh.getPixelPos().getY();
+				if(reached[neighX][neighY] == -1 && mask[neighX][neighY]){
+					reached[neighX][neighY] = step + 1;
+					queue.add(neigh);
+				}
+			}
+		}
 		
+	}
+	
+	/**
+	 * decides the cell body of a pixel taken from the geodesic queue. Only the
+	 * neighbours reached in the previous step are used to choose the label, as they
+	 * are guaranteed to have been decided already. Watershed pixels are told apart
+	 * from cell bodies by their background label, as a cell body may itself be
+	 * numbered WSHED.
+	 * @param dataPoint the pixel being claimed
+	 * @param reached the step at which each pixel was reached
+	 * @param step the step at which this pixel was reached
+	 * @param backgroundLabel the integer used for labelling background elements
+	 * @param foregroundLabel the integer used for labelling foreground elements
+	 */
+	private static void claim(ThresholdDataPoint dataPoint, int[][] reached, int step, int backgroundLabel, int foregroundLabel){
+		int cellBody = NOCELLBODY;
+		boolean clash = false;
+		
+		for(ThresholdDataPoint neigh : dataPoint.getNeighbours(Watershed.CONNEC)){
+			int neighCell = neigh.getCellBody();
+			int neighStep = reached[neigh.getPixelPos().getX()][neigh.getPixelPos().getY()];
+			if(neighStep == step - 1 && neigh.getLabel() == foregroundLabel){
+				if(cellBody == NOCELLBODY){
+					cellBody = neighCell;
+				} else if(cellBody != neighCell){
+					clash = true;
+				}
+			}
+		}
 		
+		/*a differing cell body may already have been grown into a touching pixel in this same step*/
+		if(!clash && cellBody != NOCELLBODY){
+			for(ThresholdDataPoint neigh : dataPoint.getNeighbours(Watershed.CONNEC)){
+				int neighCell = neigh.getCellBody();
+				int neighStep = reached[neigh.getPixelPos().getX()][neigh.getPixelPos().getY()];
+				if(neighStep == step && neigh.getLabel() == foregroundLabel && neighCell != cellBody){
+					clash = true;
+					break;
+				}
+			}
+		}
+		
+		if(clash || cellBody == NOCELLBODY){
+			dataPoint.setLabel(backgroundLabel);
+			dataPoint.setCellBody(Watershed.WSHED);
+		} else {
+			dataPoint.setLabel(foregroundLabel);
+			dataPoint.setCellBody(cellBody);
+		}
+	}
 
-	}	
+	/**
+	 * dilates run length cell body labels once, following the same rules as the
+	 * pixel based dilation: a background pixel next to a single cell body joins it,
+	 * a pixel next to more than one cell body becomes a watershed pixel, and so does
+	 * a newly grown pixel that would touch a pixel newly grown by a differing cell
+	 * body. Watershed pixels from previous dilations are reconsidered, as they are
+	 * for the pixel based dilation.
+	 * @param labelled the current cell body runs
+	 * @param limit the runs that growth is restricted to, or null to allow growth
+	 * into any background pixel
+	 * @return the dilated cell body runs
+	 */
+	public static LabelledRuns dilateRuns(LabelledRuns labelled, RunLengthMask limit){
+		final int width = labelled.getWidth();
+		final int height = labelled.getHeight();
+		final int[] wholeRow = new int[]{0, width};
+		
+		int[][] grown = new int[height][];
+		int[][] lines = new int[height][];
+		
+		/*
+		 * find the background pixels that are next to one or more cell bodies
+		 */
+		for(int y = 0; y < height; y++){
+			Cancellation.checkpoint();
+			int[][] grownAndLines = growRow(
+					y > 0 ? labelled.getCells(y - 1) : null,
+					labelled.getCells(y),
+					y < height - 1 ? labelled.getCells(y + 1) : null,
+					limit == null ? wholeRow : limit.getRow(y),
+					width);
+			grown[y] = grownAndLines[0];
+			lines[y] = grownAndLines[1];
+		}
+		
+		/*
+		 * newly grown pixels that touch newly grown pixels of a differing cell body
+		 * become watershed pixels instead
+		 */
+		int[][] cells = new int[height][];
+		for(int y = 0; y < height; y++){
+			Cancellation.checkpoint();
+			int[][] cellsAndLines = settleRow(
+					labelled.getCells(y),
+					y > 0 ? grown[y - 1] : null,
+					grown[y],
+					y < height - 1 ? grown[y + 1] : null,
+					lines[y],
+					width);
+			cells[y] = cellsAndLines[0];
+			lines[y] = cellsAndLines[1];
+		}
+		
+		return new LabelledRuns(width, height, cells, lines, labelled.getCellBodyCount());
+	}
+	
+	/**
+	 * the first half of the run length dilation for a single row: finds the
+	 * background pixels of the row that are next to one or more cell bodies
+	 * @param above the cell body runs of the row above, or null at the top of the image
+	 * @param row the cell body runs of the row
+	 * @param below the cell body runs of the row below, or null at the bottom of the image
+	 * @param allowed the (start, end) pairs growth is restricted to in this row
+	 * @param width the width of the image
+	 * @return the newly grown (start, end, cellBody) triples of the row, followed by
+	 * the (start, end) pairs of the pixels reached by several cell bodies
+	 */
+	static int[][] growRow(int[] above, int[] row, int[] below, int[] allowed, int width){
+		allowed = RunLengthMask.subtract(allowed, foreground(row));
+		
+		int[] candidates = reach(above, row, below, width);
+		
+		RunLengthMask.RunBuilder lineRow = new RunLengthMask.RunBuilder(4);
+		int[] grownRow = new int[candidates.length];
+		int grownSize = 0;
+		int a = 0;
+		for(int i = 0; i < candidates.length; i += 3){
+			while(a < allowed.length && allowed[a + 1] <= candidates[i]){
+				a += 2;
+			}
+			for(int k = a; k < allowed.length && allowed[k] < candidates[i + 1]; k += 2){
+				int segStart = Math.max(candidates[i], allowed[k]);
+				int segEnd = Math.min(candidates[i + 1], allowed[k + 1]);
+				if(candidates[i + 2] == Watershed.WSHED_RUN){
+					lineRow.add(segStart, segEnd);
+				} else {
+					if(grownSize + 3 > grownRow.length){
+						grownRow = Arrays.copyOf(grownRow, grownRow.length * 2 + 3);
+					}
+					grownRow[grownSize++] = segStart;
+					grownRow[grownSize++] = segEnd;
+					grownRow[grownSize++] = candidates[i + 2];
+				}
+			}
+		}
+		return new int[][]{Arrays.copyOf(grownRow, grownSize), lineRow.toArray()};
+	}
+	
+	/**
+	 * the second half of the run length dilation for a single row: newly grown
+	 * pixels that touch newly grown pixels of a differing cell body become
+	 * watershed pixels, and the rest join the row's cell body runs
+	 * @param cellsRow the cell body runs of the row before dilating
+	 * @param grownAbove the newly grown runs of the row above, or null at the top
+	 * @param grownRow the newly grown runs of the row
+	 * @param grownBelow the newly grown runs of the row below, or null at the bottom
+	 * @param linesRow the watershed pixels found for the row by growRow
+	 * @param width the width of the image
+	 * @return the dilated (start, end, cellBody) triples of the row, followed by its
+	 * (start, end) pairs of watershed pixels
+	 */
+	static int[][] settleRow(int[] cellsRow, int[] grownAbove, int[] grownRow, int[] grownBelow, int[] linesRow, int width){
+		int[] kept = new int[grownRow.length];
+		int keptSize = 0;
+		RunLengthMask.RunBuilder clashRow = new RunLengthMask.RunBuilder(4);
+		int[][] near = new int[][]{grownAbove, grownRow, grownBelow};
+		
+		for(int i = 0; i < grownRow.length; i += 3){
+			int[] run = new int[]{grownRow[i], grownRow[i + 1]};
+			int[] clashes = new int[0];
+			for(int[] nearRow : near){
+				if(nearRow != null){
+					clashes = RunLengthMask.union(clashes, otherCellsNear(nearRow, grownRow[i], grownRow[i + 1], grownRow[i + 2], width));
+				}
+			}
+			int[] keep = RunLengthMask.subtract(run, clashes);
+			int[] lost = RunLengthMask.intersect(run, clashes);
+			for(int k = 0; k < keep.length; k += 2){
+				if(keptSize + 3 > kept.length){
+					kept = Arrays.copyOf(kept, kept.length * 2 + 3);
+				}
+				kept[keptSize++] = keep[k];
+				kept[keptSize++] = keep[k + 1];
+				kept[keptSize++] = grownRow[i + 2];
+			}
+			for(int k = 0; k < lost.length; k += 2){
+				clashRow.add(lost[k], lost[k + 1]);
+			}
+		}
+		
+		return new int[][]{mergeCells(cellsRow, Arrays.copyOf(kept, keptSize)), RunLengthMask.union(linesRow, clashRow.toArray())};
+	}
+	
+	/**
+	 * @return the (start, end) pairs covered by a row of (start, end, cellBody) triples
+	 */
+	private static int[] foreground(int[] cellsRow){
+		RunLengthMask.RunBuilder out = new RunLengthMask.RunBuilder(cellsRow.length);
+		for(int i = 0; i < cellsRow.length; i += 3){
+			out.add(cellsRow[i], cellsRow[i + 1]);
+		}
+		return out.toArray();
+	}
+	
+	/**
+	 * works out which cell bodies can reach each pixel of a row with one dilation.
+	 * The cell body runs of the row and the rows either side of it are grown by one
+	 * pixel and swept from left to right, so that each part of the row is given
+	 * either the single cell body that reaches it or WSHED_RUN if several do.
+	 * @param above the cell body runs of the row above, or null at the top of the image
+	 * @param row the cell body runs of the row
+	 * @param below the cell body runs of the row below, or null at the bottom of the image
+	 * @param width the width of the image
+	 * @return the (start, end, cellBody) triples of the reachable pixels
+	 */
+	private static int[] reach(int[] above, int[] row, int[] below, int width){
+		int[][] near = new int[][]{above, row, below};
+		
+		int count = 0;
+		for(int[] nearRow : near){
+			if(nearRow != null){
+				count += nearRow.length / 3;
+			}
+		}
+		if(count == 0){
+			return new int[0];
+		}
+		
+		/*
+		 * events are sorted by position, with ends before starts at the same position
+		 */
+		int[] labels = new int[count];
+		long[] events = new long[count * 2];
+		int c = 0;
+		for(int[] nearRow : near){
+			if(nearRow != null){
+				for(int i = 0; i < nearRow.length; i += 3){
+					int runStart = Math.max(0, nearRow[i] - 1);
+					int runEnd = Math.min(width, nearRow[i + 1] + 1);
+					labels[c] = nearRow[i + 2];
+					events[2 * c] = ((long) runStart << 33) | (1L << 32) | c;
+					events[2 * c + 1] = ((long) runEnd << 33) | c;
+					c++;
+				}
+			}
+		}
+		Arrays.sort(events);
+		
+		int[] activeLabels = new int[count];
+		int[] activeCounts = new int[count];
+		int activeSize = 0;
+		
+		int[] out = new int[count * 3];
+		int outSize = 0;
+		int prevPos = 0;
+		
+		for(long event : events){
+			int pos = (int) (event >>> 33);
+			boolean isStart = ((event >>> 32) & 1L) == 1L;
+			int label = labels[(int) (event & 0xffffffffL)];
+			
+			if(pos > prevPos && activeSize > 0){
+				int value = activeSize == 1 ? activeLabels[0] : Watershed.WSHED_RUN;
+				if(outSize > 0 && out[outSize - 2] == prevPos && out[outSize - 1] == value){
+					out[outSize - 2] = pos;
+				} else {
+					if(outSize + 3 > out.length){
+						out = Arrays.copyOf(out, out.length * 2);
+					}
+					out[outSize++] = prevPos;
+					out[outSize++] = pos;
+					out[outSize++] = value;
+				}
+			}
+			prevPos = pos;
+			
+			int a = 0;
+			while(a < activeSize && activeLabels[a] != label){
+				a++;
+			}
+			if(isStart){
+				if(a == activeSize){
+					activeLabels[a] = label;
+					activeCounts[a] = 0;
+					activeSize++;
+				}
+				activeCounts[a]++;
+			} else if(--activeCounts[a] == 0){
+				activeSize--;
+				activeLabels[a] = activeLabels[activeSize];
+				activeCounts[a] = activeCounts[activeSize];
+			}
+		}
+		
+		return Arrays.copyOf(out, outSize);
+	}
+	
+	/**
+	 * the part of a run that lies within one pixel of a newly grown run of a
+	 * differing cell body in the given row
+	 * @param grownRow the newly grown (start, end, cellBody) triples of a row
+	 * @param start the start of the run being checked
+	 * @param end the end of the run being checked
+	 * @param cellBody the cell body of the run being checked
+	 * @param width the width of the image
+	 * @return the (start, end) pairs of pixels that clash
+	 */
+	private static int[] otherCellsNear(int[] grownRow, int start, int end, int cellBody, int width){
+		RunLengthMask.RunBuilder out = new RunLengthMask.RunBuilder(4);
+		for(int i = 0; i < grownRow.length && grownRow[i] <= end; i += 3){
+			if(grownRow[i + 2] != cellBody && grownRow[i + 1] >= start){
+				int clashStart = Math.max(start, grownRow[i] - 1);
+				int clashEnd = Math.min(end, grownRow[i + 1] + 1);
+				if(clashStart < clashEnd){
+					out.add(clashStart, clashEnd);
+				}
+			}
+		}
+		return out.toArray();
+	}
+	
+	/**
+	 * merges two sorted, non-overlapping rows of cell body runs, joining touching
+	 * runs of the same cell body
+	 * @param a the first row of (start, end, cellBody) triples
+	 * @param b the second row of (start, end, cellBody) triples
+	 * @return the merged row
+	 */
+	private static int[] mergeCells(int[] a, int[] b){
+		int[] out = new int[a.length + b.length];
+		int size = 0;
+		int i = 0;
+		int j = 0;
+		while(i < a.length || j < b.length){
+			int[] from;
+			int k;
+			if(j >= b.length || (i < a.length && a[i] < b[j])){
+				from = a;
+				k = i;
+				i += 3;
+			} else {
+				from = b;
+				k = j;
+				j += 3;
+			}
+			if(size > 0 && out[size - 2] == from[k] && out[size - 1] == from[k + 2]){
+				out[size - 2] = from[k + 1];
+			} else {
+				out[size++] = from[k];
+				out[size++] = from[k + 1];
+				out[size++] = from[k + 2];
+			}
+		}
+		return Arrays.copyOf(out, size);
+	}
 }
@@ -0,0 +1,297 @@
+package watershed;
+
+import java.util.Arrays;
+
+import dataTypes.RunLengthMask;
+
+/**
+ * a class that finds cell body seeds from the Euclidean distance transform of a
+ * threshold mask, as an alternative to eroding it. Each cell's seed sits on the
+ * ridge of the distance map at its centre, so touching cells are split where
+ * their outline narrows, whatever their size, and small cells are never eroded
+ * away.
+ *
+ * The distance transform is exact and is found in two linear passes: along the
+ * rows, and then along the columns using the lower envelope of parabolas. Both
+ * passes are run in parallel with RowBands. The seeds are the regional maxima of
+ * the map after an h-maxima filter: a peak only becomes a seed of its own if it
+ * stands at least the given height above the saddle joining it to a higher peak.
+ * Every connected part of the mask gets at least one seed.
+ * @author Mark
+ *
+ */
+public final class DistanceSeeds {
+
+	private static final int[] DX = {-1, 0, 1, -1, 1, -1, 0, 1};
+	private static final int[] DY = {-1, -1, -1, 0, 0, 1, 1, 1};
+
+	private DistanceSeeds(){
+	}
+
+	/**
+	 * finds the seeds of a threshold mask
+	 * @param mask the threshold mask
+	 * @param seedHeight the height, in pixels, a peak of the distance map has to
+	 * stand above the saddle to a higher peak to become a seed of its own
+	 * @return the seeds, which never touch one another
+	 */
+	public static RunLengthMask seeds(RunLengthMask mask, double seedHeight){
+		final int width = mask.getWidth();
+		final int height = mask.getHeight();
+		int[] distances = squaredDistances(mask);
+		boolean[] seed = hMaxima(distances, width, height, seedHeight);
+
+		int[][] rows = new int[height][];
+		for(int y = 0, i = 0; y < height; y++){
+			Cancellation.checkpoint();
+			RunLengthMask.RunBuilder row = new RunLengthMask.RunBuilder(8);
+			int runStart = -1;
+			for(int x = 0; x < width; x++, i++){
+				if(seed[i] && runStart == -1){
+					runStart = x;
+				} else if(!seed[i] && runStart != -1){
+					row.add(runStart, x);
+					runStart = -1;
+				}
+			}
+			if(runStart != -1){
+				row.add(runStart, width);
+			}
+			rows[y] = row.toArray();
+		}
+		return new RunLengthMask(width, height, rows);
+	}
+
+	/**
+	 * the exact squared Euclidean distance from every pixel of the mask to the
+	 * nearest pixel outside it. Outside the image counts as inside the mask, so a
+	 * cell cut by the edge keeps its centre at the edge.
+	 * @param mask the threshold mask
+	 * @return the squared distances, row by row, 0 outside the mask
+	 */
+	public static int[] squaredDistances(final RunLengthMask mask){
+		final int width = mask.getWidth();
+		final int height = mask.getHeight();
+		final long infinity = (long) width + height;
+		final int[] distances = new int[width * height];
+
+		/*
+		 * along the rows: the distance to the nearest background pixel in the row
+		 */
+		final int[] rowDistances = new int[width * height];
+		RowBands.forEach(height, new RowBands.Band(){
+			public void run(int start, int end){
+				for(int y = start; y < end; y++){
+					Cancellation.checkpoint();
+					int offset = y * width;
+					int[] runs = mask.getRow(y);
+					int x = 0;
+					for(int r = 0; r < runs.length; r += 2){
+						for(; x < runs[r]; x++){
+							rowDistances[offset + x] = 0;
+						}
+						int runStart = runs[r];
+						int runEnd = runs[r + 1];
+						for(; x < runEnd; x++){
+							long before = runStart == 0 ? infinity : x - runStart + 1;
+							long after = runEnd == width ? infinity : runEnd - x;
+							rowDistances[offset + x] = (int) Math.min(before, after);
+						}
+					}
+					for(; x < width; x++){
+						rowDistances[offset + x] = 0;
+					}
+				}
+			}
+		});
+
+		/*
+		 * along the columns: the lower envelope of the parabolas rising from each
+		 * pixel of the column by its distance along the row
+		 */
+		RowBands.forEach(width, new RowBands.Band(){
+			public void run(int start, int end){
+				long[] g2 = new long[height];
+				int[] s = new int[height];
+				int[] t = new int[height];
+				for(int x = start; x < end; x++){
+					Cancellation.checkpoint();
+					for(int y = 0; y < height; y++){
+						long g = rowDistances[y * width + x];
+						g2[y] = g * g;
+					}
+					int q = 0;
+					s[0] = 0;
+					t[0] = 0;
+					for(int u = 1; u < height; u++){
+						while(q >= 0 && parabola(t[q], s[q], g2) > parabola(t[q], u, g2)){
+							q--;
+						}
+						if(q < 0){
+							q = 0;
+							s[0] = u;
+						} else {
+							long w = 1 + separation(s[q], u, g2);
+							if(w < height){
+								q++;
+								s[q] = u;
+								t[q] = (int) w;
+							}
+						}
+					}
+					for(int u = height - 1; u >= 0; u--){
+						distances[u * width + x] = (int) Math.min(parabola(u, s[q], g2), Integer.MAX_VALUE);
+						if(u == t[q]){
+							q--;
+						}
+					}
+				}
+			}
+		});
+		return distances;
+	}
+
+	private static long parabola(int y, int i, long[] g2){
+		return (long) (y - i) * (y - i) + g2[i];
+	}
+
+	/**
+	 * the last row at which the parabola from row i is no higher than the one
+	 * from row u, for i below u
+	 */
+	private static long separation(int i, int u, long[] g2){
+		return ((long) u * u - (long) i * i + g2[u] - g2[i]) / (2L * (u - i));
+	}
+
+	/**
+	 * finds the regional maxima of the distance map after an h-maxima filter. The
+	 * pixels of the mask are visited from the highest distance down, joining the
+	 * 8-connected parts they touch. Before a part is joined by a pixel lower than
+	 * its peak less the height, the pixels it holds so far become a seed. A part
+	 * that is absorbed into a seeded one before that happens had too low a peak to
+	 * be a seed of its own; parts still unseeded at the end become seeds whole.
+	 */
+	private static boolean[] hMaxima(int[] distances, int width, int height, double seedHeight){
+		final int size = width * height;
+		int[] order = descending(distances);
+
+		int[] parent = new int[size];
+		Arrays.fill(parent, -1);
+		/*
+		 * every part's pixels are chained from its root through next, ending at
+		 * its tail
+		 */
+		int[] next = new int[size];
+		int[] tail = new int[size];
+		float[] peak = new float[size];
+		boolean[] seeded = new boolean[size];
+		boolean[] seed = new boolean[size];
+
+		for(int o = 0; o < order.length; o++){
+			/*checking for cancellation every 4096 pixels*/
+			if((o & 0xFFF) == 0){
+				Cancellation.checkpoint();
+			}
+			int i = order[o];
+			float level = (float) Math.sqrt(distances[i]);
+			parent[i] = i;
+			next[i] = -1;
+			tail[i] = i;
+			peak[i] = level;
+			int x = i % width;
+			int y = i / width;
+			for(int n = 0; n < DX.length; n++){
+				int nx = x + DX[n];
+				int ny = y + DY[n];
+				if(nx < 0 || nx >= width || ny < 0 || ny >= height || parent[ny * width + nx] == -1){
+					continue;
+				}
+				int other = find(parent, ny * width + nx);
+				int root = find(parent, i);
+				if(other == root){
+					continue;
+				}
+				if(!seeded[other] && level < peak[other] - seedHeight){
+					markSeed(other, next, seed);
+					seeded[other] = true;
+				}
+				/*
+				 * the part with the higher peak keeps its root
+				 */
+				int keep = peak[other] >= peak[root] ? other : root;
+				int join = keep == other ? root : other;
+				parent[join] = keep;
+				next[tail[keep]] = join;
+				tail[keep] = tail[join];
+				seeded[keep] |= seeded[join];
+			}
+		}
+
+		for(int o = 0; o < order.length; o++){
+			int i = order[o];
+			if(parent[i] == i && !seeded[i]){
+				markSeed(i, next, seed);
+			}
+		}
+		return seed;
+	}
+
+	private static void markSeed(int root, int[] next, boolean[] seed){
+		for(int i = root; i != -1; i = next[i]){
+			seed[i] = true;
+		}
+	}
+
+	private static int find(int[] parent, int i){
+		while(parent[i] != i){
+			parent[i] = parent[parent[i]];
+			i = parent[i];
+		}
+		return i;
+	}
+
+	/**
+	 * @return the indexes of the pixels inside the mask, from the highest distance
+	 * down, by counting them out when the distances are small and sorting them
+	 * otherwise
+	 */
+	private static int[] descending(int[] distances){
+		int count = 0;
+		int max = 0;
+		for(int d : distances){
+			if(d > 0){
+				count++;
+				max = Math.max(max, d);
+			}
+		}
+		int[] order = new int[count];
+		if(max <= distances.length){
+			int[] starts = new int[max + 2];
+			for(int d : distances){
+				if(d > 0){
+					starts[max - d + 1]++;
+				}
+			}
+			for(int d = 1; d < starts.length; d++){
+				starts[d] += starts[d - 1];
+			}
+			for(int i = 0; i < distances.length; i++){
+				if(distances[i] > 0){
+					order[starts[max - distances[i]]++] = i;
+				}
+			}
+		} else {
+			long[] keyed = new long[count];
+			for(int i = 0, k = 0; i < distances.length; i++){
+				if(distances[i] > 0){
+					keyed[k++] = ((long) (Integer.MAX_VALUE - distances[i]) << 32) | i;
+				}
+			}
+			Arrays.sort(keyed);
+			for(int k = 0; k < count; k++){
+				order[k] = (int) keyed[k];
+			}
+		}
+		return order;
+	}
+}
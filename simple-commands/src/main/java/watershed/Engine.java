@@ -0,0 +1,53 @@
+package watershed;
+
+/**
+ * the ways in which the watershedding can be carried out
+ * @author Mark
+ *
+ */
+public enum Engine {
+
+	/**
+	 * every pixel is held as a ThresholdDataPoint, and every stage visits every pixel
+	 */
+	PIXEL("Pixel"),
+
+	/**
+	 * the foreground is held as runs of pixels, so the stages only visit the
+	 * boundaries of the foreground. With a fixed number of dilations the cells
+	 * are those of the pixel engine, up to numbering. With geodesic growth,
+	 * clashing growth is settled in a different order, so the two may differ on
+	 * the pixels on and beside the watershed lines where cells meet.
+	 */
+	RUN_LENGTH("Run length"),
+
+	/**
+	 * the ExecutionPlanner chooses the fastest way of watershedding that is
+	 * expected to fit in memory. As well as the engines above, this may be the run
+	 * length watershedding carried out a row at a time, which holds little more
+	 * than the output.
+	 */
+	AUTO("Automatic");
+
+	private String displayName;
+
+	private Engine(String displayName){
+		this.displayName = displayName;
+	}
+
+	public String getDisplayName() {
+		return displayName;
+	}
+
+	/**
+	 * @return the display names of every engine, in order, for use in a dialog
+	 */
+	public static String[] displayNames(){
+		Engine[] engines = values();
+		String[] names = new String[engines.length];
+		for(int i = 0; i < engines.length; i++){
+			names[i] = engines[i].getDisplayName();
+		}
+		return names;
+	}
+}
@@ -4,24 +4,22 @@ import java.util.ArrayList;
 import java.util.Arrays;
 
 import dataTypes.PixelPos;
+import dataTypes.RunLengthMask;
 import dataTypes.ThresholdDataPoint;
-import ij.IJ;
 
 /**
  * A class that holds the static methods for performing erosion on a binary matrix
- * of integers
+ * of integers, either held as a grid of data points or as a run length mask
  * @author Mark
  *
  */
 public class Erode {
 
 	public static void erode(ThresholdDataPoint[][] labelled, int backgroundLabel, int foregroundLabel, int width, int height){
-		IJ.showStatus("Eroding");
-		IJ.log("Eroding");
-		long start = System.currentTimeMillis();
 		ThresholdDataPoint[][] newLabels = new ThresholdDataPoint[width][height];
 
 		for(int x = 0; x < width; x++){
+			Cancellation.checkpoint();
 			for(int y = 0; y < height; y++){
 				PixelPos pixelPos = new PixelPos(x,y);
 				newLabels[x][y] = new ThresholdDataPoint(backgroundLabel, pixelPos);
@@ -29,6 +27,7 @@ public class Erode {
 		}
 
 		for(int y = 0; y < height; y++){
+			Cancellation.checkpoint();
 			for(int x = 0; x < width; x++){
 				/* check to see if the label may need to be changed */
 				if(labelled[x][y].getLabel() == foregroundLabel){
@@ -60,20 +59,50 @@ public class Erode {
 
 		Watershed.establishNeighbours(labelled, width, height);
 		
-		long end = System.currentTimeMillis();
-		IJ.log("Eroding took " + (end-start) + " ms.");
-
-		/*
-		 * DEBUG log the result
-		 */
-		String currLine = "";
+	}
 
-		for(int heightPr = 90; heightPr < 160; heightPr++){
-			for(int widthPr = 170; widthPr < 220; widthPr++){
-				currLine += " " + labelled[widthPr][heightPr].getLabel();
-			}
-			IJ.log(currLine);
-			currLine = "";
+	/**
+	 * erodes a run length mask once with the same 8 connected neighbourhood as
+	 * the pixel based erosion. The 3x3 square is applied separably: each run is
+	 * first shrunk horizontally, then each row is intersected with the rows above
+	 * and below it. Pixels outside the image are not treated as neighbours, so
+	 * runs touching the edge are not eroded from that edge.
+	 * @param mask the mask to erode
+	 * @return the eroded mask
+	 */
+	public static RunLengthMask erodeRuns(RunLengthMask mask){
+		final int width = mask.getWidth();
+		final int height = mask.getHeight();
+		
+		int[][] shrunk = new int[height][];
+		for(int y = 0; y < height; y++){
+			Cancellation.checkpoint();
+			shrunk[y] = RunLengthMask.stretch(mask.getRow(y), -1, width);
+		}
+		
+		int[][] rows = new int[height][];
+		for(int y = 0; y < height; y++){
+			Cancellation.checkpoint();
+			rows[y] = erodeRow(y > 0 ? shrunk[y - 1] : null, shrunk[y], y < height - 1 ? shrunk[y + 1] : null);
+		}
+		
+		return new RunLengthMask(width, height, rows);
+	}
+	
+	/**
+	 * the vertical half of the run length erosion for a single row
+	 * @param above the horizontally shrunk row above, or null at the top of the image
+	 * @param row the horizontally shrunk row
+	 * @param below the horizontally shrunk row below, or null at the bottom of the image
+	 * @return the eroded row
+	 */
+	static int[] erodeRow(int[] above, int[] row, int[] below){
+		if(above != null){
+			row = RunLengthMask.intersect(row, above);
+		}
+		if(below != null){
+			row = RunLengthMask.intersect(row, below);
 		}
+		return row;
 	}
 }
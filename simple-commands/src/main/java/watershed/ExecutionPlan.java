@@ -0,0 +1,105 @@
+package watershed;
+
+/**
+ * the way a single watershedding run is to be carried out, with the estimates
+ * it was chosen on. Plans are made by the ExecutionPlanner.
+ * @author Mark
+ *
+ */
+public class ExecutionPlan {
+
+	/**
+	 * the ways a run can be carried out
+	 */
+	public enum Strategy {
+		/**
+		 * the pixel engine
+		 */
+		PIXEL("Pixel engine"),
+
+		/**
+		 * the run length engine, holding the whole image as runs
+		 */
+		RUN_LENGTH("Run length engine"),
+
+		/**
+		 * the run length watershedding carried out a row at a time by a
+		 * StreamingWatershed, holding little more than the output. Only fixed
+		 * numbers of dilations without pre-filtering or merging are supported.
+		 */
+		STREAMING("Streaming run length"),
+
+		/**
+		 * the 3D watershedding of a stack
+		 */
+		VOLUME("3D watershed");
+
+		private String displayName;
+
+		private Strategy(String displayName){
+			this.displayName = displayName;
+		}
+
+		public String getDisplayName() {
+			return displayName;
+		}
+	}
+
+	private Strategy strategy;
+	private int threads;
+	private long estimatedBytes;
+	private long estimatedNanos;
+	private long availableBytes;
+
+	/**
+	 * @param strategy the way the run is to be carried out
+	 * @param threads the number of threads the parallel stages use
+	 * @param estimatedBytes the estimated peak memory of the run
+	 * @param estimatedNanos the estimated time of the run
+	 * @param availableBytes the memory that was free when the plan was made
+	 */
+	public ExecutionPlan(Strategy strategy, int threads, long estimatedBytes, long estimatedNanos, long availableBytes){
+		this.strategy = strategy;
+		this.threads = threads;
+		this.estimatedBytes = estimatedBytes;
+		this.estimatedNanos = estimatedNanos;
+		this.availableBytes = availableBytes;
+	}
+
+	public Strategy getStrategy() {
+		return strategy;
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	public long getEstimatedBytes() {
+		return estimatedBytes;
+	}
+
+	public long getEstimatedNanos() {
+		return estimatedNanos;
+	}
+
+	public long getAvailableBytes() {
+		return availableBytes;
+	}
+
+	/**
+	 * @return true if the run is expected to fit in the memory that was free
+	 */
+	public boolean fits() {
+		return estimatedBytes <= availableBytes;
+	}
+
+	public String toString(){
+		return strategy.getDisplayName() + " on " + threads + (threads == 1 ? " thread" : " threads")
+				+ ", about " + megabytes(estimatedBytes) + " MB and " + estimatedNanos / 1000000 + " ms ("
+				+ megabytes(availableBytes) + " MB free)";
+	}
+
+	static long megabytes(long bytes){
+		return (bytes + (1 << 20) - 1) >> 20;
+	}
+}
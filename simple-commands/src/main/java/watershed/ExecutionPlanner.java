@@ -0,0 +1,274 @@
+package watershed;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import ij.process.ImageProcessor;
+
+/**
+ * decides how a run is to be carried out before any of the work is done. The
+ * peak memory and time of every engine that can carry out the run are estimated
+ * from the size of the image, its bit depth, the parameters and a sample of its
+ * rows, and compared with the memory free on the heap. When the engine is AUTO
+ * the fastest plan that fits is chosen, which may be to stream the image a row
+ * at a time; an engine that was asked for by name is kept. Either way, a run
+ * that is not expected to fit is refused straight away with an
+ * IllegalStateException, rather than running out of memory part way through.
+ *
+ * The estimates are deliberately rough. The memory per pixel and per run, and
+ * the time per pixel and per run, were measured on the test images and are
+ * rounded up. The number of runs is estimated by thresholding every
+ * SAMPLE_STRIDE-th row.
+ * @author Mark
+ *
+ */
+public final class ExecutionPlanner {
+
+	private static final int SAMPLE_STRIDE = 32;
+
+	/*
+	 * the pixel engine holds several objects for every pixel, and a second set
+	 * of them while eroding and dilating
+	 */
+	private static final long PIXEL_BYTES_PER_PIXEL = 1700;
+	private static final long PIXEL_NANOS_PER_PIXEL = 30000;
+
+	/*
+	 * the run length engines widen the output from bytes to shorts while writing,
+	 * and each run is held as a few ints in several rows of runs at once
+	 */
+	private static final long OUTPUT_BYTES_PER_PIXEL = 3;
+	private static final long RUN_BYTES_PER_PIXEL = 1;
+	private static final long BYTES_PER_RUN = 64;
+	private static final long RUN_NANOS_PER_PIXEL = 40;
+	private static final long NANOS_PER_RUN_STEP = 100;
+	private static final long STREAMING_BYTES_PER_ROW_PIXEL = 48;
+
+	/*
+	 * the pre-filter's row smoothed buffer, and the merge's copy of the labels
+	 */
+	private static final long PREFILTER_BYTES_PER_PIXEL = 4;
+	private static final long PREFILTER_NANOS_PER_PIXEL_TAP = 3;
+	private static final long MERGE_BYTES_PER_PIXEL = 6;
+	private static final long MERGE_NANOS_PER_PIXEL = 60;
+
+	/*
+	 * the distance transform's squared distances, and the union-find over the
+	 * pixels that finds the seeds in it
+	 */
+	private static final long DISTANCE_BYTES_PER_PIXEL = 32;
+	private static final long DISTANCE_NANOS_PER_PIXEL = 100;
+
+	/*
+	 * the summed-area tables of the adaptive threshold, and the filtered image it
+	 * needs when pre-filtering
+	 */
+	private static final long ADAPTIVE_BYTES_PER_PIXEL = 12;
+	private static final long ADAPTIVE_NANOS_PER_PIXEL = 30;
+
+	/*
+	 * the 3D watershed holds a byte mask or two and int labels for every voxel
+	 */
+	private static final long VOLUME_BYTES_PER_VOXEL = 6;
+	private static final long VOLUME_NANOS_PER_VOXEL_STEP = 25;
+
+	private static final int THREADS = Runtime.getRuntime().availableProcessors();
+
+	private ExecutionPlanner(){
+	}
+
+	/**
+	 * chooses how to watershed an image
+	 * @param input the image that is about to be watershedded
+	 * @param hMin the minimum value of the coloration in a pixel
+	 * @param hMax the maximum value of the coloration in a pixel
+	 * @param params the parameters to watershed with
+	 * @return the plan to carry out
+	 * @throws IllegalStateException if the run is not expected to fit in the heap
+	 */
+	public static ExecutionPlan plan(ImageProcessor input, double hMin, double hMax, WatershedParams params){
+		List<ExecutionPlan> plans = estimate(input, hMin, hMax, params, availableBytes());
+
+		if(params.getEngine() != Engine.AUTO){
+			ExecutionPlan.Strategy asked = params.getEngine() == Engine.PIXEL ? ExecutionPlan.Strategy.PIXEL : ExecutionPlan.Strategy.RUN_LENGTH;
+			for(ExecutionPlan plan : plans){
+				if(plan.getStrategy() == asked){
+					if(!plan.fits()){
+						throw new IllegalStateException(refusal(input, plans, plan));
+					}
+					return plan;
+				}
+			}
+		}
+
+		ExecutionPlan fastest = null;
+		for(ExecutionPlan plan : plans){
+			if(plan.fits() && (fastest == null || plan.getEstimatedNanos() < fastest.getEstimatedNanos())){
+				fastest = plan;
+			}
+		}
+		if(fastest == null){
+			throw new IllegalStateException(refusal(input, plans, null));
+		}
+		return fastest;
+	}
+
+	/**
+	 * estimates every way of carrying out a run
+	 * @param input the image that is about to be watershedded
+	 * @param hMin the minimum value of the coloration in a pixel
+	 * @param hMax the maximum value of the coloration in a pixel
+	 * @param params the parameters to watershed with
+	 * @param availableBytes the memory free for the run
+	 * @return a plan for each way able to carry out the run
+	 */
+	public static List<ExecutionPlan> estimate(ImageProcessor input, double hMin, double hMax, WatershedParams params, long availableBytes){
+		final long width = input.getWidth();
+		final long height = input.getHeight();
+		final long pixels = width * height;
+		final long runs = sampleRuns(input, hMin, hMax, params);
+		final long steps = 2 * params.getEroDilCount() + 1;
+
+		/*
+		 * the costs every in-core engine shares
+		 */
+		long extraBytes = 0;
+		long extraNanos = 0;
+		int threads = 1;
+		if(params.hasPrefilter() || params.isAdaptive()){
+			threads = Math.max(1, Math.min(THREADS, input.getHeight() / 16));
+		}
+		if(params.hasPrefilter()){
+			long taps = params.getSigma() > 0 ? 2 * (long) Math.ceil(3 * params.getSigma()) + 1 : 1;
+			extraBytes += PREFILTER_BYTES_PER_PIXEL * pixels;
+			extraNanos += PREFILTER_NANOS_PER_PIXEL_TAP * taps * 2 * pixels / threads;
+		}
+		if(params.isAdaptive()){
+			extraBytes += (ADAPTIVE_BYTES_PER_PIXEL + (params.hasPrefilter() ? PREFILTER_BYTES_PER_PIXEL : 0)) * pixels;
+			extraNanos += ADAPTIVE_NANOS_PER_PIXEL * pixels / threads;
+		}
+		if(params.isDistanceSeeds()){
+			extraBytes += DISTANCE_BYTES_PER_PIXEL * pixels;
+			extraNanos += DISTANCE_NANOS_PER_PIXEL * pixels;
+		}
+		if(params.getMergeThreshold() > 0){
+			extraBytes += MERGE_BYTES_PER_PIXEL * pixels;
+			extraNanos += MERGE_NANOS_PER_PIXEL * pixels;
+		}
+
+		List<ExecutionPlan> plans = new ArrayList<ExecutionPlan>();
+
+		long runBytes = (OUTPUT_BYTES_PER_PIXEL + RUN_BYTES_PER_PIXEL) * pixels + BYTES_PER_RUN * runs;
+		long runNanos = RUN_NANOS_PER_PIXEL * pixels + NANOS_PER_RUN_STEP * steps * runs;
+		plans.add(new ExecutionPlan(ExecutionPlan.Strategy.RUN_LENGTH, threads, runBytes + extraBytes, runNanos + extraNanos, availableBytes));
+
+		if(supportsStreaming(params)){
+			long window = 3L * params.getEroDilCount() + 2;
+			long streamBytes = OUTPUT_BYTES_PER_PIXEL * pixels + STREAMING_BYTES_PER_ROW_PIXEL * window * width + runs;
+			long streamNanos = runNanos * 3 / 2;
+			plans.add(new ExecutionPlan(ExecutionPlan.Strategy.STREAMING, 1, streamBytes, streamNanos, availableBytes));
+		}
+
+		plans.add(new ExecutionPlan(ExecutionPlan.Strategy.PIXEL, threads, PIXEL_BYTES_PER_PIXEL * pixels + extraBytes, PIXEL_NANOS_PER_PIXEL * pixels + extraNanos, availableBytes));
+
+		return plans;
+	}
+
+	/**
+	 * estimates watershedding a stack as one volume, refusing it if it is not
+	 * expected to fit
+	 * @param width the width of the stack
+	 * @param height the height of the stack
+	 * @param depth the number of slices
+	 * @param params the parameters to watershed with
+	 * @return the plan
+	 * @throws IllegalStateException if the run is not expected to fit in the heap
+	 */
+	public static ExecutionPlan planVolume(int width, int height, int depth, WatershedParams params){
+		long voxels = (long) width * height * depth;
+		long bytes = (VOLUME_BYTES_PER_VOXEL + (params.isGeodesic() ? 1 : 0)) * voxels;
+		int threads = Math.max(1, Math.min(THREADS, depth));
+		long nanos = VOLUME_NANOS_PER_VOXEL_STEP * (2L * params.getEroDilCount() + 2) * voxels / threads;
+		ExecutionPlan plan = new ExecutionPlan(ExecutionPlan.Strategy.VOLUME, threads, bytes, nanos, availableBytes());
+		if(!plan.fits()){
+			throw new IllegalStateException("Watershedding a " + width + "x" + height + "x" + depth + " stack needs about "
+					+ ExecutionPlan.megabytes(bytes) + " MB, but only " + ExecutionPlan.megabytes(plan.getAvailableBytes())
+					+ " MB is free. Watershed fewer slices, or give ImageJ more memory.");
+		}
+		return plan;
+	}
+
+	/**
+	 * @return true if the streaming engine can carry out a run with these
+	 * parameters
+	 */
+	public static boolean supportsStreaming(WatershedParams params){
+		return !params.isUntilFilled() && !params.isDistanceSeeds() && !params.isAdaptive() && !params.hasPrefilter() && !(params.getMergeThreshold() > 0) && !params.hasSeedFilter();
+	}
+
+	/**
+	 * @return the memory that can still be allocated on the heap
+	 */
+	public static long availableBytes(){
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+	}
+
+	/**
+	 * estimates the number of runs of foreground in the image by thresholding a
+	 * sample of its rows, against a threshold value worked out from the sample's
+	 * histogram when thresholding automatically
+	 */
+	private static long sampleRuns(ImageProcessor input, double hMin, double hMax, WatershedParams params){
+		final int width = input.getWidth();
+		final int height = input.getHeight();
+		float[] row = new float[width];
+		double threshVal = params.getThreshVal();
+		if(params.isAutoThreshold()){
+			double scaling = (hMax - hMin)/255;
+			long[] histogram = new long[Threshold.BINS];
+			for(int y = SAMPLE_STRIDE / 2 % height; y < height; y += SAMPLE_STRIDE){
+				for(int x = 0; x < width; x++){
+					int bin = Threshold.bin(255 - (input.getf(x, y) - hMin)/scaling);
+					if(bin >= 0){
+						histogram[bin]++;
+					}
+				}
+			}
+			threshVal = params.getAutoThreshold().threshold(histogram);
+		}
+		long runs = 0;
+		int sampled = 0;
+		for(int y = SAMPLE_STRIDE / 2 % height; y < height; y += SAMPLE_STRIDE){
+			for(int x = 0; x < width; x++){
+				row[x] = input.getf(x, y);
+			}
+			runs += Threshold.thresholdRow(row, hMin, hMax, threshVal).length / 2;
+			sampled++;
+		}
+		/*
+		 * erosion can split a run in two, so allow for more than were sampled
+		 */
+		return sampled == 0 ? 0 : 2 * runs * height / sampled;
+	}
+
+	private static String refusal(ImageProcessor input, List<ExecutionPlan> plans, ExecutionPlan chosen){
+		StringBuilder sb = new StringBuilder();
+		sb.append("Watershedding the ").append(input.getWidth()).append("x").append(input.getHeight()).append(" image ");
+		if(chosen != null){
+			sb.append("with the ").append(chosen.getStrategy().getDisplayName()).append(" needs about ")
+					.append(ExecutionPlan.megabytes(chosen.getEstimatedBytes())).append(" MB");
+		} else {
+			sb.append("does not fit in any way");
+		}
+		sb.append(", but only ").append(ExecutionPlan.megabytes(plans.get(0).getAvailableBytes())).append(" MB is free.");
+		for(ExecutionPlan plan : plans){
+			if(plan != chosen){
+				sb.append(" The ").append(plan.getStrategy().getDisplayName()).append(plan.fits() ? " would fit, needing about " : " needs about ")
+						.append(ExecutionPlan.megabytes(plan.getEstimatedBytes())).append(" MB.");
+			}
+		}
+		sb.append(" Watershed a selection, or give ImageJ more memory.");
+		return sb.toString();
+	}
+}
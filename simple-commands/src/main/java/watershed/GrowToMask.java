@@ -0,0 +1,210 @@
+package watershed;
+
+import dataTypes.LabelStatistics;
+import dataTypes.LabelledRuns;
+import dataTypes.RunLengthMask;
+
+/**
+ * a class that measures the cells grown from a set of cell bodies until they
+ * fill the threshold mask, while dilating as few of them as it can. A connected
+ * part of the mask that only one cell body reaches is filled by that body alone,
+ * so its cell is the whole part and is measured straight from the part's runs.
+ * Only the parts that several cell bodies reach, and the cell bodies that are not
+ * wholly inside the mask, are dilated, and the dilation only visits those parts'
+ * runs. The cells measured are exactly those a run grows when it dilates until
+ * the mask is filled.
+ * @author Mark
+ *
+ */
+public final class GrowToMask {
+
+	/*
+	 * the body of a part, or the part of a body, when nothing reaches it, and
+	 * when it is reached by more than one
+	 */
+	private static final int NONE = 0;
+	private static final int SHARED = -1;
+
+	private GrowToMask(){
+	}
+
+	/**
+	 * measures the cells grown from the cell bodies until they fill the mask
+	 * @param mask the threshold mask the cells grow into
+	 * @param bodies the cell bodies, labelled 1 to their cell body count
+	 * @param offset the amount added to each cell body to give its label, as when
+	 * the runs are written to a label image
+	 * @return the statistics of every cell, in order of label value
+	 */
+	public static LabelStatistics[] measure(RunLengthMask mask, LabelledRuns bodies, int offset){
+		final int width = mask.getWidth();
+		final int height = mask.getHeight();
+		final int bodyCount = bodies.getCellBodyCount();
+		LabelledRuns parts = Watershed.labelRuns(mask);
+
+		/*
+		 * finding the parts each cell body reaches, which are those it touches,
+		 * diagonally as well as directly, and counting how much of each body is
+		 * inside the mask
+		 */
+		int[] partBody = new int[parts.getCellBodyCount() + 1];
+		int[] bodyPart = new int[bodyCount + 1];
+		long[] outside = new long[bodyCount + 1];
+		for(int y = 0; y < height; y++){
+			Cancellation.checkpoint();
+			int[] cells = bodies.getCells(y);
+			for(int c = 0; c < cells.length; c += 3){
+				int start = cells[c];
+				int end = cells[c + 1];
+				int body = cells[c + 2];
+				outside[body] += end - start;
+				for(int near = Math.max(y - 1, 0); near <= Math.min(y + 1, height - 1); near++){
+					int[] row = parts.getCells(near);
+					for(int p = firstReaching(row, start); p < row.length && row[p] <= end; p += 3){
+						int part = row[p + 2];
+						partBody[part] = partBody[part] == NONE || partBody[part] == body ? body : SHARED;
+						bodyPart[body] = bodyPart[body] == NONE || bodyPart[body] == part ? part : SHARED;
+						if(near == y){
+							outside[body] -= Math.max(Math.min(end, row[p + 1]) - Math.max(start, row[p]), 0);
+						}
+					}
+				}
+			}
+		}
+
+		/*
+		 * a cell body partly outside the mask is dilated, along with every other
+		 * body in the parts it reaches
+		 */
+		for(int body = 1; body <= bodyCount; body++){
+			if(bodyPart[body] != NONE && outside[body] != 0){
+				bodyPart[body] = SHARED;
+			}
+		}
+		for(int y = 0; y < height; y++){
+			int[] cells = bodies.getCells(y);
+			for(int c = 0; c < cells.length; c += 3){
+				if(bodyPart[cells[c + 2]] != SHARED){
+					continue;
+				}
+				for(int near = Math.max(y - 1, 0); near <= Math.min(y + 1, height - 1); near++){
+					int[] row = parts.getCells(near);
+					for(int p = firstReaching(row, cells[c]); p < row.length && row[p] <= cells[c + 1]; p += 3){
+						partBody[row[p + 2]] = SHARED;
+					}
+				}
+			}
+		}
+
+		/*
+		 * measuring the parts filled by a single cell body and the cell bodies
+		 * that reach no part, and gathering the rest to dilate
+		 */
+		LabelStatistics[] stats = new LabelStatistics[bodyCount + offset + 1];
+		int[][] sharedMask = new int[height][];
+		int[][] sharedBodies = new int[height][];
+		boolean anyShared = false;
+		for(int y = 0; y < height; y++){
+			Cancellation.checkpoint();
+			int[] row = parts.getCells(y);
+			RunLengthMask.RunBuilder sharedRow = new RunLengthMask.RunBuilder(2);
+			for(int p = 0; p < row.length; p += 3){
+				int body = partBody[row[p + 2]];
+				if(body == SHARED){
+					sharedRow.add(row[p], row[p + 1]);
+				} else if(body != NONE){
+					add(stats, body + offset, y, row[p], row[p + 1]);
+				}
+			}
+			sharedMask[y] = sharedRow.toArray();
+
+			int[] cells = bodies.getCells(y);
+			int sharedCount = 0;
+			for(int c = 0; c < cells.length; c += 3){
+				int body = cells[c + 2];
+				if(bodyPart[body] == NONE){
+					add(stats, body + offset, y, cells[c], cells[c + 1]);
+				} else if(isDilated(body, bodyPart, partBody)){
+					sharedCount++;
+				}
+			}
+			sharedBodies[y] = new int[3 * sharedCount];
+			for(int c = 0, s = 0; c < cells.length; c += 3){
+				int body = cells[c + 2];
+				if(bodyPart[body] != NONE && isDilated(body, bodyPart, partBody)){
+					System.arraycopy(cells, c, sharedBodies[y], s, 3);
+					s += 3;
+				}
+			}
+			anyShared |= sharedCount > 0;
+		}
+
+		/*
+		 * dilating the shared parts until they are filled, as a run does
+		 */
+		if(anyShared){
+			RunLengthMask limit = new RunLengthMask(width, height, sharedMask);
+			LabelledRuns grown = new LabelledRuns(width, height, sharedBodies, null, bodyCount);
+			long area;
+			do {
+				area = grown.getCellArea();
+				grown = Dilate.dilateRuns(grown, limit);
+			} while(grown.getCellArea() != area);
+			for(int y = 0; y < height; y++){
+				int[] cells = grown.getCells(y);
+				for(int c = 0; c < cells.length; c += 3){
+					add(stats, cells[c + 2] + offset, y, cells[c], cells[c + 1]);
+				}
+			}
+		}
+
+		int labelCount = 0;
+		for(LabelStatistics stat : stats){
+			if(stat != null){
+				labelCount++;
+			}
+		}
+		LabelStatistics[] present = new LabelStatistics[labelCount];
+		for(int label = 0, i = 0; label < stats.length; label++){
+			if(stats[label] != null){
+				present[i++] = stats[label];
+			}
+		}
+		return present;
+	}
+
+	/**
+	 * @param row the (start, end, label) triples of a row
+	 * @param x the x co-ordinate of the first pixel of a run
+	 * @return the index of the first triple whose run touches or passes x, found
+	 * by a binary search as the runs are in order
+	 */
+	private static int firstReaching(int[] row, int x){
+		int low = 0;
+		int high = row.length / 3;
+		while(low < high){
+			int middle = (low + high) >>> 1;
+			if(row[3 * middle + 1] < x){
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return 3 * low;
+	}
+
+	/**
+	 * @return true if a cell body that reaches the mask is dilated, rather than
+	 * filling its part alone
+	 */
+	private static boolean isDilated(int body, int[] bodyPart, int[] partBody){
+		return bodyPart[body] == SHARED || partBody[bodyPart[body]] == SHARED;
+	}
+
+	private static void add(LabelStatistics[] stats, int label, int y, int start, int end){
+		if(stats[label] == null){
+			stats[label] = new LabelStatistics(label);
+		}
+		stats[label].addRun(y, start, end);
+	}
+}
@@ -0,0 +1,80 @@
+package watershed;
+
+import java.awt.Color;
+
+import dataTypes.LabelStore;
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+import ij.process.LUT;
+
+/**
+ * a glasbey style lookup table for showing label images. The background is
+ * black, watershed pixels are white, and each cell label gets a colour well
+ * apart from those of the labels next to it. The hues step around the colour
+ * wheel by the golden angle and the saturation and brightness cycle, so
+ * neighbouring labels never share a colour even when they are numbered one
+ * after the other.
+ *
+ * The labels themselves are left as they are: the table only changes how
+ * they are shown, so the label image can still be measured or saved as it is.
+ * @author Mark
+ *
+ */
+public final class LabelLut {
+
+	private static final float GOLDEN_ANGLE = 0.381966f;
+	private static final float[] SATURATIONS = {0.95f, 0.6f, 0.85f};
+	private static final float[] BRIGHTNESSES = {1f, 0.85f, 0.65f, 0.9f};
+
+	private LabelLut(){
+	}
+
+	/**
+	 * @return the label lookup table, with index 0 black and index
+	 * Watershed.WSHED_LABEL white
+	 */
+	public static LUT create(){
+		byte[] reds = new byte[256];
+		byte[] greens = new byte[256];
+		byte[] blues = new byte[256];
+		reds[Watershed.WSHED_LABEL] = (byte) 255;
+		greens[Watershed.WSHED_LABEL] = (byte) 255;
+		blues[Watershed.WSHED_LABEL] = (byte) 255;
+		for(int i = Watershed.LABEL_OFFSET + 1; i < 256; i++){
+			int n = i - Watershed.LABEL_OFFSET - 1;
+			float hue = (n * GOLDEN_ANGLE) % 1f;
+			int rgb = Color.HSBtoRGB(hue, SATURATIONS[n % SATURATIONS.length], BRIGHTNESSES[n % BRIGHTNESSES.length]);
+			reds[i] = (byte) (rgb >> 16);
+			greens[i] = (byte) (rgb >> 8);
+			blues[i] = (byte) rgb;
+		}
+		return new LUT(reds, greens, blues);
+	}
+
+	/**
+	 * shows a label image through the label lookup table. Labels are shown
+	 * unscaled while they fit in the table; past that the display range is
+	 * stretched over every label, so that each still gets a colour.
+	 * @param labels the label image
+	 */
+	public static void attach(ImagePlus labels){
+		ImageProcessor ip = labels.getProcessor();
+		int maxLabel = LabelStore.BYTE_MAX;
+		if(labels.getBitDepth() != 8){
+			ip.resetMinAndMax();
+			maxLabel = (int) ip.getMax();
+		}
+		attach(labels, maxLabel);
+	}
+
+	/**
+	 * shows a label image through the label lookup table, as attach(labels)
+	 * does, when its largest label is already known, as it is for a stack
+	 * @param labels the label image
+	 * @param maxLabel the largest label of the image
+	 */
+	public static void attach(ImagePlus labels, int maxLabel){
+		labels.setLut(create());
+		labels.setDisplayRange(0, Math.max(LabelStore.BYTE_MAX, maxLabel));
+	}
+}
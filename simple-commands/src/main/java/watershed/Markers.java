@@ -0,0 +1,219 @@
+package watershed;
+
+import java.awt.Polygon;
+import java.util.Arrays;
+
+import dataTypes.LabelledRuns;
+import ij.gui.Roi;
+import ij.process.ImageProcessor;
+
+/**
+ * a class holding cell body seeds that are already known, such as nucleus
+ * centres found in another channel, so that a run can grow the cells straight
+ * from them without eroding and labelling the threshold mask. Each marker is one
+ * or more pixels, in the coordinates of the whole image, with a label of its own.
+ * Markers are immutable, and can be shared between threads.
+ * @author Mark
+ *
+ */
+public final class Markers {
+
+	private final int[] xs;
+	private final int[] ys;
+	private final int[] labels;
+	private final int count;
+
+	private Markers(int[] xs, int[] ys, int[] labels, int count){
+		this.xs = xs;
+		this.ys = ys;
+		this.labels = labels;
+		this.count = count;
+	}
+
+	/**
+	 * makes a marker of each point. The points are labelled 1, 2, ... in the order
+	 * given, and where two points share a pixel the first is kept.
+	 * @param xs the x coordinates of the points
+	 * @param ys the y coordinates of the points
+	 * @return the markers
+	 */
+	public static Markers fromPoints(int[] xs, int[] ys){
+		if(xs == null || ys == null || xs.length != ys.length){
+			throw new IllegalArgumentException("Marker points need as many y coordinates as x coordinates");
+		}
+		int[] labels = new int[xs.length];
+		for(int i = 0; i < labels.length; i++){
+			labels[i] = i + 1;
+		}
+		return new Markers(xs.clone(), ys.clone(), labels, xs.length);
+	}
+
+	/**
+	 * makes a marker of each point of a coordinate array
+	 * @param coordinates the points as x0, y0, x1, y1, ...
+	 * @return the markers, labelled as by fromPoints
+	 */
+	public static Markers fromCoordinates(int[] coordinates){
+		if(coordinates == null || coordinates.length % 2 != 0){
+			throw new IllegalArgumentException("Marker coordinates must come in (x, y) pairs");
+		}
+		int[] xs = new int[coordinates.length / 2];
+		int[] ys = new int[coordinates.length / 2];
+		for(int i = 0; i < xs.length; i++){
+			xs[i] = coordinates[2 * i];
+			ys[i] = coordinates[2 * i + 1];
+		}
+		return fromPoints(xs, ys);
+	}
+
+	/**
+	 * makes a marker of each point of a (multi-)point selection
+	 * @param roi the point selection
+	 * @return the markers, labelled as by fromPoints
+	 */
+	public static Markers fromRoi(Roi roi){
+		if(roi == null || roi.getType() != Roi.POINT){
+			throw new IllegalArgumentException("Markers can only be taken from a point selection");
+		}
+		Polygon points = roi.getPolygon();
+		return fromPoints(Arrays.copyOf(points.xpoints, points.npoints), Arrays.copyOf(points.ypoints, points.npoints));
+	}
+
+	/**
+	 * makes a marker of each distinct value of a marker image other than 0. The
+	 * values are labelled 1, 2, ... from the lowest up, and every pixel holding a
+	 * value belongs to its marker, whether or not they touch.
+	 * @param markerImage the marker image, the same size as the image to be
+	 * watershedded
+	 * @return the markers
+	 */
+	public static Markers fromImage(ImageProcessor markerImage){
+		final int width = markerImage.getWidth();
+		final int height = markerImage.getHeight();
+		int size = 0;
+		for(int i = 0; i < width * height; i++){
+			float value = markerImage.getf(i);
+			if(value != 0 && !Float.isNaN(value)){
+				size++;
+			}
+		}
+
+		int[] xs = new int[size];
+		int[] ys = new int[size];
+		float[] values = new float[size];
+		for(int y = 0, i = 0, m = 0; y < height; y++){
+			for(int x = 0; x < width; x++, i++){
+				float value = markerImage.getf(i);
+				if(value != 0 && !Float.isNaN(value)){
+					xs[m] = x;
+					ys[m] = y;
+					values[m++] = value;
+				}
+			}
+		}
+
+		float[] distinct = values.clone();
+		Arrays.sort(distinct);
+		int count = 0;
+		for(int i = 0; i < distinct.length; i++){
+			if(i == 0 || distinct[i] != distinct[i - 1]){
+				distinct[count++] = distinct[i];
+			}
+		}
+		int[] labels = new int[size];
+		for(int m = 0; m < size; m++){
+			labels[m] = Arrays.binarySearch(distinct, 0, count, values[m]) + 1;
+		}
+		return new Markers(xs, ys, labels, count);
+	}
+
+	/**
+	 * @return the number of markers, which are labelled 1 to getCount()
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * @return the number of marker pixels
+	 */
+	int size() {
+		return xs.length;
+	}
+
+	int getX(int i) {
+		return xs[i];
+	}
+
+	int getY(int i) {
+		return ys[i];
+	}
+
+	int getLabel(int i) {
+		return labels[i];
+	}
+
+	/**
+	 * the markers inside an area of the image, as cell body runs of that area
+	 * ready to be grown. Pixels outside the area are left out, and where markers
+	 * share a pixel the lowest label is kept.
+	 * @param left the x coordinate of the area in the image
+	 * @param top the y coordinate of the area in the image
+	 * @param width the width of the area
+	 * @param height the height of the area
+	 * @return the labelled runs
+	 */
+	LabelledRuns toRuns(int left, int top, int width, int height){
+		int[] rowSizes = new int[height];
+		for(int i = 0; i < xs.length; i++){
+			if(inside(i, left, top, width, height)){
+				rowSizes[ys[i] - top]++;
+			}
+		}
+
+		/*
+		 * each row's pixels are sorted by x, then label
+		 */
+		long[][] rows = new long[height][];
+		for(int y = 0; y < height; y++){
+			rows[y] = new long[rowSizes[y]];
+			rowSizes[y] = 0;
+		}
+		for(int i = 0; i < xs.length; i++){
+			if(inside(i, left, top, width, height)){
+				int y = ys[i] - top;
+				rows[y][rowSizes[y]++] = ((long) (xs[i] - left) << 32) | labels[i];
+			}
+		}
+
+		int[][] cells = new int[height][];
+		for(int y = 0; y < height; y++){
+			long[] row = rows[y];
+			Arrays.sort(row);
+			int[] runs = new int[3 * row.length];
+			int length = 0;
+			int lastX = -1;
+			for(long pixel : row){
+				int x = (int) (pixel >>> 32);
+				int label = (int) pixel;
+				if(x == lastX){
+					continue;
+				}
+				if(length > 0 && runs[length - 2] == x && runs[length - 1] == label){
+					runs[length - 2] = x + 1;
+				} else {
+					runs[length++] = x;
+					runs[length++] = x + 1;
+					runs[length++] = label;
+				}
+				lastX = x;
+			}
+			cells[y] = Arrays.copyOf(runs, length);
+		}
+		return new LabelledRuns(width, height, cells, null, count);
+	}
+
+	private boolean inside(int i, int left, int top, int width, int height){
+		return xs[i] >= left && xs[i] < left + width && ys[i] >= top && ys[i] < top + height;
+	}
+}
@@ -0,0 +1,44 @@
+package watershed;
+
+import dataTypes.LabelStatistics;
+
+/**
+ * the outcome of a run that only measured the cells: the area, bounds and
+ * centroid of each cell, and the metrics gathered while finding them. No label
+ * image is kept.
+ * @author Mark
+ *
+ */
+public class MeasureResult {
+
+	private LabelStatistics[] statistics;
+	private RunMetrics metrics;
+
+	/**
+	 * @param statistics the statistics of each cell, in order of label value
+	 * @param metrics the metrics of the run
+	 */
+	public MeasureResult(LabelStatistics[] statistics, RunMetrics metrics){
+		this.statistics = statistics;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * @return the statistics of each cell, in order of label value. The labels
+	 * are those the cells would have in the label image.
+	 */
+	public LabelStatistics[] getStatistics() {
+		return statistics;
+	}
+
+	/**
+	 * @return the number of cells found
+	 */
+	public int getCellCount() {
+		return statistics.length;
+	}
+
+	public RunMetrics getMetrics() {
+		return metrics;
+	}
+}
@@ -0,0 +1,311 @@
+package watershed;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import dataTypes.PixelPos;
+import dataTypes.PixelsValues;
+import dataTypes.RunLengthMask;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+/**
+ * class to smooth an image, and optionally take its gradient, on the way into
+ * thresholding.
+ *
+ * The Gaussian smoothing is separable: the rows are smoothed into a single
+ * buffer, then each band of rows is smoothed down the columns one row at a time,
+ * keeping the three rows the Sobel gradient needs, and every finished row is
+ * thresholded (or has its coloration values extracted) straight away. No
+ * filtered image is ever built, and both passes work on bands of rows in
+ * parallel.
+ *
+ * The filtered values stay in the range of the original image, so they are
+ * scaled with its minimum and maximum and the threshold means the same thing
+ * with or without the filter. The gradient magnitude is added to the minimum and
+ * clamped at the maximum, as ImageJ's Find Edges does for 8 bit images.
+ *
+ * @author Mark
+ *
+ */
+public class Prefilter {
+
+	/*
+	 * the kernel reaches this many standard deviations either side of its centre
+	 */
+	private static final double KERNEL_REACH = 3;
+
+	/**
+	 * receives the filtered rows. Rows within a band arrive in order, but
+	 * different bands arrive from different threads at once.
+	 */
+	private interface RowSink {
+		/**
+		 * @param y the row
+		 * @param values the filtered values of the row, which are overwritten once
+		 * this returns
+		 */
+		void row(int y, float[] values);
+	}
+
+	/**
+	 * the filtering replacement for Threshold.thresholdRuns
+	 * @param input the image processor to threshold
+	 * @param hMin the minimum value of the coloration in a pixel
+	 * @param hMax the maximum value of the coloration in a pixel
+	 * @param threshVal the thresholding value
+	 * @param sigma the standard deviation of the smoothing, or 0 for none
+	 * @param gradient true if the gradient magnitude should be thresholded
+	 * @return the runs of filtered pixels that pass the threshold
+	 */
+	public static RunLengthMask thresholdRuns(ImageProcessor input, final double hMin, final double hMax, final double threshVal, double sigma, boolean gradient){
+		final int[][] rows = new int[input.getHeight()][];
+		filterRows(input, hMin, hMax, sigma, gradient, new RowSink(){
+			public void row(int y, float[] values){
+				rows[y] = Threshold.thresholdRow(values, hMin, hMax, threshVal);
+			}
+		});
+		return new RunLengthMask(input.getWidth(), input.getHeight(), rows);
+	}
+
+	/**
+	 * filters the whole image, for the thresholding that needs the neighbours of
+	 * each pixel rather than a row at a time
+	 * @param input the image processor to filter
+	 * @param hMin the minimum value of the coloration in a pixel
+	 * @param hMax the maximum value of the coloration in a pixel
+	 * @param sigma the standard deviation of the smoothing, or 0 for none
+	 * @param gradient true if the gradient magnitude should be taken
+	 * @return the filtered image
+	 */
+	public static FloatProcessor filter(ImageProcessor input, double hMin, double hMax, double sigma, boolean gradient){
+		final int width = input.getWidth();
+		final float[] pixels = new float[width * input.getHeight()];
+		filterRows(input, hMin, hMax, sigma, gradient, new RowSink(){
+			public void row(int y, float[] values){
+				System.arraycopy(values, 0, pixels, y * width, width);
+			}
+		});
+		return new FloatProcessor(width, input.getHeight(), pixels, null);
+	}
+
+	/**
+	 * the filtering replacement for Watershed.extractPixelValues
+	 * @param input ImageProcessor of image that is being watershedded
+	 * @param hMin the minimum value of the coloration in a pixel
+	 * @param hMax the maximum value of the coloration in a pixel
+	 * @param sigma the standard deviation of the smoothing, or 0 for none
+	 * @param gradient true if the gradient magnitude should be used
+	 * @param histogram the histogram to count each pixel's whole filtered
+	 * coloration value in, or null
+	 * @return the filtered coloration values of the pixels in range
+	 */
+	public static ArrayList<PixelsValues> extractPixelValues(ImageProcessor input, final double hMin, final double hMax, double sigma, boolean gradient, long[] histogram){
+		final int height = input.getHeight();
+		final double scaling = (hMax - hMin)/255;
+		/*
+		 * filled in place by the bands, each of which only sets its own rows
+		 */
+		final List<List<PixelsValues>> rows = new ArrayList<List<PixelsValues>>(Collections.<List<PixelsValues>>nCopies(height, null));
+		filterRows(input, hMin, hMax, sigma, gradient, new RowSink(){
+			public void row(int y, float[] values){
+				List<PixelsValues> row = new ArrayList<PixelsValues>();
+				for(int x = 0; x < values.length; x++){
+					double h = 255 - (values[x] - hMin)/scaling;
+					if(h >= 0 && h <= 255){
+						row.add(new PixelsValues(new PixelPos(x, y), h, x * height + y));
+					}
+				}
+				rows.set(y, row);
+			}
+		});
+
+		int size = 0;
+		for(List<PixelsValues> row : rows){
+			size += row.size();
+		}
+		ArrayList<PixelsValues> list = new ArrayList<PixelsValues>(size);
+		for(List<PixelsValues> row : rows){
+			list.addAll(row);
+			/*
+			 * counted as the rows are gathered, as they are filtered in parallel
+			 */
+			if(histogram != null){
+				for(PixelsValues pixel : row){
+					histogram[Threshold.bin(pixel.getValue())]++;
+				}
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * filters the image a row at a time, handing each finished row to the sink.
+	 * NaN pixels (those outside a selection) are smoothed as if they held the
+	 * minimum, and are NaN again in the rows given to the sink.
+	 */
+	private static void filterRows(final ImageProcessor input, double hMin, double hMax, double sigma, final boolean gradient, final RowSink sink){
+		final int width = input.getWidth();
+		final int height = input.getHeight();
+		final float lowest = (float) hMin;
+		final float highest = (float) hMax;
+		final boolean mayHoldNaN = input instanceof FloatProcessor;
+		final float[] kernel = sigma > 0 ? kernel(sigma) : null;
+
+		/*
+		 * smooth along the rows
+		 */
+		final float[] smoothed = kernel == null ? null : new float[width * height];
+		if(kernel != null){
+			RowBands.forEach(height, new RowBands.Band(){
+				public void run(int start, int end){
+					float[] source = new float[width];
+					for(int y = start; y < end; y++){
+						readRow(input, y, source, lowest, mayHoldNaN);
+						convolve(source, 0, 1, width, kernel, smoothed, y * width);
+					}
+				}
+			});
+		}
+
+		/*
+		 * smooth down the columns, take the gradient and hand on each row
+		 */
+		RowBands.forEach(height, new RowBands.Band(){
+			public void run(int start, int end){
+				float[] out = new float[width];
+				if(!gradient){
+					for(int y = start; y < end; y++){
+						verticalRow(input, smoothed, kernel, y, out, lowest, mayHoldNaN);
+						restoreNaN(input, y, out, mayHoldNaN);
+						sink.row(y, out);
+					}
+					return;
+				}
+
+				float[] above = new float[width];
+				float[] centre = new float[width];
+				float[] below = new float[width];
+				verticalRow(input, smoothed, kernel, Math.max(start - 1, 0), above, lowest, mayHoldNaN);
+				verticalRow(input, smoothed, kernel, start, centre, lowest, mayHoldNaN);
+				for(int y = start; y < end; y++){
+					verticalRow(input, smoothed, kernel, Math.min(y + 1, height - 1), below, lowest, mayHoldNaN);
+					sobel(above, centre, below, out, lowest, highest);
+					restoreNaN(input, y, out, mayHoldNaN);
+					sink.row(y, out);
+
+					float[] spare = above;
+					above = centre;
+					centre = below;
+					below = spare;
+				}
+			}
+		});
+	}
+
+	/**
+	 * @return the centre and one side of a normalised Gaussian kernel
+	 */
+	private static float[] kernel(double sigma){
+		int radius = Math.max(1, (int) Math.ceil(KERNEL_REACH * sigma));
+		float[] kernel = new float[radius + 1];
+		double sum = 0;
+		for(int i = 0; i <= radius; i++){
+			double weight = Math.exp(-(i * i) / (2 * sigma * sigma));
+			kernel[i] = (float) weight;
+			sum += i == 0 ? weight : 2 * weight;
+		}
+		for(int i = 0; i <= radius; i++){
+			kernel[i] /= sum;
+		}
+		return kernel;
+	}
+
+	/**
+	 * convolves a line of values with a symmetric kernel, repeating the values at
+	 * the ends of the line
+	 * @param source the array holding the line
+	 * @param offset the index of the first value of the line
+	 * @param stride the distance between neighbouring values of the line
+	 * @param length the number of values in the line
+	 * @param kernel the centre and one side of the kernel
+	 * @param out the array to write the result to, at unit stride
+	 * @param outOffset the index to write the first result to
+	 */
+	private static void convolve(float[] source, int offset, int stride, int length, float[] kernel, float[] out, int outOffset){
+		int radius = kernel.length - 1;
+		for(int i = 0; i < length; i++){
+			float sum = kernel[0] * source[offset + i * stride];
+			for(int k = 1; k <= radius; k++){
+				int before = Math.max(i - k, 0);
+				int after = Math.min(i + k, length - 1);
+				sum += kernel[k] * (source[offset + before * stride] + source[offset + after * stride]);
+			}
+			out[outOffset + i] = sum;
+		}
+	}
+
+	/**
+	 * smooths a single row down the columns of the row smoothed buffer, or just
+	 * reads the row if there is no smoothing
+	 */
+	private static void verticalRow(ImageProcessor input, float[] smoothed, float[] kernel, int y, float[] out, float lowest, boolean mayHoldNaN){
+		if(kernel == null){
+			readRow(input, y, out, lowest, mayHoldNaN);
+			return;
+		}
+		final int width = out.length;
+		final int height = smoothed.length / width;
+		final int radius = kernel.length - 1;
+		int rowStart = y * width;
+		for(int x = 0; x < width; x++){
+			out[x] = kernel[0] * smoothed[rowStart + x];
+		}
+		for(int k = 1; k <= radius; k++){
+			int before = Math.max(y - k, 0) * width;
+			int after = Math.min(y + k, height - 1) * width;
+			float weight = kernel[k];
+			for(int x = 0; x < width; x++){
+				out[x] += weight * (smoothed[before + x] + smoothed[after + x]);
+			}
+		}
+	}
+
+	/**
+	 * the Sobel gradient magnitude of the centre row, added to the lowest value
+	 * and clamped at the highest
+	 */
+	private static void sobel(float[] above, float[] centre, float[] below, float[] out, float lowest, float highest){
+		final int width = centre.length;
+		for(int x = 0; x < width; x++){
+			int left = Math.max(x - 1, 0);
+			int right = Math.min(x + 1, width - 1);
+			float p1 = above[left], p2 = above[x], p3 = above[right];
+			float p4 = centre[left], p6 = centre[right];
+			float p7 = below[left], p8 = below[x], p9 = below[right];
+			float sum1 = p1 + 2 * p2 + p3 - p7 - 2 * p8 - p9;
+			float sum2 = p1 + 2 * p4 + p7 - p3 - 2 * p6 - p9;
+			float magnitude = lowest + (float) Math.sqrt(sum1 * sum1 + sum2 * sum2);
+			out[x] = Math.min(magnitude, highest);
+		}
+	}
+
+	private static void readRow(ImageProcessor input, int y, float[] out, float lowest, boolean mayHoldNaN){
+		for(int x = 0; x < out.length; x++){
+			float value = input.getf(x, y);
+			out[x] = mayHoldNaN && Float.isNaN(value) ? lowest : value;
+		}
+	}
+
+	private static void restoreNaN(ImageProcessor input, int y, float[] out, boolean mayHoldNaN){
+		if(!mayHoldNaN){
+			return;
+		}
+		for(int x = 0; x < out.length; x++){
+			if(Float.isNaN(input.getf(x, y))){
+				out[x] = Float.NaN;
+			}
+		}
+	}
+}
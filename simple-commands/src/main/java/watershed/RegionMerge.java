@@ -0,0 +1,373 @@
+package watershed;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import ij.process.ImageProcessor;
+
+/**
+ * a class that repairs over-segmentation by merging neighbouring cell bodies
+ * whose shared boundary is barely darker than the cells themselves.
+ *
+ * A single scan of the labels builds a region adjacency graph: the size and
+ * total intensity of every cell, and for every pair of cells that touch (directly
+ * or across a watershed line) the length and total intensity of their boundary.
+ * Watershed lines are often two pixels thick, with each pixel touching only the
+ * cell on its own side, so a watershed pixel is taken to lie between the cells
+ * around it and the cells around its watershed neighbours.
+ * The strength of a boundary is how far its mean intensity dips below the mean of
+ * the dimmer of its two cells, in the 0-255 coloration scale used for
+ * thresholding. Boundaries are taken from a heap, weakest first, and their cells
+ * joined in a union-find until the weakest boundary left is at least the
+ * threshold. When two cells are joined the smaller adjacency list is moved into
+ * the larger, so the whole stage costs about O(E log E) for E boundaries, and
+ * the image is only scanned again once, at the end, to write the merged labels.
+ *
+ * @author Mark
+ *
+ */
+public class RegionMerge {
+
+	/**
+	 * the boundary between two cells
+	 */
+	private static class Boundary {
+		int a;
+		int b;
+		long length;
+		double intensitySum;
+		/*
+		 * bumped whenever the boundary changes, so stale heap entries can be skipped
+		 */
+		int stamp;
+
+		Boundary(int a, int b){
+			this.a = a;
+			this.b = b;
+		}
+
+		int other(int region){
+			return region == a ? b : a;
+		}
+	}
+
+	private static class Candidate implements Comparable<Candidate> {
+		final Boundary boundary;
+		final double strength;
+		final int stamp;
+
+		Candidate(Boundary boundary, double strength){
+			this.boundary = boundary;
+			this.strength = strength;
+			this.stamp = boundary.stamp;
+		}
+
+		public int compareTo(Candidate o) {
+			return Double.compare(strength, o.strength);
+		}
+	}
+
+	/**
+	 * merges weakly separated cells of a label image, in place. Watershed pixels
+	 * that lay between two or more cells which have all been merged take the
+	 * merged label.
+	 * @param labels the label image, holding zero for background
+	 * @param intensity the image that was watershedded, of the same size
+	 * @param watershedValue the value of watershed pixels in the label image
+	 * @param hMin the minimum value of the coloration in a pixel
+	 * @param hMax the maximum value of the coloration in a pixel
+	 * @param threshold boundaries that dip less than this below their cells are
+	 * removed
+	 * @return the number of merges carried out
+	 */
+	public static int merge(ImageProcessor labels, ImageProcessor intensity, int watershedValue, double hMin, double hMax, double threshold){
+		final int width = labels.getWidth();
+		final int height = labels.getHeight();
+		final double scaling = (hMax - hMin)/255;
+
+		int[] label = new int[width * height];
+		int maxLabel = 0;
+		for(int y = 0, i = 0; y < height; y++){
+			for(int x = 0; x < width; x++, i++){
+				label[i] = (int) labels.getf(x, y);
+				maxLabel = Math.max(maxLabel, label[i]);
+			}
+		}
+
+		/*
+		 * build the region adjacency graph
+		 */
+		long[] area = new long[maxLabel + 1];
+		double[] intensitySum = new double[maxLabel + 1];
+		List<Map<Integer, Boundary>> adjacent = new ArrayList<Map<Integer, Boundary>>(Collections.<Map<Integer, Boundary>>nCopies(maxLabel + 1, null));
+		int[] around = new int[AROUND];
+
+		for(int y = 0, i = 0; y < height; y++){
+			for(int x = 0; x < width; x++, i++){
+				int value = label[i];
+				if(value == 0){
+					continue;
+				}
+				double pixel = intensity.getf(x, y);
+				if(value == watershedValue){
+					/*
+					 * every pair of distinct cells around a watershed pixel shares it
+					 */
+					int count = cellsAround(label, x, y, width, height, watershedValue, around);
+					for(int j = 0; j < count; j++){
+						for(int k = j + 1; k < count; k++){
+							addBoundary(adjacent, around[j], around[k], pixel);
+						}
+					}
+					continue;
+				}
+
+				area[value]++;
+				intensitySum[value] += pixel;
+
+				/*
+				 * cells that touch directly, each pair of pixels being met once
+				 */
+				if(x + 1 < width){
+					touch(adjacent, label, intensity, watershedValue, value, pixel, x + 1, y, width);
+				}
+				if(y + 1 < height){
+					if(x > 0){
+						touch(adjacent, label, intensity, watershedValue, value, pixel, x - 1, y + 1, width);
+					}
+					touch(adjacent, label, intensity, watershedValue, value, pixel, x, y + 1, width);
+					if(x + 1 < width){
+						touch(adjacent, label, intensity, watershedValue, value, pixel, x + 1, y + 1, width);
+					}
+				}
+			}
+		}
+
+		/*
+		 * merge the weakest boundaries first
+		 */
+		int[] parent = new int[maxLabel + 1];
+		for(int i = 0; i <= maxLabel; i++){
+			parent[i] = i;
+		}
+
+		PriorityQueue<Candidate> heap = new PriorityQueue<Candidate>();
+		for(int region = 1; region <= maxLabel; region++){
+			if(adjacent.get(region) == null){
+				continue;
+			}
+			for(Boundary boundary : adjacent.get(region).values()){
+				if(boundary.a == region){
+					heap.add(new Candidate(boundary, strength(boundary, area, intensitySum, scaling)));
+				}
+			}
+		}
+
+		int merges = 0;
+		while(!heap.isEmpty()){
+			Candidate candidate = heap.poll();
+			Boundary boundary = candidate.boundary;
+			if(candidate.stamp != boundary.stamp || boundary.a == boundary.b){
+				continue;
+			}
+			if(candidate.strength >= threshold){
+				break;
+			}
+
+			/*
+			 * join the region with fewer neighbours into the one with more
+			 */
+			int keep = boundary.a;
+			int gone = boundary.b;
+			if(adjacent.get(keep).size() < adjacent.get(gone).size()){
+				keep = boundary.b;
+				gone = boundary.a;
+			}
+			parent[gone] = keep;
+			area[keep] += area[gone];
+			intensitySum[keep] += intensitySum[gone];
+			adjacent.get(keep).remove(gone);
+			adjacent.get(gone).remove(keep);
+			boundary.a = boundary.b = keep;
+			boundary.stamp++;
+
+			for(Boundary moved : adjacent.get(gone).values()){
+				int other = moved.other(gone);
+				adjacent.get(other).remove(gone);
+				Boundary existing = adjacent.get(keep).get(other);
+				if(existing != null){
+					existing.length += moved.length;
+					existing.intensitySum += moved.intensitySum;
+					moved.stamp++;
+				} else {
+					moved.a = keep;
+					moved.b = other;
+					adjacent.get(keep).put(other, moved);
+					adjacent.get(other).put(keep, moved);
+				}
+			}
+			adjacent.set(gone, null);
+			merges++;
+
+			/*
+			 * the merged region's mean has changed, so all its boundaries are requeued
+			 */
+			for(Boundary changed : adjacent.get(keep).values()){
+				changed.stamp++;
+				heap.add(new Candidate(changed, strength(changed, area, intensitySum, scaling)));
+			}
+		}
+
+		if(merges == 0){
+			return 0;
+		}
+
+		/*
+		 * write the merged labels, and clear the watershed lines that no longer
+		 * separate different cells. The cells around each watershed pixel are
+		 * those before merging, so a line beside a single cell is kept.
+		 */
+		for(int y = 0, i = 0; y < height; y++){
+			for(int x = 0; x < width; x++, i++){
+				int value = label[i];
+				if(value == 0){
+					continue;
+				}
+				if(value != watershedValue){
+					int root = find(parent, value);
+					if(root != value){
+						labels.setf(x, y, root);
+					}
+					continue;
+				}
+				int count = cellsAround(label, x, y, width, height, watershedValue, around);
+				if(count < 2){
+					continue;
+				}
+				int only = find(parent, around[0]);
+				boolean several = false;
+				for(int k = 1; k < count && !several; k++){
+					several = find(parent, around[k]) != only;
+				}
+				if(!several){
+					labels.setf(x, y, only);
+				}
+			}
+		}
+
+		return merges;
+	}
+
+	/*
+	 * the most distinct cells that can be around a watershed pixel: those in the
+	 * 5x5 square centred on it
+	 */
+	private static final int AROUND = 24;
+
+	/**
+	 * finds the distinct cells around a watershed pixel: those among its eight
+	 * neighbours, and those among the eight neighbours of each neighbouring
+	 * watershed pixel, so that the cells either side of a line two pixels thick
+	 * are both found
+	 * @param around filled with the cells found
+	 * @return the number of cells found
+	 */
+	private static int cellsAround(int[] label, int x, int y, int width, int height, int watershedValue, int[] around){
+		int count = 0;
+		for(int dy = -1; dy <= 1; dy++){
+			for(int dx = -1; dx <= 1; dx++){
+				int nx = x + dx;
+				int ny = y + dy;
+				if((dx == 0 && dy == 0) || nx < 0 || ny < 0 || nx >= width || ny >= height){
+					continue;
+				}
+				int neighbour = label[ny * width + nx];
+				if(neighbour == 0){
+					continue;
+				}
+				if(neighbour != watershedValue){
+					count = addCell(around, count, neighbour);
+					continue;
+				}
+				/*
+				 * looking through the neighbouring watershed pixel
+				 */
+				for(int ey = -1; ey <= 1; ey++){
+					for(int ex = -1; ex <= 1; ex++){
+						int fx = nx + ex;
+						int fy = ny + ey;
+						if(fx < 0 || fy < 0 || fx >= width || fy >= height){
+							continue;
+						}
+						int far = label[fy * width + fx];
+						if(far != 0 && far != watershedValue){
+							count = addCell(around, count, far);
+						}
+					}
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @return the new number of cells, after adding the cell if it is not
+	 * already among them
+	 */
+	private static int addCell(int[] around, int count, int cell){
+		for(int k = 0; k < count; k++){
+			if(around[k] == cell){
+				return count;
+			}
+		}
+		around[count] = cell;
+		return count + 1;
+	}
+
+	private static void touch(List<Map<Integer, Boundary>> adjacent, int[] label, ImageProcessor intensity, int watershedValue, int value, double pixel, int nx, int ny, int width){
+		int neighbour = label[ny * width + nx];
+		if(neighbour != 0 && neighbour != watershedValue && neighbour != value){
+			addBoundary(adjacent, value, neighbour, (pixel + intensity.getf(nx, ny)) / 2);
+		}
+	}
+
+	private static void addBoundary(List<Map<Integer, Boundary>> adjacent, int a, int b, double pixel){
+		if(adjacent.get(a) == null){
+			adjacent.set(a, new HashMap<Integer, Boundary>());
+		}
+		if(adjacent.get(b) == null){
+			adjacent.set(b, new HashMap<Integer, Boundary>());
+		}
+		Boundary boundary = adjacent.get(a).get(b);
+		if(boundary == null){
+			boundary = new Boundary(Math.min(a, b), Math.max(a, b));
+			adjacent.get(a).put(b, boundary);
+			adjacent.get(b).put(a, boundary);
+		}
+		boundary.length++;
+		boundary.intensitySum += pixel;
+	}
+
+	/**
+	 * @return how far the mean intensity of the boundary is below the mean of the
+	 * dimmer of its two cells, in the coloration scale
+	 */
+	private static double strength(Boundary boundary, long[] area, double[] intensitySum, double scaling){
+		double meanA = intensitySum[boundary.a] / area[boundary.a];
+		double meanB = intensitySum[boundary.b] / area[boundary.b];
+		double meanBoundary = boundary.intensitySum / boundary.length;
+		return (Math.min(meanA, meanB) - meanBoundary) / scaling;
+	}
+
+	private static int find(int[] parent, int region){
+		while(parent[region] != region){
+			parent[region] = parent[parent[region]];
+			region = parent[region];
+		}
+		return region;
+	}
+}
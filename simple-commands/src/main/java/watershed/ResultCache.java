@@ -0,0 +1,412 @@
+package watershed;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.gui.Roi;
+import ij.measure.Calibration;
+import ij.process.ImageProcessor;
+import labelFiles.LabelFileReader;
+import labelFiles.LabelFileWriter;
+
+/**
+ * a cache of watershedding results, addressed by their content. The key is a
+ * 128 bit hash of the pixels, the display range used to scale them, the
+ * calibration, the selection and every watershedding parameter, so the same image
+ * watershedded the same way always finds the same entry, wherever it came from.
+ *
+ * Results are held in memory, least recently used first out, up to a given number
+ * of bytes of labels. If a directory is given, every result is also written there
+ * as a label file and read back when it is no longer in memory, so results
+ * survive restarts. Hits are copied before they are returned, so callers can
+ * alter them freely.
+ *
+ * Results that were streamed are never cached. AUTO only streams an image when
+ * the heap is too short to hold it, and the streamed labels are not those of
+ * the in-core run length engine, so caching them would give a key two different
+ * results depending on how much memory happened to be free.
+ *
+ * Label files that cannot be read or written are treated as misses and counted
+ * as disk errors, rather than logged, so the cache can be used by services as
+ * well as the plugin.
+ *
+ * The cache is safe to share between threads. Two threads missing on the same
+ * key at once will both watershed the image.
+ * @author Mark
+ *
+ */
+public class ResultCache {
+
+	private static final long PRIME_1 = 0x9E3779B185EBCA87L;
+	private static final long PRIME_2 = 0xC2B2AE3D27D4EB4FL;
+
+	private final long maxBytes;
+	private final File directory;
+	private final LinkedHashMap<String, ImageProcessor> memory = new LinkedHashMap<String, ImageProcessor>(16, 0.75f, true);
+	private long bytes = 0;
+
+	private long hits = 0;
+	private long diskHits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+	private long diskErrors = 0;
+	private String lastDiskError = null;
+
+	/**
+	 * constructor for a cache held only in memory
+	 * @param maxBytes the most bytes of labels to hold
+	 */
+	public ResultCache(long maxBytes){
+		this(maxBytes, null);
+	}
+
+	/**
+	 * constructor for a cache held in memory and on disk
+	 * @param maxBytes the most bytes of labels to hold in memory
+	 * @param directory the directory to keep label files in, or null for none
+	 */
+	public ResultCache(long maxBytes, File directory){
+		if(directory != null && !directory.isDirectory() && !directory.mkdirs()){
+			throw new IllegalArgumentException("Cannot create cache directory " + directory);
+		}
+		this.maxBytes = maxBytes;
+		this.directory = directory;
+	}
+
+	/**
+	 * the cached equivalent of Watershed.computeWatershed. As there, the run and
+	 * the time taken by each of its stages are written to the log when the image
+	 * is watershedded; a hit is logged as such.
+	 * @param chosenImg the given image
+	 * @param params the parameters to watershed with
+	 * @param useSelection true if only the image's area selection (if it has one)
+	 * should be watershedded
+	 * @return the altered image
+	 */
+	public ImagePlus computeWatershed(ImagePlus chosenImg, WatershedParams params, boolean useSelection){
+		Roi roi = useSelection ? chosenImg.getRoi() : null;
+		ImageProcessor ip = apply(chosenImg.getProcessor(), roi, chosenImg.getCalibration(), params, true);
+		return Watershed.wrap(chosenImg, ip);
+	}
+
+	/**
+	 * the cached equivalent of Watershed.apply. Nothing is logged, so the cache
+	 * can be used by services as well as the plugin.
+	 * @param input the given image's processor
+	 * @param roi the selection, or null to watershed the whole image
+	 * @param calibration the calibration of the image, or null if it has none
+	 * @param params the parameters to watershed with
+	 * @return the labelled image, the same size as the input
+	 */
+	public ImageProcessor apply(ImageProcessor input, Roi roi, Calibration calibration, WatershedParams params){
+		return apply(input, roi, calibration, params, false);
+	}
+
+	private ImageProcessor apply(ImageProcessor input, Roi roi, Calibration calibration, WatershedParams params, boolean log){
+		String key = key(input, roi, calibration, params);
+
+		ImageProcessor cached = get(key);
+		if(cached != null){
+			if(log){
+				IJ.log("Using the cached result for " + params);
+			}
+			return cached;
+		}
+
+		if(log){
+			Watershed.logStart(input, roi, params);
+		}
+		WatershedResult result = new WatershedEngine(params).run(input, roi);
+		if(log){
+			IJ.log(result.getMetrics().toString());
+		}
+		ImageProcessor labels = result.toFullSize(input.getWidth(), input.getHeight());
+		if(!isCacheable(result.getMetrics())){
+			return labels;
+		}
+		/*
+		 * the label file records the threshold value that was applied
+		 */
+		double threshold = result.getMetrics().getThreshold();
+		put(key, labels, Double.isNaN(threshold) ? params : params.toBuilder().threshVal(threshold).build());
+		return labels;
+	}
+
+	/**
+	 * @param metrics the metrics of the run that made a result
+	 * @return true if the result can be cached, which it can unless it was
+	 * streamed
+	 */
+	public static boolean isCacheable(RunMetrics metrics){
+		ExecutionPlan plan = metrics.getPlan();
+		return plan == null || plan.getStrategy() != ExecutionPlan.Strategy.STREAMING;
+	}
+
+	/**
+	 * looks for a result in memory, then on disk
+	 * @param key the key made by key()
+	 * @return a copy of the result, or null if it is not cached
+	 */
+	public ImageProcessor get(String key){
+		synchronized(this){
+			ImageProcessor labels = memory.get(key);
+			if(labels != null){
+				hits++;
+				return labels.duplicate();
+			}
+		}
+
+		if(directory != null){
+			File file = file(key);
+			if(file.isFile()){
+				try {
+					LabelFileReader reader = new LabelFileReader(file);
+					ImageProcessor labels;
+					try {
+						labels = reader.read();
+					} finally {
+						reader.close();
+					}
+					synchronized(this){
+						diskHits++;
+						remember(key, labels);
+					}
+					return labels.duplicate();
+				} catch(IOException e){
+					diskError("Could not read cached result " + file + ": " + e.getMessage());
+				}
+			}
+		}
+
+		synchronized(this){
+			misses++;
+		}
+		return null;
+	}
+
+	/**
+	 * adds a result to the cache
+	 * @param key the key made by key()
+	 * @param labels the labels, which are copied
+	 * @param params the parameters they were made with, recorded in the label file
+	 */
+	public void put(String key, ImageProcessor labels, WatershedParams params){
+		synchronized(this){
+			remember(key, labels.duplicate());
+		}
+		if(directory != null){
+			File file = file(key);
+			File partial = new File(directory, key + ".part" + Thread.currentThread().getId());
+			try {
+				LabelFileWriter.write(labels, params.getThreshVal(), params.getEroDilCount(), params.getEngine().name(), partial);
+				if(!partial.renameTo(file)){
+					partial.delete();
+				}
+			} catch(IOException e){
+				partial.delete();
+				diskError("Could not write cached result " + file + ": " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * adds a result to memory, evicting the least recently used results until
+	 * it fits
+	 */
+	private void remember(String key, ImageProcessor labels){
+		long size = sizeOf(labels);
+		if(size > maxBytes){
+			return;
+		}
+		ImageProcessor old = memory.put(key, labels);
+		if(old != null){
+			bytes -= sizeOf(old);
+		}
+		bytes += size;
+		for(Iterator<Map.Entry<String, ImageProcessor>> it = memory.entrySet().iterator(); bytes > maxBytes && it.hasNext();){
+			Map.Entry<String, ImageProcessor> eldest = it.next();
+			bytes -= sizeOf(eldest.getValue());
+			it.remove();
+			evictions++;
+		}
+	}
+
+	private synchronized void diskError(String message){
+		diskErrors++;
+		lastDiskError = message;
+	}
+
+	private static long sizeOf(ImageProcessor labels){
+		return (long) labels.getWidth() * labels.getHeight() * (labels.getBitDepth() / 8);
+	}
+
+	private File file(String key){
+		return new File(directory, key + ".wslb");
+	}
+
+	/**
+	 * hashes everything that can change the result of watershedding
+	 * @param input the given image's processor
+	 * @param roi the selection, or null if the whole image is watershedded
+	 * @param calibration the calibration of the image, or null if it has none
+	 * @param params the parameters to watershed with
+	 * @return the key as 32 hex digits
+	 */
+	public static String key(ImageProcessor input, Roi roi, Calibration calibration, WatershedParams params){
+		long[] h = new long[]{PRIME_1, PRIME_2};
+
+		Object pixels = input.getPixels();
+		if(pixels instanceof byte[]){
+			mix(h, (byte[]) pixels);
+		} else if(pixels instanceof short[]){
+			short[] values = (short[]) pixels;
+			int i = 0;
+			for(; i + 4 <= values.length; i += 4){
+				mix(h, (values[i] & 0xFFFFL) | (values[i + 1] & 0xFFFFL) << 16 | (values[i + 2] & 0xFFFFL) << 32 | (long) values[i + 3] << 48);
+			}
+			for(; i < values.length; i++){
+				mix(h, values[i]);
+			}
+		} else if(pixels instanceof float[]){
+			float[] values = (float[]) pixels;
+			int i = 0;
+			for(; i + 2 <= values.length; i += 2){
+				mix(h, (Float.floatToIntBits(values[i]) & 0xFFFFFFFFL) | (long) Float.floatToIntBits(values[i + 1]) << 32);
+			}
+			for(; i < values.length; i++){
+				mix(h, Float.floatToIntBits(values[i]));
+			}
+		} else if(pixels instanceof int[]){
+			for(int value : (int[]) pixels){
+				mix(h, value);
+			}
+		} else {
+			for(int y = 0; y < input.getHeight(); y++){
+				for(int x = 0; x < input.getWidth(); x++){
+					mix(h, Float.floatToIntBits(input.getf(x, y)));
+				}
+			}
+		}
+
+		mix(h, input.getWidth());
+		mix(h, input.getHeight());
+		mix(h, Double.doubleToLongBits(input.getMin()));
+		mix(h, Double.doubleToLongBits(input.getMax()));
+
+		if(calibration != null){
+			mix(h, Double.doubleToLongBits(calibration.pixelWidth));
+			mix(h, Double.doubleToLongBits(calibration.pixelHeight));
+			mix(h, Double.doubleToLongBits(calibration.pixelDepth));
+			mix(h, String.valueOf(calibration.getUnit()));
+		}
+
+		if(roi != null && roi.isArea()){
+			Rectangle bounds = roi.getBounds();
+			mix(h, bounds.x);
+			mix(h, bounds.y);
+			mix(h, bounds.width);
+			mix(h, bounds.height);
+			ImageProcessor mask = roi.getMask();
+			if(mask != null){
+				mix(h, (byte[]) mask.getPixels());
+			}
+		}
+
+		mix(h, params.toString());
+		mix(h, Watershed.CONNEC);
+
+		return String.format("%016x%016x", h[0], h[1]);
+	}
+
+	private static void mix(long[] h, long value){
+		h[0] = (h[0] ^ value) * PRIME_1;
+		h[0] ^= h[0] >>> 29;
+		h[1] = Long.rotateLeft(h[1] + value * PRIME_2, 31) * PRIME_1;
+	}
+
+	/**
+	 * mixes in bytes eight at a time
+	 */
+	private static void mix(long[] h, byte[] values){
+		int i = 0;
+		for(; i + 8 <= values.length; i += 8){
+			long word = 0;
+			for(int k = 7; k >= 0; k--){
+				word = word << 8 | (values[i + k] & 0xFFL);
+			}
+			mix(h, word);
+		}
+		for(; i < values.length; i++){
+			mix(h, values[i]);
+		}
+		mix(h, values.length);
+	}
+
+	private static void mix(long[] h, String value){
+		for(int i = 0; i < value.length(); i++){
+			mix(h, value.charAt(i));
+		}
+		mix(h, value.length());
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getDiskHits() {
+		return diskHits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * @return the number of label files that could not be read or written
+	 */
+	public synchronized long getDiskErrors() {
+		return diskErrors;
+	}
+
+	/**
+	 * @return why the last label file could not be read or written, or null if
+	 * none has failed
+	 */
+	public synchronized String getLastDiskError() {
+		return lastDiskError;
+	}
+
+	/**
+	 * @return the bytes of labels held in memory
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * empties the memory tier. Label files on disk are kept.
+	 */
+	public synchronized void clear() {
+		memory.clear();
+		bytes = 0;
+	}
+
+	public synchronized String toString(){
+		long lookups = hits + diskHits + misses;
+		double hitRate = lookups == 0 ? 0 : 100.0 * (hits + diskHits) / lookups;
+		return "Result cache: " + hits + " memory hits, " + diskHits + " disk hits, " + misses + " misses ("
+				+ String.format("%.1f", hitRate) + "% hit rate), " + memory.size() + " results in "
+				+ bytes + " bytes, " + evictions + " evicted"
+				+ (diskErrors == 0 ? "" : ", " + diskErrors + " disk errors (last: " + lastDiskError + ")");
+	}
+}
@@ -0,0 +1,227 @@
+package watershed;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import ij.IJ;
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+import ij.io.RoiEncoder;
+import ij.plugin.frame.RoiManager;
+import ij.process.ImageProcessor;
+
+/**
+ * a class that turns a watershedded label image into one ROI per cell body.
+ *
+ * The label image is scanned once to build a table holding the first pixel (in
+ * raster order) of every label. The outline of each label is then traced from its
+ * start pixel by walking around the edges of its pixels, checking the two pixels
+ * ahead in the Moore neighbourhood at each corner to decide whether to turn.
+ * The total cost is one scan plus the combined perimeter of the cell bodies,
+ * rather than one thresholding of the whole image per label.
+ *
+ * The traced outlines follow pixel edges, as ImageJ's own traced ROIs do, so the
+ * area of each ROI matches the number of pixels in the label.
+ *
+ * @author Mark
+ *
+ */
+public class RoiExport {
+
+	/*
+	 * the headings used while tracing, turning clockwise as the index increases
+	 */
+	private static final int EAST = 0;
+	private static final int SOUTH = 1;
+	private static final int WEST = 2;
+	private static final int NORTH = 3;
+
+	/**
+	 * traces the outer outline of every label in the image
+	 * @param labels the label image, as produced by Watershed.apply
+	 * @param ignoreValue a label value, other than zero, that should not be traced
+	 * (such as the value given to watershed pixels)
+	 * @return one ROI per label, in order of label value
+	 */
+	public static Roi[] traceLabels(ImageProcessor labels, int ignoreValue){
+		IJ.showStatus("Tracing cell outlines");
+		IJ.log("Tracing cell outlines");
+		long start = System.currentTimeMillis();
+
+		final int width = labels.getWidth();
+		final int height = labels.getHeight();
+
+		/*
+		 * a single pass that copies the labels and records where each one starts
+		 */
+		int[] label = new int[width * height];
+		int[] startPixel = new int[256];
+		Arrays.fill(startPixel, -1);
+		int labelCount = 0;
+
+		for(int y = 0, i = 0; y < height; y++){
+			for(int x = 0; x < width; x++, i++){
+				int value = (int) labels.getf(x, y);
+				label[i] = value;
+				if(value <= 0 || value == ignoreValue){
+					continue;
+				}
+				if(value >= startPixel.length){
+					int oldLength = startPixel.length;
+					startPixel = Arrays.copyOf(startPixel, Math.max(value + 1, oldLength * 2));
+					Arrays.fill(startPixel, oldLength, startPixel.length, -1);
+				}
+				if(startPixel[value] == -1){
+					startPixel[value] = i;
+					labelCount++;
+				}
+			}
+		}
+
+		Roi[] rois = new Roi[labelCount];
+		int r = 0;
+		for(int value = 1; value < startPixel.length; value++){
+			if(startPixel[value] != -1){
+				Roi roi = traceOutline(label, width, height, value, startPixel[value] % width, startPixel[value] / width);
+				roi.setName("cell-" + value);
+				rois[r++] = roi;
+			}
+		}
+
+		long end = System.currentTimeMillis();
+		IJ.log("Tracing " + labelCount + " outlines took " + (end-start) + " ms.");
+
+		return rois;
+	}
+
+	/**
+	 * traces the outline of the 8 connected region of a label that contains its
+	 * start pixel, keeping the region on the right hand side. As the start pixel is
+	 * the first of its label in raster order, the pixels above and to the left of it
+	 * are not part of the label, so the trace begins at its top left corner heading
+	 * east, and the trace is complete when that corner is reached again.
+	 * @param label the row-major label array
+	 * @param width the width of the image
+	 * @param height the height of the image
+	 * @param value the label being traced
+	 * @param startX the x co-ordinate of the label's first pixel
+	 * @param startY the y co-ordinate of the label's first pixel
+	 * @return a traced ROI with its vertices on pixel corners
+	 */
+	private static Roi traceOutline(int[] label, int width, int height, int value, int startX, int startY){
+		int[] xPoints = new int[16];
+		int[] yPoints = new int[16];
+		int count = 0;
+
+		int x = startX;
+		int y = startY;
+		int heading = NORTH;
+
+		do {
+			/*
+			 * the pixels ahead on the left and right of the current heading
+			 */
+			boolean left;
+			boolean right;
+			switch(heading){
+			case EAST:
+				left = inside(label, width, height, value, x, y - 1);
+				right = inside(label, width, height, value, x, y);
+				break;
+			case SOUTH:
+				left = inside(label, width, height, value, x, y);
+				right = inside(label, width, height, value, x - 1, y);
+				break;
+			case WEST:
+				left = inside(label, width, height, value, x - 1, y);
+				right = inside(label, width, height, value, x - 1, y - 1);
+				break;
+			default:
+				left = inside(label, width, height, value, x - 1, y - 1);
+				right = inside(label, width, height, value, x, y - 1);
+				break;
+			}
+
+			int newHeading;
+			if(left){
+				newHeading = (heading + 3) % 4;
+			} else if(right){
+				newHeading = heading;
+			} else {
+				newHeading = (heading + 1) % 4;
+			}
+
+			if(newHeading != heading){
+				if(count == xPoints.length){
+					xPoints = Arrays.copyOf(xPoints, count * 2);
+					yPoints = Arrays.copyOf(yPoints, count * 2);
+				}
+				xPoints[count] = x;
+				yPoints[count] = y;
+				count++;
+				heading = newHeading;
+			}
+
+			switch(heading){
+			case EAST:
+				x++;
+				break;
+			case SOUTH:
+				y++;
+				break;
+			case WEST:
+				x--;
+				break;
+			default:
+				y--;
+				break;
+			}
+		} while(x != startX || y != startY);
+
+		return new PolygonRoi(xPoints, yPoints, count, Roi.TRACED_ROI);
+	}
+
+	private static boolean inside(int[] label, int width, int height, int value, int x, int y){
+		return x >= 0 && y >= 0 && x < width && y < height && label[y * width + x] == value;
+	}
+
+	/**
+	 * adds the ROIs to the ROI Manager, opening it if it is not already open
+	 * @param rois the ROIs to add
+	 */
+	public static void addToManager(Roi[] rois){
+		RoiManager manager = RoiManager.getInstance();
+		if(manager == null){
+			manager = new RoiManager();
+		}
+		for(Roi roi : rois){
+			manager.addRoi(roi);
+		}
+	}
+
+	/**
+	 * saves the ROIs to a zip file that can be opened by the ROI Manager
+	 * @param rois the ROIs to save
+	 * @param path the path of the zip file
+	 * @throws IOException if the file cannot be written
+	 */
+	public static void saveZip(Roi[] rois, String path) throws IOException{
+		ZipOutputStream zos = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(path)));
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(zos));
+		try {
+			RoiEncoder encoder = new RoiEncoder(out);
+			for(Roi roi : rois){
+				zos.putNextEntry(new ZipEntry(roi.getName() + ".roi"));
+				encoder.write(roi);
+				out.flush();
+			}
+		} finally {
+			out.close();
+		}
+	}
+}
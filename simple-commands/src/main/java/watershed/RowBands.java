@@ -0,0 +1,139 @@
+package watershed;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * a class that splits the rows of an image into bands and works on the bands in
+ * parallel. The bands are run on a shared pool of daemon threads, one per
+ * processor, with the last band run by the calling thread. A band that itself
+ * splits its rows is run on a single thread, so work on the pool never waits for
+ * other work on the pool. The memory the pool allocates for a band is charged
+ * to the calling thread, so Allocations counts it with the rest of the stage,
+ * and the band sees the calling thread's Cancellation.
+ * @author Mark
+ *
+ */
+public final class RowBands {
+
+	/*
+	 * bands smaller than this are not worth handing to another thread
+	 */
+	private static final int MIN_BAND_ROWS = 16;
+
+	private static final int THREADS = Runtime.getRuntime().availableProcessors();
+
+	private static ExecutorService pool;
+
+	private static final ThreadLocal<Boolean> IN_POOL = new ThreadLocal<Boolean>();
+
+	/**
+	 * the work to carry out on a band of rows
+	 */
+	public interface Band {
+		/**
+		 * @param start the first row of the band
+		 * @param end the row after the last row of the band
+		 */
+		void run(int start, int end);
+	}
+
+	private RowBands(){
+	}
+
+	/**
+	 * splits the rows into bands and runs the work on each, returning once every
+	 * band is done
+	 * @param rows the number of rows
+	 * @param band the work to carry out on each band
+	 * @throws RuntimeException rethrows the first failure of any band
+	 */
+	public static void forEach(int rows, final Band band){
+		forEach(rows, MIN_BAND_ROWS, band);
+	}
+
+	/**
+	 * splits the rows into bands of at least the given size and runs the work on
+	 * each, returning once every band is done. Used when each row is itself a lot
+	 * of work, such as a slice of a stack.
+	 * @param rows the number of rows
+	 * @param minBandRows the fewest rows worth handing to another thread
+	 * @param band the work to carry out on each band
+	 * @throws RuntimeException rethrows the first failure of any band
+	 */
+	public static void forEach(int rows, int minBandRows, final Band band){
+		int bandCount = Math.min(THREADS, rows / Math.max(minBandRows, 1));
+		if(bandCount <= 1 || IN_POOL.get() != null){
+			band.run(0, rows);
+			return;
+		}
+
+		final Cancellation cancellation = Cancellation.current();
+		ExecutorService executor = pool();
+		List<Future<?>> futures = new ArrayList<Future<?>>(bandCount - 1);
+		final long[] allocated = new long[bandCount - 1];
+		for(int b = 0; b < bandCount - 1; b++){
+			final int index = b;
+			final int start = rows * b / bandCount;
+			final int end = rows * (b + 1) / bandCount;
+			futures.add(executor.submit(new Runnable(){
+				public void run(){
+					long before = Allocations.threadBytes();
+					Cancellation previous = Cancellation.swap(cancellation);
+					try {
+						band.run(start, end);
+					} finally {
+						Cancellation.swap(previous);
+					}
+					allocated[index] = Allocations.threadBytes() - before;
+				}
+			}));
+		}
+		band.run(rows * (bandCount - 1) / bandCount, rows);
+
+		for(Future<?> future : futures){
+			try {
+				future.get();
+			} catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted while waiting for a band", e);
+			} catch(ExecutionException e){
+				Throwable cause = e.getCause();
+				if(cause instanceof RuntimeException){
+					throw (RuntimeException) cause;
+				} else if(cause instanceof Error){
+					throw (Error) cause;
+				}
+				throw new RuntimeException(cause);
+			}
+		}
+		for(long bytes : allocated){
+			Allocations.charge(bytes);
+		}
+	}
+
+	private static synchronized ExecutorService pool(){
+		if(pool == null){
+			pool = Executors.newFixedThreadPool(THREADS, new ThreadFactory(){
+				private int count = 0;
+
+				public synchronized Thread newThread(final Runnable r){
+					Thread thread = new Thread(new Runnable(){
+						public void run(){
+							IN_POOL.set(Boolean.TRUE);
+							r.run();
+						}
+					}, "watershed-band-" + count++);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return pool;
+	}
+}
@@ -0,0 +1,153 @@
+package watershed;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * the timings of each stage of a single watershedding run, in the order the
+ * stages were carried out, and the memory each stage allocated where the virtual
+ * machine can measure it. A RunMetrics belongs to one run and is only filled in
+ * by the thread carrying out that run.
+ * @author Mark
+ *
+ */
+public class RunMetrics {
+
+	private Map<String, Long> stageNanos;
+	private Map<String, Long> stageBytes;
+	private long startNanos;
+	private long startBytes;
+	private long pixelCount;
+	private ExecutionPlan plan;
+	private double threshold = Double.NaN;
+
+	public RunMetrics(){
+		this.stageNanos = new LinkedHashMap<String, Long>();
+		this.stageBytes = new LinkedHashMap<String, Long>();
+		this.startNanos = System.nanoTime();
+		this.startBytes = Allocations.threadBytes();
+	}
+
+	/**
+	 * marks the end of a stage, adding the time and the memory allocated since
+	 * the end of the previous stage (or the start of the run) to it. Repeated
+	 * stages are summed.
+	 * @param stage the name of the stage that has just finished
+	 */
+	public void endStage(String stage){
+		long now = System.nanoTime();
+		long bytes = Allocations.threadBytes();
+		Long previous = stageNanos.get(stage);
+		stageNanos.put(stage, (previous == null ? 0 : previous) + now - startNanos);
+		if(bytes >= 0){
+			Long previousBytes = stageBytes.get(stage);
+			stageBytes.put(stage, (previousBytes == null ? 0 : previousBytes) + bytes - startBytes);
+		}
+		startNanos = now;
+		startBytes = Allocations.threadBytes();
+	}
+
+	/**
+	 * @param pixelCount the number of pixels (or voxels) being watershedded, which
+	 * the allocations are reported per
+	 */
+	public void setPixelCount(long pixelCount) {
+		this.pixelCount = pixelCount;
+	}
+
+	public long getPixelCount() {
+		return pixelCount;
+	}
+
+	/**
+	 * @param plan the plan the run was carried out with
+	 */
+	public void setPlan(ExecutionPlan plan) {
+		this.plan = plan;
+	}
+
+	/**
+	 * @return the plan the run was carried out with, or null if it was not planned
+	 */
+	public ExecutionPlan getPlan() {
+		return plan;
+	}
+
+	/**
+	 * @param threshold the threshold value worked out from the histogram of the
+	 * image
+	 */
+	public void setThreshold(double threshold) {
+		this.threshold = threshold;
+	}
+
+	/**
+	 * @return the threshold value worked out from the histogram of the image, or
+	 * NaN if it was not worked out automatically
+	 */
+	public double getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * @return the time taken by each stage in nanoseconds, in the order the
+	 * stages were first carried out
+	 */
+	public Map<String, Long> getStageNanos() {
+		return Collections.unmodifiableMap(stageNanos);
+	}
+
+	/**
+	 * @return the bytes allocated by each stage, in the order the stages were
+	 * first carried out, or an empty map if allocations cannot be measured
+	 */
+	public Map<String, Long> getStageBytes() {
+		return Collections.unmodifiableMap(stageBytes);
+	}
+
+	/**
+	 * @param stage the name of a stage
+	 * @return the bytes the stage allocated for each pixel, or NaN if the stage
+	 * was not carried out, allocations cannot be measured or the pixel count is
+	 * not known
+	 */
+	public double getBytesPerPixel(String stage) {
+		Long bytes = stageBytes.get(stage);
+		if(bytes == null || pixelCount <= 0){
+			return Double.NaN;
+		}
+		return (double) bytes / pixelCount;
+	}
+
+	/**
+	 * @return the time taken by all of the stages together, in nanoseconds
+	 */
+	public long getTotalNanos() {
+		long total = 0;
+		for(long nanos : stageNanos.values()){
+			total += nanos;
+		}
+		return total;
+	}
+
+	public String toString(){
+		StringBuilder sb = new StringBuilder();
+		if(plan != null){
+			sb.append("Plan: ").append(plan).append(".\n");
+		}
+		if(!Double.isNaN(threshold)){
+			sb.append("Automatic threshold: ").append(threshold).append(".\n");
+		}
+		for(Map.Entry<String, Long> stage : stageNanos.entrySet()){
+			sb.append(stage.getKey()).append(" took ").append(stage.getValue() / 1000000).append(" ms");
+			double bytesPerPixel = getBytesPerPixel(stage.getKey());
+			if(!Double.isNaN(bytesPerPixel)){
+				sb.append(", allocating ").append(String.format("%.1f", bytesPerPixel)).append(" bytes/pixel");
+			}
+			sb.append(".\n");
+		}
+		sb.append("Watershedding took ").append(getTotalNanos() / 1000000).append(" ms.");
+		return sb.toString();
+	}
+}
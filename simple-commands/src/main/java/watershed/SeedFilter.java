@@ -0,0 +1,49 @@
+package watershed;
+
+/**
+ * decides which of the labelled seeds are kept, by their area and by whether
+ * they touch the edge of the image. Seeds are filtered as soon as they are
+ * labelled, from the areas counted while labelling them, so that specks of
+ * debris and cells cut off by the edge are never grown.
+ * @author Mark
+ *
+ */
+public final class SeedFilter {
+
+	private final long minArea;
+	private final long maxArea;
+	private final boolean excludeBorder;
+
+	private SeedFilter(long minArea, long maxArea, boolean excludeBorder){
+		this.minArea = minArea;
+		this.maxArea = maxArea;
+		this.excludeBorder = excludeBorder;
+	}
+
+	/**
+	 * @param params the parameters to watershed with
+	 * @return the filter the parameters ask for, or null if every seed is kept
+	 */
+	public static SeedFilter of(WatershedParams params){
+		if(!params.hasSeedFilter()){
+			return null;
+		}
+		return new SeedFilter(params.getMinSeedArea(), params.getMaxSeedArea(), params.isExcludeBorderSeeds());
+	}
+
+	/**
+	 * @param area the number of pixels in the seed
+	 * @param touchesBorder true if the seed reaches the edge of the area
+	 * labelled: the image, or the bounds of the selection being watershedded
+	 * @return true if the seed is kept
+	 */
+	public boolean accepts(long area, boolean touchesBorder){
+		if(area < minArea){
+			return false;
+		}
+		if(maxArea > 0 && area > maxArea){
+			return false;
+		}
+		return !(excludeBorder && touchesBorder);
+	}
+}
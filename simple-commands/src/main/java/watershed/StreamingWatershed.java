@@ -0,0 +1,501 @@
+package watershed;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import dataTypes.LabelEquivalence;
+import dataTypes.LabelStore;
+import dataTypes.RunLengthMask;
+import ij.process.ImageProcessor;
+
+/**
+ * carries out run length watershedding on an image that arrives a row at a time,
+ * such as one from a line scan camera or a strip TIFF too large to hold.
+ *
+ * Each row is thresholded as it is pushed, and then passes through a chain of
+ * stages: one per erosion, the labelling, and one per dilation. An erosion needs
+ * the rows either side of the one it works on, and a dilation needs two rows
+ * either side (one to grow from, and one more to check for clashing growth), so
+ * a row's labels are finished and handed to the sink once 3k further rows have
+ * arrived, for k erosions and dilations. Only those 3k + 1 rows are held, so
+ * memory is O(width x k) whatever the height of the image.
+ *
+ * Cell bodies are labelled with a union-find over provisional labels that only
+ * remembers the components still open. Two cell bodies that turn out to be one
+ * after rows of both have been handed on are reported to the sink with merged().
+ * Until the join is seen, such cell bodies are treated as different, so where
+ * they grow into each other above the join they may be split by a watershed line
+ * that watershedding the whole image would not draw; away from such late joins
+ * the labels match those of the run length engine, up to numbering.
+ *
+ * Only fixed numbers of dilations are supported: growing until the mask is
+ * filled, pre-filtering and merging all need the whole image.
+ * @author Mark
+ *
+ */
+public final class StreamingWatershed {
+
+	/**
+	 * receives the finished rows, in order, on the thread that pushes the rows
+	 */
+	public interface LabelSink {
+		/**
+		 * @param y the row
+		 * @param cells the (start, end, cellBody) triples of the row
+		 * @param watershed the (start, end) pairs of watershed pixels of the row
+		 */
+		void row(int y, int[] cells, int[] watershed);
+
+		/**
+		 * reports that a cell body already handed on is part of another
+		 * @param label the label of the absorbed cell body
+		 * @param into the label it is now part of
+		 */
+		void merged(int label, int into);
+	}
+
+	/**
+	 * a sink that writes the finished rows into a label image. Cell bodies are
+	 * numbered in the order they are first written, and numbers that turn out to
+	 * be the same cell body are joined once the image is finished.
+	 */
+	public static class LabelImageSink implements LabelSink {
+
+		private final LabelStore labels;
+		private final Map<Integer, Integer> numbers = new HashMap<Integer, Integer>();
+		private final List<Integer> joined = new ArrayList<Integer>();
+
+		/**
+		 * @param width the width of the image
+		 * @param height the height of the image
+		 */
+		public LabelImageSink(int width, int height){
+			this.labels = new LabelStore(width, height);
+			joined.add(0);
+		}
+
+		public void row(int y, int[] cells, int[] watershed){
+			for(int i = 0; i < cells.length; i += 3){
+				labels.fillRun(y, cells[i], cells[i + 1], number(cells[i + 2]) + Watershed.LABEL_OFFSET);
+			}
+			for(int i = 0; i < watershed.length; i += 2){
+				labels.fillRun(y, watershed[i], watershed[i + 1], Watershed.WSHED_LABEL);
+			}
+		}
+
+		public void merged(int label, int into){
+			int from = root(number(label));
+			int to = root(number(into));
+			joined.set(Math.max(from, to), Math.min(from, to));
+		}
+
+		/**
+		 * gives each set of joined numbers the number of its first, and closes the
+		 * gaps that leaves, so the cells are numbered from one without gaps in the
+		 * order they were first written. Called once, after the last row.
+		 * @return true if any label was changed
+		 */
+		public boolean joinNumbers(){
+			int[] renumber = new int[joined.size()];
+			int count = 0;
+			boolean changed = false;
+			for(int n = 1; n < renumber.length; n++){
+				int root = root(n);
+				renumber[n] = root == n ? ++count : renumber[root];
+				changed |= renumber[n] != n;
+			}
+			if(changed){
+				for(int i = 0; i < labels.getWidth() * labels.getHeight(); i++){
+					int value = labels.get(i);
+					if(value > Watershed.WSHED_LABEL){
+						labels.set(i, renumber[value - Watershed.LABEL_OFFSET] + Watershed.LABEL_OFFSET);
+					}
+				}
+			}
+			return changed;
+		}
+
+		/**
+		 * @return the labels written so far, which are only joined once
+		 * joinNumbers() has been called
+		 */
+		public ImageProcessor toProcessor(){
+			return labels.toProcessor();
+		}
+
+		private int number(int label){
+			Integer number = numbers.get(label);
+			if(number == null){
+				number = joined.size();
+				joined.add(number);
+				numbers.put(label, number);
+			}
+			return number;
+		}
+
+		private int root(int number){
+			while(joined.get(number) != number){
+				number = joined.get(number);
+			}
+			return number;
+		}
+	}
+
+	/**
+	 * a row on its way through the stages
+	 */
+	private static class Row {
+		final int y;
+		final int[] limit;
+		final int[] runs;
+		int[] lines;
+		int[] extra;
+
+		Row(int y, int[] limit, int[] runs){
+			this.y = y;
+			this.limit = limit;
+			this.runs = runs;
+		}
+	}
+
+	private abstract class Stage {
+		Stage next;
+
+		abstract void accept(Row row);
+
+		abstract void end();
+	}
+
+	private final int width;
+	private final double hMin;
+	private final double hMax;
+	private final WatershedParams params;
+	private final LabelSink sink;
+	private final LabelEquivalence equivalence = new LabelEquivalence();
+	private final int[] wholeRow;
+	private final Stage first;
+	private int rowCount = 0;
+	private boolean finished = false;
+
+	/**
+	 * @param width the width of every row
+	 * @param hMin the minimum value of the coloration in a pixel
+	 * @param hMax the maximum value of the coloration in a pixel
+	 * @param params the parameters to watershed with
+	 * @param sink where the finished rows are sent
+	 */
+	public StreamingWatershed(int width, double hMin, double hMax, WatershedParams params, LabelSink sink){
+		if(params.isFilling() || params.isAdaptive() || params.hasPrefilter() || params.getMergeThreshold() > 0 || params.hasSeedFilter()){
+			throw new IllegalArgumentException("Growing until filled, distance seeds, adaptive thresholds, pre-filtering, merging and seed filters need the whole image");
+		}
+		this.width = width;
+		this.hMin = hMin;
+		this.hMax = hMax;
+		this.params = params;
+		this.sink = sink;
+		this.wholeRow = new int[]{0, width};
+
+		/*
+		 * chain the stages, last first
+		 */
+		Stage stage = new EmitStage();
+		for(int i = 0; i < params.getEroDilCount(); i++){
+			Stage dilate = new DilateStage();
+			dilate.next = stage;
+			stage = dilate;
+		}
+		Stage label = new LabelStage();
+		label.next = stage;
+		stage = label;
+		for(int i = 0; i < params.getEroDilCount(); i++){
+			Stage erode = new ErodeStage();
+			erode.next = stage;
+			stage = erode;
+		}
+		this.first = stage;
+	}
+
+	/**
+	 * @return the number of rows pushed, counting the row itself, before a row's
+	 * labels are handed on
+	 */
+	public int getWindowRows() {
+		return 3 * params.getEroDilCount() + 1;
+	}
+
+	/**
+	 * thresholds the next row and passes it on. Any rows whose labels are now
+	 * finished are handed to the sink before this returns.
+	 * @param values the values of the row, which can be reused once this returns
+	 */
+	public void push(float[] values){
+		if(finished){
+			throw new IllegalStateException("The image has already been finished");
+		}
+		if(values.length != width){
+			throw new IllegalArgumentException("Expected a row of " + width + " pixels but got " + values.length);
+		}
+		int[] mask = Threshold.thresholdRow(values, hMin, hMax, params.getThreshVal());
+		first.accept(new Row(rowCount++, params.isGeodesic() ? mask : wholeRow, mask));
+	}
+
+	/**
+	 * marks the end of the image, handing the remaining rows to the sink
+	 */
+	public void finish(){
+		if(!finished){
+			finished = true;
+			first.end();
+		}
+	}
+
+	/**
+	 * @return the number of provisional labels currently remembered
+	 */
+	public int getOpenLabelCount() {
+		return equivalence.size();
+	}
+
+	/**
+	 * watersheds rows from an iterator
+	 * @param rows the rows of the image, in order
+	 * @param width the width of every row
+	 * @param hMin the minimum value of the coloration in a pixel
+	 * @param hMax the maximum value of the coloration in a pixel
+	 * @param params the parameters to watershed with
+	 * @param sink where the finished rows are sent
+	 */
+	public static void run(Iterator<float[]> rows, int width, double hMin, double hMax, WatershedParams params, LabelSink sink){
+		StreamingWatershed stream = new StreamingWatershed(width, hMin, hMax, params, sink);
+		while(rows.hasNext()){
+			stream.push(rows.next());
+		}
+		stream.finish();
+	}
+
+	/**
+	 * watersheds an image that is already in memory a row at a time
+	 * @param input the image to watershed
+	 * @param params the parameters to watershed with
+	 * @param sink where the finished rows are sent
+	 */
+	public static void run(ImageProcessor input, WatershedParams params, LabelSink sink){
+		final int width = input.getWidth();
+		StreamingWatershed stream = new StreamingWatershed(width, input.getMin(), input.getMax(), params, sink);
+		float[] values = new float[width];
+		for(int y = 0; y < input.getHeight(); y++){
+			for(int x = 0; x < width; x++){
+				values[x] = input.getf(x, y);
+			}
+			stream.push(values);
+		}
+		stream.finish();
+	}
+
+	/**
+	 * one erosion, handing on each row once the row after it has arrived
+	 */
+	private class ErodeStage extends Stage {
+		private Row above;
+		private Row current;
+
+		void accept(Row row){
+			row.extra = RunLengthMask.stretch(row.runs, -1, width);
+			if(current != null){
+				send(row);
+			}
+			above = current;
+			current = row;
+		}
+
+		void end(){
+			if(current != null){
+				send(null);
+			}
+			next.end();
+		}
+
+		private void send(Row below){
+			int[] eroded = Erode.erodeRow(above == null ? null : above.extra, current.extra, below == null ? null : below.extra);
+			next.accept(new Row(current.y, current.limit, eroded));
+		}
+	}
+
+	/**
+	 * labels the runs of each row as it arrives, joining runs that touch runs of
+	 * the row above
+	 */
+	private class LabelStage extends Stage {
+		private int[] prev = new int[0];
+		private int[] prevLabels = new int[0];
+
+		void accept(Row row){
+			final int y = row.y;
+			int[] runs = row.runs;
+			int[] labels = new int[runs.length / 2];
+
+			int j = 0;
+			for(int i = 0; i < runs.length; i += 2){
+				/*
+				 * skip runs of the row above that end before this one can touch them
+				 */
+				while(j < prev.length && prev[j + 1] < runs[i]){
+					j += 2;
+				}
+				int label = 0;
+				for(int k = j; k < prev.length && prev[k] <= runs[i + 1]; k += 2){
+					int touching = prevLabels[k / 2];
+					if(label == 0){
+						label = touching;
+					} else {
+						join(label, touching);
+					}
+				}
+				if(label == 0){
+					label = equivalence.newLabel(y);
+				}
+				labels[i / 2] = label;
+			}
+
+			int[] cells = new int[runs.length / 2 * 3];
+			for(int i = 0; i < labels.length; i++){
+				int root = equivalence.find(labels[i]);
+				equivalence.seen(root, y);
+				labels[i] = root;
+				cells[i * 3] = runs[i * 2];
+				cells[i * 3 + 1] = runs[i * 2 + 1];
+				cells[i * 3 + 2] = root;
+			}
+			prev = runs;
+			prevLabels = labels;
+
+			/*
+			 * labels not seen for longer than the rows still held are forgotten. The
+			 * dilations hold up to 2k + 1 rows behind this one, and may have grown a
+			 * cell body k rows beyond the last row it was labelled in
+			 */
+			int window = 3 * params.getEroDilCount() + 2;
+			if(y > window && y % window == 0){
+				equivalence.forgetBefore(y - window);
+			}
+
+			Row out = new Row(y, row.limit, cells);
+			out.lines = new int[0];
+			next.accept(out);
+		}
+
+		private void join(int a, int b){
+			int absorbed = equivalence.union(a, b);
+			if(absorbed != 0 && equivalence.isEmitted(absorbed)){
+				sink.merged(absorbed, equivalence.find(absorbed));
+			}
+		}
+
+		void end(){
+			next.end();
+		}
+	}
+
+	/**
+	 * one dilation. A row is grown once the row after it has arrived, and its
+	 * growth is settled once the row after that has been grown.
+	 */
+	private class DilateStage extends Stage {
+		private Row[] in = new Row[3];
+		private Row[] grown = new Row[3];
+		private int inCount = 0;
+		private int grownCount = 0;
+
+		void accept(Row row){
+			shift(in, row);
+			inCount++;
+			if(inCount >= 2){
+				grow(in[0], in[1], row);
+			}
+		}
+
+		void end(){
+			if(inCount >= 1){
+				grow(inCount >= 2 ? in[1] : null, in[2], null);
+			}
+			if(grownCount >= 1){
+				settle(grownCount >= 2 ? grown[1] : null, grown[2], null);
+			}
+			next.end();
+		}
+
+		private void grow(Row above, Row row, Row below){
+			int[][] grownAndLines = Dilate.growRow(
+					above == null ? null : resolve(above.runs),
+					resolve(row.runs),
+					below == null ? null : resolve(below.runs),
+					row.limit,
+					width);
+			Row out = new Row(row.y, row.limit, row.runs);
+			out.extra = grownAndLines[0];
+			out.lines = grownAndLines[1];
+			shift(grown, out);
+			grownCount++;
+			if(grownCount >= 2){
+				settle(grown[0], grown[1], out);
+			}
+		}
+
+		private void settle(Row above, Row row, Row below){
+			int[][] cellsAndLines = Dilate.settleRow(
+					resolve(row.runs),
+					above == null ? null : resolve(above.extra),
+					resolve(row.extra),
+					below == null ? null : resolve(below.extra),
+					row.lines,
+					width);
+			Row out = new Row(row.y, row.limit, cellsAndLines[0]);
+			out.lines = cellsAndLines[1];
+			next.accept(out);
+		}
+	}
+
+	/**
+	 * hands each finished row to the sink
+	 */
+	private class EmitStage extends Stage {
+		void accept(Row row){
+			int[] cells = resolve(row.runs);
+			for(int i = 2; i < cells.length; i += 3){
+				equivalence.setEmitted(cells[i]);
+			}
+			sink.row(row.y, cells, row.lines);
+		}
+
+		void end(){
+		}
+	}
+
+	private static void shift(Row[] rows, Row row){
+		rows[0] = rows[1];
+		rows[1] = rows[2];
+		rows[2] = row;
+	}
+
+	/**
+	 * brings the labels of a row of (start, end, cellBody) triples up to date with
+	 * the joins seen since it was labelled
+	 * @return the row itself if nothing has changed, otherwise an updated copy
+	 */
+	private int[] resolve(int[] cells){
+		int[] out = cells;
+		for(int i = 2; i < cells.length; i += 3){
+			int root = equivalence.find(cells[i]);
+			if(root != cells[i]){
+				if(out == cells){
+					out = cells.clone();
+				}
+				out[i] = root;
+			}
+		}
+		return out;
+	}
+}
@@ -3,14 +3,22 @@ import java.util.ArrayList;
 import java.util.Iterator;
 
 import dataTypes.PixelsValues;
+import dataTypes.RunLengthMask;
 import dataTypes.ThresholdDataPoint;
-import ij.IJ;
+import ij.process.ImageProcessor;
 /**
  * class to perform thresholding operations
  * @author Mark
  *
  */
 public class Threshold {
+
+	/**
+	 * the number of bins of a histogram of coloration values, one for each whole
+	 * value from 0 to 255
+	 */
+	public static final int BINS = 256;
+
 	/**
 	 * static method that thresholds pixels from a list 
 	 * @param pixelList the list of pixels with their values that need to be thresholded
@@ -19,15 +27,16 @@ public class Threshold {
 	 * @param label the label to use for the data passing the threshold
 	 */
 	public static void threshold(ArrayList<PixelsValues> pixelList, ThresholdDataPoint[][] labelled, double threshVal, int label){
-		IJ.showStatus("Thresholding");
-		IJ.log("Thresholding");
-		long start = System.currentTimeMillis();
-		
 		boolean stopCheck = false;
 		Iterator<PixelsValues> pixelIterator = pixelList.iterator();
 		PixelsValues currentPixel = null;
+		int count = 0;
 		
 		while(pixelIterator.hasNext() && stopCheck == false){
+			/*checking for cancellation every 4096 pixels*/
+			if((count++ & 0xFFF) == 0){
+				Cancellation.checkpoint();
+			}
 			currentPixel = pixelIterator.next();
 			if(currentPixel.getValue() < threshVal){
 				labelled[currentPixel.getPixelPos().getX()][currentPixel.getPixelPos().getY()].setLabel(label);
@@ -36,8 +45,296 @@ public class Threshold {
 			}
 		}
 	
-		long end = System.currentTimeMillis();
-		IJ.log("Thresholding took " + (end-start) + " ms.");
+	}
+	
+	/**
+	 * static method that thresholds an image straight into a run length mask,
+	 * without building and sorting a list of every pixel. The coloration values
+	 * are scaled exactly as they are when extracting the pixel values, so the
+	 * resulting foreground is the same as that of the list based thresholding.
+	 * Each row is first thresholded into a mask of its own, through a table of the
+	 * values that pass for 8 and 16 bit images, and then read off as runs.
+	 * @param input the image processor to threshold
+	 * @param hMin the minimum value of the coloration in a pixel
+	 * @param hMax the maximum value of the coloration in a pixel
+	 * @param threshVal the thresholding value
+	 * @return the runs of pixels that pass the threshold
+	 */
+	public static RunLengthMask thresholdRuns(ImageProcessor input, double hMin, double hMax, double threshVal){
+		final int width = input.getWidth();
+		final int height = input.getHeight();
+		final byte[] table = passTable(input, hMin, hMax, threshVal);
+		final Object pixels = input.getPixels();
+		final double scaling = (hMax - hMin)/255;
+		final byte[] passed = new byte[width];
+		int[][] rows = new int[height][];
+		
+		for(int y = 0; y < height; y++){
+			Cancellation.checkpoint();
+			int offset = y * width;
+			if(table == null){
+				for(int x = 0; x < width; x++){
+					double h = 255 - (input.getf(offset + x) - hMin)/scaling;
+					passed[x] = (byte) (h >= 0 && h <= 255 && h < threshVal ? 1 : 0);
+				}
+			} else if(pixels instanceof byte[]){
+				byte[] bytes = (byte[]) pixels;
+				for(int x = 0; x < width; x++){
+					passed[x] = table[bytes[offset + x] & 0xff];
+				}
+			} else {
+				short[] shorts = (short[]) pixels;
+				for(int x = 0; x < width; x++){
+					passed[x] = table[shorts[offset + x] & 0xffff];
+				}
+			}
+			rows[y] = runs(passed);
+		}
+		
+		return new RunLengthMask(width, height, rows);
+	}
+	
+	/**
+	 * static method that works out, once, whether every value an 8 or 16 bit image
+	 * can hold passes the threshold, scaling them exactly as thresholdRow does. A
+	 * pixel is then thresholded by looking its value up, rather than by scaling
+	 * and comparing it.
+	 * @param input the image processor to threshold
+	 * @param hMin the minimum value of the coloration in a pixel
+	 * @param hMax the maximum value of the coloration in a pixel
+	 * @param threshVal the thresholding value
+	 * @return 1 for each value that passes and 0 for each that fails, or null for
+	 * images of other types
+	 */
+	public static byte[] passTable(ImageProcessor input, double hMin, double hMax, double threshVal){
+		Object pixels = input.getPixels();
+		int values;
+		if(pixels instanceof byte[]){
+			values = 1 << 8;
+		} else if(pixels instanceof short[]){
+			values = 1 << 16;
+		} else {
+			return null;
+		}
+		double scaling = (hMax - hMin)/255;
+		byte[] table = new byte[values];
+		for(int v = 0; v < values; v++){
+			double h = 255 - ((float) v - hMin)/scaling;
+			if(h >= 0 && h <= 255 && h < threshVal){
+				table[v] = 1;
+			}
+		}
+		return table;
+	}
+	
+	/**
+	 * static method that counts the pixels of an image with each whole coloration
+	 * value, scaling them exactly as thresholdRuns does, for working out the
+	 * threshold automatically. The values of 8 and 16 bit images are counted
+	 * first and then scaled once each, so the pass over the pixels does no more
+	 * than count them.
+	 * @param input the image processor to count
+	 * @param hMin the minimum value of the coloration in a pixel
+	 * @param hMax the maximum value of the coloration in a pixel
+	 * @return the number of pixels in range with each coloration value from 0 to
+	 * 255
+	 */
+	public static long[] histogram(ImageProcessor input, double hMin, double hMax){
+		final int width = input.getWidth();
+		final int height = input.getHeight();
+		final Object pixels = input.getPixels();
+		final double scaling = (hMax - hMin)/255;
+		long[] histogram = new long[BINS];
+
+		if(pixels instanceof byte[] || pixels instanceof short[]){
+			int[] counts = new int[pixels instanceof byte[] ? 1 << 8 : 1 << 16];
+			for(int y = 0; y < height; y++){
+				Cancellation.checkpoint();
+				int offset = y * width;
+				if(pixels instanceof byte[]){
+					byte[] bytes = (byte[]) pixels;
+					for(int x = 0; x < width; x++){
+						counts[bytes[offset + x] & 0xff]++;
+					}
+				} else {
+					short[] shorts = (short[]) pixels;
+					for(int x = 0; x < width; x++){
+						counts[shorts[offset + x] & 0xffff]++;
+					}
+				}
+			}
+			for(int v = 0; v < counts.length; v++){
+				if(counts[v] != 0){
+					int bin = bin(255 - ((float) v - hMin)/scaling);
+					if(bin >= 0){
+						histogram[bin] += counts[v];
+					}
+				}
+			}
+		} else {
+			for(int y = 0; y < height; y++){
+				Cancellation.checkpoint();
+				int offset = y * width;
+				for(int x = 0; x < width; x++){
+					int bin = bin(255 - (input.getf(offset + x) - hMin)/scaling);
+					if(bin >= 0){
+						histogram[bin]++;
+					}
+				}
+			}
+		}
+		return histogram;
+	}
+
+	/**
+	 * @param h a coloration value
+	 * @return the bin of the histogram the value is counted in, or -1 if it is
+	 * out of range
+	 */
+	static int bin(double h){
+		if(!(h >= 0 && h <= 255)){
+			return -1;
+		}
+		return Math.min((int) h, BINS - 1);
+	}
+
+	/**
+	 * static method that thresholds a single row of values into runs, scaling
+	 * them as thresholdRuns does
+	 * @param values the values of the row
+	 * @param hMin the minimum value of the coloration in a pixel
+	 * @param hMax the maximum value of the coloration in a pixel
+	 * @param threshVal the thresholding value
+	 * @return the (start, end) pairs of the pixels that pass the threshold
+	 */
+	public static int[] thresholdRow(float[] values, double hMin, double hMax, double threshVal){
+		final int width = values.length;
+		double scaling = (hMax - hMin)/255;
+		RunLengthMask.RunBuilder row = new RunLengthMask.RunBuilder(8);
+		int runStart = -1;
+		for(int x = 0; x < width; x++){
+			double h = 255 - (values[x] - hMin)/scaling;
+			boolean passes = h >= 0 && h <= 255 && h < threshVal;
+			if(passes && runStart == -1){
+				runStart = x;
+			} else if(!passes && runStart != -1){
+				row.add(runStart, x);
+				runStart = -1;
+			}
+		}
+		if(runStart != -1){
+			row.add(runStart, width);
+		}
+		return row.toArray();
+	}
+	
+	/**
+	 * static method that thresholds an image against the mean of a window around
+	 * each pixel rather than a single value, for images whose background is
+	 * unevenly lit. A pixel passes if its coloration value h is in range and
+	 * h < sum/count - offset, where sum and count are the sum and number of the
+	 * values in range in its window: it has to be more than the offset below the
+	 * mean, so a pixel exactly the offset below does not pass. Windows are
+	 * clipped at the edges of the image rather than padded. The sums and counts of the values are built once as summed-area
+	 * tables, along the rows and then down the columns, so each window's mean is
+	 * found from four corners whatever its size. Every pass is split into bands
+	 * with RowBands.
+	 * @param input the image processor to threshold
+	 * @param hMin the minimum value of the coloration in a pixel
+	 * @param hMax the maximum value of the coloration in a pixel
+	 * @param radius the window reaches this many pixels either side of its centre
+	 * @param offset a pixel passes only if it is more than this far below its
+	 * window's mean
+	 * @return the runs of pixels that pass the threshold
+	 */
+	public static RunLengthMask adaptiveRuns(final ImageProcessor input, final double hMin, final double hMax, final int radius, final double offset){
+		final int width = input.getWidth();
+		final int height = input.getHeight();
+		final int stride = width + 1;
+		final double scaling = (hMax - hMin)/255;
+		final double[] sums = new double[stride * (height + 1)];
+		final int[] counts = new int[stride * (height + 1)];
+
+		/*
+		 * along the rows
+		 */
+		RowBands.forEach(height, new RowBands.Band(){
+			public void run(int start, int end){
+				for(int y = start; y < end; y++){
+					Cancellation.checkpoint();
+					int at = (y + 1) * stride;
+					for(int x = 0; x < width; x++, at++){
+						double h = 255 - (input.getf(x, y) - hMin)/scaling;
+						boolean inRange = h >= 0 && h <= 255;
+						sums[at + 1] = sums[at] + (inRange ? h : 0);
+						counts[at + 1] = counts[at] + (inRange ? 1 : 0);
+					}
+				}
+			}
+		});
+
+		/*
+		 * down the columns, a band of columns at a time
+		 */
+		RowBands.forEach(stride, new RowBands.Band(){
+			public void run(int start, int end){
+				for(int y = 2; y <= height; y++){
+					Cancellation.checkpoint();
+					int at = y * stride;
+					for(int x = start; x < end; x++){
+						sums[at + x] += sums[at - stride + x];
+						counts[at + x] += counts[at - stride + x];
+					}
+				}
+			}
+		});
+
+		/*
+		 * comparing each pixel with its window
+		 */
+		final int[][] rows = new int[height][];
+		RowBands.forEach(height, new RowBands.Band(){
+			public void run(int start, int end){
+				byte[] passed = new byte[width];
+				for(int y = start; y < end; y++){
+					Cancellation.checkpoint();
+					int top = Math.max(y - radius, 0) * stride;
+					int bottom = (Math.min(y + radius, height - 1) + 1) * stride;
+					for(int x = 0; x < width; x++){
+						int left = Math.max(x - radius, 0);
+						int right = Math.min(x + radius, width - 1) + 1;
+						double h = 255 - (input.getf(x, y) - hMin)/scaling;
+						int count = counts[bottom + right] - counts[bottom + left] - counts[top + right] + counts[top + left];
+						double sum = sums[bottom + right] - sums[bottom + left] - sums[top + right] + sums[top + left];
+						passed[x] = (byte) (h >= 0 && h <= 255 && h < sum / count - offset ? 1 : 0);
+					}
+					rows[y] = runs(passed);
+				}
+			}
+		});
+		return new RunLengthMask(width, height, rows);
+	}
+	
+	/**
+	 * @param passed a row holding 1 for each pixel that passed and 0 for each that
+	 * did not
+	 * @return the (start, end) pairs of the pixels that passed
+	 */
+	private static int[] runs(byte[] passed){
+		RunLengthMask.RunBuilder row = new RunLengthMask.RunBuilder(8);
+		int runStart = -1;
+		for(int x = 0; x < passed.length; x++){
+			if(passed[x] != 0 && runStart == -1){
+				runStart = x;
+			} else if(passed[x] == 0 && runStart != -1){
+				row.add(runStart, x);
+				runStart = -1;
+			}
+		}
+		if(runStart != -1){
+			row.add(runStart, passed.length);
+		}
+		return row.toArray();
 	}
 	
 }
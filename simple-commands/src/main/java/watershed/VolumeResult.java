@@ -0,0 +1,39 @@
+package watershed;
+
+import ij.ImageStack;
+
+/**
+ * the outcome of watershedding a stack as one volume: the labelled stack, the
+ * number of cells found and the metrics gathered while producing it
+ * @author Mark
+ *
+ */
+public class VolumeResult {
+
+	private ImageStack labels;
+	private int cellCount;
+	private RunMetrics metrics;
+
+	/**
+	 * @param labels the labelled stack, the same size as the input
+	 * @param cellCount the number of cells found
+	 * @param metrics the metrics of the run
+	 */
+	public VolumeResult(ImageStack labels, int cellCount, RunMetrics metrics){
+		this.labels = labels;
+		this.cellCount = cellCount;
+		this.metrics = metrics;
+	}
+
+	public ImageStack getLabels() {
+		return labels;
+	}
+
+	public int getCellCount() {
+		return cellCount;
+	}
+
+	public RunMetrics getMetrics() {
+		return metrics;
+	}
+}
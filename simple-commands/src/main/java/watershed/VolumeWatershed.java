@@ -0,0 +1,964 @@
+package watershed;
+
+import java.util.Arrays;
+
+import dataTypes.LabelStore;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ImageProcessor;
+
+/**
+ * carries out watershedding on a whole stack at once, so that a cell spread over
+ * several slices is found as one cell with one label, rather than as a different
+ * cell in every slice.
+ *
+ * The stack is thresholded, eroded, labelled and dilated as a volume, with voxels
+ * touching across their faces (6 connectivity) or across their faces, edges and
+ * corners (26 connectivity). The volume is held as one flat primitive array per
+ * slice: bytes while thresholding and eroding, and int labels from labelling on,
+ * which are handed on a slice at a time to the output. For a 2048x2048x200 stack
+ * this peaks at about 6 GB.
+ *
+ * Every stage works on slabs of slices in parallel. Each slab labels its cell
+ * bodies with its own union-find, and the slabs are then joined across their
+ * boundaries. Cells are numbered in the order they are first met, so the labels
+ * do not depend on the number of threads. Dilation only visits the voxels at the
+ * edges of the growing cells, following the same rules as the 2D dilation: a
+ * voxel reached by several cells, or touching a voxel claimed by a differing cell
+ * in the same step, becomes a watershed voxel.
+ *
+ * The voxel calibration is honoured: when the slices are further apart than the
+ * pixels, only some of the erosions and dilations reach across slices, so that
+ * cells are eroded and grown by the same distance in z as in x and y. Slices
+ * closer together than the pixels are treated as if they were as far apart.
+ *
+ * Pre-filtering, merging and seed filters are not offered for stacks, and the engine parameter
+ * is not used. A stack that is not expected to fit in memory is refused before
+ * any work is done.
+ * @author Mark
+ *
+ */
+public final class VolumeWatershed {
+
+	/**
+	 * voxels touch across their faces only
+	 */
+	public static final int FACES = 6;
+
+	/**
+	 * voxels touch across their faces, edges and corners
+	 */
+	public static final int VERTICES = 26;
+
+	/*
+	 * values of the label volume other than background and cell bodies. A voxel
+	 * claimed by a cell body in the current step of dilation holds LINE - cellBody
+	 * until the step is settled.
+	 */
+	private static final int QUEUED = -1;
+	private static final int LINE = -2;
+
+	private final WatershedParams params;
+	private final int connectivity;
+
+	/*
+	 * the offsets of the neighbours, those in the same slice first
+	 */
+	private final int[] dz;
+	private final int[] dy;
+	private final int[] dx;
+	private final int inSlice;
+
+	/**
+	 * checks that parameters can be used to watershed a stack, so that a caller
+	 * can refuse them before doing any work
+	 * @param params the parameters to watershed with
+	 * @throws IllegalArgumentException if they ask for something not offered for
+	 * stacks
+	 */
+	public static void checkParams(WatershedParams params){
+		if(params.hasPrefilter() || params.getMergeThreshold() > 0 || params.isDistanceSeeds() || params.isAdaptive() || params.hasSeedFilter()){
+			throw new IllegalArgumentException("Pre-filtering, merging, distance seeds, adaptive thresholds and seed filters are not offered for stacks");
+		}
+	}
+
+	/**
+	 * @param params the parameters every run uses
+	 * @param connectivity FACES or VERTICES
+	 */
+	public VolumeWatershed(WatershedParams params, int connectivity){
+		if(params == null){
+			throw new IllegalArgumentException("Parameters must be given");
+		}
+		if(connectivity != FACES && connectivity != VERTICES){
+			throw new IllegalArgumentException("Connectivity must be " + FACES + " or " + VERTICES + ", not " + connectivity);
+		}
+		checkParams(params);
+		this.params = params;
+		this.connectivity = connectivity;
+
+		dz = new int[connectivity];
+		dy = new int[connectivity];
+		dx = new int[connectivity];
+		inSlice = connectivity == FACES ? 4 : 8;
+		int n = 0;
+		for(int offZ : new int[]{0, -1, 1}){
+			for(int offY = -1; offY <= 1; offY++){
+				for(int offX = -1; offX <= 1; offX++){
+					int away = Math.abs(offZ) + Math.abs(offY) + Math.abs(offX);
+					if(away == 0 || (connectivity == FACES && away > 1)){
+						continue;
+					}
+					dz[n] = offZ;
+					dy[n] = offY;
+					dx[n] = offX;
+					n++;
+				}
+			}
+		}
+	}
+
+	public WatershedParams getParams() {
+		return params;
+	}
+
+	public int getConnectivity() {
+		return connectivity;
+	}
+
+	/**
+	 * watersheds a stack as one volume. The stack is only read.
+	 * @param input the stack to watershed
+	 * @param hMin the minimum value of the coloration in a voxel
+	 * @param hMax the maximum value of the coloration in a voxel
+	 * @param calibration the calibration of the stack, or null to treat the voxels
+	 * as cubes
+	 * @return the labelled stack, with cell bodies and watershed voxels numbered
+	 * as in the 2D output
+	 * @throws CancelledException if the current Cancellation stops the run
+	 */
+	public VolumeResult run(ImageStack input, double hMin, double hMax, Calibration calibration){
+		RunMetrics metrics = new RunMetrics();
+		try {
+			return run(input, hMin, hMax, calibration, metrics);
+		} catch(CancelledException e){
+			throw CancelledException.withMetrics(e, metrics);
+		}
+	}
+
+	private VolumeResult run(ImageStack input, double hMin, double hMax, Calibration calibration, RunMetrics metrics){
+		final int width = input.getWidth();
+		final int height = input.getHeight();
+		final int depth = input.getSize();
+		metrics.setPixelCount((long) width * height * depth);
+		metrics.setPlan(ExecutionPlanner.planVolume(width, height, depth, params));
+		metrics.endStage("Planning");
+		final int eroDilCount = params.getEroDilCount();
+		final double zRatio = zRatio(calibration);
+		final int[] slabs = slabs(depth);
+
+		/*
+		 * thresholding
+		 */
+		double threshVal = params.getThreshVal();
+		if(params.isAutoThreshold()){
+			threshVal = params.getAutoThreshold().threshold(histogram(input, hMin, hMax));
+			metrics.setThreshold(threshVal);
+			metrics.endStage("Counting coloration values");
+		}
+		byte[][] mask = threshold(input, hMin, hMax, threshVal);
+		metrics.endStage("Thresholding");
+
+		/*
+		 * eroding, keeping the threshold mask if growth is limited to it
+		 */
+		byte[][] eroded = mask;
+		byte[][] spare = null;
+		for(int i = 0; i < eroDilCount; i++){
+			if(spare == null){
+				spare = new byte[depth][];
+			}
+			erode(eroded, spare, reachesAcross(i, zRatio), width, height, slabs);
+			byte[][] done = spare;
+			spare = eroded == mask && params.isGeodesic() ? null : eroded;
+			eroded = done;
+		}
+		spare = null;
+		metrics.endStage("Eroding");
+
+		/*
+		 * set the initial labels for the cell bodies
+		 */
+		int[][] labels = new int[depth][];
+		int cellCount = label(eroded, labels, width, height, slabs);
+		eroded = null;
+		byte[][] limit = params.isGeodesic() ? mask : null;
+		mask = null;
+		metrics.endStage("Labelling cell bodies");
+
+		/*
+		 * dilating
+		 */
+		int steps = params.isGeodesic() && params.isUntilFilled() ? -1 : eroDilCount;
+		dilate(labels, limit, steps, zRatio, width, height, slabs);
+		limit = null;
+		metrics.endStage("Dilating");
+
+		/*
+		 * taking the labels and turning them into a stack for the user
+		 */
+		ImageStack output = output(labels, cellCount, width, height, slabs);
+		metrics.endStage("Writing output");
+
+		return new VolumeResult(output, cellCount, metrics);
+	}
+
+	/**
+	 * @return how many slices apart the erosions and dilations should reach for
+	 * every pixel they reach in x and y, at most one
+	 */
+	private static double zRatio(Calibration calibration){
+		if(calibration == null){
+			return 1;
+		}
+		double ratio = calibration.pixelWidth / calibration.pixelDepth;
+		if(Double.isNaN(ratio) || Double.isInfinite(ratio) || ratio <= 0){
+			return 1;
+		}
+		return Math.min(ratio, 1);
+	}
+
+	/**
+	 * @return true if the given step of erosion or dilation should reach into the
+	 * neighbouring slices
+	 */
+	private static boolean reachesAcross(int step, double zRatio){
+		return Math.floor((step + 1) * zRatio + 1e-9) > Math.floor(step * zRatio + 1e-9);
+	}
+
+	/**
+	 * splits the slices into one slab per processor
+	 * @return the first slice of each slab, followed by the number of slices
+	 */
+	private static int[] slabs(int depth){
+		int count = Math.max(1, Math.min(depth, Runtime.getRuntime().availableProcessors()));
+		int[] slabs = new int[count + 1];
+		for(int s = 0; s <= count; s++){
+			slabs[s] = (int) ((long) depth * s / count);
+		}
+		return slabs;
+	}
+
+	/**
+	 * runs some work on every slab in parallel
+	 */
+	private static void forEachSlab(final int[] slabs, final RowBands.Band slab){
+		RowBands.forEach(slabs.length - 1, 1, new RowBands.Band(){
+			public void run(int start, int end){
+				for(int s = start; s < end; s++){
+					slab.run(s, s + 1);
+				}
+			}
+		});
+	}
+
+	/**
+	 * counts the voxels of every slice with each whole coloration value, for
+	 * working out the threshold automatically
+	 */
+	private static long[] histogram(final ImageStack input, final double hMin, final double hMax){
+		final long[] histogram = new long[Threshold.BINS];
+		RowBands.Band band = new RowBands.Band(){
+			public void run(int start, int end){
+				for(int z = start; z < end; z++){
+					long[] slice = Threshold.histogram(input.getProcessor(z + 1), hMin, hMax);
+					synchronized(histogram){
+						for(int bin = 0; bin < histogram.length; bin++){
+							histogram[bin] += slice[bin];
+						}
+					}
+				}
+			}
+		};
+		if(input.isVirtual()){
+			band.run(0, input.getSize());
+		} else {
+			RowBands.forEach(input.getSize(), 1, band);
+		}
+		return histogram;
+	}
+
+	/**
+	 * thresholds every slice into a mask holding 1 for the voxels that pass
+	 */
+	private byte[][] threshold(final ImageStack input, final double hMin, final double hMax, final double threshVal){
+		final int depth = input.getSize();
+		final int area = input.getWidth() * input.getHeight();
+		final double scaling = (hMax - hMin)/255;
+		final byte[][] mask = new byte[depth][];
+
+		RowBands.Band band = new RowBands.Band(){
+			public void run(int start, int end){
+				for(int z = start; z < end; z++){
+					Cancellation.checkpoint();
+					ImageProcessor ip = input.getProcessor(z + 1);
+					byte[] table = Threshold.passTable(ip, hMin, hMax, threshVal);
+					Object pixels = ip.getPixels();
+					byte[] slice = new byte[area];
+					if(table == null){
+						for(int i = 0; i < area; i++){
+							double h = 255 - (ip.getf(i) - hMin)/scaling;
+							if(h >= 0 && h <= 255 && h < threshVal){
+								slice[i] = 1;
+							}
+						}
+					} else if(pixels instanceof byte[]){
+						byte[] bytes = (byte[]) pixels;
+						for(int i = 0; i < area; i++){
+							slice[i] = table[bytes[i] & 0xff];
+						}
+					} else {
+						short[] shorts = (short[]) pixels;
+						for(int i = 0; i < area; i++){
+							slice[i] = table[shorts[i] & 0xffff];
+						}
+					}
+					mask[z] = slice;
+				}
+			}
+		};
+
+		/*
+		 * the slices of a virtual stack are read from disk, one at a time
+		 */
+		if(input.isVirtual()){
+			band.run(0, depth);
+		} else {
+			RowBands.forEach(depth, 1, band);
+		}
+		return mask;
+	}
+
+	/**
+	 * erodes the mask once. As in 2D, voxels outside the volume are not treated
+	 * as neighbours, so cells touching the edge are not eroded from that edge.
+	 * @param from the mask to erode
+	 * @param to the volume to write the eroded mask to, whose slices are
+	 * allocated if they are missing
+	 * @param across true if the erosion should reach into the neighbouring slices
+	 */
+	private void erode(final byte[][] from, final byte[][] to, final boolean across, final int width, final int height, final int[] slabs){
+		final int depth = from.length;
+		final int area = width * height;
+		forEachSlab(slabs, new RowBands.Band(){
+			public void run(int s, int unused){
+				int start = slabs[s];
+				int end = slabs[s + 1];
+				for(int z = start; z < end; z++){
+					Cancellation.checkpoint();
+					if(to[z] == null){
+						to[z] = new byte[area];
+					}
+				}
+				if(connectivity == FACES){
+					for(int z = start; z < end; z++){
+						Cancellation.checkpoint();
+						erodeFaces(from[z], across && z > 0 ? from[z - 1] : null, across && z < depth - 1 ? from[z + 1] : null, to[z], width, height);
+					}
+					return;
+				}
+
+				/*
+				 * the 3x3x3 cube is separable: each slice is eroded by a 3x3 square,
+				 * and then each voxel is the minimum of those either side of it in z
+				 */
+				byte[] scratch = new byte[area];
+				if(!across){
+					for(int z = start; z < end; z++){
+						Cancellation.checkpoint();
+						erodeSquare(from[z], to[z], scratch, width, height);
+					}
+					return;
+				}
+				byte[] above = start > 0 ? erodeSquare(from[start - 1], new byte[area], scratch, width, height) : null;
+				byte[] centre = erodeSquare(from[start], new byte[area], scratch, width, height);
+				byte[] below = new byte[area];
+				byte[] spare = new byte[area];
+				for(int z = start; z < end; z++){
+					Cancellation.checkpoint();
+					byte[] next = z < depth - 1 ? erodeSquare(from[z + 1], below, scratch, width, height) : null;
+					and(centre, above, next, to[z], 0, area);
+					byte[] old = above == null ? spare : above;
+					above = centre;
+					centre = below;
+					below = old;
+				}
+			}
+		});
+	}
+
+	/**
+	 * erodes a slice by its face neighbours in the slice and, if given, in the
+	 * slices either side of it. The first and last pixels of each row, and the
+	 * first and last rows, are handled apart from the rest, so the loops over the
+	 * inside of the slice hold no tests and the JIT compiler can turn them into
+	 * vector instructions.
+	 */
+	private static void erodeFaces(byte[] slice, byte[] above, byte[] below, byte[] out, int width, int height){
+		/*
+		 * the slices either side, and the pixel itself
+		 */
+		and(slice, above, below, out, 0, width * height);
+
+		/*
+		 * the neighbours in the slice
+		 */
+		for(int y = 0, row = 0; y < height; y++, row += width){
+			if(y == 0 || y == height - 1 || width < 3){
+				for(int x = 0, i = row; x < width; x++, i++){
+					if(x > 0){
+						out[i] &= slice[i - 1];
+					}
+					if(x < width - 1){
+						out[i] &= slice[i + 1];
+					}
+					if(y > 0){
+						out[i] &= slice[i - width];
+					}
+					if(y < height - 1){
+						out[i] &= slice[i + width];
+					}
+				}
+				continue;
+			}
+			int last = row + width - 1;
+			out[row] &= (byte) (slice[row + 1] & slice[row - width] & slice[row + width]);
+			for(int i = row + 1; i < last; i++){
+				out[i] &= (byte) (slice[i - 1] & slice[i + 1] & slice[i - width] & slice[i + width]);
+			}
+			out[last] &= (byte) (slice[last - 1] & slice[last - width] & slice[last + width]);
+		}
+	}
+
+	/**
+	 * erodes a slice by the 3x3 square, first along the rows and then down the
+	 * columns, with the edges handled apart from the inside as in erodeFaces
+	 * @return out
+	 */
+	private static byte[] erodeSquare(byte[] slice, byte[] out, byte[] scratch, int width, int height){
+		for(int y = 0, row = 0; y < height; y++, row += width){
+			if(width == 1){
+				scratch[row] = slice[row];
+				continue;
+			}
+			scratch[row] = (byte) (slice[row] & slice[row + 1]);
+			for(int i = row + 1; i < row + width - 1; i++){
+				scratch[i] = (byte) (slice[i - 1] & slice[i] & slice[i + 1]);
+			}
+			scratch[row + width - 1] = (byte) (slice[row + width - 2] & slice[row + width - 1]);
+		}
+		for(int y = 0, row = 0; y < height; y++, row += width){
+			and(scratch, y > 0 ? scratch : null, y < height - 1 ? scratch : null, out, row, row + width, width);
+		}
+		return out;
+	}
+
+	/**
+	 * sets each pixel of out to the pixel of centre and, if they are given, the
+	 * pixels at the same place in above and below
+	 */
+	private static void and(byte[] centre, byte[] above, byte[] below, byte[] out, int start, int end){
+		and(centre, above, below, out, start, end, 0);
+	}
+
+	/**
+	 * sets each pixel of out to the pixel of centre and, if they are given, the
+	 * pixels the given distance before it in above and after it in below. Each
+	 * case has a loop of its own, so that none of them holds a test.
+	 */
+	private static void and(byte[] centre, byte[] above, byte[] below, byte[] out, int start, int end, int offset){
+		if(above != null && below != null){
+			for(int i = start; i < end; i++){
+				out[i] = (byte) (centre[i] & above[i - offset] & below[i + offset]);
+			}
+		} else if(above != null){
+			for(int i = start; i < end; i++){
+				out[i] = (byte) (centre[i] & above[i - offset]);
+			}
+		} else if(below != null){
+			for(int i = start; i < end; i++){
+				out[i] = (byte) (centre[i] & below[i + offset]);
+			}
+		} else {
+			System.arraycopy(centre, start, out, start, end - start);
+		}
+	}
+
+	/**
+	 * labels the connected cell bodies of the eroded mask. Each slab is scanned
+	 * with its own union-find over provisional labels, the slabs are joined where
+	 * they meet, and the components are then numbered in the order they are first
+	 * met in the stack.
+	 * @param eroded the eroded mask
+	 * @param labels the volume to write the labels to, whose slices are allocated
+	 * @return the number of cell bodies
+	 */
+	private int label(final byte[][] eroded, final int[][] labels, final int width, final int height, final int[] slabs){
+		final int area = width * height;
+		final int slabCount = slabs.length - 1;
+		final int[][] slabParents = new int[slabCount][];
+		final int[] slabSizes = new int[slabCount];
+
+		/*
+		 * the neighbours already visited by the scan
+		 */
+		int behind = 0;
+		final int[] back = new int[connectivity / 2];
+		for(int n = 0; n < dz.length; n++){
+			if(dz[n] < 0 || (dz[n] == 0 && (dy[n] < 0 || (dy[n] == 0 && dx[n] < 0)))){
+				back[behind++] = n;
+			}
+		}
+
+		forEachSlab(slabs, new RowBands.Band(){
+			public void run(int s, int unused){
+				int start = slabs[s];
+				int end = slabs[s + 1];
+				int[] parent = new int[64];
+				int size = 0;
+				for(int z = start; z < end; z++){
+					Cancellation.checkpoint();
+					byte[] mask = eroded[z];
+					int[] slice = new int[area];
+					labels[z] = slice;
+					for(int y = 0, i = 0; y < height; y++){
+						for(int x = 0; x < width; x++, i++){
+							if(mask[i] == 0){
+								continue;
+							}
+							int found = 0;
+							for(int n : back){
+								int nz = z + dz[n];
+								int ny = y + dy[n];
+								int nx = x + dx[n];
+								if(nz < start || ny < 0 || ny >= height || nx < 0 || nx >= width){
+									continue;
+								}
+								int neighbour = labels[nz][ny * width + nx];
+								if(neighbour == 0){
+									continue;
+								}
+								found = found == 0 ? find(parent, neighbour) : union(parent, found, neighbour);
+							}
+							if(found == 0){
+								size++;
+								if(size >= parent.length){
+									parent = Arrays.copyOf(parent, parent.length * 2);
+								}
+								parent[size] = size;
+								found = size;
+							}
+							slice[i] = found;
+						}
+					}
+				}
+				slabParents[s] = parent;
+				slabSizes[s] = size;
+			}
+		});
+
+		/*
+		 * gather the provisional labels of every slab into one union-find
+		 */
+		final int[] offsets = new int[slabCount];
+		int total = 0;
+		for(int s = 0; s < slabCount; s++){
+			offsets[s] = total;
+			total += slabSizes[s];
+		}
+		int[] parent = new int[total + 1];
+		for(int s = 0; s < slabCount; s++){
+			for(int l = 1; l <= slabSizes[s]; l++){
+				parent[offsets[s] + l] = offsets[s] + slabParents[s][l];
+			}
+			slabParents[s] = null;
+		}
+
+		/*
+		 * join the cell bodies that meet across the boundaries between slabs
+		 */
+		for(int s = 1; s < slabCount; s++){
+			int z = slabs[s];
+			if(z == slabs[s - 1]){
+				continue;
+			}
+			int[] slice = labels[z];
+			int[] above = labels[z - 1];
+			for(int y = 0, i = 0; y < height; y++){
+				for(int x = 0; x < width; x++, i++){
+					if(slice[i] == 0){
+						continue;
+					}
+					for(int n : back){
+						if(dz[n] == 0){
+							continue;
+						}
+						int ny = y + dy[n];
+						int nx = x + dx[n];
+						if(ny < 0 || ny >= height || nx < 0 || nx >= width){
+							continue;
+						}
+						int neighbour = above[ny * width + nx];
+						if(neighbour != 0){
+							union(parent, offsets[s] + slice[i], offsets[s - 1] + neighbour);
+						}
+					}
+				}
+			}
+		}
+
+		/*
+		 * a component's root is its smallest provisional label, the one it was met
+		 * by first, so numbering the roots in order numbers the components in the
+		 * order they are met
+		 */
+		final int[] number = new int[total + 1];
+		int count = 0;
+		for(int p = 1; p <= total; p++){
+			int root = find(parent, p);
+			number[p] = root == p ? ++count : number[root];
+		}
+
+		forEachSlab(slabs, new RowBands.Band(){
+			public void run(int s, int unused){
+				int offset = offsets[s];
+				for(int z = slabs[s]; z < slabs[s + 1]; z++){
+					Cancellation.checkpoint();
+					int[] slice = labels[z];
+					for(int i = 0; i < area; i++){
+						if(slice[i] != 0){
+							slice[i] = number[offset + slice[i]];
+						}
+					}
+				}
+			}
+		});
+
+		return count;
+	}
+
+	private static int find(int[] parent, int label){
+		while(parent[label] != label){
+			parent[label] = parent[parent[label]];
+			label = parent[label];
+		}
+		return label;
+	}
+
+	/**
+	 * joins two components, the smaller root becoming the root of both
+	 * @return the root of the joined component
+	 */
+	private static int union(int[] parent, int a, int b){
+		int rootA = find(parent, a);
+		int rootB = find(parent, b);
+		if(rootA < rootB){
+			parent[rootB] = rootA;
+			return rootA;
+		}
+		parent[rootA] = rootB;
+		return rootB;
+	}
+
+	/**
+	 * a growable list of voxel indices, z * width * height + y * width + x
+	 */
+	private static class VoxelList {
+		long[] items = new long[64];
+		int size = 0;
+
+		void add(long voxel){
+			if(size == items.length){
+				items = Arrays.copyOf(items, size * 2);
+			}
+			items[size++] = voxel;
+		}
+	}
+
+	/**
+	 * grows the cell bodies. Each step claims the voxels queued next to the cell
+	 * bodies in three passes over the queue, so that every voxel is decided from
+	 * the state before the step whichever slab it is in: the queued voxels are
+	 * given the cell body around them, those next to a voxel claimed by a
+	 * differing cell body become watershed voxels, and then the claims are settled
+	 * and the voxels next to them queued for the next step.
+	 * @param labels the cell body labels
+	 * @param limit the mask growth is limited to, or null to allow growth into
+	 * any background voxel
+	 * @param steps the number of steps, or a negative number to grow until
+	 * nothing more can be claimed
+	 */
+	private void dilate(final int[][] labels, final byte[][] limit, int steps, double zRatio, final int width, final int height, final int[] slabs){
+		final int depth = labels.length;
+		final long area = (long) width * height;
+		final int slabCount = slabs.length - 1;
+		final VoxelList[] queues = new VoxelList[slabCount];
+		final VoxelList[] nextQueues = new VoxelList[slabCount];
+		final VoxelList[] spills = new VoxelList[slabCount];
+		final int[][] claims = new int[slabCount][];
+		final int[] slabOf = new int[depth];
+		for(int s = 0; s < slabCount; s++){
+			Arrays.fill(slabOf, slabs[s], slabs[s + 1], s);
+		}
+
+		/*
+		 * queue the voxels next to the eroded cell bodies
+		 */
+		forEachSlab(slabs, new RowBands.Band(){
+			public void run(int s, int unused){
+				VoxelList queue = new VoxelList();
+				VoxelList spill = new VoxelList();
+				for(int z = slabs[s]; z < slabs[s + 1]; z++){
+					Cancellation.checkpoint();
+					int[] slice = labels[z];
+					for(int y = 0, i = 0; y < height; y++){
+						for(int x = 0; x < width; x++, i++){
+							if(slice[i] > 0){
+								queueNeighbours(labels, limit, z, y, x, slabs[s], slabs[s + 1], queue, spill, width, height);
+							}
+						}
+					}
+				}
+				queues[s] = queue;
+				spills[s] = spill;
+			}
+		});
+		queueSpills(labels, limit, spills, queues, slabOf, area);
+
+		for(int step = 0; steps < 0 || step < steps; step++){
+			Cancellation.checkpoint();
+			long queued = 0;
+			for(VoxelList queue : queues){
+				queued += queue.size;
+			}
+			if(queued == 0){
+				break;
+			}
+			final int reach = reachesAcross(step, zRatio) ? dz.length : inSlice;
+
+			/*
+			 * give each queued voxel the cell body around it
+			 */
+			forEachSlab(slabs, new RowBands.Band(){
+				public void run(int s, int unused){
+					VoxelList queue = queues[s];
+					int[] claim = new int[queue.size];
+					for(int k = 0; k < queue.size; k++){
+						long voxel = queue.items[k];
+						int z = (int) (voxel / area);
+						int i = (int) (voxel - z * area);
+						int cellBody = claim(labels, z, i / width, i % width, reach, width, height);
+						claim[k] = cellBody;
+						if(cellBody > 0){
+							labels[z][i] = LINE - cellBody;
+						} else if(cellBody == LINE){
+							labels[z][i] = LINE;
+						}
+					}
+					claims[s] = claim;
+				}
+			});
+
+			/*
+			 * voxels touching a voxel claimed by a differing cell body in this step
+			 * become watershed voxels
+			 */
+			forEachSlab(slabs, new RowBands.Band(){
+				public void run(int s, int unused){
+					VoxelList queue = queues[s];
+					int[] claim = claims[s];
+					for(int k = 0; k < queue.size; k++){
+						if(claim[k] <= 0){
+							continue;
+						}
+						long voxel = queue.items[k];
+						int z = (int) (voxel / area);
+						int i = (int) (voxel - z * area);
+						if(clashes(labels, z, i / width, i % width, LINE - claim[k], reach, width, height)){
+							claim[k] = LINE;
+						}
+					}
+				}
+			});
+
+			/*
+			 * settle the claims and queue the voxels next to the newly grown ones.
+			 * Voxels in other slabs are queued afterwards, on this thread.
+			 */
+			forEachSlab(slabs, new RowBands.Band(){
+				public void run(int s, int unused){
+					VoxelList queue = queues[s];
+					int[] claim = claims[s];
+					VoxelList next = new VoxelList();
+					VoxelList spill = new VoxelList();
+					int start = slabs[s];
+					int end = slabs[s + 1];
+					for(int k = 0; k < queue.size; k++){
+						long voxel = queue.items[k];
+						int z = (int) (voxel / area);
+						int i = (int) (voxel - z * area);
+						if(claim[k] == 0){
+							next.add(voxel);
+							continue;
+						}
+						labels[z][i] = claim[k];
+						if(claim[k] == LINE){
+							continue;
+						}
+						queueNeighbours(labels, limit, z, i / width, i % width, start, end, next, spill, width, height);
+					}
+					nextQueues[s] = next;
+					spills[s] = spill;
+					claims[s] = null;
+				}
+			});
+
+			queueSpills(labels, limit, spills, nextQueues, slabOf, area);
+			System.arraycopy(nextQueues, 0, queues, 0, slabCount);
+		}
+	}
+
+	/**
+	 * queues the background neighbours of a cell body voxel that growth is allowed
+	 * into. Neighbours in the voxel's own slab are queued straight away, and those
+	 * in other slabs are put aside to be queued once every slab is done.
+	 * @param start the first slice of the voxel's slab
+	 * @param end the slice after the last slice of the voxel's slab
+	 * @param queue the queue of the voxel's slab
+	 * @param spill the voxels put aside
+	 */
+	private void queueNeighbours(int[][] labels, byte[][] limit, int z, int y, int x, int start, int end, VoxelList queue, VoxelList spill, int width, int height){
+		final int depth = labels.length;
+		final long area = (long) width * height;
+		for(int n = 0; n < dz.length; n++){
+			int nz = z + dz[n];
+			int ny = y + dy[n];
+			int nx = x + dx[n];
+			if(nz < 0 || nz >= depth || ny < 0 || ny >= height || nx < 0 || nx >= width){
+				continue;
+			}
+			int ni = ny * width + nx;
+			if(nz < start || nz >= end){
+				spill.add(nz * area + ni);
+			} else if(labels[nz][ni] == 0 && (limit == null || limit[nz][ni] != 0)){
+				labels[nz][ni] = QUEUED;
+				queue.add(nz * area + ni);
+			}
+		}
+	}
+
+	/**
+	 * queues the voxels put aside by queueNeighbours in the queues of their slabs
+	 */
+	private static void queueSpills(int[][] labels, byte[][] limit, VoxelList[] spills, VoxelList[] queues, int[] slabOf, long area){
+		for(VoxelList spill : spills){
+			for(int k = 0; k < spill.size; k++){
+				long voxel = spill.items[k];
+				int z = (int) (voxel / area);
+				int i = (int) (voxel - z * area);
+				if(labels[z][i] == 0 && (limit == null || limit[z][i] != 0)){
+					labels[z][i] = QUEUED;
+					queues[slabOf[z]].add(voxel);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param reach the number of neighbours to look at
+	 * @return the single cell body among the neighbours of a voxel, LINE if there
+	 * are several, or 0 if there are none
+	 */
+	private int claim(int[][] labels, int z, int y, int x, int reach, int width, int height){
+		final int depth = labels.length;
+		int cellBody = 0;
+		for(int n = 0; n < reach; n++){
+			int nz = z + dz[n];
+			int ny = y + dy[n];
+			int nx = x + dx[n];
+			if(nz < 0 || nz >= depth || ny < 0 || ny >= height || nx < 0 || nx >= width){
+				continue;
+			}
+			int neighbour = labels[nz][ny * width + nx];
+			if(neighbour <= 0){
+				continue;
+			}
+			if(cellBody == 0){
+				cellBody = neighbour;
+			} else if(cellBody != neighbour){
+				return LINE;
+			}
+		}
+		return cellBody;
+	}
+
+	/**
+	 * @param own the value of the voxel's own claim
+	 * @return true if a neighbour of the voxel has been claimed in this step by a
+	 * differing cell body
+	 */
+	private boolean clashes(int[][] labels, int z, int y, int x, int own, int reach, int width, int height){
+		final int depth = labels.length;
+		for(int n = 0; n < reach; n++){
+			int nz = z + dz[n];
+			int ny = y + dy[n];
+			int nx = x + dx[n];
+			if(nz < 0 || nz >= depth || ny < 0 || ny >= height || nx < 0 || nx >= width){
+				continue;
+			}
+			int neighbour = labels[nz][ny * width + nx];
+			if(neighbour < LINE && neighbour != own){
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * turns the labels into a stack, a slice at a time, letting go of each slice
+	 * of labels once it has been turned
+	 */
+	private static ImageStack output(final int[][] labels, int cellCount, final int width, final int height, int[] slabs){
+		final int depth = labels.length;
+		final int area = width * height;
+		final int maxLabel = cellCount + Watershed.LABEL_OFFSET;
+		final ImageProcessor[] slices = new ImageProcessor[depth];
+
+		RowBands.forEach(depth, 1, new RowBands.Band(){
+			public void run(int start, int end){
+				for(int z = start; z < end; z++){
+					Cancellation.checkpoint();
+					int[] slice = labels[z];
+					LabelStore store = new LabelStore(width, height, maxLabel);
+					for(int i = 0; i < area; i++){
+						int value = slice[i];
+						if(value > 0){
+							store.set(i, value + Watershed.LABEL_OFFSET);
+						} else if(value == LINE){
+							store.set(i, Watershed.WSHED_LABEL);
+						}
+					}
+					labels[z] = null;
+					slices[z] = store.toProcessor();
+				}
+			}
+		});
+
+		ImageStack output = new ImageStack(width, height);
+		for(int z = 0; z < depth; z++){
+			Cancellation.checkpoint();
+			output.addSlice(null, slices[z]);
+		}
+		return output;
+	}
+}
@@ -1,20 +1,43 @@
 package watershed;
+import java.awt.Rectangle;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 
 import dataTypes.CellsToMerge;
+import dataTypes.LabelledRuns;
 import dataTypes.PixelPos;
 import dataTypes.PixelsValues;
+import dataTypes.RunLengthMask;
 import dataTypes.ThresholdDataPoint;
 import ij.IJ;
 import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.Roi;
 import ij.process.ImageProcessor;
-import ij.process.ShortProcessor;
 
 public class Watershed {
 	
 	public final static int WSHED = 9;
 	public final static int CONNEC = 8;
+	/*
+	 * the value of watershed pixels in the output. It is reserved for them, and
+	 * cell bodies are output from the value above it, so that no cell shares it
+	 */
+	public final static int WSHED_LABEL = 1;
+	/*
+	 * the value added to every cell body number in the output, leaving room for
+	 * WSHED_LABEL. Labels are made visible by the label LUT, not by their values.
+	 */
+	public final static int LABEL_OFFSET = WSHED_LABEL;
+	/*
+	 * marks watershed pixels while dilating run length labels, as WSHED may be a
+	 * valid cell body number
+	 */
+	public final static int WSHED_RUN = -1;
+	/*
+	 * marks the cell bodies a SeedFilter rejects while labelling
+	 */
+	private final static int REJECTED = -1;
 	
 	/**
 	 * static method to apply the watershedding algorithm to a given image
@@ -25,9 +48,129 @@ public class Watershed {
 	 * @return the altered image
 	 */
 	public static ImagePlus computeWatershed(ImagePlus chosenImg, double hMin, double hMax, double threshVal, double eroDilCount) {
+		return computeWatershed(chosenImg, hMin, hMax, threshVal, eroDilCount, false, false);
+	}
+
+	/**
+	 * static method to apply the watershedding algorithm to a given image
+	 * @param chosenImg the given image
+	 * @param hMin the maximum value of the coloration in a pixel
+	 * @param hMax the minimum value of the coloration in a pixel
+	 * @param threshVal the threshold value to be applied
+	 * @param geodesic true if the cell bodies should only be grown back inside the
+	 * original threshold mask
+	 * @param untilFilled true if geodesic growth should continue until the mask is
+	 * filled, rather than stopping after eroDilCount steps
+	 * @return the altered image
+	 */
+	public static ImagePlus computeWatershed(ImagePlus chosenImg, double hMin, double hMax, double threshVal, double eroDilCount, boolean geodesic, boolean untilFilled) {
+		return computeWatershed(chosenImg, hMin, hMax, threshVal, eroDilCount, geodesic, untilFilled, Engine.RUN_LENGTH);
+	}
+
+	/**
+	 * static method to apply the watershedding algorithm to a given image
+	 * @param chosenImg the given image
+	 * @param hMin the maximum value of the coloration in a pixel
+	 * @param hMax the minimum value of the coloration in a pixel
+	 * @param threshVal the threshold value to be applied
+	 * @param geodesic true if the cell bodies should only be grown back inside the
+	 * original threshold mask
+	 * @param untilFilled true if geodesic growth should continue until the mask is
+	 * filled, rather than stopping after eroDilCount steps
+	 * @param engine the engine to carry out the watershedding with
+	 * @return the altered image
+	 */
+	public static ImagePlus computeWatershed(ImagePlus chosenImg, double hMin, double hMax, double threshVal, double eroDilCount, boolean geodesic, boolean untilFilled, Engine engine) {
+		return computeWatershed(chosenImg, params(threshVal, eroDilCount, geodesic, untilFilled, engine));
+	}
+
+	/**
+	 * static method to apply the watershedding algorithm to the whole of a given
+	 * image, whatever its selection
+	 * @param chosenImg the given image
+	 * @param params the parameters to watershed with
+	 * @return the altered image
+	 */
+	public static ImagePlus computeWatershed(ImagePlus chosenImg, WatershedParams params) {
+		return computeWatershed(chosenImg, params, false);
+	}
+
+	/**
+	 * static method to apply the watershedding algorithm to a given image
+	 * @param chosenImg the given image
+	 * @param params the parameters to watershed with
+	 * @param useSelection true if only the image's area selection (if it has one)
+	 * should be watershedded
+	 * @return the altered image, the same size as the given image
+	 */
+	public static ImagePlus computeWatershed(ImagePlus chosenImg, WatershedParams params, boolean useSelection) {
+		return computeWatershed(chosenImg, params, useSelection, null);
+	}
+
+	/**
+	 * static method to apply the watershedding algorithm to a given image,
+	 * growing the cells from known markers
+	 * @param chosenImg the given image
+	 * @param params the parameters to watershed with
+	 * @param useSelection true if only the image's area selection (if it has one)
+	 * should be watershedded
+	 * @param markers the markers to grow the cells from, or null to find the cell
+	 * bodies by eroding
+	 * @return the altered image, the same size as the given image
+	 */
+	public static ImagePlus computeWatershed(ImagePlus chosenImg, WatershedParams params, boolean useSelection, Markers markers) {
+
+		Roi roi = useSelection ? chosenImg.getRoi() : null;
+		ImageProcessor ip = apply(chosenImg.getProcessor(), roi, params, markers);
+
+		return wrap(chosenImg, ip);
+	}
+
+	/**
+	 * puts the labels of an image into a new image, titled after it, with the
+	 * same calibration and shown through the label LUT
+	 * @param chosenImg the image that was watershedded
+	 * @param ip the labels
+	 * @return the new image
+	 */
+	static ImagePlus wrap(ImagePlus chosenImg, ImageProcessor ip) {
+		ImagePlus imageWSApplied = new ImagePlus(title(chosenImg), ip);
+		imageWSApplied.setCalibration(chosenImg.getCalibration());
+		LabelLut.attach(imageWSApplied);
+
+		return imageWSApplied;
+	}
 
-		ImageProcessor ip = apply(chosenImg.getProcessor(), hMin, hMax, threshVal, eroDilCount);
+	/**
+	 * static method to watershed every slice of a stack together, as one volume,
+	 * so that cells spread over several slices are given a single label
+	 * @param chosenImg the given stack
+	 * @param params the parameters to watershed with
+	 * @param connectivity VolumeWatershed.FACES or VolumeWatershed.VERTICES
+	 * @return the labelled stack
+	 */
+	public static ImagePlus computeVolume(ImagePlus chosenImg, WatershedParams params, int connectivity) {
+		ImageStack stack = chosenImg.getStack();
+		ImageProcessor ip = chosenImg.getProcessor();
+		IJ.showStatus("Watershedding");
+		IJ.log("Watershedding " + stack.getWidth() + "x" + stack.getHeight() + "x" + stack.getSize() + " with " + connectivity + " connectivity and " + params);
+
+		VolumeResult result = new VolumeWatershed(params, connectivity).run(stack, ip.getMin(), ip.getMax(), chosenImg.getCalibration());
+
+		IJ.log(result.getMetrics().toString());
+		IJ.log("Found " + result.getCellCount() + " cells.");
+
+		ImagePlus imageWSApplied = new ImagePlus(title(chosenImg), result.getLabels());
+		imageWSApplied.setCalibration(chosenImg.getCalibration());
+		LabelLut.attach(imageWSApplied, result.getCellCount() + LABEL_OFFSET);
+
+		return imageWSApplied;
+	}
 
+	/**
+	 * @return the title of the given image with "-watershed" before its extension
+	 */
+	private static String title(ImagePlus chosenImg) {
 		String title = chosenImg.getTitle();
 		String ext = "";
 		int index = title.lastIndexOf( "." );
@@ -36,12 +179,7 @@ public class Watershed {
 			ext = title.substring(index);
 			title = title.substring(0, index);				
 		}
-
-		ImagePlus imageWSApplied = new ImagePlus(title + "-watershed" + ext, ip);
-		imageWSApplied.setCalibration(chosenImg.getCalibration());
-
-		return imageWSApplied;
-
+		return title + "-watershed" + ext;
 	}
 
 	/**
@@ -57,113 +195,122 @@ public class Watershed {
 	 * @return
 	 */
 	public static ImageProcessor apply(ImageProcessor input, double hMin, double hMax, double threshVal, double eroDilCount){
-		final int width = input.getWidth();
-		IJ.log("Width: " + width);
-		final int height = input.getHeight();
-		IJ.log("Height: " + height);
-		
-		double minVal = input.getMin();
-		double maxVal = input.getMax();
+		return apply(input, hMin, hMax, threshVal, eroDilCount, false, false);
+	}
 
-		// output labels
-		final ThresholdDataPoint[][] labelled = new ThresholdDataPoint[width][height];
-		
-		final int backgroundLabel = 1;
-		final int foregroundLabel = 0;
-		
-		for(int x = 0; x < width; x++){
-			for(int y = 0; y < height; y++){
-				PixelPos pixelPos = new PixelPos(x,y);
-				labelled[x][y] = new ThresholdDataPoint(backgroundLabel, pixelPos);
-			}
-		}
-		
-		IJ.showStatus( "Extracting coloration values");
-		IJ.log("Extracting coloration values");
-		
-		ArrayList<PixelsValues> pixelList = extractPixelValues(input, minVal, maxVal);
+	/**
+	 * method to build the image processor for the image to be watershedded,
+	 * optionally using geodesic reconstruction in place of the fixed number of
+	 * dilations.
+	 * 
+	 * @param input the given image's processor
+	 * @param hMin the maximum value of the coloration in a pixel
+	 * @param hMax the minimum value of the coloration in a pixel
+	 * @param threshVal the threshold value to be applied
+	 * @param eroDilCount the number of erosions (and dilations) to perform
+	 * @param geodesic true if the cell bodies should only be grown back inside the
+	 * original threshold mask
+	 * @param untilFilled true if geodesic growth should continue until the mask is
+	 * filled, rather than stopping after eroDilCount steps
+	 * @return
+	 */
+	public static ImageProcessor apply(ImageProcessor input, double hMin, double hMax, double threshVal, double eroDilCount, boolean geodesic, boolean untilFilled){
+		return apply(input, hMin, hMax, threshVal, eroDilCount, geodesic, untilFilled, Engine.RUN_LENGTH);
+	}
 
-		IJ.showStatus("Sorting pixels by coloration value");
-		IJ.log("Sorting pixels by coloration value");
-		
-		Collections.sort(pixelList);
-		
-		/*
-		 * thresholding
-		 */
-		Threshold.threshold(pixelList, labelled, threshVal, foregroundLabel);
-		
-//		/*
-//		 * DEBUG printing the labels after thresholding
-//		 */
-//		String currLine = "";
-//		
-//		for(int heightPr = 0; heightPr < labelled[0].length; heightPr++){
-//			for(int widthPr = 0; widthPr < labelled.length; widthPr++){
-//				currLine += " " + labelled[widthPr][heightPr].getLabel();
-//			}
-//			IJ.log(currLine);
-//			currLine = "";
-//		}
-		
-		/*
-		 * eroding
-		 */
-		int eroDilCountInt = (int) eroDilCount;
-		for(int i = 0; i<eroDilCount; i++){
-			Erode.erode(labelled, backgroundLabel, foregroundLabel, width, height);
-		}
-		
-		/*
-		 * set the neighbours
-		 */
-		establishNeighbours(labelled, width, height);
-		
-		/*
-		 * set the initial labels for the cell bodies
-		 */
-		initialCellBodyLabel(labelled, backgroundLabel, foregroundLabel, CONNEC);
-		
-		/*
-		 * dilating
-		 */
-		for(int i = 0; i<eroDilCount; i++){
-			Dilate.dilate(labelled, backgroundLabel, foregroundLabel, width, height);
+	/**
+	 * method to build the image processor for the image to be watershedded with
+	 * the chosen engine.
+	 * 
+	 * @param input the given image's processor
+	 * @param hMin the maximum value of the coloration in a pixel
+	 * @param hMax the minimum value of the coloration in a pixel
+	 * @param threshVal the threshold value to be applied
+	 * @param eroDilCount the number of erosions (and dilations) to perform
+	 * @param geodesic true if the cell bodies should only be grown back inside the
+	 * original threshold mask
+	 * @param untilFilled true if geodesic growth should continue until the mask is
+	 * filled, rather than stopping after eroDilCount steps
+	 * @param engine the engine to carry out the watershedding with
+	 * @return
+	 */
+	public static ImageProcessor apply(ImageProcessor input, double hMin, double hMax, double threshVal, double eroDilCount, boolean geodesic, boolean untilFilled, Engine engine){
+		return apply(input, params(threshVal, eroDilCount, geodesic, untilFilled, engine));
+	}
+
+	/**
+	 * method to build the image processor for the image to be watershedded. The
+	 * work is carried out by a WatershedEngine, and the time taken by each of its
+	 * stages is written to the log.
+	 * 
+	 * @param input the given image's processor
+	 * @param params the parameters to watershed with
+	 * @return the labelled image
+	 */
+	public static ImageProcessor apply(ImageProcessor input, WatershedParams params){
+		return apply(input, null, params);
+	}
+
+	/**
+	 * method to build the image processor for the image to be watershedded,
+	 * watershedding only the part inside a selection. The labels of the selection
+	 * are pasted back into an image the size of the input.
+	 * 
+	 * @param input the given image's processor
+	 * @param roi the selection, or null to watershed the whole image
+	 * @param params the parameters to watershed with
+	 * @return the labelled image
+	 */
+	public static ImageProcessor apply(ImageProcessor input, Roi roi, WatershedParams params){
+		return apply(input, roi, params, null);
+	}
+
+	/**
+	 * method to build the image processor for the image to be watershedded,
+	 * growing the cells from markers that are already known instead of eroding
+	 * the threshold mask to find them
+	 * 
+	 * @param input the given image's processor
+	 * @param roi the selection, or null to watershed the whole image
+	 * @param params the parameters to watershed with
+	 * @param markers the markers to grow the cells from, or null to find the cell
+	 * bodies by eroding
+	 * @return the labelled image
+	 */
+	public static ImageProcessor apply(ImageProcessor input, Roi roi, WatershedParams params, Markers markers){
+		IJ.showStatus("Watershedding");
+		logStart(input, roi, params);
+		if(markers != null){
+			IJ.log("Growing the cells from " + markers.getCount() + " markers");
 		}
 		
-		/*
-		 * taking the array of labels and turning it into an image for the user
-		 */
+		WatershedResult result = new WatershedEngine(params).run(input, roi, markers);
 		
-		/*brighten the image*/
-		brighten(labelled, backgroundLabel);
+		IJ.log(result.getMetrics().toString());
 		
-		ShortProcessor sp = new ShortProcessor(width, height);
-		for(int widthFP = 0; widthFP < width; widthFP++){
-			for(int heightFP = 0; heightFP < height; heightFP++){
-				sp.set(widthFP, heightFP, labelled[widthFP][heightFP].getCellBody());
-			}
-		}
-		
-		IJ.log("Brightness sample");
-		/*
-		 * DEBUG log the result
-		 */
-		String currLine = "";
+		return result.toFullSize(input.getWidth(), input.getHeight());
+	}
 
-		for(int heightPr = 0; heightPr < height; heightPr++){
-			for(int widthPr = 0; widthPr < width; widthPr++){
-				if(heightPr % 5 == 0 && widthPr % 5 == 0){
-				currLine += " " + labelled[widthPr][heightPr].getCellBody();
-				}
-			}
-			if(heightPr % 5 == 0){
-			IJ.log(currLine);
-			currLine = "";}
+	/**
+	 * logs what is about to be watershedded, and how
+	 */
+	static void logStart(ImageProcessor input, Roi roi, WatershedParams params){
+		if(roi != null && roi.isArea()){
+			Rectangle bounds = roi.getBounds();
+			IJ.log("Watershedding the " + bounds.width + "x" + bounds.height + " selection at " + bounds.x + "," + bounds.y + " with " + params);
+		} else {
+			IJ.log("Watershedding " + input.getWidth() + "x" + input.getHeight() + " with " + params);
 		}
-		
-		return sp;
-		
+	}
+
+	private static WatershedParams params(double threshVal, double eroDilCount, boolean geodesic, boolean untilFilled, Engine engine){
+		return new WatershedParams.Builder()
+				.threshVal(threshVal)
+				.eroDilCount((int) eroDilCount)
+				.geodesic(geodesic)
+				.untilFilled(untilFilled)
+				.engine(engine)
+				.build();
 	}
 
 	/**
@@ -173,10 +320,12 @@ public class Watershed {
 	 * @param input ImageProcessor of image that is being watershedded
 	 * @param hMin the maximum value of the coloration in a pixel
 	 * @param hMax the minimum value of the coloration in a pixel
+	 * @param histogram the histogram to count each pixel's whole coloration value
+	 * in as it is extracted, for working out the threshold automatically, or null
 	 * @return an ArrayList of PixelsValues (which includes
 	 * their position and coloration value and overall position within the image)
 	 */
-	private static ArrayList<PixelsValues> extractPixelValues(ImageProcessor input, double hMin, double hMax) {
+	static ArrayList<PixelsValues> extractPixelValues(ImageProcessor input, double hMin, double hMax, long[] histogram) {
 		final int width = input.getWidth();
 		final int height = input.getHeight();
 		
@@ -187,6 +336,7 @@ public class Watershed {
 		int pixelNo = 0;
 		
 		for(int x = 0; x < width; x++){
+			Cancellation.checkpoint();
 			for(int y = 0; y < height; y++){
 				/*
 				 * get the coloration value of the given pixel
@@ -201,6 +351,9 @@ public class Watershed {
 				if(h >= 0 && h <= 255){
 					PixelPos currPos = new PixelPos(x, y);
 					list.add(new PixelsValues(currPos, h, pixelNo));
+					if(histogram != null){
+						histogram[Threshold.bin(h)]++;
+					}
 				}
 				pixelNo++;
 			}
@@ -228,6 +381,7 @@ public class Watershed {
 		PixelPos pixelPos;
 		
 		for(int x = 0; x < width; x++){
+			Cancellation.checkpoint();
 			for(int y = 0; y < height; y++){
 				pixelPos = new PixelPos(x, y);
 				neighEightTDP = new ArrayList<ThresholdDataPoint>();
@@ -262,14 +416,44 @@ public class Watershed {
 	 * @param backgroundLabel the integer used for labelling background elements
 	 * @param foregroundLabel the integer used for labelling foreground elements
 	 * @param connec the connectedness to be used (4 or 8)
+	 * @return the largest cell body label given out
 	 */
-	public static void initialCellBodyLabel(ThresholdDataPoint[][] labelled, int backgroundLabel, int foregroundLabel, int connec){
+	public static int initialCellBodyLabel(ThresholdDataPoint[][] labelled, int backgroundLabel, int foregroundLabel, int connec){
+		return initialCellBodyLabel(labelled, backgroundLabel, foregroundLabel, connec, null);
+	}
+	
+	/**
+	 * labels the cell bodies as initialCellBodyLabel does, discarding those the
+	 * filter rejects. The pixels of each provisional label are counted, and
+	 * whether it touches the edge of the image noted, as the labels are given
+	 * out. Once the labels that meet have been joined, the counts are summed for
+	 * each cell body, and the rejected bodies are returned to the background in
+	 * the same pass that gives every pixel its joined label, so they are never
+	 * grown. The kept bodies are numbered 1, 2, ... in the order of their joined
+	 * labels, without the gaps the rejected and joined labels would leave, as the
+	 * run length labelling numbers them.
+	 * @param labelled the threshold data points that represent the image
+	 * @param backgroundLabel the integer used for labelling background elements
+	 * @param foregroundLabel the integer used for labelling foreground elements
+	 * @param connec the connectedness to be used (4 or 8)
+	 * @param filter the filter deciding which cell bodies are kept, or null to
+	 * keep every one
+	 * @return the largest cell body label given out, which with a filter is the
+	 * number of bodies kept
+	 */
+	public static int initialCellBodyLabel(ThresholdDataPoint[][] labelled, int backgroundLabel, int foregroundLabel, int connec, SeedFilter filter){
+		final int width = labelled.length;
+		final int height = width == 0 ? 0 : labelled[0].length;
 		int currentNextLabel = 1;
 		ArrayList<CellsToMerge> cells = new ArrayList<CellsToMerge>();
 		cells.add(new CellsToMerge(0, false));
+		long[] areas = new long[filter == null ? 0 : 64];
+		boolean[] touchesBorder = new boolean[areas.length];
 		
-		for(ThresholdDataPoint[] row : labelled){
-			for(ThresholdDataPoint element: row){
+		for(int x = 0; x < width; x++){
+			Cancellation.checkpoint();
+			for(int y = 0; y < height; y++){
+				ThresholdDataPoint element = labelled[x][y];
 				/*if the pixel is part of a cell body*/
 				if(element.getLabel() != backgroundLabel){
 					/*get its neighbours label*/
@@ -283,9 +467,25 @@ public class Watershed {
 						cells.add(new CellsToMerge(currentNextLabel, false));
 						currentNextLabel++;
 					}
+					
+					if(filter != null){
+						int cellBody = element.getCellBody();
+						if(cellBody >= areas.length){
+							areas = Arrays.copyOf(areas, Math.max(2 * areas.length, cellBody + 1));
+							touchesBorder = Arrays.copyOf(touchesBorder, areas.length);
+						}
+						areas[cellBody]++;
+						if(x == 0 || y == 0 || x == width - 1 || y == height - 1){
+							touchesBorder[cellBody] = true;
+						}
+					}
 				}
 			}
 		}
+		
+		if(filter != null){
+			return rejectCellBodies(labelled, cells, areas, touchesBorder, filter, backgroundLabel);
+		}
 //		IJ.log("Before merging problem bodies");
 //		/*
 //		 * DEBUG log the result
@@ -315,6 +515,198 @@ public class Watershed {
 //			IJ.log(currLine);
 //			currLine = "";
 //		}
+		
+		return currentNextLabel - 1;
+	}
+	
+	/**
+	 * the run length replacement for initialCellBodyLabel. Runs in neighbouring rows
+	 * that touch (with 8 connectedness) are joined using a union-find over the runs,
+	 * and each resulting cell body is then numbered in the order it is first met.
+	 * @param mask the eroded foreground
+	 * @return the cell body labels of the foreground runs
+	 */
+	public static LabelledRuns labelRuns(RunLengthMask mask){
+		return labelRuns(mask, null);
+	}
+	
+	/**
+	 * labels the runs as labelRuns(RunLengthMask) does, discarding the cell
+	 * bodies the filter rejects. The area of each cell body, and whether it
+	 * touches the edge of the image, is summed at its root in the union-find
+	 * before the bodies are numbered, and the numbering pass then leaves out the
+	 * runs of rejected bodies, so they never reach the later stages and the kept
+	 * bodies are numbered without gaps.
+	 * @param mask the eroded foreground
+	 * @param filter the filter deciding which cell bodies are kept, or null to
+	 * keep every one
+	 * @return the cell body labels of the kept foreground runs
+	 */
+	public static LabelledRuns labelRuns(RunLengthMask mask, SeedFilter filter){
+		final int width = mask.getWidth();
+		final int height = mask.getHeight();
+		
+		int[] rowOffset = new int[height + 1];
+		for(int y = 0; y < height; y++){
+			rowOffset[y + 1] = rowOffset[y] + mask.getRunCount(y);
+		}
+		
+		int[] parent = new int[rowOffset[height]];
+		for(int i = 0; i < parent.length; i++){
+			parent[i] = i;
+		}
+		
+		for(int y = 1; y < height; y++){
+			Cancellation.checkpoint();
+			int[] row = mask.getRow(y);
+			int[] prev = mask.getRow(y - 1);
+			int i = 0;
+			int j = 0;
+			while(i < row.length && j < prev.length){
+				/*runs touch diagonally as well as directly*/
+				if(prev[j] <= row[i + 1] && row[i] <= prev[j + 1]){
+					union(parent, rowOffset[y] + i / 2, rowOffset[y - 1] + j / 2);
+				}
+				if(row[i + 1] < prev[j + 1]){
+					i += 2;
+				} else {
+					j += 2;
+				}
+			}
+		}
+		
+		int[] cellBody = new int[parent.length];
+		if(filter != null){
+			rejectRuns(mask, parent, rowOffset, filter, cellBody);
+		}
+		
+		int currentNextLabel = 1;
+		int[][] cells = new int[height][];
+		for(int y = 0; y < height; y++){
+			int[] row = mask.getRow(y);
+			int[] cellRow = new int[row.length / 2 * 3];
+			int kept = 0;
+			for(int i = 0; i < row.length; i += 2){
+				int root = find(parent, rowOffset[y] + i / 2);
+				if(cellBody[root] == REJECTED){
+					continue;
+				}
+				if(cellBody[root] == 0){
+					cellBody[root] = currentNextLabel++;
+				}
+				cellRow[kept++] = row[i];
+				cellRow[kept++] = row[i + 1];
+				cellRow[kept++] = cellBody[root];
+			}
+			cells[y] = kept == cellRow.length ? cellRow : Arrays.copyOf(cellRow, kept);
+		}
+		
+		return new LabelledRuns(width, height, cells, null, currentNextLabel - 1);
+	}
+	
+	/**
+	 * sums the area of every cell body at its root, notes whether it touches
+	 * the edge of the image, and marks the roots of those the filter rejects
+	 * @param cellBody set to REJECTED at the root of each rejected cell body
+	 */
+	private static void rejectRuns(RunLengthMask mask, int[] parent, int[] rowOffset, SeedFilter filter, int[] cellBody){
+		final int width = mask.getWidth();
+		final int height = mask.getHeight();
+		long[] areas = new long[parent.length];
+		boolean[] touchesBorder = new boolean[parent.length];
+		for(int y = 0; y < height; y++){
+			Cancellation.checkpoint();
+			int[] row = mask.getRow(y);
+			boolean edgeRow = y == 0 || y == height - 1;
+			for(int i = 0; i < row.length; i += 2){
+				int root = find(parent, rowOffset[y] + i / 2);
+				areas[root] += row[i + 1] - row[i];
+				if(edgeRow || row[i] == 0 || row[i + 1] == width){
+					touchesBorder[root] = true;
+				}
+			}
+		}
+		for(int run = 0; run < parent.length; run++){
+			if(parent[run] == run && !filter.accepts(areas[run], touchesBorder[run])){
+				cellBody[run] = REJECTED;
+			}
+		}
+	}
+	
+	/**
+	 * finds the root of a run in the union-find, halving the path as it goes
+	 */
+	private static int find(int[] parent, int run){
+		while(parent[run] != run){
+			parent[run] = parent[parent[run]];
+			run = parent[run];
+		}
+		return run;
+	}
+	
+	/**
+	 * joins the sets of two runs in the union-find, keeping the lower root
+	 */
+	private static void union(int[] parent, int a, int b){
+		int rootA = find(parent, a);
+		int rootB = find(parent, b);
+		if(rootA < rootB){
+			parent[rootB] = rootA;
+		} else if(rootB < rootA){
+			parent[rootA] = rootB;
+		}
+	}
+	
+	/**
+	 * joins the cell bodies that meet, as mergeCellBodies does, and returns those
+	 * the filter rejects to the background, in a single pass over the pixels
+	 * that looks each provisional label's cell body up in a table
+	 * @param areas the number of pixels given each provisional label
+	 * @param touchesBorder true for each provisional label that reached the edge
+	 * of the image
+	 * @return the number of cell bodies kept, which are numbered from 1 up
+	 */
+	private static int rejectCellBodies(ThresholdDataPoint[][] labelled, ArrayList<CellsToMerge> cells, long[] areas,
+			boolean[] touchesBorder, SeedFilter filter, int backgroundLabel){
+		int[] joined = new int[cells.size()];
+		long[] joinedAreas = new long[cells.size()];
+		boolean[] joinedBorder = new boolean[cells.size()];
+		for(int cell = 1; cell < cells.size(); cell++){
+			int root = cells.get(cell).root().getCellBody();
+			joined[cell] = root;
+			if(cell < areas.length){
+				joinedAreas[root] += areas[cell];
+				joinedBorder[root] |= touchesBorder[cell];
+			}
+		}
+		int[] numbers = new int[cells.size()];
+		int kept = 0;
+		for(int cell = 1; cell < cells.size(); cell++){
+			if(joined[cell] == cell && filter.accepts(joinedAreas[cell], joinedBorder[cell])){
+				numbers[cell] = ++kept;
+			}
+		}
+		for(int cell = 1; cell < cells.size(); cell++){
+			int number = numbers[joined[cell]];
+			joined[cell] = number == 0 ? REJECTED : number;
+		}
+		
+		for(ThresholdDataPoint[] row : labelled){
+			Cancellation.checkpoint();
+			for(ThresholdDataPoint element : row){
+				int cellBody = element.getCellBody();
+				if(cellBody == 0){
+					continue;
+				}
+				if(joined[cellBody] == REJECTED){
+					element.setCellBody(0);
+					element.setLabel(backgroundLabel);
+				} else {
+					element.setCellBody(joined[cellBody]);
+				}
+			}
+		}
+		return kept;
 	}
 	
 	/**
@@ -387,14 +779,5 @@ public class Watershed {
 		}
 		dataPoint.setCellBody(neighCellLabel);
 	}
-	
-	public static void brighten(ThresholdDataPoint[][] labelled, int backgroundLabel){
-		for(ThresholdDataPoint[] row : labelled){
-			for(ThresholdDataPoint element: row){
-				if(element.getCellBody() != 0){
-				element.setCellBody(element.getCellBody() + 10);}
-			}
-		}
-	}
 
 }
@@ -0,0 +1,714 @@
+package watershed;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Collections;
+
+import dataTypes.LabelStatistics;
+import dataTypes.LabelStore;
+import dataTypes.LabelledRuns;
+import dataTypes.PixelPos;
+import dataTypes.PixelsValues;
+import dataTypes.RunLengthMask;
+import dataTypes.ThresholdDataPoint;
+import ij.gui.Roi;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+/**
+ * carries out watershedding with a fixed set of parameters.
+ *
+ * An engine holds nothing but its immutable parameters. Every run creates its own
+ * working state (the labels, masks and metrics), which is only ever seen by the
+ * thread carrying out that run, so a single engine can be used by many threads at
+ * once and always gives the same result for the same image. The engine does not
+ * log or show progress; the timings of each stage are returned with the labels
+ * for the caller to report.
+ *
+ * A run can be stopped part way through by making a Cancellation current for
+ * the calling thread. The run then throws a CancelledException carrying the
+ * metrics of the stages it finished.
+ *
+ * The labels are output as 8 bit when they fit, 16 bit when they do not, and as
+ * a 32 bit float image when there are more than 65535 of them.
+ *
+ * @author Mark
+ *
+ */
+public final class WatershedEngine {
+
+	private final WatershedParams params;
+
+	/**
+	 * @param params the parameters every run of this engine uses
+	 */
+	public WatershedEngine(WatershedParams params){
+		if(params == null){
+			throw new IllegalArgumentException("Parameters must be given");
+		}
+		this.params = params;
+	}
+
+	public WatershedParams getParams() {
+		return params;
+	}
+
+	/**
+	 * watersheds an image. The input is only read, so the same image may be passed
+	 * to several runs at once.
+	 * @param input the image to watershed
+	 * @return the labelled image and the timings of each stage
+	 */
+	public WatershedResult run(ImageProcessor input){
+		return run(input, (Markers) null);
+	}
+
+	/**
+	 * watersheds an image, growing the cells from markers that are already known
+	 * rather than finding cell bodies by eroding the threshold mask. The erosion
+	 * and labelling are skipped, and the markers are grown inside the threshold
+	 * mask until it is filled.
+	 * @param input the image to watershed, which is only read
+	 * @param markers the markers to grow the cells from, or null to find the cell
+	 * bodies as usual
+	 * @return the labelled image and the timings of each stage
+	 */
+	public WatershedResult run(ImageProcessor input, Markers markers){
+		RunMetrics metrics = new RunMetrics();
+		try {
+			LabelledRuns seeds = place(markers, new Rectangle(0, 0, input.getWidth(), input.getHeight()), metrics);
+			ImageProcessor labels = segment(input, input.getMin(), input.getMax(), seeds, metrics);
+			return new WatershedResult(labels, metrics);
+		} catch(CancelledException e){
+			throw CancelledException.withMetrics(e, metrics);
+		}
+	}
+
+	/**
+	 * watersheds only the part of an image inside a selection. The image is
+	 * cropped to the selection's bounds, and the pixels of the crop outside the
+	 * selection are treated as background. The coloration values are scaled using
+	 * the minimum and maximum of the whole image, so a cell inside the selection
+	 * passes the threshold exactly as it would when watershedding the whole image.
+	 *
+	 * The labels cover only the selection's bounds (clipped to the image); use
+	 * WatershedResult.toFullSize to paste them back into a full size image.
+	 * @param input the image to watershed, which is only read
+	 * @param roi the selection, or null (or a non area selection) to watershed
+	 * the whole image
+	 * @return the labels of the selection's bounds and the timings of each stage
+	 */
+	public WatershedResult run(ImageProcessor input, Roi roi){
+		return run(input, roi, null);
+	}
+
+	/**
+	 * watersheds only the part of an image inside a selection, growing the cells
+	 * from markers as run(ImageProcessor, Markers) does. Markers outside the
+	 * selection's bounds are left out.
+	 * @param input the image to watershed, which is only read
+	 * @param roi the selection, or null (or a non area selection) to watershed
+	 * the whole image
+	 * @param markers the markers to grow the cells from, or null to find the cell
+	 * bodies as usual
+	 * @return the labels of the selection's bounds and the timings of each stage
+	 */
+	public WatershedResult run(ImageProcessor input, Roi roi, Markers markers){
+		if(roi == null || !roi.isArea()){
+			return run(input, markers);
+		}
+		Rectangle roiBounds = roi.getBounds();
+		Rectangle bounds = roiBounds.intersection(new Rectangle(0, 0, input.getWidth(), input.getHeight()));
+		if(bounds.isEmpty()){
+			throw new IllegalArgumentException("The selection is outside the image");
+		}
+
+		RunMetrics metrics = new RunMetrics();
+		try {
+			ImageProcessor crop = crop(input, bounds, roiBounds, roi.getMask());
+			metrics.endStage("Cropping to selection");
+			LabelledRuns seeds = place(markers, bounds, metrics);
+
+			ImageProcessor labels = segment(crop, input.getMin(), input.getMax(), seeds, metrics);
+			return new WatershedResult(labels, metrics, bounds);
+		} catch(CancelledException e){
+			throw CancelledException.withMetrics(e, metrics);
+		}
+	}
+
+	/**
+	 * @return the markers inside an area as cell body runs of that area, or null
+	 * if there are no markers
+	 */
+	private static LabelledRuns place(Markers markers, Rectangle bounds, RunMetrics metrics){
+		if(markers == null){
+			return null;
+		}
+		LabelledRuns seeds = markers.toRuns(bounds.x, bounds.y, bounds.width, bounds.height);
+		metrics.endStage("Placing markers");
+		return seeds;
+	}
+
+	/**
+	 * counts and measures the cells of an image without building a label image.
+	 * The image is thresholded and its cell bodies found as the run length engine
+	 * finds them, and each cell is then grown until it fills the threshold mask
+	 * with GrowToMask. Only the parts of the mask that several cells share are
+	 * dilated, and nothing is ever written to a label image, so the cells are
+	 * measured in a fraction of the time of a run. The cells are those of a run
+	 * that dilates until the mask is filled, so they are exactly those of
+	 * run(input, markers) when the parameters already fill it, as with markers,
+	 * and otherwise are as large as the mask lets them be.
+	 * @param input the image to watershed, which is only read
+	 * @param markers the markers to grow the cells from, or null to find the cell
+	 * bodies as usual
+	 * @return the statistics of each cell and the timings of each stage
+	 * @throws IllegalArgumentException if the parameters merge cells, which needs
+	 * a label image, or ask for the pixel engine, whose cells are only found on
+	 * one
+	 */
+	public MeasureResult measure(ImageProcessor input, Markers markers){
+		if(params.getMergeThreshold() > 0){
+			throw new IllegalArgumentException("Cells can only be merged on a label image, so cannot be merged while only measuring them");
+		}
+		if(params.getEngine() == Engine.PIXEL){
+			throw new IllegalArgumentException("Cells are only measured as the run length engine finds them, so the pixel engine cannot be used while only measuring them");
+		}
+		RunMetrics metrics = new RunMetrics();
+		try {
+			return measure(input, markers, metrics);
+		} catch(CancelledException e){
+			throw CancelledException.withMetrics(e, metrics);
+		}
+	}
+
+	private MeasureResult measure(ImageProcessor input, Markers markers, RunMetrics metrics){
+		metrics.setPixelCount((long) input.getWidth() * input.getHeight());
+		LabelledRuns seeds = place(markers, new Rectangle(0, 0, input.getWidth(), input.getHeight()), metrics);
+		double minVal = input.getMin();
+		double maxVal = input.getMax();
+
+		RunLengthMask thresholdMask = thresholdMask(input, minVal, maxVal, metrics);
+		LabelledRuns bodies = seeds != null ? seeds : cellBodies(thresholdMask, metrics);
+		LabelStatistics[] statistics = GrowToMask.measure(thresholdMask, bodies, Watershed.LABEL_OFFSET);
+		metrics.endStage("Growing and measuring cells");
+		return new MeasureResult(statistics, metrics);
+	}
+
+	/**
+	 * counts and measures the cells of an image without keeping a label image,
+	 * as measure(input, null) does
+	 * @param input the image to watershed, which is only read
+	 * @return the statistics of each cell and the timings of each stage
+	 */
+	public MeasureResult measure(ImageProcessor input){
+		return measure(input, null);
+	}
+
+	private ImageProcessor segment(ImageProcessor input, double minVal, double maxVal, LabelledRuns seeds, RunMetrics metrics){
+		ExecutionPlan plan = plan(input, minVal, maxVal, seeds, metrics);
+		return segment(input, minVal, maxVal, seeds, plan, metrics);
+	}
+
+	private ExecutionPlan plan(ImageProcessor input, double minVal, double maxVal, LabelledRuns seeds, RunMetrics metrics){
+		metrics.setPixelCount((long) input.getWidth() * input.getHeight());
+		/*
+		 * markers are always grown until the mask is filled, so plan for that
+		 */
+		WatershedParams planned = seeds == null ? params : params.toBuilder().geodesic(true).untilFilled(true).build();
+		ExecutionPlan plan = ExecutionPlanner.plan(input, minVal, maxVal, planned);
+		metrics.setPlan(plan);
+		metrics.endStage("Planning");
+		return plan;
+	}
+
+	private ImageProcessor segment(ImageProcessor input, double minVal, double maxVal, LabelledRuns seeds, ExecutionPlan plan, RunMetrics metrics){
+		ImageProcessor labels;
+		if(plan.getStrategy() == ExecutionPlan.Strategy.RUN_LENGTH){
+			labels = runRuns(input, minVal, maxVal, seeds, metrics);
+		} else if(plan.getStrategy() == ExecutionPlan.Strategy.STREAMING){
+			labels = runStreaming(input, minVal, maxVal, metrics);
+		} else {
+			labels = runPixels(input, minVal, maxVal, seeds, metrics);
+		}
+
+		/*
+		 * merging over-segmented cells
+		 */
+		if(params.getMergeThreshold() > 0){
+			RegionMerge.merge(labels, input, Watershed.WSHED_LABEL, minVal, maxVal, params.getMergeThreshold());
+			metrics.endStage("Merging cells");
+		}
+		return labels;
+	}
+
+	/**
+	 * copies the part of an image inside a selection. Pixels outside the
+	 * selection's mask are set to NaN, which never passes the threshold, so
+	 * they always become background.
+	 * @param input the image to crop
+	 * @param bounds the area to copy, inside the image
+	 * @param roiBounds the bounds of the selection, which its mask is relative to
+	 * @param mask the selection's mask, or null for a rectangle
+	 * @return the copied pixels
+	 */
+	private static ImageProcessor crop(ImageProcessor input, Rectangle bounds, Rectangle roiBounds, ImageProcessor mask){
+		float[] pixels = new float[bounds.width * bounds.height];
+		for(int y = 0, i = 0; y < bounds.height; y++){
+			int imageY = bounds.y + y;
+			for(int x = 0; x < bounds.width; x++, i++){
+				int imageX = bounds.x + x;
+				if(mask != null && mask.get(imageX - roiBounds.x, imageY - roiBounds.y) == 0){
+					pixels[i] = Float.NaN;
+				} else {
+					pixels[i] = input.getf(imageX, imageY);
+				}
+			}
+		}
+		return new FloatProcessor(bounds.width, bounds.height, pixels, null);
+	}
+
+	/**
+	 * thresholds an image against the mean of the window around each pixel,
+	 * filtering it first if the parameters ask for it
+	 * @param input the given image's processor
+	 * @param minVal the minimum value of the coloration in a pixel
+	 * @param maxVal the maximum value of the coloration in a pixel
+	 * @param metrics the metrics of this run
+	 * @return the runs of pixels that pass
+	 */
+	private RunLengthMask adaptiveMask(ImageProcessor input, double minVal, double maxVal, RunMetrics metrics){
+		ImageProcessor values = input;
+		if(params.hasPrefilter()){
+			values = Prefilter.filter(input, minVal, maxVal, params.getSigma(), params.isGradient());
+			metrics.endStage("Filtering");
+		}
+		RunLengthMask mask = Threshold.adaptiveRuns(values, minVal, maxVal, params.getAdaptiveRadius(), params.getAdaptiveOffset());
+		metrics.endStage("Adaptive thresholding");
+		return mask;
+	}
+
+	/**
+	 * thresholds an image automatically, working the threshold value out from
+	 * its histogram, which needs a counting pass before the thresholding as the
+	 * runs are thresholded as the image is read
+	 * @param input the given image's processor
+	 * @param minVal the minimum value of the coloration in a pixel
+	 * @param maxVal the maximum value of the coloration in a pixel
+	 * @param metrics the metrics of this run
+	 * @return the runs of pixels that pass
+	 */
+	private RunLengthMask autoMask(ImageProcessor input, double minVal, double maxVal, RunMetrics metrics){
+		ImageProcessor values = input;
+		if(params.hasPrefilter()){
+			values = Prefilter.filter(input, minVal, maxVal, params.getSigma(), params.isGradient());
+			metrics.endStage("Filtering");
+		}
+		double threshold = threshVal(Threshold.histogram(values, minVal, maxVal), metrics);
+		metrics.endStage("Counting coloration values");
+		RunLengthMask mask = Threshold.thresholdRuns(values, minVal, maxVal, threshold);
+		metrics.endStage("Thresholding");
+		return mask;
+	}
+
+	/**
+	 * @param histogram the histogram of the image's coloration values, or null if
+	 * it is not thresholded automatically
+	 * @param metrics the metrics of this run, which the threshold value worked
+	 * out is recorded in
+	 * @return the threshold value to apply
+	 */
+	private double threshVal(long[] histogram, RunMetrics metrics){
+		if(histogram == null){
+			return params.getThreshVal();
+		}
+		double threshold = params.getAutoThreshold().threshold(histogram);
+		metrics.setThreshold(threshold);
+		return threshold;
+	}
+
+	/**
+	 * turns a mask held as a [x][y] array into runs
+	 */
+	private static RunLengthMask toRuns(boolean[][] mask, int width, int height){
+		int[][] rows = new int[height][];
+		for(int y = 0; y < height; y++){
+			RunLengthMask.RunBuilder row = new RunLengthMask.RunBuilder(8);
+			int runStart = -1;
+			for(int x = 0; x < width; x++){
+				if(mask[x][y] && runStart == -1){
+					runStart = x;
+				} else if(!mask[x][y] && runStart != -1){
+					row.add(runStart, x);
+					runStart = -1;
+				}
+			}
+			if(runStart != -1){
+				row.add(runStart, width);
+			}
+			rows[y] = row.toArray();
+		}
+		return new RunLengthMask(width, height, rows);
+	}
+
+	/**
+	 * the original pixel based watershedding. Handles the construction of an
+	 * arraylist of the pixels and their coloration values, to be threshholded in
+	 * order to create a new binary array, which can then be eroded and dilated as
+	 * required.
+	 * @param input the given image's processor
+	 * @param minVal the minimum value of the coloration in a pixel
+	 * @param maxVal the maximum value of the coloration in a pixel
+	 * @param seeds the markers to grow the cells from, or null to find the cell
+	 * bodies by eroding
+	 * @param metrics the metrics of this run
+	 * @return the labelled image
+	 */
+	private ImageProcessor runPixels(ImageProcessor input, double minVal, double maxVal, LabelledRuns seeds, RunMetrics metrics){
+		final int width = input.getWidth();
+		final int height = input.getHeight();
+		final int eroDilCount = params.getEroDilCount();
+		final boolean limited = params.isGeodesic() || params.isDistanceSeeds() || seeds != null;
+		final boolean filling = params.isFilling() || seeds != null;
+
+		// output labels
+		final ThresholdDataPoint[][] labelled = new ThresholdDataPoint[width][height];
+
+		final int backgroundLabel = 1;
+		final int foregroundLabel = 0;
+
+		for(int x = 0; x < width; x++){
+			for(int y = 0; y < height; y++){
+				PixelPos pixelPos = new PixelPos(x,y);
+				labelled[x][y] = new ThresholdDataPoint(backgroundLabel, pixelPos);
+			}
+		}
+
+		if(params.isAdaptive()){
+			/*
+			 * thresholding against each pixel's window
+			 */
+			RunLengthMask adaptive = adaptiveMask(input, minVal, maxVal, metrics);
+			for(int y = 0; y < height; y++){
+				int[] runs = adaptive.getRow(y);
+				for(int r = 0; r < runs.length; r += 2){
+					for(int x = runs[r]; x < runs[r + 1]; x++){
+						labelled[x][y].setLabel(foregroundLabel);
+					}
+				}
+			}
+		} else {
+			/*
+			 * the histogram for thresholding automatically is counted as the
+			 * values are extracted
+			 */
+			long[] histogram = params.isAutoThreshold() ? new long[Threshold.BINS] : null;
+			ArrayList<PixelsValues> pixelList;
+			if(params.hasPrefilter()){
+				pixelList = Prefilter.extractPixelValues(input, minVal, maxVal, params.getSigma(), params.isGradient(), histogram);
+				metrics.endStage("Filtering and extracting coloration values");
+			} else {
+				pixelList = Watershed.extractPixelValues(input, minVal, maxVal, histogram);
+				metrics.endStage("Extracting coloration values");
+			}
+
+			Collections.sort(pixelList);
+			metrics.endStage("Sorting pixels by coloration value");
+
+			/*
+			 * thresholding
+			 */
+			Threshold.threshold(pixelList, labelled, threshVal(histogram, metrics), foregroundLabel);
+		}
+
+		/*
+		 * keep the threshold mask so that geodesic growth can be limited to it
+		 */
+		boolean[][] thresholdMask = null;
+		if(limited){
+			thresholdMask = new boolean[width][height];
+			for(int x = 0; x < width; x++){
+				for(int y = 0; y < height; y++){
+					thresholdMask[x][y] = labelled[x][y].getLabel() == foregroundLabel;
+				}
+			}
+		}
+		metrics.endStage("Thresholding");
+
+		if(seeds != null){
+			/*
+			 * placing the markers, leaving only them in the foreground
+			 */
+			for(int x = 0; x < width; x++){
+				for(int y = 0; y < height; y++){
+					labelled[x][y].setLabel(backgroundLabel);
+				}
+			}
+			for(int y = 0; y < height; y++){
+				int[] runs = seeds.getCells(y);
+				for(int r = 0; r < runs.length; r += 3){
+					for(int x = runs[r]; x < runs[r + 1]; x++){
+						labelled[x][y].setLabel(foregroundLabel);
+						labelled[x][y].setCellBody(runs[r + 2]);
+					}
+				}
+			}
+			metrics.endStage("Placing markers");
+		} else if(params.isDistanceSeeds()){
+			/*
+			 * seeding from the distance transform, leaving only the seeds in the foreground
+			 */
+			RunLengthMask distanceSeeds = DistanceSeeds.seeds(toRuns(thresholdMask, width, height), params.getSeedHeight());
+			for(int x = 0; x < width; x++){
+				for(int y = 0; y < height; y++){
+					labelled[x][y].setLabel(distanceSeeds.isForeground(x, y) ? foregroundLabel : backgroundLabel);
+				}
+			}
+			metrics.endStage("Finding distance seeds");
+		} else {
+			/*
+			 * eroding
+			 */
+			for(int i = 0; i<eroDilCount; i++){
+				Erode.erode(labelled, backgroundLabel, foregroundLabel, width, height);
+			}
+			metrics.endStage("Eroding");
+		}
+
+		/*
+		 * set the neighbours
+		 */
+		Watershed.establishNeighbours(labelled, width, height);
+		metrics.endStage("Establishing neighbours");
+
+		/*
+		 * set the initial labels for the cell bodies, which the markers already
+		 * have, discarding those the seed filter rejects
+		 */
+		int cellBodyCount;
+		if(seeds != null){
+			cellBodyCount = seeds.getCellBodyCount();
+		} else {
+			cellBodyCount = Watershed.initialCellBodyLabel(labelled, backgroundLabel, foregroundLabel, Watershed.CONNEC, SeedFilter.of(params));
+			metrics.endStage("Labelling cell bodies");
+		}
+
+		/*
+		 * dilating
+		 */
+		if(limited){
+			int maxSteps = filling ? -1 : eroDilCount;
+			Dilate.geodesicDilate(labelled, thresholdMask, backgroundLabel, foregroundLabel, width, height, maxSteps);
+		} else {
+			for(int i = 0; i<eroDilCount; i++){
+				Dilate.dilate(labelled, backgroundLabel, foregroundLabel, width, height);
+			}
+		}
+		metrics.endStage("Dilating");
+
+		/*
+		 * taking the array of labels and turning it into an image for the user
+		 */
+
+		LabelStore labels = new LabelStore(width, height, cellBodyCount + Watershed.LABEL_OFFSET);
+		for(int y = 0, i = 0; y < height; y++){
+			for(int x = 0; x < width; x++, i++){
+				ThresholdDataPoint dataPoint = labelled[x][y];
+				int cellBody = dataPoint.getCellBody();
+				if(cellBody == 0){
+					continue;
+				}
+				/*
+				 * watershed pixels are told apart from cell body WSHED by their
+				 * background label
+				 */
+				if(cellBody == Watershed.WSHED && dataPoint.getLabel() == backgroundLabel){
+					labels.set(i, Watershed.WSHED_LABEL);
+				} else {
+					labels.set(i, cellBody + Watershed.LABEL_OFFSET);
+				}
+			}
+		}
+		ImageProcessor output = labels.toProcessor();
+		metrics.endStage("Writing output");
+
+		return output;
+	}
+
+	/**
+	 * the run length watershedding. The threshold mask is built directly as runs,
+	 * eroded and labelled as runs, and the cell bodies are grown back as runs, so
+	 * on sparse images most of the background is never visited until the output
+	 * is written.
+	 * @param input the given image's processor
+	 * @param minVal the minimum value of the coloration in a pixel
+	 * @param maxVal the maximum value of the coloration in a pixel
+	 * @param seeds the markers to grow the cells from, or null to find the cell
+	 * bodies by eroding
+	 * @param metrics the metrics of this run
+	 * @return the labelled image
+	 */
+	private ImageProcessor runRuns(ImageProcessor input, double minVal, double maxVal, LabelledRuns seeds, RunMetrics metrics){
+		LabelledRuns labelled = growRuns(input, minVal, maxVal, seeds, metrics);
+
+		/*
+		 * taking the runs and turning them into an image for the user
+		 */
+		LabelStore labels = new LabelStore(input.getWidth(), input.getHeight(), labelled.getCellBodyCount() + Watershed.LABEL_OFFSET);
+		labelled.fill(labels, Watershed.LABEL_OFFSET, Watershed.WSHED_LABEL);
+		ImageProcessor output = labels.toProcessor();
+		metrics.endStage("Writing output");
+
+		return output;
+	}
+
+	/**
+	 * the run length watershedding up to the point of writing the output
+	 * @param input the given image's processor
+	 * @param minVal the minimum value of the coloration in a pixel
+	 * @param maxVal the maximum value of the coloration in a pixel
+	 * @param seeds the markers to grow the cells from, or null to find the cell
+	 * bodies by eroding
+	 * @param metrics the metrics of this run
+	 * @return the grown cell bodies and watershed lines
+	 */
+	private LabelledRuns growRuns(ImageProcessor input, double minVal, double maxVal, LabelledRuns seeds, RunMetrics metrics){
+		final int eroDilCount = params.getEroDilCount();
+		final boolean limited = params.isGeodesic() || params.isDistanceSeeds() || seeds != null;
+		final boolean filling = params.isFilling() || seeds != null;
+
+		RunLengthMask thresholdMask = thresholdMask(input, minVal, maxVal, metrics);
+
+		/*
+		 * markers are the cell bodies when there are any
+		 */
+		LabelledRuns labelled = seeds != null ? seeds : cellBodies(thresholdMask, metrics);
+
+		/*
+		 * dilating
+		 */
+		RunLengthMask limit = limited ? thresholdMask : null;
+		if(filling){
+			long area;
+			do {
+				area = labelled.getCellArea();
+				labelled = Dilate.dilateRuns(labelled, limit);
+			} while(labelled.getCellArea() != area);
+		} else {
+			for(int i = 0; i < eroDilCount; i++){
+				labelled = Dilate.dilateRuns(labelled, limit);
+			}
+		}
+		metrics.endStage("Dilating");
+
+		return labelled;
+	}
+
+	/**
+	 * thresholds an image into runs as the parameters ask
+	 * @param input the given image's processor
+	 * @param minVal the minimum value of the coloration in a pixel
+	 * @param maxVal the maximum value of the coloration in a pixel
+	 * @param metrics the metrics of this run
+	 * @return the runs of pixels that pass
+	 */
+	private RunLengthMask thresholdMask(ImageProcessor input, double minVal, double maxVal, RunMetrics metrics){
+		RunLengthMask thresholdMask;
+		if(params.isAdaptive()){
+			thresholdMask = adaptiveMask(input, minVal, maxVal, metrics);
+		} else if(params.isAutoThreshold()){
+			thresholdMask = autoMask(input, minVal, maxVal, metrics);
+		} else if(params.hasPrefilter()){
+			thresholdMask = Prefilter.thresholdRuns(input, minVal, maxVal, params.getThreshVal(), params.getSigma(), params.isGradient());
+			metrics.endStage("Filtering and thresholding");
+		} else {
+			thresholdMask = Threshold.thresholdRuns(input, minVal, maxVal, params.getThreshVal());
+			metrics.endStage("Thresholding");
+		}
+		return thresholdMask;
+	}
+
+	/**
+	 * finds the cell bodies of a threshold mask, by eroding it or from its
+	 * distance transform, discarding those the seed filter rejects
+	 * @param thresholdMask the runs of pixels that passed the threshold
+	 * @param metrics the metrics of this run
+	 * @return the labelled cell bodies
+	 */
+	private LabelledRuns cellBodies(RunLengthMask thresholdMask, RunMetrics metrics){
+		final int eroDilCount = params.getEroDilCount();
+		RunLengthMask eroded = thresholdMask;
+		if(params.isDistanceSeeds()){
+			/*
+			 * seeding from the distance transform
+			 */
+			eroded = DistanceSeeds.seeds(thresholdMask, params.getSeedHeight());
+			metrics.endStage("Finding distance seeds");
+		} else {
+			/*
+			 * eroding
+			 */
+			for(int i = 0; i < eroDilCount; i++){
+				eroded = Erode.erodeRuns(eroded);
+			}
+			metrics.endStage("Eroding");
+		}
+
+		/*
+		 * set the initial labels for the cell bodies, discarding those the
+		 * seed filter rejects
+		 */
+		LabelledRuns labelled = Watershed.labelRuns(eroded, SeedFilter.of(params));
+		metrics.endStage("Labelling cell bodies");
+		return labelled;
+	}
+
+	/**
+	 * the run length watershedding carried out a row at a time, writing each
+	 * finished row straight into the output. Cell bodies found to be one only
+	 * after some of their rows were written are given a single label once the
+	 * image is finished.
+	 * @param input the given image's processor
+	 * @param minVal the minimum value of the coloration in a pixel
+	 * @param maxVal the maximum value of the coloration in a pixel
+	 * @param metrics the metrics of this run
+	 * @return the labelled image
+	 */
+	private ImageProcessor runStreaming(ImageProcessor input, double minVal, double maxVal, RunMetrics metrics){
+		final int width = input.getWidth();
+		final int height = input.getHeight();
+		StreamingWatershed.LabelImageSink labels = new StreamingWatershed.LabelImageSink(width, height);
+
+		/*
+		 * the rows are thresholded as they are read, so the threshold value is
+		 * worked out first, with a counting pass that holds nothing
+		 */
+		WatershedParams streamParams = params;
+		if(params.isAutoThreshold()){
+			double threshold = threshVal(Threshold.histogram(input, minVal, maxVal), metrics);
+			streamParams = params.toBuilder().threshVal(threshold).autoThreshold(null).build();
+			metrics.endStage("Counting coloration values");
+		}
+
+		StreamingWatershed stream = new StreamingWatershed(width, minVal, maxVal, streamParams, labels);
+		float[] values = new float[width];
+		for(int y = 0; y < height; y++){
+			Cancellation.checkpoint();
+			for(int x = 0; x < width; x++){
+				values[x] = input.getf(x, y);
+			}
+			stream.push(values);
+		}
+		stream.finish();
+		metrics.endStage("Streaming");
+
+		if(labels.joinNumbers()){
+			metrics.endStage("Joining cell bodies");
+		}
+
+		ImageProcessor output = labels.toProcessor();
+		metrics.endStage("Writing output");
+
+		return output;
+	}
+}
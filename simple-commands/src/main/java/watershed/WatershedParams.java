@@ -0,0 +1,392 @@
+package watershed;
+
+/**
+ * an immutable set of parameters for a watershedding run. Instances are made
+ * with a Builder, and can be shared freely between threads and engines.
+ * @author Mark
+ *
+ */
+public final class WatershedParams {
+
+	private final double threshVal;
+	private final AutoThreshold autoThreshold;
+	private final int eroDilCount;
+	private final Engine engine;
+	private final boolean geodesic;
+	private final boolean untilFilled;
+	private final double sigma;
+	private final boolean gradient;
+	private final double mergeThreshold;
+	private final boolean distanceSeeds;
+	private final double seedHeight;
+	private final int adaptiveRadius;
+	private final double adaptiveOffset;
+	private final int minSeedArea;
+	private final int maxSeedArea;
+	private final boolean excludeBorderSeeds;
+
+	private WatershedParams(Builder builder){
+		this.threshVal = builder.threshVal;
+		this.autoThreshold = builder.autoThreshold;
+		this.eroDilCount = builder.eroDilCount;
+		this.engine = builder.engine;
+		this.geodesic = builder.geodesic;
+		this.untilFilled = builder.untilFilled;
+		this.sigma = builder.sigma;
+		this.gradient = builder.gradient;
+		this.mergeThreshold = builder.mergeThreshold;
+		this.distanceSeeds = builder.distanceSeeds;
+		this.seedHeight = builder.seedHeight;
+		this.adaptiveRadius = builder.adaptiveRadius;
+		this.adaptiveOffset = builder.adaptiveOffset;
+		this.minSeedArea = builder.minSeedArea;
+		this.maxSeedArea = builder.maxSeedArea;
+		this.excludeBorderSeeds = builder.excludeBorderSeeds;
+	}
+
+	/**
+	 * @return the threshold value to be applied, unless thresholding adaptively
+	 * or automatically
+	 */
+	public double getThreshVal() {
+		return threshVal;
+	}
+
+	/**
+	 * @return the method the threshold value is worked out with from the
+	 * histogram of the image, or null to apply threshVal. It is not used when
+	 * thresholding adaptively.
+	 */
+	public AutoThreshold getAutoThreshold() {
+		return autoThreshold;
+	}
+
+	/**
+	 * @return true if the threshold value is worked out from the histogram of
+	 * the image rather than being threshVal
+	 */
+	public boolean isAutoThreshold() {
+		return autoThreshold != null && !isAdaptive();
+	}
+
+	/**
+	 * @return the number of erosions (and dilations) to perform
+	 */
+	public int getEroDilCount() {
+		return eroDilCount;
+	}
+
+	/**
+	 * @return the engine to carry out the watershedding with
+	 */
+	public Engine getEngine() {
+		return engine;
+	}
+
+	/**
+	 * @return true if the cell bodies should only be grown back inside the
+	 * original threshold mask
+	 */
+	public boolean isGeodesic() {
+		return geodesic;
+	}
+
+	/**
+	 * @return true if geodesic growth should continue until the mask is filled,
+	 * rather than stopping after eroDilCount steps
+	 */
+	public boolean isUntilFilled() {
+		return untilFilled;
+	}
+
+	/**
+	 * @return the standard deviation, in pixels, of the Gaussian smoothing applied
+	 * before thresholding, or 0 for no smoothing
+	 */
+	public double getSigma() {
+		return sigma;
+	}
+
+	/**
+	 * @return true if the (smoothed) image should be replaced by its Sobel
+	 * gradient magnitude before thresholding
+	 */
+	public boolean isGradient() {
+		return gradient;
+	}
+
+	/**
+	 * @return true if the image is smoothed or has its gradient taken before
+	 * thresholding
+	 */
+	public boolean hasPrefilter() {
+		return sigma > 0 || gradient;
+	}
+
+	/**
+	 * @return neighbouring cells whose boundary dips less than this far (in the
+	 * 0-255 coloration scale) below the dimmer cell are merged, 0 for no merging
+	 */
+	public double getMergeThreshold() {
+		return mergeThreshold;
+	}
+
+	/**
+	 * @return true if the cell bodies should be seeded from the peaks of the
+	 * threshold mask's distance transform rather than by eroding it. The seeds are
+	 * then grown until they fill the mask, and the erosion/dilation count is not
+	 * used.
+	 */
+	public boolean isDistanceSeeds() {
+		return distanceSeeds;
+	}
+
+	/**
+	 * @return the height, in pixels, a peak of the distance transform has to stand
+	 * above the saddle to a higher peak to become a seed of its own
+	 */
+	public double getSeedHeight() {
+		return seedHeight;
+	}
+
+	/**
+	 * @return true if the cell bodies are grown inside the threshold mask until
+	 * it is filled, either because that was asked for or because they were seeded
+	 * from the distance transform
+	 */
+	public boolean isFilling() {
+		return distanceSeeds || geodesic && untilFilled;
+	}
+
+	/**
+	 * @return the radius, in pixels, of the window each pixel is compared with
+	 * when thresholding adaptively, or 0 to threshold with threshVal
+	 */
+	public int getAdaptiveRadius() {
+		return adaptiveRadius;
+	}
+
+	/**
+	 * @return how far (in the 0-255 coloration scale) a pixel's coloration value
+	 * has to be below the mean of its window to pass the adaptive threshold; it
+	 * passes only if it is more than this far below
+	 */
+	public double getAdaptiveOffset() {
+		return adaptiveOffset;
+	}
+
+	/**
+	 * @return true if each pixel is thresholded against the mean of the window
+	 * around it rather than against threshVal
+	 */
+	public boolean isAdaptive() {
+		return adaptiveRadius > 0;
+	}
+
+	/**
+	 * @return seeds with fewer pixels than this are discarded as soon as they are
+	 * labelled, 0 to keep the smallest
+	 */
+	public int getMinSeedArea() {
+		return minSeedArea;
+	}
+
+	/**
+	 * @return seeds with more pixels than this are discarded as soon as they are
+	 * labelled, 0 to keep the largest
+	 */
+	public int getMaxSeedArea() {
+		return maxSeedArea;
+	}
+
+	/**
+	 * @return true if seeds touching the edge of the image are discarded as soon
+	 * as they are labelled. When only a selection is watershedded the edge is
+	 * that of the selection's bounds, clipped to the image, as a cell cut by them
+	 * is as incomplete as one cut by the image; the curve of a selection that is
+	 * not a rectangle is not an edge.
+	 */
+	public boolean isExcludeBorderSeeds() {
+		return excludeBorderSeeds;
+	}
+
+	/**
+	 * @return true if any seeds found by eroding or from the distance transform
+	 * are discarded by their area or position. Markers are always kept.
+	 */
+	public boolean hasSeedFilter() {
+		return minSeedArea > 0 || maxSeedArea > 0 || excludeBorderSeeds;
+	}
+
+	/**
+	 * @return a builder starting from these parameters, for making a variation of them
+	 */
+	public Builder toBuilder() {
+		Builder builder = new Builder();
+		builder.threshVal = threshVal;
+		builder.autoThreshold = autoThreshold;
+		builder.eroDilCount = eroDilCount;
+		builder.engine = engine;
+		builder.geodesic = geodesic;
+		builder.untilFilled = untilFilled;
+		builder.sigma = sigma;
+		builder.gradient = gradient;
+		builder.mergeThreshold = mergeThreshold;
+		builder.distanceSeeds = distanceSeeds;
+		builder.seedHeight = seedHeight;
+		builder.adaptiveRadius = adaptiveRadius;
+		builder.adaptiveOffset = adaptiveOffset;
+		builder.minSeedArea = minSeedArea;
+		builder.maxSeedArea = maxSeedArea;
+		builder.excludeBorderSeeds = excludeBorderSeeds;
+		return builder;
+	}
+
+	public String toString(){
+		return "threshVal=" + threshVal + ", autoThreshold=" + autoThreshold + ", eroDilCount=" + eroDilCount + ", engine=" + engine
+				+ ", geodesic=" + geodesic + ", untilFilled=" + untilFilled
+				+ ", sigma=" + sigma + ", gradient=" + gradient + ", mergeThreshold=" + mergeThreshold
+				+ ", distanceSeeds=" + distanceSeeds + ", seedHeight=" + seedHeight
+				+ ", adaptiveRadius=" + adaptiveRadius + ", adaptiveOffset=" + adaptiveOffset
+				+ ", minSeedArea=" + minSeedArea + ", maxSeedArea=" + maxSeedArea + ", excludeBorderSeeds=" + excludeBorderSeeds;
+	}
+
+	/**
+	 * builds WatershedParams, starting from the plugin's defaults
+	 * @author Mark
+	 *
+	 */
+	public static class Builder {
+
+		private double threshVal = 54;
+		private AutoThreshold autoThreshold = null;
+		private int eroDilCount = 5;
+		private Engine engine = Engine.AUTO;
+		private boolean geodesic = false;
+		private boolean untilFilled = false;
+		private double sigma = 0;
+		private boolean gradient = false;
+		private double mergeThreshold = 0;
+		private boolean distanceSeeds = false;
+		private double seedHeight = 1;
+		private int adaptiveRadius = 0;
+		private double adaptiveOffset = 10;
+		private int minSeedArea = 0;
+		private int maxSeedArea = 0;
+		private boolean excludeBorderSeeds = false;
+
+		public Builder threshVal(double threshVal){
+			this.threshVal = threshVal;
+			return this;
+		}
+
+		public Builder autoThreshold(AutoThreshold autoThreshold){
+			this.autoThreshold = autoThreshold;
+			return this;
+		}
+
+		public Builder eroDilCount(int eroDilCount){
+			if(eroDilCount < 0){
+				throw new IllegalArgumentException("The erosion/dilation count cannot be negative");
+			}
+			this.eroDilCount = eroDilCount;
+			return this;
+		}
+
+		public Builder engine(Engine engine){
+			if(engine == null){
+				throw new IllegalArgumentException("An engine must be chosen");
+			}
+			this.engine = engine;
+			return this;
+		}
+
+		public Builder geodesic(boolean geodesic){
+			this.geodesic = geodesic;
+			return this;
+		}
+
+		public Builder untilFilled(boolean untilFilled){
+			this.untilFilled = untilFilled;
+			return this;
+		}
+
+		public Builder sigma(double sigma){
+			if(!(sigma >= 0)){
+				throw new IllegalArgumentException("The smoothing sigma cannot be negative");
+			}
+			this.sigma = sigma;
+			return this;
+		}
+
+		public Builder gradient(boolean gradient){
+			this.gradient = gradient;
+			return this;
+		}
+
+		public Builder mergeThreshold(double mergeThreshold){
+			if(!(mergeThreshold >= 0)){
+				throw new IllegalArgumentException("The merge threshold cannot be negative");
+			}
+			this.mergeThreshold = mergeThreshold;
+			return this;
+		}
+
+		public Builder distanceSeeds(boolean distanceSeeds){
+			this.distanceSeeds = distanceSeeds;
+			return this;
+		}
+
+		public Builder seedHeight(double seedHeight){
+			if(!(seedHeight >= 0)){
+				throw new IllegalArgumentException("The seed height cannot be negative");
+			}
+			this.seedHeight = seedHeight;
+			return this;
+		}
+
+		public Builder adaptiveRadius(int adaptiveRadius){
+			if(adaptiveRadius < 0){
+				throw new IllegalArgumentException("The adaptive threshold radius cannot be negative");
+			}
+			this.adaptiveRadius = adaptiveRadius;
+			return this;
+		}
+
+		public Builder adaptiveOffset(double adaptiveOffset){
+			if(Double.isNaN(adaptiveOffset)){
+				throw new IllegalArgumentException("The adaptive threshold offset must be a number");
+			}
+			this.adaptiveOffset = adaptiveOffset;
+			return this;
+		}
+
+		public Builder minSeedArea(int minSeedArea){
+			if(minSeedArea < 0){
+				throw new IllegalArgumentException("The minimum seed area cannot be negative");
+			}
+			this.minSeedArea = minSeedArea;
+			return this;
+		}
+
+		public Builder maxSeedArea(int maxSeedArea){
+			if(maxSeedArea < 0){
+				throw new IllegalArgumentException("The maximum seed area cannot be negative");
+			}
+			this.maxSeedArea = maxSeedArea;
+			return this;
+		}
+
+		public Builder excludeBorderSeeds(boolean excludeBorderSeeds){
+			this.excludeBorderSeeds = excludeBorderSeeds;
+			return this;
+		}
+
+		public WatershedParams build(){
+			if(maxSeedArea > 0 && maxSeedArea < minSeedArea){
+				throw new IllegalArgumentException("The maximum seed area cannot be below the minimum seed area");
+			}
+			return new WatershedParams(this);
+		}
+	}
+}
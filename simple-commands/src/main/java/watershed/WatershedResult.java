@@ -0,0 +1,78 @@
+package watershed;
+
+import java.awt.Rectangle;
+
+import ij.process.ImageProcessor;
+
+/**
+ * the outcome of a single watershedding run: the label image and the metrics
+ * gathered while producing it. When only a selection was watershedded the label
+ * image covers just the selection's bounds, and the bounds give its position in
+ * the original image.
+ * @author Mark
+ *
+ */
+public class WatershedResult {
+
+	private ImageProcessor labels;
+	private RunMetrics metrics;
+	private Rectangle bounds;
+
+	/**
+	 * constructor for the result of watershedding a whole image
+	 */
+	public WatershedResult(ImageProcessor labels, RunMetrics metrics){
+		this(labels, metrics, new Rectangle(0, 0, labels.getWidth(), labels.getHeight()));
+	}
+
+	/**
+	 * constructor for the result of watershedding part of an image
+	 * @param labels the labels of the part
+	 * @param metrics the metrics of the run
+	 * @param bounds the position and size of the part within the original image
+	 */
+	public WatershedResult(ImageProcessor labels, RunMetrics metrics, Rectangle bounds){
+		this.labels = labels;
+		this.metrics = metrics;
+		this.bounds = bounds;
+	}
+
+	public ImageProcessor getLabels() {
+		return labels;
+	}
+
+	public RunMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * @return the area of the original image that the labels cover
+	 */
+	public Rectangle getBounds() {
+		return new Rectangle(bounds);
+	}
+
+	public int getOffsetX() {
+		return bounds.x;
+	}
+
+	public int getOffsetY() {
+		return bounds.y;
+	}
+
+	/**
+	 * pastes the labels into an otherwise empty (background) image the size of
+	 * the original image
+	 * @param width the width of the original image
+	 * @param height the height of the original image
+	 * @return the full size label image, of the same type as the labels
+	 */
+	public ImageProcessor toFullSize(int width, int height) {
+		if(bounds.x == 0 && bounds.y == 0 && labels.getWidth() == width && labels.getHeight() == height){
+			return labels;
+		}
+		ImageProcessor full = labels.createProcessor(width, height);
+		full.insert(labels, bounds.x, bounds.y);
+		return full;
+	}
+}
@@ -0,0 +1,211 @@
+package imagej_testing.simple_commands;
+
+import java.awt.Rectangle;
+import java.util.Random;
+
+import dataTypes.RunLengthMask;
+import ij.gui.OvalRoi;
+import ij.gui.Roi;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import watershed.Engine;
+import watershed.Threshold;
+import watershed.WatershedEngine;
+import watershed.WatershedParams;
+import watershed.WatershedResult;
+
+/**
+ * Tests of the adaptive threshold against the mean of each pixel's window
+ * worked out pixel by pixel: windows clipped at the edges of the image, values
+ * out of range left out of the mean, the offset compared strictly, and
+ * selections whose windows are clipped at the edges of the crop.
+ */
+public class AdaptiveThresholdTest
+    extends TestCase
+{
+    public AdaptiveThresholdTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( AdaptiveThresholdTest.class );
+    }
+
+    /**
+     * @return whether each pixel passes, summing its window pixel by pixel
+     */
+    private static boolean[][] bruteForce(ImageProcessor input, double hMin, double hMax, int radius, double offset)
+    {
+        int width = input.getWidth();
+        int height = input.getHeight();
+        double scaling = (hMax - hMin) / 255;
+        boolean[][] passed = new boolean[height][width];
+        for(int y = 0; y < height; y++){
+            for(int x = 0; x < width; x++){
+                double sum = 0;
+                int count = 0;
+                for(int j = Math.max(y - radius, 0); j <= Math.min(y + radius, height - 1); j++){
+                    for(int i = Math.max(x - radius, 0); i <= Math.min(x + radius, width - 1); i++){
+                        double h = 255 - (input.getf(i, j) - hMin) / scaling;
+                        if(h >= 0 && h <= 255){
+                            sum += h;
+                            count++;
+                        }
+                    }
+                }
+                double h = 255 - (input.getf(x, y) - hMin) / scaling;
+                passed[y][x] = h >= 0 && h <= 255 && h < sum / count - offset;
+            }
+        }
+        return passed;
+    }
+
+    private static boolean[][] unpack(RunLengthMask mask)
+    {
+        boolean[][] passed = new boolean[mask.getHeight()][mask.getWidth()];
+        for(int y = 0; y < mask.getHeight(); y++){
+            int[] runs = mask.getRow(y);
+            for(int r = 0; r < runs.length; r += 2){
+                for(int x = runs[r]; x < runs[r + 1]; x++){
+                    passed[y][x] = true;
+                }
+            }
+        }
+        return passed;
+    }
+
+    private static void assertSamePixels(String message, boolean[][] expected, boolean[][] actual)
+    {
+        assertEquals(expected.length, actual.length);
+        for(int y = 0; y < expected.length; y++){
+            for(int x = 0; x < expected[y].length; x++){
+                assertEquals(message + " at " + x + "," + y, expected[y][x], actual[y][x]);
+            }
+        }
+    }
+
+    /**
+     * @return random values with some below, above and outside the range of the
+     * coloration, and some not numbers at all
+     */
+    private static FloatProcessor random(int width, int height, long seed)
+    {
+        Random random = new Random(seed);
+        float[] pixels = new float[width * height];
+        for(int i = 0; i < pixels.length; i++){
+            int kind = random.nextInt(20);
+            if(kind == 0){
+                pixels[i] = Float.NaN;
+            } else if(kind == 1){
+                pixels[i] = -20 - random.nextInt(50);
+            } else if(kind == 2){
+                pixels[i] = 1020 + random.nextInt(50);
+            } else {
+                pixels[i] = (float) (random.nextDouble() * 1000);
+            }
+        }
+        return new FloatProcessor(width, height, pixels, null);
+    }
+
+    /**
+     * windows of every size, from one smaller than the image to larger than it,
+     * so most reach past at least one edge
+     */
+    public void testRunsMatchWindowMeans()
+    {
+        int[] radii = {1, 2, 5, 12, 40};
+        double[] offsets = {0, 7.5, -4, 30};
+        for(int r = 0; r < radii.length; r++){
+            for(int o = 0; o < offsets.length; o++){
+                FloatProcessor input = random(31, 19, 10 * r + o);
+                boolean[][] expected = bruteForce(input, 0, 1000, radii[r], offsets[o]);
+                RunLengthMask mask = Threshold.adaptiveRuns(input, 0, 1000, radii[r], offsets[o]);
+                assertSamePixels("radius " + radii[r] + " offset " + offsets[o], expected, unpack(mask));
+            }
+        }
+    }
+
+    /**
+     * the centre of a 3x3 image is 10 below the mean of its window, so it passes
+     * an offset of 9.5 but not one of 10
+     */
+    public void testOffsetIsComparedStrictly()
+    {
+        /* with a range of 0-255 each coloration value is 255 less the pixel */
+        FloatProcessor values = new FloatProcessor(3, 3);
+        values.setValue(255 - 111.25);
+        values.fill();
+        values.setf(1, 1, 255 - 100);
+
+        assertTrue(unpack(Threshold.adaptiveRuns(values, 0, 255, 1, 9.5))[1][1]);
+        assertFalse(unpack(Threshold.adaptiveRuns(values, 0, 255, 1, 10))[1][1]);
+        assertSamePixels("offset 10", bruteForce(values, 0, 255, 1, 10), unpack(Threshold.adaptiveRuns(values, 0, 255, 1, 10)));
+
+        /* a flat image is never below its own mean */
+        values.setf(1, 1, 255 - 111.25f);
+        boolean[][] flat = unpack(Threshold.adaptiveRuns(values, 0, 255, 1, 0));
+        for(boolean[] row : flat){
+            for(boolean passed : row){
+                assertFalse(passed);
+            }
+        }
+    }
+
+    /**
+     * @return the image cropped to a selection as the engine crops it, with the
+     * pixels outside its shape not numbers
+     */
+    private static FloatProcessor crop(ImageProcessor input, Roi roi)
+    {
+        Rectangle bounds = roi.getBounds().intersection(new Rectangle(0, 0, input.getWidth(), input.getHeight()));
+        ImageProcessor mask = roi.getMask();
+        FloatProcessor crop = new FloatProcessor(bounds.width, bounds.height);
+        for(int y = 0; y < bounds.height; y++){
+            for(int x = 0; x < bounds.width; x++){
+                int imageX = bounds.x + x;
+                int imageY = bounds.y + y;
+                boolean inside = mask == null || mask.get(imageX - roi.getBounds().x, imageY - roi.getBounds().y) != 0;
+                crop.setf(x, y, inside ? input.getf(imageX, imageY) : Float.NaN);
+            }
+        }
+        return crop;
+    }
+
+    /**
+     * with no erosion the foreground of either engine is the adaptive mask, and
+     * inside a selection each window is clipped at the edge of the crop and
+     * leaves out the pixels outside the selection's shape, rather than reaching
+     * into the rest of the image
+     */
+    public void testSelectionsClipTheWindows()
+    {
+        ByteProcessor input = WatershedEngineTest.blobs(90, 70, 11);
+        Roi[] rois = {new Roi(10, 8, 40, 30), new OvalRoi(20, 15, 50, 45), new Roi(60, 50, 50, 40), null};
+        for(Engine engine : new Engine[]{Engine.PIXEL, Engine.RUN_LENGTH}){
+            for(int r = 0; r < rois.length; r++){
+                WatershedParams params = new WatershedParams.Builder().eroDilCount(0).adaptiveRadius(6).adaptiveOffset(5).engine(engine).build();
+                WatershedResult result = new WatershedEngine(params).run(input, rois[r]);
+                ImageProcessor labels = result.getLabels();
+                ImageProcessor values = rois[r] == null ? input : crop(input, rois[r]);
+                boolean[][] expected = bruteForce(values, input.getMin(), input.getMax(), 6, 5);
+
+                boolean[][] foreground = new boolean[labels.getHeight()][labels.getWidth()];
+                int passed = 0;
+                for(int y = 0; y < labels.getHeight(); y++){
+                    for(int x = 0; x < labels.getWidth(); x++){
+                        foreground[y][x] = labels.getf(x, y) != 0;
+                        passed += expected[y][x] ? 1 : 0;
+                    }
+                }
+                assertTrue(passed > 0);
+                assertSamePixels(engine + " selection " + r, expected, foreground);
+            }
+        }
+    }
+}
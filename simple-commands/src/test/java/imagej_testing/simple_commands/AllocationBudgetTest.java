@@ -0,0 +1,132 @@
+package imagej_testing.simple_commands;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import ij.process.ByteProcessor;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import watershed.Allocations;
+import watershed.Engine;
+import watershed.RunMetrics;
+import watershed.WatershedEngine;
+import watershed.WatershedParams;
+
+/**
+ * Allocation budgets for each stage of the watershed engines: a stage that
+ * allocates more bytes per pixel than its budget on a synthetic image fails the
+ * build. The budgets are set at about twice what each stage allocated when they
+ * were written, so they catch regressions rather than noise.
+ */
+public class AllocationBudgetTest
+    extends TestCase
+{
+    /*
+     * the number of runs before the measured one, so that class loading and
+     * the first use of the band pool are not counted
+     */
+    private static final int WARM_UP_RUNS = 2;
+
+    public AllocationBudgetTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( AllocationBudgetTest.class );
+    }
+
+    /**
+     * the bytes per pixel each stage of the run length engine may allocate
+     */
+    private static Map<String, Double> runLengthBudgets()
+    {
+        Map<String, Double> budgets = new LinkedHashMap<String, Double>();
+        budgets.put("Thresholding", 2.0);
+        budgets.put("Eroding", 8.0);
+        budgets.put("Labelling cell bodies", 1.0);
+        budgets.put("Dilating", 140.0);
+        budgets.put("Writing output", 6.0);
+        return budgets;
+    }
+
+    /**
+     * the bytes per pixel each stage of the pixel engine may allocate
+     */
+    private static Map<String, Double> pixelBudgets()
+    {
+        Map<String, Double> budgets = new LinkedHashMap<String, Double>();
+        budgets.put("Extracting coloration values", 400.0);
+        budgets.put("Sorting pixels by coloration value", 8.0);
+        budgets.put("Thresholding", 2.0);
+        budgets.put("Eroding", 6800.0);
+        budgets.put("Establishing neighbours", 1800.0);
+        budgets.put("Labelling cell bodies", 8.0);
+        budgets.put("Dilating", 11600.0);
+        budgets.put("Writing output", 4.0);
+        return budgets;
+    }
+
+    private static RunMetrics measure(WatershedParams params, ByteProcessor input)
+    {
+        WatershedEngine engine = new WatershedEngine(params);
+        for(int run = 0; run < WARM_UP_RUNS; run++){
+            engine.run(input);
+        }
+        return engine.run(input).getMetrics();
+    }
+
+    private static void assertWithinBudgets(Map<String, Double> budgets, RunMetrics metrics)
+    {
+        for(Map.Entry<String, Double> budget : budgets.entrySet()){
+            double bytesPerPixel = metrics.getBytesPerPixel(budget.getKey());
+            assertFalse(budget.getKey() + " was not measured", Double.isNaN(bytesPerPixel));
+            assertTrue(budget.getKey() + " allocated " + bytesPerPixel + " bytes/pixel, over its budget of "
+                    + budget.getValue() + "\n" + metrics, bytesPerPixel <= budget.getValue());
+        }
+    }
+
+    public void testRunLengthStagesStayWithinBudget()
+    {
+        if(!Allocations.isSupported()){
+            return;
+        }
+        ByteProcessor input = blobsImage(512);
+        WatershedParams.Builder builder = new WatershedParams.Builder().threshVal(150).eroDilCount(3).engine(Engine.RUN_LENGTH);
+        assertWithinBudgets(runLengthBudgets(), measure(builder.build(), input));
+        assertWithinBudgets(runLengthBudgets(), measure(builder.geodesic(true).build(), input));
+    }
+
+    public void testPixelStagesStayWithinBudget()
+    {
+        if(!Allocations.isSupported()){
+            return;
+        }
+        ByteProcessor input = blobsImage(128);
+        WatershedParams.Builder builder = new WatershedParams.Builder().threshVal(150).eroDilCount(3).engine(Engine.PIXEL);
+        assertWithinBudgets(pixelBudgets(), measure(builder.build(), input));
+    }
+
+    /**
+     * every stage that was timed is measured, and writing the output, which has
+     * to allocate the labels, is seen to allocate
+     */
+    public void testStagesAreMeasured()
+    {
+        if(!Allocations.isSupported()){
+            return;
+        }
+        RunMetrics metrics = measure(new WatershedParams.Builder().threshVal(150).eroDilCount(3).engine(Engine.RUN_LENGTH).build(), blobsImage(256));
+        assertEquals(256L * 256, metrics.getPixelCount());
+        assertEquals(metrics.getStageNanos().keySet(), metrics.getStageBytes().keySet());
+        assertTrue(metrics.getBytesPerPixel("Writing output") > 0);
+        assertTrue(Double.isNaN(metrics.getBytesPerPixel("Merging cells")));
+    }
+
+    private static ByteProcessor blobsImage(int size)
+    {
+        return WatershedEngineTest.blobs(size, size, 11);
+    }
+}
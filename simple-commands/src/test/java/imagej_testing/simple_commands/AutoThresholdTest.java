@@ -0,0 +1,178 @@
+package imagej_testing.simple_commands;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import ij.process.ByteProcessor;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import watershed.AutoThreshold;
+import watershed.Engine;
+import watershed.Threshold;
+import watershed.Watershed;
+import watershed.WatershedEngine;
+import watershed.WatershedParams;
+import watershed.WatershedResult;
+
+/**
+ * Tests of the automatic thresholds on histograms whose thresholds are known,
+ * and of an engine run that works its threshold out.
+ */
+public class AutoThresholdTest
+    extends TestCase
+{
+    public AutoThresholdTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( AutoThresholdTest.class );
+    }
+
+    /**
+     * @return two equal spikes, of cells at 50 and background at 200
+     */
+    private static long[] twoSpikes()
+    {
+        long[] histogram = new long[Threshold.BINS];
+        histogram[50] = 100;
+        histogram[200] = 100;
+        return histogram;
+    }
+
+    /**
+     * every split between two spikes separates them equally well, and Otsu and
+     * Huang take the first, just above the cells
+     */
+    public void testOtsuAndHuangSplitAfterTheFirstSpike()
+    {
+        assertEquals(51.0, AutoThreshold.OTSU.threshold(twoSpikes()));
+        assertEquals(51.0, AutoThreshold.HUANG.threshold(twoSpikes()));
+    }
+
+    /**
+     * Li settles straight away on the logarithmic mean of the spikes, taking the
+     * values as one more than their bins: (201 - 51) / ln(201 / 51) = 109.4
+     */
+    public void testLiSettlesOnTheLogarithmicMean()
+    {
+        double expected = Math.floor((201.0 - 51.0) / Math.log(201.0 / 51.0));
+        assertEquals(109.0, expected);
+        assertEquals(expected, AutoThreshold.LI.threshold(twoSpikes()));
+    }
+
+    /**
+     * a single peak of background with a flat tail of cells below it: the bin
+     * furthest below the line from the peak to the end of the tail is the one
+     * beside the peak, and the whole tail is the foreground
+     */
+    public void testTriangleTakesTheTail()
+    {
+        long[] histogram = new long[Threshold.BINS];
+        for(int i = 0; i < 200; i++){
+            histogram[i] = 10;
+        }
+        histogram[200] = 1000;
+        assertEquals(199.0, AutoThreshold.TRIANGLE.threshold(histogram));
+    }
+
+    /**
+     * Otsu on two overlapping humps matches a search for the split with the
+     * least variance within the two classes
+     */
+    public void testOtsuMinimisesTheVarianceWithinClasses()
+    {
+        long[] histogram = new long[Threshold.BINS];
+        for(int i = 0; i < Threshold.BINS; i++){
+            histogram[i] = Math.round(1000 * Math.exp(-(i - 70) * (i - 70) / 300.0) + 3000 * Math.exp(-(i - 180) * (i - 180) / 800.0));
+        }
+        int best = -1;
+        double least = Double.MAX_VALUE;
+        for(int t = 0; t < Threshold.BINS - 1; t++){
+            double within = variance(histogram, 0, t) + variance(histogram, t + 1, Threshold.BINS - 1);
+            if(within < least - 1e-6){
+                least = within;
+                best = t;
+            }
+        }
+        assertEquals(best + 1.0, AutoThreshold.OTSU.threshold(histogram));
+        assertTrue(best > 70 && best < 180);
+    }
+
+    /**
+     * @return the count times the variance of the bins from first to last
+     */
+    private static double variance(long[] histogram, int first, int last)
+    {
+        double count = 0;
+        double sum = 0;
+        double squares = 0;
+        for(int i = first; i <= last; i++){
+            count += histogram[i];
+            sum += (double) i * histogram[i];
+            squares += (double) i * i * histogram[i];
+        }
+        return count == 0 ? 0 : squares - sum * sum / count;
+    }
+
+    public void testEmptyAndSingleValueHistograms()
+    {
+        long[] histogram = new long[Threshold.BINS];
+        for(AutoThreshold method : AutoThreshold.values()){
+            assertEquals(0.0, method.threshold(histogram));
+        }
+        histogram[37] = 12;
+        for(AutoThreshold method : AutoThreshold.values()){
+            assertEquals(38.0, method.threshold(histogram));
+        }
+    }
+
+    /**
+     * bright squares on a dark background are counted into the bins of their
+     * coloration values, scaled by the display range as a run scales them, and
+     * an engine run works the threshold out between them
+     */
+    public void testRunWorksTheThresholdOut()
+    {
+        ByteProcessor input = new ByteProcessor(40, 20);
+        for(int y = 0; y < 20; y++){
+            for(int x = 0; x < 40; x++){
+                boolean inSquare = y >= 4 && y < 16 && (x >= 4 && x < 16 || x >= 24 && x < 36);
+                input.set(x, y, inSquare ? 220 : 30);
+            }
+        }
+        /*
+         * the display range of an 8 bit image stays 0 to 255 unless it is set,
+         * so it is set to the two values for them to land in the end bins
+         */
+        input.setMinAndMax(30, 220);
+        long[] histogram = Threshold.histogram(input, 30, 220);
+        assertEquals(2 * 12 * 12, histogram[0]);
+        assertEquals(40 * 20 - 2 * 12 * 12, histogram[255]);
+
+        for(AutoThreshold method : AutoThreshold.values()){
+            WatershedParams params = new WatershedParams.Builder().autoThreshold(method).eroDilCount(2).engine(Engine.RUN_LENGTH).build();
+            WatershedResult result = new WatershedEngine(params).run(input);
+            double threshold = result.getMetrics().getThreshold();
+            assertTrue(method + " gave " + threshold, threshold > 0 && threshold <= 255);
+            assertEquals(2, cellCount(result));
+        }
+    }
+
+    private static int cellCount(WatershedResult result)
+    {
+        Set<Integer> labels = new HashSet<Integer>();
+        for(int y = 0; y < result.getLabels().getHeight(); y++){
+            for(int x = 0; x < result.getLabels().getWidth(); x++){
+                int label = (int) result.getLabels().getf(x, y);
+                if(label > Watershed.WSHED_LABEL){
+                    labels.add(label);
+                }
+            }
+        }
+        return labels.size();
+    }
+}
@@ -0,0 +1,226 @@
+package imagej_testing.simple_commands;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import watershed.Cancellation;
+import watershed.CancelledException;
+import watershed.Engine;
+import watershed.RunMetrics;
+import watershed.WatershedEngine;
+import watershed.WatershedParams;
+
+/**
+ * Stress test of cooperative cancellation: runs are stopped promptly by a
+ * cancelled token or a passed deadline, report the stages they finished, leave
+ * nothing behind for the next run, and checking a token that is never
+ * cancelled costs under 1% of a run.
+ */
+public class CancellationTest
+    extends TestCase
+{
+    /*
+     * how long a cancelled run may carry on before stopping
+     */
+    private static final long PROMPT_MILLIS = 250;
+    private static final int TIMED_RUNS = 5;
+
+    public CancellationTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( CancellationTest.class );
+    }
+
+    private static WatershedParams params(Engine engine)
+    {
+        return new WatershedParams.Builder().threshVal(150).eroDilCount(3).engine(engine).build();
+    }
+
+    public void testCancelledTokenStopsBeforeTheFirstRow()
+    {
+        Cancellation cancellation = new Cancellation();
+        cancellation.cancel();
+        for(Engine engine : Engine.values()){
+            Cancellation previous = cancellation.enter();
+            try {
+                new WatershedEngine(params(engine)).run(WatershedEngineTest.blobs(256, 256, 1));
+                fail(engine + " was not stopped");
+            } catch(CancelledException e){
+                assertNotNull(e.getMetrics());
+                assertTrue(e.getMetrics().getStageNanos().containsKey("Cancelled"));
+            } finally {
+                Cancellation.exit(previous);
+            }
+        }
+    }
+
+    /**
+     * a token cancelled from another thread part way through a run stops it
+     * within PROMPT_MILLIS, with the metrics of the stages it finished
+     */
+    public void testCancellingFromAnotherThreadStopsPromptly() throws Exception
+    {
+        ExecutorService canceller = Executors.newSingleThreadExecutor();
+        try {
+            Engine[] engines = {Engine.RUN_LENGTH, Engine.PIXEL};
+            for(Engine engine : engines){
+                ImageProcessor input = WatershedEngineTest.blobs(engine == Engine.PIXEL ? 512 : 2048, engine == Engine.PIXEL ? 512 : 2048, 2);
+                final WatershedEngine watershed = new WatershedEngine(params(engine));
+                long full = time(watershed, input);
+
+                final Cancellation cancellation = new Cancellation();
+                final long delay = full / 4 / 1000000;
+                Future<Long> cancelled = canceller.submit(new Callable<Long>(){
+                    public Long call() throws Exception{
+                        Thread.sleep(delay);
+                        cancellation.cancel();
+                        return System.nanoTime();
+                    }
+                });
+                Cancellation previous = cancellation.enter();
+                try {
+                    watershed.run(input);
+                    fail(engine + " finished in spite of being cancelled after " + delay + " of " + full / 1000000 + " ms");
+                } catch(CancelledException e){
+                    long late = (System.nanoTime() - cancelled.get()) / 1000000;
+                    assertTrue(engine + " stopped " + late + " ms after being cancelled", late <= PROMPT_MILLIS);
+                    RunMetrics metrics = e.getMetrics();
+                    assertTrue(metrics.getStageNanos().containsKey("Planning"));
+                    assertTrue(metrics.getStageNanos().containsKey("Cancelled"));
+                } finally {
+                    Cancellation.exit(previous);
+                }
+            }
+        } finally {
+            canceller.shutdown();
+        }
+    }
+
+    public void testDeadlineStopsTheRun()
+    {
+        Cancellation previous = Cancellation.withTimeout(5).enter();
+        long start = System.nanoTime();
+        try {
+            new WatershedEngine(params(Engine.RUN_LENGTH).toBuilder().distanceSeeds(true).build()).run(WatershedEngineTest.blobs(2048, 2048, 3));
+            fail("The run was not stopped by its deadline");
+        } catch(CancelledException e){
+            assertTrue(e.getMessage(), e.getMessage().contains("deadline"));
+            assertTrue((System.nanoTime() - start) / 1000000 <= 5 + PROMPT_MILLIS);
+        } finally {
+            Cancellation.exit(previous);
+        }
+    }
+
+    /**
+     * after a cancelled run, neither the calling thread nor the band pool is
+     * left with the token, and the next run gives the same labels as before
+     */
+    public void testNothingIsLeftBehind()
+    {
+        ByteProcessor input = WatershedEngineTest.blobs(512, 512, 4);
+        WatershedEngine watershed = new WatershedEngine(params(Engine.RUN_LENGTH));
+        ImageProcessor before = watershed.run(input).getLabels();
+
+        Cancellation cancellation = new Cancellation();
+        cancellation.cancel();
+        Cancellation previous = cancellation.enter();
+        try {
+            watershed.run(input);
+            fail("The run was not stopped");
+        } catch(CancelledException e){
+            /* expected */
+        } finally {
+            Cancellation.exit(previous);
+        }
+        assertNull(Cancellation.current());
+        ImageProcessor after = watershed.run(input).getLabels();
+        for(int i = 0; i < before.getPixelCount(); i++){
+            assertEquals(before.getf(i), after.getf(i));
+        }
+    }
+
+    /**
+     * counts the checkpoints a run passes with a live token, times that many
+     * checkpoints on their own, and checks they take under 1% of the run
+     */
+    public void testCheckpointsCostUnderOnePercent()
+    {
+        Engine[] engines = {Engine.RUN_LENGTH, Engine.PIXEL};
+        for(Engine engine : engines){
+            ImageProcessor input = WatershedEngineTest.blobs(engine == Engine.PIXEL ? 512 : 2048, engine == Engine.PIXEL ? 512 : 2048, 5);
+            WatershedEngine watershed = new WatershedEngine(params(engine));
+            long run = time(watershed, input);
+
+            CountingCancellation counting = new CountingCancellation();
+            Cancellation previous = counting.enter();
+            try {
+                watershed.run(input);
+            } finally {
+                Cancellation.exit(previous);
+            }
+            long checks = counting.count;
+            assertTrue(engine + " was never checked", checks > 0);
+
+            long cost = Long.MAX_VALUE;
+            for(int i = 0; i < TIMED_RUNS; i++){
+                previous = new CountingCancellation().enter();
+                try {
+                    long start = System.nanoTime();
+                    for(long c = 0; c < checks; c++){
+                        Cancellation.checkpoint();
+                    }
+                    cost = Math.min(cost, System.nanoTime() - start);
+                } finally {
+                    Cancellation.exit(previous);
+                }
+            }
+            assertTrue(engine + ": " + checks + " checks took " + cost / 1000 + " us of a " + run / 1000 + " us run",
+                    cost * 100 < run);
+        }
+    }
+
+    /**
+     * @return the best time of a few runs, in nanoseconds
+     */
+    private static long time(WatershedEngine watershed, ImageProcessor input)
+    {
+        long best = Long.MAX_VALUE;
+        for(int i = 0; i < TIMED_RUNS; i++){
+            long start = System.nanoTime();
+            watershed.run(input);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+
+    /**
+     * a token with a deadline that is never reached, counting how often it is
+     * checked
+     */
+    private static class CountingCancellation extends Cancellation
+    {
+        private volatile long count;
+
+        CountingCancellation()
+        {
+            super(Long.MAX_VALUE / 2000000);
+        }
+
+        public boolean isCancelled()
+        {
+            count++;
+            return super.isCancelled();
+        }
+    }
+}
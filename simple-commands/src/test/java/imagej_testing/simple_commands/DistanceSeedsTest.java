@@ -0,0 +1,164 @@
+package imagej_testing.simple_commands;
+
+import java.util.Random;
+
+import dataTypes.RunLengthMask;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import watershed.DistanceSeeds;
+import watershed.Watershed;
+
+/**
+ * Tests of the distance transform against distances found pixel by pixel, and
+ * of the seeds found from it on shapes whose seeds are known.
+ */
+public class DistanceSeedsTest
+    extends TestCase
+{
+    public DistanceSeedsTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( DistanceSeedsTest.class );
+    }
+
+    private static RunLengthMask mask(boolean[] inside, int width, int height)
+    {
+        int[][] rows = new int[height][];
+        for(int y = 0; y < height; y++){
+            RunLengthMask.RunBuilder row = new RunLengthMask.RunBuilder(8);
+            int start = -1;
+            for(int x = 0; x <= width; x++){
+                boolean in = x < width && inside[y * width + x];
+                if(in && start == -1){
+                    start = x;
+                } else if(!in && start != -1){
+                    row.add(start, x);
+                    start = -1;
+                }
+            }
+            rows[y] = row.toArray();
+        }
+        return new RunLengthMask(width, height, rows);
+    }
+
+    /**
+     * @return discs, which may overlap
+     */
+    private static boolean[] discs(int width, int height, int[] centres, int radius)
+    {
+        boolean[] inside = new boolean[width * height];
+        for(int c = 0; c < centres.length; c += 2){
+            for(int y = 0; y < height; y++){
+                for(int x = 0; x < width; x++){
+                    int dx = x - centres[c];
+                    int dy = y - centres[c + 1];
+                    if(dx * dx + dy * dy <= radius * radius){
+                        inside[y * width + x] = true;
+                    }
+                }
+            }
+        }
+        return inside;
+    }
+
+    private static int seedCount(RunLengthMask seeds)
+    {
+        return Watershed.labelRuns(seeds).getCellBodyCount();
+    }
+
+    /**
+     * a 3x3 square with background all round: the centre is two pixels from the
+     * background and the rest one
+     */
+    public void testSquareDistances()
+    {
+        boolean[] inside = new boolean[25];
+        for(int y = 1; y < 4; y++){
+            for(int x = 1; x < 4; x++){
+                inside[y * 5 + x] = true;
+            }
+        }
+        int[] expected = {
+            0, 0, 0, 0, 0,
+            0, 1, 1, 1, 0,
+            0, 1, 4, 1, 0,
+            0, 1, 1, 1, 0,
+            0, 0, 0, 0, 0,
+        };
+        int[] actual = DistanceSeeds.squaredDistances(mask(inside, 5, 5));
+        for(int i = 0; i < expected.length; i++){
+            assertEquals("at " + i, expected[i], actual[i]);
+        }
+    }
+
+    /**
+     * random masks with some background, against the nearest background pixel
+     * found by looking at every one
+     */
+    public void testRandomMasksMatchBruteForce()
+    {
+        Random random = new Random(41);
+        for(int trial = 0; trial < 100; trial++){
+            int width = 1 + random.nextInt(30);
+            int height = 1 + random.nextInt(30);
+            boolean[] inside = new boolean[width * height];
+            double fill = random.nextDouble();
+            for(int i = 0; i < inside.length; i++){
+                inside[i] = random.nextDouble() < fill;
+            }
+            inside[random.nextInt(inside.length)] = false;
+
+            int[] actual = DistanceSeeds.squaredDistances(mask(inside, width, height));
+            for(int y = 0, i = 0; y < height; y++){
+                for(int x = 0; x < width; x++, i++){
+                    int nearest = 0;
+                    if(inside[i]){
+                        nearest = Integer.MAX_VALUE;
+                        for(int by = 0; by < height; by++){
+                            for(int bx = 0; bx < width; bx++){
+                                if(!inside[by * width + bx]){
+                                    nearest = Math.min(nearest, (bx - x) * (bx - x) + (by - y) * (by - y));
+                                }
+                            }
+                        }
+                    }
+                    assertEquals("trial " + trial + " at " + x + "," + y, nearest, actual[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * two discs that overlap a little: their centres stand well above the neck
+     * between them, so each is a seed of its own unless the seed height is more
+     * than that
+     */
+    public void testTouchingDiscsGetASeedEach()
+    {
+        RunLengthMask mask = mask(discs(50, 30, new int[]{14, 15, 33, 15}, 10), 50, 30);
+        RunLengthMask seeds = DistanceSeeds.seeds(mask, 1);
+        assertEquals(2, seedCount(seeds));
+        assertTrue(seeds.isForeground(14, 15));
+        assertTrue(seeds.isForeground(33, 15));
+        assertEquals(1, seedCount(DistanceSeeds.seeds(mask, 20)));
+    }
+
+    /**
+     * a speck far smaller than the seed height still gets a seed, as every part
+     * of the mask does
+     */
+    public void testEveryPartGetsASeed()
+    {
+        boolean[] inside = discs(40, 20, new int[]{10, 10}, 8);
+        inside[5 * 40 + 32] = true;
+        RunLengthMask seeds = DistanceSeeds.seeds(mask(inside, 40, 20), 5);
+        assertEquals(2, seedCount(seeds));
+        assertTrue(seeds.isForeground(32, 5));
+        assertTrue(seeds.isForeground(10, 10));
+    }
+}
@@ -0,0 +1,128 @@
+package imagej_testing.simple_commands;
+
+import java.util.Random;
+
+import dataTypes.LabelStatistics;
+import ij.process.ByteProcessor;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import watershed.Engine;
+import watershed.Markers;
+import watershed.Watershed;
+import watershed.WatershedEngine;
+import watershed.WatershedParams;
+
+/**
+ * Tests that measuring the cells without a label image, growing them to the mask
+ * with GrowToMask, gives exactly the cells of a run that fills the mask.
+ */
+public class GrowToMaskTest
+    extends TestCase
+{
+    public GrowToMaskTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( GrowToMaskTest.class );
+    }
+
+    private static void assertSameCells(String message, LabelStatistics[] expected, LabelStatistics[] actual)
+    {
+        assertEquals(message, expected.length, actual.length);
+        for(int i = 0; i < expected.length; i++){
+            assertEquals(message, expected[i].getLabel(), actual[i].getLabel());
+            assertEquals(message, expected[i].getArea(), actual[i].getArea());
+            assertEquals(message, expected[i].getSumX(), actual[i].getSumX());
+            assertEquals(message, expected[i].getSumY(), actual[i].getSumY());
+            assertEquals(message, expected[i].getBounds(), actual[i].getBounds());
+        }
+    }
+
+    private static LabelStatistics[] runAndMeasure(WatershedEngine engine, ByteProcessor input, Markers markers)
+    {
+        return LabelStatistics.measure(engine.run(input, markers).getLabels(), Watershed.WSHED_LABEL);
+    }
+
+    /**
+     * touching and separate blobs, seeded by eroding, from the distance transform
+     * and from markers scattered anywhere, including outside the mask
+     */
+    public void testMeasureMatchesFilledRun()
+    {
+        Random random = new Random(45);
+        for(int trial = 0; trial < 12; trial++){
+            ByteProcessor input = WatershedEngineTest.blobs(64 + random.nextInt(96), 64 + random.nextInt(96), trial);
+            WatershedParams.Builder builder = new WatershedParams.Builder().threshVal(100 + random.nextInt(100)).eroDilCount(1 + random.nextInt(4)).engine(Engine.RUN_LENGTH);
+            if(trial % 3 == 0){
+                builder.distanceSeeds(true);
+            } else {
+                builder.geodesic(true).untilFilled(true);
+            }
+            WatershedEngine engine = new WatershedEngine(builder.build());
+            assertSameCells("trial " + trial, runAndMeasure(engine, input, null), engine.measure(input).getStatistics());
+
+            int[] xs = new int[1 + random.nextInt(20)];
+            int[] ys = new int[xs.length];
+            for(int i = 0; i < xs.length; i++){
+                xs[i] = random.nextInt(input.getWidth());
+                ys[i] = random.nextInt(input.getHeight());
+            }
+            Markers markers = Markers.fromPoints(xs, ys);
+            assertSameCells("trial " + trial + " with markers", runAndMeasure(engine, input, markers), engine.measure(input, markers).getStatistics());
+        }
+    }
+
+    /**
+     * cells that do not fill the mask in a run are measured as if they did
+     */
+    public void testCellsAreGrownToTheMask()
+    {
+        ByteProcessor input = new ByteProcessor(20, 10);
+        for(int y = 1; y < 9; y++){
+            for(int x = 1; x < 9; x++){
+                input.set(x, y, 255);
+                input.set(x + 10, y, 255);
+            }
+        }
+        input.set(19, 0, 255);
+        WatershedEngine engine = new WatershedEngine(new WatershedParams.Builder().threshVal(150).eroDilCount(2).engine(Engine.RUN_LENGTH).build());
+        LabelStatistics[] cells = engine.measure(input).getStatistics();
+        assertEquals(2, cells.length);
+        assertEquals(64, cells[0].getArea());
+        assertEquals(4.5, cells[0].getCentroidX(), 1e-9);
+        /* the speck on the corner is part of the second square, diagonally */
+        assertEquals(65, cells[1].getArea());
+    }
+
+    public void testMergingIsRefused()
+    {
+        WatershedEngine engine = new WatershedEngine(new WatershedParams.Builder().threshVal(150).eroDilCount(3).mergeThreshold(10).build());
+        try {
+            engine.measure(WatershedEngineTest.blobs(32, 32, 1));
+            fail("merging accepted while measuring");
+        } catch(IllegalArgumentException e){
+            // expected
+        }
+    }
+
+    /**
+     * the pixel engine's cells are only found on a label image, so it is refused
+     * rather than quietly measuring the run length engine's cells
+     */
+    public void testPixelEngineIsRefused()
+    {
+        WatershedEngine engine = new WatershedEngine(new WatershedParams.Builder().threshVal(150).eroDilCount(3).engine(Engine.PIXEL).build());
+        try {
+            engine.measure(WatershedEngineTest.blobs(32, 32, 1));
+            fail("pixel engine accepted while measuring");
+        } catch(IllegalArgumentException e){
+            // expected
+        }
+        WatershedEngine automatic = new WatershedEngine(new WatershedParams.Builder().threshVal(150).eroDilCount(3).engine(Engine.AUTO).build());
+        assertTrue(automatic.measure(WatershedEngineTest.blobs(32, 32, 1)).getCellCount() > 0);
+    }
+}
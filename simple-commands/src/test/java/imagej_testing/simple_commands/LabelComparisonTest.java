@@ -0,0 +1,269 @@
+package imagej_testing.simple_commands;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import evaluation.ComparisonResult;
+import evaluation.LabelComparison;
+import evaluation.MatchScore;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Tests of comparing label images against counts made pixel by pixel: the IoU
+ * and Dice of each matched pair, the split and merge counts and the scores at
+ * each IoU threshold, on random label images and on small hand drawn ones.
+ */
+public class LabelComparisonTest
+    extends TestCase
+{
+    private static final double EPSILON = 1e-9;
+    /*
+     * above an IoU of 0.5 an object can only be matched with one other, so the
+     * brute force matching does not depend on how ties are broken
+     */
+    private static final double[] THRESHOLDS = {0.55, 0.7, 0.85, 0.95};
+
+    public LabelComparisonTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( LabelComparisonTest.class );
+    }
+
+    private static ImageProcessor image(int width, int height, int[] labels)
+    {
+        float[] pixels = new float[labels.length];
+        for(int i = 0; i < labels.length; i++){
+            pixels[i] = labels[i];
+        }
+        return new FloatProcessor(width, height, pixels, null);
+    }
+
+    /**
+     * @return random rectangles, later ones painted over earlier ones, so that
+     * objects overlap the other image's objects in every way
+     */
+    private static int[] rectangles(int width, int height, int count, Random random)
+    {
+        int[] labels = new int[width * height];
+        for(int r = 0; r < count; r++){
+            /* skipping labels now and then, so some label values have no pixels */
+            int label = 2 * r + 1 + random.nextInt(2);
+            int x0 = random.nextInt(width);
+            int y0 = random.nextInt(height);
+            int x1 = Math.min(width, x0 + 1 + random.nextInt(width / 2));
+            int y1 = Math.min(height, y0 + 1 + random.nextInt(height / 2));
+            for(int y = y0; y < y1; y++){
+                for(int x = x0; x < x1; x++){
+                    labels[y * width + x] = label;
+                }
+            }
+        }
+        return labels;
+    }
+
+    public void testRandomImagesMatchBruteForce()
+    {
+        Random random = new Random(47);
+        for(int trial = 0; trial < 200; trial++){
+            int width = 8 + random.nextInt(40);
+            int height = 8 + random.nextInt(40);
+            int[] a = rectangles(width, height, random.nextInt(12), random);
+            int[] b = random.nextInt(4) == 0 ? jitter(a, width, height, random) : rectangles(width, height, random.nextInt(12), random);
+            check(width, height, a, b);
+        }
+    }
+
+    /**
+     * @return the labels moved by up to a pixel, so that most objects match well
+     */
+    private static int[] jitter(int[] labels, int width, int height, Random random)
+    {
+        int dx = random.nextInt(3) - 1;
+        int dy = random.nextInt(3) - 1;
+        int[] moved = new int[labels.length];
+        for(int y = 0; y < height; y++){
+            for(int x = 0; x < width; x++){
+                int sx = x + dx;
+                int sy = y + dy;
+                if(sx >= 0 && sy >= 0 && sx < width && sy < height){
+                    moved[y * width + x] = labels[sy * width + sx];
+                }
+            }
+        }
+        return moved;
+    }
+
+    /**
+     * compares the two label images, and checks everything against counts made
+     * pixel by pixel
+     */
+    private static void check(int width, int height, int[] a, int[] b)
+    {
+        ComparisonResult result = LabelComparison.compare(image(width, height, a), 0, image(width, height, b), 0, THRESHOLDS);
+
+        Map<Integer, Integer> areasA = new HashMap<Integer, Integer>();
+        Map<Integer, Integer> areasB = new HashMap<Integer, Integer>();
+        Map<Long, Integer> overlaps = new HashMap<Long, Integer>();
+        for(int i = 0; i < a.length; i++){
+            if(a[i] != 0){
+                increment(areasA, a[i]);
+            }
+            if(b[i] != 0){
+                increment(areasB, b[i]);
+            }
+            if(a[i] != 0 && b[i] != 0){
+                long key = ((long) a[i] << 32) | b[i];
+                Integer count = overlaps.get(key);
+                overlaps.put(key, count == null ? 1 : count + 1);
+            }
+        }
+        assertEquals(areasA.size(), result.getObjectCount());
+        assertEquals(areasB.size(), result.getReferenceObjectCount());
+
+        /*
+         * the best IoU of each object, which is its match's when above 0.5,
+         * and the objects more than half of which lie in another
+         */
+        Map<Integer, Double> bestA = new HashMap<Integer, Double>();
+        Map<Integer, Integer> partsOfB = new HashMap<Integer, Integer>();
+        Map<Integer, Integer> partsOfA = new HashMap<Integer, Integer>();
+        for(Map.Entry<Long, Integer> overlap : overlaps.entrySet()){
+            int labelA = (int) (overlap.getKey() >>> 32);
+            int labelB = (int) (long) overlap.getKey();
+            int intersection = overlap.getValue();
+            double iou = (double) intersection / (areasA.get(labelA) + areasB.get(labelB) - intersection);
+            Double best = bestA.get(labelA);
+            bestA.put(labelA, best == null ? iou : Math.max(best, iou));
+            if(2 * intersection > areasA.get(labelA)){
+                increment(partsOfB, labelB);
+            }
+            if(2 * intersection > areasB.get(labelB)){
+                increment(partsOfA, labelA);
+            }
+            double dice = 2.0 * intersection / (areasA.get(labelA) + areasB.get(labelB));
+            assertEquals(dice, LabelComparison.dice(iou), EPSILON);
+        }
+        assertEquals(several(partsOfB), result.getSplitCount());
+        assertEquals(several(partsOfA), result.getMergeCount());
+
+        int[] labels = result.getLabels();
+        double[] ious = result.getIoUs();
+        for(int o = 0; o < labels.length; o++){
+            Double best = bestA.get(labels[o]);
+            if(best != null && best > 0.5){
+                assertEquals(best, ious[o], EPSILON);
+            }
+        }
+
+        MatchScore[] scores = result.getScores();
+        for(int t = 0; t < THRESHOLDS.length; t++){
+            int truePositives = 0;
+            for(double best : bestA.values()){
+                if(best >= THRESHOLDS[t]){
+                    truePositives++;
+                }
+            }
+            assertEquals(truePositives, scores[t].getTruePositives());
+            assertEquals(areasA.size() - truePositives, scores[t].getFalsePositives());
+            assertEquals(areasB.size() - truePositives, scores[t].getFalseNegatives());
+            int denominator = areasA.size() + areasB.size();
+            if(denominator == 0){
+                assertTrue(Double.isNaN(scores[t].getF1()));
+            } else {
+                assertEquals(2.0 * truePositives / denominator, scores[t].getF1(), EPSILON);
+            }
+        }
+    }
+
+    private static void increment(Map<Integer, Integer> counts, int key)
+    {
+        Integer count = counts.get(key);
+        counts.put(key, count == null ? 1 : count + 1);
+    }
+
+    private static int several(Map<Integer, Integer> parts)
+    {
+        int count = 0;
+        for(int part : parts.values()){
+            if(part >= 2){
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public void testEmptyImages()
+    {
+        int[] empty = new int[36];
+        int[] one = new int[36];
+        one[7] = one[8] = 3;
+
+        ComparisonResult neither = LabelComparison.compare(image(6, 6, empty), image(6, 6, empty));
+        assertEquals(0, neither.getObjectCount());
+        assertEquals(0, neither.getReferenceObjectCount());
+        assertTrue(Double.isNaN(neither.getScores()[0].getF1()));
+
+        ComparisonResult nothingFound = LabelComparison.compare(image(6, 6, empty), image(6, 6, one));
+        assertEquals(1, nothingFound.getScores()[0].getFalseNegatives());
+        assertEquals(0.0, nothingFound.getScores()[0].getF1(), EPSILON);
+        assertEquals(0, nothingFound.getReferenceMatches()[0]);
+
+        ComparisonResult nothingThere = LabelComparison.compare(image(6, 6, one), image(6, 6, empty));
+        assertEquals(1, nothingThere.getScores()[0].getFalsePositives());
+        assertEquals(0.0, nothingThere.getScores()[0].getF1(), EPSILON);
+    }
+
+    /**
+     * one reference object cut into three, and three reference objects covered
+     * by one: a split and a merge, each matched with its largest part
+     */
+    public void testOneToManyOverlaps()
+    {
+        int[] cut = {
+            2, 2, 2, 3, 3, 4, 0, 7, 7, 7, 7, 7,
+            2, 2, 2, 3, 3, 4, 0, 7, 7, 7, 7, 7,
+        };
+        int[] whole = {
+            5, 5, 5, 5, 5, 5, 0, 6, 6, 8, 8, 9,
+            5, 5, 5, 5, 5, 5, 0, 6, 6, 8, 8, 9,
+        };
+        ComparisonResult result = LabelComparison.compare(image(12, 2, cut), image(12, 2, whole));
+        assertEquals(1, result.getSplitCount());
+        assertEquals(1, result.getMergeCount());
+        assertEquals(5, result.getMatches()[0]);
+        assertEquals(0.5, result.getIoUs()[0], EPSILON);
+        assertEquals(0, result.getMatches()[1]);
+        assertEquals(0, result.getMatches()[2]);
+        /* the covering object ties with two of the objects it covers, and takes one */
+        int covered = result.getMatches()[3];
+        assertTrue(covered == 6 || covered == 8);
+        assertEquals(0.4, result.getIoUs()[3], EPSILON);
+        assertEquals(7, result.getReferenceMatches()[covered == 6 ? 1 : 2]);
+        assertEquals(0, result.getReferenceMatches()[covered == 6 ? 2 : 1]);
+        assertEquals(1, result.getScores()[0].getTruePositives());
+        assertEquals(2.0 / (4 + 4), result.getScores()[0].getF1(), EPSILON);
+    }
+
+    /**
+     * the watershed lines are left out of the watershed's objects
+     */
+    public void testWatershedLinesAreIgnored()
+    {
+        int[] watershed = {2, 2, 1, 3, 3};
+        int[] reference = {4, 4, 0, 5, 5};
+        ComparisonResult result = LabelComparison.compareWatershed(image(5, 1, watershed), image(5, 1, reference));
+        assertEquals(2, result.getObjectCount());
+        assertEquals(1.0, result.getIoUs()[0], EPSILON);
+        assertEquals(1.0, result.getIoUs()[1], EPSILON);
+        assertEquals(1.0, result.getScores()[result.getScores().length - 1].getF1(), EPSILON);
+    }
+}
@@ -0,0 +1,304 @@
+package imagej_testing.simple_commands;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+
+import dataTypes.LabelStatistics;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import labelFiles.LabelFileReader;
+import labelFiles.LabelFileWriter;
+
+/**
+ * Round trip tests of the label file format: label images of every width of
+ * label are written and read back through the memory mapped reader, and files
+ * that are truncated or corrupt are refused with an IOException.
+ */
+public class LabelFileTest
+    extends TestCase
+{
+    private File file;
+
+    public LabelFileTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( LabelFileTest.class );
+    }
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        file = File.createTempFile("labels", ".wslb");
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        file.delete();
+    }
+
+    /**
+     * @return random rectangles of labels up to the largest, with gaps, runs of
+     * the same label and the largest label always present
+     */
+    private static ImageProcessor labels(ImageProcessor image, int maxLabel, Random random)
+    {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        for(int r = 0; r < 40; r++){
+            int label = r == 0 ? maxLabel : 1 + random.nextInt(maxLabel);
+            int x0 = random.nextInt(width);
+            int y0 = random.nextInt(height);
+            int x1 = Math.min(width, x0 + 1 + random.nextInt(15));
+            int y1 = Math.min(height, y0 + 1 + random.nextInt(15));
+            for(int y = y0; y < y1; y++){
+                for(int x = x0; x < x1; x++){
+                    image.setf(x, y, label);
+                }
+            }
+        }
+        return image;
+    }
+
+    private static LabelStatistics[] bruteForceStatistics(ImageProcessor labels)
+    {
+        LabelStatistics[] stats = new LabelStatistics[0];
+        for(int y = 0; y < labels.getHeight(); y++){
+            for(int x = 0; x < labels.getWidth(); x++){
+                int label = (int) labels.getf(x, y);
+                if(label == 0){
+                    continue;
+                }
+                int i = 0;
+                while(i < stats.length && stats[i].getLabel() < label){
+                    i++;
+                }
+                if(i == stats.length || stats[i].getLabel() != label){
+                    stats = Arrays.copyOf(stats, stats.length + 1);
+                    System.arraycopy(stats, i, stats, i + 1, stats.length - i - 1);
+                    stats[i] = new LabelStatistics(label);
+                }
+                stats[i].addRun(y, x, x + 1);
+            }
+        }
+        return stats;
+    }
+
+    private void assertRoundTrip(ImageProcessor labels) throws IOException
+    {
+        LabelFileWriter.write(labels, 123.5, 4, "RUN_LENGTH", file);
+        LabelFileReader reader = new LabelFileReader(file);
+        try {
+            assertEquals(labels.getWidth(), reader.getWidth());
+            assertEquals(labels.getHeight(), reader.getHeight());
+            assertEquals(123.5, reader.getThreshVal());
+            assertEquals(4, reader.getEroDilCount());
+            assertEquals("RUN_LENGTH", reader.getEngine());
+
+            ImageProcessor read = reader.read();
+            assertEquals(labels.getBitDepth(), read.getBitDepth());
+            for(int y = 0; y < labels.getHeight(); y++){
+                for(int x = 0; x < labels.getWidth(); x++){
+                    assertEquals("at " + x + "," + y, labels.getf(x, y), read.getf(x, y));
+                }
+            }
+
+            LabelStatistics[] expected = bruteForceStatistics(labels);
+            LabelStatistics[] stats = reader.getStatistics();
+            assertEquals(expected.length, stats.length);
+            for(int i = 0; i < stats.length; i++){
+                assertEquals(expected[i].getLabel(), stats[i].getLabel());
+                assertEquals(expected[i].getArea(), stats[i].getArea());
+                assertEquals(expected[i].getBounds(), stats[i].getBounds());
+                assertEquals(expected[i].getSumX(), stats[i].getSumX());
+                assertEquals(expected[i].getSumY(), stats[i].getSumY());
+                assertEquals(expected[i].getLabel(), reader.getStatistics(expected[i].getLabel()).getLabel());
+            }
+
+            /* a single label, and a band of rows, decode the same pixels */
+            LabelStatistics last = stats[stats.length - 1];
+            ImageProcessor single = reader.readLabel(last.getLabel());
+            for(int y = 0; y < single.getHeight(); y++){
+                for(int x = 0; x < single.getWidth(); x++){
+                    float label = labels.getf(x + last.getMinX(), y + last.getMinY());
+                    assertEquals(label == last.getLabel() ? label : 0f, single.getf(x, y));
+                }
+            }
+            ImageProcessor band = reader.readBand(5, 9);
+            for(int y = 0; y < 4; y++){
+                for(int x = 0; x < labels.getWidth(); x++){
+                    assertEquals(labels.getf(x, y + 5), band.getf(x, y));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    public void testByteLabelsRoundTrip() throws IOException
+    {
+        assertRoundTrip(labels(new ByteProcessor(61, 37), 255, new Random(1)));
+    }
+
+    public void testShortLabelsRoundTrip() throws IOException
+    {
+        assertRoundTrip(labels(new ShortProcessor(61, 37), 65535, new Random(2)));
+    }
+
+    /**
+     * labels past the range of a short, held as floats as the engines write them
+     */
+    public void testIntLabelsRoundTrip() throws IOException
+    {
+        assertRoundTrip(labels(new FloatProcessor(61, 37), 1 << 24, new Random(3)));
+    }
+
+    /**
+     * opens and reads a file, passing only if it is refused with an IOException
+     */
+    private void assertRefused(String message) throws IOException
+    {
+        LabelFileReader reader;
+        try {
+            reader = new LabelFileReader(file);
+        } catch(IOException e){
+            return;
+        }
+        try {
+            reader.read();
+            fail(message);
+        } catch(IOException e){
+            // expected
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static byte[] contents(File file) throws IOException
+    {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            byte[] bytes = new byte[(int) in.length()];
+            in.readFully(bytes);
+            return bytes;
+        } finally {
+            in.close();
+        }
+    }
+
+    private void write(byte[] bytes, int length) throws IOException
+    {
+        file.delete();
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            out.write(bytes, 0, length);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * every length short of the whole file is refused, whether the cut falls in
+     * the header, the statistics, the row index or the rows
+     */
+    public void testTruncatedFilesAreRefused() throws IOException
+    {
+        LabelFileWriter.write(labels(new ShortProcessor(20, 12), 300, new Random(4)), 100, 2, "PIXEL", file);
+        byte[] whole = contents(file);
+        for(int length = 0; length < whole.length; length++){
+            write(whole, length);
+            assertRefused("truncated to " + length + " bytes");
+        }
+    }
+
+    /**
+     * a size with more pixels than an array can hold is refused when the file is
+     * opened
+     */
+    public void testOversizedImagesAreRefused() throws IOException
+    {
+        LabelFileWriter.write(new ByteProcessor(4, 4), 100, 2, "PIXEL", file);
+        byte[] bytes = contents(file);
+        bytes[8] = 0x7F;
+        write(bytes, bytes.length);
+        try {
+            new LabelFileReader(file).close();
+            fail("oversized image accepted");
+        } catch(IOException e){
+            // expected
+        }
+    }
+
+    /**
+     * a run running off the end of its row, and the statistics, index and runs
+     * corrupted at random, give an IOException rather than writing outside the
+     * row. The image size is left alone, as a larger one is still a valid file.
+     */
+    public void testRunsOutsideTheRowAreRefused() throws IOException
+    {
+        /* a single run of label 5 from x = 2 to 4: its row is the varints 1, 2, 2, 10 */
+        ByteProcessor labels = new ByteProcessor(10, 2);
+        for(int x = 2; x < 5; x++){
+            labels.set(x, 0, 5);
+        }
+        LabelFileWriter.write(labels, 100, 2, "PIXEL", file);
+        byte[] bytes = contents(file);
+        int rowStart = bytes.length - 5;
+        assertEquals(Arrays.toString(new byte[]{1, 2, 2, 10, 0}), Arrays.toString(Arrays.copyOfRange(bytes, rowStart, bytes.length)));
+
+        bytes[rowStart + 2] = 100;
+        write(bytes, bytes.length);
+        assertRefused("run past the end of the row");
+        LabelFileReader reader = new LabelFileReader(file);
+        try {
+            reader.readLabel(5);
+            fail("run past the end of the row decoded as a single label");
+        } catch(IOException e){
+            // expected
+        } finally {
+            reader.close();
+        }
+
+        /* a varint that never ends, running into the next row */
+        bytes[rowStart + 2] = (byte) 0x82;
+        bytes[rowStart + 3] = (byte) 0x8A;
+        write(bytes, bytes.length);
+        assertRefused("varint running into the next row");
+
+        Random random = new Random(5);
+        LabelFileWriter.write(labels(new ByteProcessor(30, 20), 200, random), 100, 2, "PIXEL", file);
+        byte[] whole = contents(file);
+        for(int trial = 0; trial < 500; trial++){
+            byte[] corrupt = whole.clone();
+            for(int i = 0; i < 3; i++){
+                corrupt[16 + random.nextInt(corrupt.length - 16)] = (byte) random.nextInt(256);
+            }
+            write(corrupt, corrupt.length);
+            try {
+                LabelFileReader corrupted = new LabelFileReader(file);
+                try {
+                    corrupted.read();
+                    for(LabelStatistics stat : corrupted.getStatistics()){
+                        corrupted.readLabel(stat.getLabel());
+                    }
+                } finally {
+                    corrupted.close();
+                }
+            } catch(IOException e){
+                // refused, as corrupt files may be
+            }
+        }
+    }
+}
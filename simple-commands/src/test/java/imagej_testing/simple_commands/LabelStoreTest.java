@@ -0,0 +1,145 @@
+package imagej_testing.simple_commands;
+
+import dataTypes.LabelStore;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Tests of the label store widening from bytes to shorts to ints at the
+ * boundaries of each width, keeping the labels already stored, and of the label
+ * images it is turned into.
+ */
+public class LabelStoreTest
+    extends TestCase
+{
+    public LabelStoreTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( LabelStoreTest.class );
+    }
+
+    private static void assertLabels(LabelStore store, int... labels)
+    {
+        for(int i = 0; i < labels.length; i++){
+            assertEquals("at " + i, labels[i], store.get(i));
+        }
+    }
+
+    /**
+     * the largest label of each width is stored without widening, and is read
+     * back unsigned; the next one widens the store and keeps the labels before it
+     */
+    public void testWidensAtEachBoundary()
+    {
+        LabelStore store = new LabelStore(4, 2);
+        store.set(0, 7);
+        store.set(1, LabelStore.BYTE_MAX);
+        assertEquals(8, store.getBitDepth());
+        assertLabels(store, 7, 255);
+
+        store.set(2, LabelStore.BYTE_MAX + 1);
+        assertEquals(16, store.getBitDepth());
+        assertLabels(store, 7, 255, 256);
+
+        store.set(3, LabelStore.SHORT_MAX);
+        assertEquals(16, store.getBitDepth());
+        assertLabels(store, 7, 255, 256, 65535);
+
+        store.set(4, LabelStore.SHORT_MAX + 1);
+        assertEquals(32, store.getBitDepth());
+        assertLabels(store, 7, 255, 256, 65535, 65536);
+
+        /* narrower labels never narrow the store again */
+        store.set(5, 1);
+        assertEquals(32, store.getBitDepth());
+        assertLabels(store, 7, 255, 256, 65535, 65536, 1);
+    }
+
+    /**
+     * runs widen the store as single pixels do, and a byte store can be widened
+     * straight to ints
+     */
+    public void testRunsWidenStraightToInts()
+    {
+        LabelStore store = new LabelStore(5, 2);
+        store.fillRun(0, 1, 4, LabelStore.BYTE_MAX);
+        assertEquals(8, store.getBitDepth());
+        store.fillRun(1, 0, 2, LabelStore.SHORT_MAX + 1);
+        assertEquals(32, store.getBitDepth());
+        assertLabels(store, 0, 255, 255, 255, 0, 65536, 65536, 0, 0, 0);
+
+        LabelStore reserved = new LabelStore(2, 1);
+        reserved.set(0, 200);
+        reserved.reserve(LabelStore.BYTE_MAX + 1);
+        assertEquals(16, reserved.getBitDepth());
+        assertLabels(reserved, 200, 0);
+    }
+
+    public void testLargestLabelChoosesTheWidth()
+    {
+        assertEquals(8, new LabelStore(3, 3, LabelStore.BYTE_MAX).getBitDepth());
+        assertEquals(16, new LabelStore(3, 3, LabelStore.BYTE_MAX + 1).getBitDepth());
+        assertEquals(16, new LabelStore(3, 3, LabelStore.SHORT_MAX).getBitDepth());
+        assertEquals(32, new LabelStore(3, 3, LabelStore.SHORT_MAX + 1).getBitDepth());
+    }
+
+    /**
+     * byte and short labels become processors sharing the store's array, and
+     * int labels become floats
+     */
+    public void testProcessorMatchesTheWidth()
+    {
+        LabelStore bytes = new LabelStore(2, 2);
+        bytes.set(3, LabelStore.BYTE_MAX);
+        ImageProcessor byteLabels = bytes.toProcessor();
+        assertTrue(byteLabels instanceof ByteProcessor);
+        assertEquals(255f, byteLabels.getf(1, 1));
+        byteLabels.set(0, 0, 9);
+        assertEquals(9, bytes.get(0));
+
+        LabelStore shorts = new LabelStore(2, 2);
+        shorts.set(3, LabelStore.SHORT_MAX);
+        ImageProcessor shortLabels = shorts.toProcessor();
+        assertTrue(shortLabels instanceof ShortProcessor);
+        assertEquals(65535f, shortLabels.getf(1, 1));
+        shortLabels.set(0, 0, 9);
+        assertEquals(9, shorts.get(0));
+
+        LabelStore ints = new LabelStore(2, 2);
+        ints.set(2, LabelStore.SHORT_MAX + 1);
+        ints.set(3, LabelStore.FLOAT_MAX);
+        ImageProcessor intLabels = ints.toProcessor();
+        assertTrue(intLabels instanceof FloatProcessor);
+        assertEquals(65536f, intLabels.getf(0, 1));
+        assertEquals((float) (1 << 24), intLabels.getf(1, 1));
+    }
+
+    /**
+     * a float holds every label up to 2^24 exactly, but not the one after it,
+     * which would be output as 2^24 and so join another cell
+     */
+    public void testLabelsBeyondFloatsAreRefused()
+    {
+        assertEquals(LabelStore.FLOAT_MAX, (int) (float) LabelStore.FLOAT_MAX);
+        assertEquals(LabelStore.FLOAT_MAX, (int) (float) (LabelStore.FLOAT_MAX + 1));
+
+        LabelStore store = new LabelStore(2, 1);
+        store.set(0, LabelStore.FLOAT_MAX + 1);
+        assertEquals(LabelStore.FLOAT_MAX + 1, store.get(0));
+        try {
+            store.toProcessor();
+            fail("label beyond 2^24 output");
+        } catch(IllegalStateException e){
+            // expected
+        }
+    }
+}
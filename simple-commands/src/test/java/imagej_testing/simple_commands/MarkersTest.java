@@ -0,0 +1,252 @@
+package imagej_testing.simple_commands;
+
+import dataTypes.LabelledRuns;
+import dataTypes.RunLengthMask;
+import ij.gui.PointRoi;
+import ij.gui.Roi;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import watershed.Engine;
+import watershed.Erode;
+import watershed.Markers;
+import watershed.Threshold;
+import watershed.Watershed;
+import watershed.WatershedEngine;
+import watershed.WatershedParams;
+import watershed.WatershedResult;
+
+/**
+ * Tests of the markers a run can grow its cells from: how each factory numbers
+ * them, how a selection crops them, and that growing from markers gives the
+ * cells that eroding gives when the markers are the eroded cell bodies.
+ */
+public class MarkersTest
+    extends TestCase
+{
+    private static final Engine[] ENGINES = {Engine.PIXEL, Engine.RUN_LENGTH};
+
+    public MarkersTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( MarkersTest.class );
+    }
+
+    /**
+     * @return four separate 8x8 squares in a row, with their top left corners at
+     * x = 2, 14, 26 and 38 and y = 2
+     */
+    private static ByteProcessor squares()
+    {
+        ByteProcessor input = new ByteProcessor(50, 12);
+        for(int s = 0; s < 4; s++){
+            for(int y = 2; y < 10; y++){
+                for(int x = 2 + 12 * s; x < 10 + 12 * s; x++){
+                    input.set(x, y, 255);
+                }
+            }
+        }
+        return input;
+    }
+
+    private static WatershedEngine engine(Engine engine)
+    {
+        return new WatershedEngine(new WatershedParams.Builder().threshVal(150).eroDilCount(2).engine(engine).build());
+    }
+
+    /**
+     * @return the label of the centre of each square
+     */
+    private static float[] squareLabels(ImageProcessor labels, int left)
+    {
+        float[] found = new float[4];
+        for(int s = 0; s < 4; s++){
+            int x = 6 + 12 * s - left;
+            found[s] = x >= 0 && x < labels.getWidth() ? labels.getf(x, 6) : -1;
+        }
+        return found;
+    }
+
+    private static void assertSquareLabels(String message, float[] expected, ImageProcessor labels)
+    {
+        float[] found = squareLabels(labels, 0);
+        for(int s = 0; s < expected.length; s++){
+            assertEquals(message + " square " + s, expected[s], found[s]);
+        }
+    }
+
+    /**
+     * points are numbered in the order given, whatever their position, and a
+     * point on a pixel already taken is left out of the labels
+     */
+    public void testPointsAreNumberedInOrder()
+    {
+        int[] xs = {30, 5, 42, 17};
+        int[] ys = {5, 5, 8, 3};
+        Markers markers = Markers.fromPoints(xs, ys);
+        assertEquals(4, markers.getCount());
+        float first = Watershed.LABEL_OFFSET + 1;
+        for(Engine engine : ENGINES){
+            ImageProcessor labels = engine(engine).run(squares(), markers).getLabels();
+            float[] expected = {first + 1, first + 3, first, first + 2};
+            assertSquareLabels(engine.toString(), expected, labels);
+
+            /* the second point falls on the first, so its label is never placed */
+            Markers shared = Markers.fromPoints(new int[]{5, 5, 17}, new int[]{5, 5, 5});
+            assertEquals(3, shared.getCount());
+            ImageProcessor sharedLabels = engine(engine).run(squares(), shared).getLabels();
+            assertEquals(first, sharedLabels.getf(6, 6));
+            assertEquals(first + 2, sharedLabels.getf(18, 6));
+        }
+    }
+
+    /**
+     * coordinate pairs and point selections give the markers of the same points
+     */
+    public void testCoordinatesAndSelectionsMatchPoints()
+    {
+        int[] xs = {30, 5, 42, 17};
+        int[] ys = {5, 5, 8, 3};
+        Markers coordinates = Markers.fromCoordinates(new int[]{30, 5, 5, 5, 42, 8, 17, 3});
+        Markers selection = Markers.fromRoi(new PointRoi(xs, ys, xs.length));
+        assertEquals(4, coordinates.getCount());
+        assertEquals(4, selection.getCount());
+        for(Engine engine : ENGINES){
+            float[] expected = squareLabels(engine(engine).run(squares(), Markers.fromPoints(xs, ys)).getLabels(), 0);
+            assertSquareLabels(engine + " coordinates", expected, engine(engine).run(squares(), coordinates).getLabels());
+            assertSquareLabels(engine + " selection", expected, engine(engine).run(squares(), selection).getLabels());
+        }
+    }
+
+    public void testInvalidPointsAreRefused()
+    {
+        try {
+            Markers.fromPoints(new int[]{1, 2}, new int[]{1});
+            fail("unpaired points accepted");
+        } catch(IllegalArgumentException e){
+            // expected
+        }
+        try {
+            Markers.fromCoordinates(new int[]{1, 2, 3});
+            fail("odd number of coordinates accepted");
+        } catch(IllegalArgumentException e){
+            // expected
+        }
+        try {
+            Markers.fromRoi(new Roi(0, 0, 5, 5));
+            fail("area selection accepted");
+        } catch(IllegalArgumentException e){
+            // expected
+        }
+    }
+
+    /**
+     * the values of a marker image are numbered from the lowest up, whatever
+     * order they are met in, and pixels of the same value are one marker even
+     * when they are apart
+     */
+    public void testImageValuesAreNumberedFromTheLowest()
+    {
+        FloatProcessor markerImage = new FloatProcessor(50, 12);
+        markerImage.setf(5, 5, 250);
+        markerImage.setf(17, 5, 3);
+        markerImage.setf(29, 5, 7.5f);
+        markerImage.setf(41, 5, 3);
+        markerImage.setf(42, 5, 3);
+        markerImage.setf(0, 0, Float.NaN);
+        Markers markers = Markers.fromImage(markerImage);
+        assertEquals(3, markers.getCount());
+        float first = Watershed.LABEL_OFFSET + 1;
+        for(Engine engine : ENGINES){
+            float[] expected = {first + 2, first, first + 1, first};
+            assertSquareLabels(engine.toString(), expected, engine(engine).run(squares(), markers).getLabels());
+        }
+    }
+
+    /**
+     * markers outside a selection's bounds are left out, and those inside keep
+     * their numbers, on labels covering only the bounds
+     */
+    public void testSelectionsCropMarkers()
+    {
+        Markers markers = Markers.fromPoints(new int[]{5, 17, 29, 41}, new int[]{5, 5, 5, 5});
+        Roi roi = new Roi(13, 0, 26, 12);
+        float first = Watershed.LABEL_OFFSET + 1;
+        for(Engine engine : ENGINES){
+            WatershedResult result = engine(engine).run(squares(), roi, markers);
+            ImageProcessor labels = result.getLabels();
+            assertEquals(26, labels.getWidth());
+            float[] found = squareLabels(labels, 13);
+            assertEquals(engine.toString(), first + 1, found[1]);
+            assertEquals(engine.toString(), first + 2, found[2]);
+            for(int y = 0; y < labels.getHeight(); y++){
+                for(int x = 0; x < labels.getWidth(); x++){
+                    float label = labels.getf(x, y);
+                    assertTrue(engine + " at " + x + "," + y, label == 0 || label == first + 1 || label == first + 2);
+                }
+            }
+
+            ImageProcessor full = result.toFullSize(50, 12);
+            assertEquals(0f, full.getf(6, 6));
+            assertEquals(0f, full.getf(42, 6));
+        }
+    }
+
+    /**
+     * @return the cell bodies the engine finds by eroding, as a marker image
+     */
+    private static FloatProcessor erodedBodies(ImageProcessor input, int eroDilCount)
+    {
+        RunLengthMask mask = Threshold.thresholdRuns(input, input.getMin(), input.getMax(), 150);
+        for(int i = 0; i < eroDilCount; i++){
+            mask = Erode.erodeRuns(mask);
+        }
+        LabelledRuns bodies = Watershed.labelRuns(mask);
+        FloatProcessor markerImage = new FloatProcessor(input.getWidth(), input.getHeight());
+        for(int y = 0; y < input.getHeight(); y++){
+            int[] cells = bodies.getCells(y);
+            for(int i = 0; i < cells.length; i += 3){
+                for(int x = cells[i]; x < cells[i + 1]; x++){
+                    markerImage.setf(x, y, cells[i + 2]);
+                }
+            }
+        }
+        return markerImage;
+    }
+
+    /**
+     * growing from markers on the pixels of the eroded cell bodies gives the
+     * cells of a geodesic run grown until the mask is filled, as markers are
+     * always grown. The pixel engine numbers its cell bodies in its own order, so
+     * the cells are compared up to numbering.
+     */
+    public void testMarkersMatchErodedSeeds()
+    {
+        for(int trial = 0; trial < 8; trial++){
+            ByteProcessor input = WatershedEngineTest.blobs(70 + 10 * trial, 60 + 5 * trial, 20 + trial);
+            int eroDilCount = 1 + trial % 4;
+            Markers markers = Markers.fromImage(erodedBodies(input, eroDilCount));
+            for(Engine engine : ENGINES){
+                WatershedParams params = new WatershedParams.Builder().threshVal(150).eroDilCount(eroDilCount)
+                        .geodesic(true).untilFilled(true).engine(engine).build();
+                int[] eroded = WatershedEngineTest.labels(new WatershedEngine(params), input);
+                ImageProcessor grown = new WatershedEngine(params).run(input, markers).getLabels();
+                int[] grownLabels = new int[eroded.length];
+                for(int i = 0; i < grownLabels.length; i++){
+                    grownLabels[i] = (int) grown.getf(i);
+                }
+                boolean[] unmatched = WatershedEngineTest.unmatched(eroded, grownLabels);
+                for(int i = 0; i < unmatched.length; i++){
+                    assertFalse("trial " + trial + " " + engine + " at " + i % input.getWidth() + "," + i / input.getWidth(), unmatched[i]);
+                }
+            }
+        }
+    }
+}
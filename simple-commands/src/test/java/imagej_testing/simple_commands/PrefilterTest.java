@@ -0,0 +1,156 @@
+package imagej_testing.simple_commands;
+
+import java.util.Random;
+
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import watershed.Prefilter;
+
+/**
+ * Tests of the separable Gaussian smoothing and the Sobel gradient of the
+ * prefilter against a two dimensional convolution worked out pixel by pixel on
+ * small random images, with the edge pixels repeated beyond the image.
+ */
+public class PrefilterTest
+    extends TestCase
+{
+    private static final int WIDTH = 23;
+    private static final int HEIGHT = 17;
+    private static final double LOWEST = -40;
+    private static final double HIGHEST = 300;
+
+    public PrefilterTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( PrefilterTest.class );
+    }
+
+    private static FloatProcessor random(long seed)
+    {
+        Random random = new Random(seed);
+        float[] pixels = new float[WIDTH * HEIGHT];
+        for(int i = 0; i < pixels.length; i++){
+            pixels[i] = (float) (LOWEST + random.nextDouble() * (HIGHEST - LOWEST));
+        }
+        return new FloatProcessor(WIDTH, HEIGHT, pixels, null);
+    }
+
+    private static double at(double[][] image, int x, int y)
+    {
+        return image[Math.min(Math.max(y, 0), HEIGHT - 1)][Math.min(Math.max(x, 0), WIDTH - 1)];
+    }
+
+    /**
+     * @return the image smoothed by a Gaussian reaching three standard deviations
+     * either side of its centre, normalised over the whole square kernel
+     */
+    private static double[][] gaussian(ImageProcessor input, double sigma)
+    {
+        int radius = Math.max(1, (int) Math.ceil(3 * sigma));
+        double[][] image = new double[HEIGHT][WIDTH];
+        for(int y = 0; y < HEIGHT; y++){
+            for(int x = 0; x < WIDTH; x++){
+                image[y][x] = input.getf(x, y);
+            }
+        }
+        if(sigma == 0){
+            return image;
+        }
+        double total = 0;
+        for(int j = -radius; j <= radius; j++){
+            for(int i = -radius; i <= radius; i++){
+                total += Math.exp(-(i * i + j * j) / (2 * sigma * sigma));
+            }
+        }
+        double[][] smoothed = new double[HEIGHT][WIDTH];
+        for(int y = 0; y < HEIGHT; y++){
+            for(int x = 0; x < WIDTH; x++){
+                double sum = 0;
+                for(int j = -radius; j <= radius; j++){
+                    for(int i = -radius; i <= radius; i++){
+                        sum += Math.exp(-(i * i + j * j) / (2 * sigma * sigma)) * at(image, x + i, y + j);
+                    }
+                }
+                smoothed[y][x] = sum / total;
+            }
+        }
+        return smoothed;
+    }
+
+    /**
+     * @return the Sobel gradient magnitude added to the lowest value and clamped
+     * at the highest
+     */
+    private static double[][] sobel(double[][] image)
+    {
+        int[][] kernel = {{1, 2, 1}, {0, 0, 0}, {-1, -2, -1}};
+        double[][] gradient = new double[HEIGHT][WIDTH];
+        for(int y = 0; y < HEIGHT; y++){
+            for(int x = 0; x < WIDTH; x++){
+                double down = 0;
+                double across = 0;
+                for(int j = -1; j <= 1; j++){
+                    for(int i = -1; i <= 1; i++){
+                        down += kernel[j + 1][i + 1] * at(image, x + i, y + j);
+                        across += kernel[i + 1][j + 1] * at(image, x + i, y + j);
+                    }
+                }
+                gradient[y][x] = Math.min(LOWEST + Math.sqrt(down * down + across * across), HIGHEST);
+            }
+        }
+        return gradient;
+    }
+
+    private static void assertFiltered(String message, double[][] expected, FloatProcessor actual)
+    {
+        for(int y = 0; y < HEIGHT; y++){
+            for(int x = 0; x < WIDTH; x++){
+                assertEquals(message + " at " + x + "," + y, expected[y][x], actual.getf(x, y), 1e-3);
+            }
+        }
+    }
+
+    public void testGaussianMatchesConvolution()
+    {
+        double[] sigmas = {0.4, 1, 1.7, 3};
+        for(int s = 0; s < sigmas.length; s++){
+            FloatProcessor input = random(s);
+            FloatProcessor filtered = Prefilter.filter(input, LOWEST, HIGHEST, sigmas[s], false);
+            assertFiltered("sigma " + sigmas[s], gaussian(input, sigmas[s]), filtered);
+        }
+    }
+
+    public void testSobelMatchesConvolution()
+    {
+        FloatProcessor input = random(7);
+        assertFiltered("unsmoothed", sobel(gaussian(input, 0)), Prefilter.filter(input, LOWEST, HIGHEST, 0, true));
+    }
+
+    /**
+     * the gradient is taken of the smoothed image, so some of it falls below the
+     * clamp at the highest value
+     */
+    public void testSobelOfSmoothedMatchesConvolution()
+    {
+        double[] sigmas = {0.8, 2};
+        for(int s = 0; s < sigmas.length; s++){
+            FloatProcessor input = random(10 + s);
+            double[][] expected = sobel(gaussian(input, sigmas[s]));
+            assertFiltered("sigma " + sigmas[s], expected, Prefilter.filter(input, LOWEST, HIGHEST, sigmas[s], true));
+            boolean unclamped = false;
+            for(double[] row : expected){
+                for(double value : row){
+                    unclamped |= value < HIGHEST;
+                }
+            }
+            assertTrue(unclamped);
+        }
+    }
+}
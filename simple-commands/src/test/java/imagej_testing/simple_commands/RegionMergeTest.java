@@ -0,0 +1,133 @@
+package imagej_testing.simple_commands;
+
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import watershed.RegionMerge;
+import watershed.Watershed;
+
+/**
+ * Tests of merging over-segmented cells on small hand drawn label images, in
+ * which cells are digits, watershed pixels are '|' and background is '.'.
+ */
+public class RegionMergeTest
+    extends TestCase
+{
+    private static final float CELL = 200;
+    private static final float WEAK = 195;
+    private static final float STRONG = 50;
+    private static final double THRESHOLD = 20;
+
+    public RegionMergeTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( RegionMergeTest.class );
+    }
+
+    /**
+     * @return the labels drawn by the rows
+     */
+    private static ImageProcessor labels(String[] rows)
+    {
+        int width = rows[0].length();
+        float[] pixels = new float[width * rows.length];
+        for(int y = 0; y < rows.length; y++){
+            for(int x = 0; x < width; x++){
+                char c = rows[y].charAt(x);
+                pixels[y * width + x] = c == '.' ? 0 : c == '|' ? Watershed.WSHED_LABEL : c - '0';
+            }
+        }
+        return new FloatProcessor(width, rows.length, pixels, null);
+    }
+
+    /**
+     * @return an intensity image with bright cells, and watershed pixels as dim
+     * as the line of the row they are on
+     */
+    private static ImageProcessor intensity(ImageProcessor labels, float[] lineByRow)
+    {
+        int width = labels.getWidth();
+        float[] pixels = new float[width * labels.getHeight()];
+        for(int y = 0; y < labels.getHeight(); y++){
+            for(int x = 0; x < width; x++){
+                float label = labels.getf(x, y);
+                pixels[y * width + x] = label == 0 ? 0 : label == Watershed.WSHED_LABEL ? lineByRow[y] : CELL;
+            }
+        }
+        return new FloatProcessor(width, labels.getHeight(), pixels, null);
+    }
+
+    /**
+     * two cells either side of a weak line two pixels thick, each of whose
+     * pixels touches only one of them, are merged and the line cleared
+     */
+    public void testWeakTwoThickBoundaryIsMerged()
+    {
+        ImageProcessor labels = labels(new String[]{
+            "2222||3333",
+            "2222||3333",
+            "2222||3333",
+            "2222||3333",
+        });
+        ImageProcessor intensity = intensity(labels, new float[]{WEAK, WEAK, WEAK, WEAK});
+
+        assertEquals(1, RegionMerge.merge(labels, intensity, Watershed.WSHED_LABEL, 0, 255, THRESHOLD));
+        float merged = labels.getf(0, 0);
+        for(int y = 0; y < labels.getHeight(); y++){
+            for(int x = 0; x < labels.getWidth(); x++){
+                assertEquals("at " + x + "," + y, merged, labels.getf(x, y));
+            }
+        }
+    }
+
+    /**
+     * a merge at the top of the image leaves the two thick line between two
+     * other cells at the bottom alone, as each of its pixels touches only one
+     * cell and the two cells were not merged
+     */
+    public void testUnrelatedLineSurvivesMergeElsewhere()
+    {
+        ImageProcessor labels = labels(new String[]{
+            "22222|33333",
+            "22222|33333",
+            "...........",
+            "4444||55555",
+            "4444||55555",
+        });
+        ImageProcessor intensity = intensity(labels, new float[]{WEAK, WEAK, 0, STRONG, STRONG});
+
+        assertEquals(1, RegionMerge.merge(labels, intensity, Watershed.WSHED_LABEL, 0, 255, THRESHOLD));
+        assertEquals(labels.getf(0, 0), labels.getf(10, 0));
+        assertEquals(labels.getf(0, 0), labels.getf(5, 1));
+        for(int y = 3; y < 5; y++){
+            assertEquals(4f, labels.getf(0, y));
+            assertEquals((float) Watershed.WSHED_LABEL, labels.getf(4, y));
+            assertEquals((float) Watershed.WSHED_LABEL, labels.getf(5, y));
+            assertEquals(5f, labels.getf(10, y));
+        }
+    }
+
+    /**
+     * a line that only runs along the edge of one cell, beside background, is not
+     * cleared by merges elsewhere
+     */
+    public void testLineBesideOneCellIsKept()
+    {
+        ImageProcessor labels = labels(new String[]{
+            "2222|3333",
+            "2222|3333",
+            "||||.....",
+        });
+        ImageProcessor intensity = intensity(labels, new float[]{WEAK, WEAK, WEAK});
+
+        assertEquals(1, RegionMerge.merge(labels, intensity, Watershed.WSHED_LABEL, 0, 255, THRESHOLD));
+        assertEquals((float) Watershed.WSHED_LABEL, labels.getf(0, 2));
+        assertEquals((float) Watershed.WSHED_LABEL, labels.getf(1, 2));
+    }
+}
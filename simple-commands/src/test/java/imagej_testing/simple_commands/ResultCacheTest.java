@@ -0,0 +1,219 @@
+package imagej_testing.simple_commands;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+import ij.gui.OvalRoi;
+import ij.gui.Roi;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import watershed.Engine;
+import watershed.ResultCache;
+import watershed.WatershedParams;
+
+/**
+ * Tests of the result cache: repeated runs are hits, the memory tier evicts the
+ * least recently used results by bytes, results spilled to disk are read back,
+ * and the key changes with everything that can change the result.
+ */
+public class ResultCacheTest
+    extends TestCase
+{
+    private File directory;
+
+    public ResultCacheTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( ResultCacheTest.class );
+    }
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        directory = File.createTempFile("cache", "");
+        directory.delete();
+        directory.mkdir();
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        for(File file : directory.listFiles()){
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    private static WatershedParams params()
+    {
+        return new WatershedParams.Builder().threshVal(150).eroDilCount(3).engine(Engine.RUN_LENGTH).build();
+    }
+
+    /**
+     * @return an 8 bit label image of 100 bytes, filled with one value
+     */
+    private static ImageProcessor filled(int value)
+    {
+        ByteProcessor labels = new ByteProcessor(10, 10);
+        labels.setValue(value);
+        labels.fill();
+        return labels;
+    }
+
+    private static void assertSamePixels(ImageProcessor expected, ImageProcessor actual)
+    {
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        for(int y = 0; y < expected.getHeight(); y++){
+            for(int x = 0; x < expected.getWidth(); x++){
+                assertEquals("at " + x + "," + y, expected.getf(x, y), actual.getf(x, y));
+            }
+        }
+    }
+
+    /**
+     * watershedding the same image twice is a hit the second time, and each hit
+     * is a copy that can be altered without altering the cache
+     */
+    public void testRepeatedRunIsAHit()
+    {
+        ResultCache cache = new ResultCache(1 << 20);
+        ImageProcessor input = WatershedEngineTest.blobs(80, 60, 1);
+        ImageProcessor first = cache.apply(input, null, null, params());
+        assertEquals(0, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        ImageProcessor second = cache.apply(input.duplicate(), null, null, params());
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertSamePixels(first, second);
+
+        second.setf(0, 0, 99);
+        assertEquals(first.getf(0, 0), cache.apply(input, null, null, params()).getf(0, 0));
+        assertEquals(2, cache.getHits());
+    }
+
+    /**
+     * three results of 100 bytes fill a cache of 300, so a fourth evicts the one
+     * used longest ago, and a result larger than the whole cache is not held
+     */
+    public void testLeastRecentlyUsedIsEvictedByBytes()
+    {
+        ResultCache cache = new ResultCache(300);
+        cache.put("a", filled(2), params());
+        cache.put("b", filled(3), params());
+        cache.put("c", filled(4), params());
+        assertEquals(300, cache.getBytes());
+        assertNotNull(cache.get("a"));
+
+        cache.put("d", filled(5), params());
+        assertEquals(1, cache.getEvictions());
+        assertEquals(300, cache.getBytes());
+        assertNull(cache.get("b"));
+        assertEquals(2f, cache.get("a").getf(0, 0));
+        assertEquals(4f, cache.get("c").getf(0, 0));
+        assertEquals(5f, cache.get("d").getf(0, 0));
+
+        cache.put("e", new ByteProcessor(20, 20), params());
+        assertNull(cache.get("e"));
+        assertEquals(300, cache.getBytes());
+    }
+
+    /**
+     * results evicted from memory, or held by an earlier cache on the same
+     * directory, are read back from their label files
+     */
+    public void testDiskSpillIsReloaded()
+    {
+        ImageProcessor input = WatershedEngineTest.blobs(80, 60, 2);
+        ResultCache cache = new ResultCache(0, directory);
+        ImageProcessor labels = cache.apply(input, null, null, params());
+        assertEquals(0, cache.getBytes());
+        assertEquals(1, directory.listFiles().length);
+
+        assertSamePixels(labels, cache.apply(input, null, null, params()));
+        assertEquals(1, cache.getDiskHits());
+        assertEquals(0, cache.getHits());
+
+        ResultCache restarted = new ResultCache(1 << 20, directory);
+        assertSamePixels(labels, restarted.apply(input, null, null, params()));
+        assertEquals(1, restarted.getDiskHits());
+        assertSamePixels(labels, restarted.apply(input, null, null, params()));
+        assertEquals(1, restarted.getHits());
+        assertEquals(0, restarted.getMisses());
+    }
+
+    /**
+     * a label file that cannot be read is a miss, counted as a disk error
+     */
+    public void testUnreadableFileIsADiskError() throws IOException
+    {
+        ImageProcessor input = WatershedEngineTest.blobs(40, 30, 3);
+        String key = ResultCache.key(input, null, null, params());
+        FileOutputStream out = new FileOutputStream(new File(directory, key + ".wslb"));
+        try {
+            out.write(new byte[]{1, 2, 3});
+        } finally {
+            out.close();
+        }
+        ResultCache cache = new ResultCache(1 << 20, directory);
+        assertNull(cache.get(key));
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getDiskErrors());
+        assertTrue(cache.getLastDiskError().contains(key));
+    }
+
+    /**
+     * the key follows the pixels and their display range, the selection and its
+     * shape, the calibration and every parameter, but not which processor holds
+     * the pixels
+     */
+    public void testKeyFollowsEverythingThatChangesTheResult()
+    {
+        ImageProcessor input = WatershedEngineTest.blobs(50, 40, 4);
+        String key = ResultCache.key(input, null, null, params());
+        assertEquals(key, ResultCache.key(input.duplicate(), null, null, params()));
+
+        Set<String> keys = new HashSet<String>();
+        keys.add(key);
+
+        ImageProcessor changed = input.duplicate();
+        changed.set(7, 7, changed.get(7, 7) + 1);
+        keys.add(ResultCache.key(changed, null, null, params()));
+        ImageProcessor range = input.duplicate();
+        range.setMinAndMax(10, 200);
+        keys.add(ResultCache.key(range, null, null, params()));
+
+        keys.add(ResultCache.key(input, new Roi(5, 5, 20, 20), null, params()));
+        keys.add(ResultCache.key(input, new Roi(6, 5, 20, 20), null, params()));
+        keys.add(ResultCache.key(input, new OvalRoi(5, 5, 20, 20), null, params()));
+
+        Calibration calibration = new Calibration();
+        keys.add(ResultCache.key(input, null, calibration, params()));
+        Calibration wider = new Calibration();
+        wider.pixelWidth = 2;
+        keys.add(ResultCache.key(input, null, wider, params()));
+        Calibration microns = new Calibration();
+        microns.setUnit("micron");
+        keys.add(ResultCache.key(input, null, microns, params()));
+
+        keys.add(ResultCache.key(input, null, null, params().toBuilder().threshVal(151).build()));
+        keys.add(ResultCache.key(input, null, null, params().toBuilder().eroDilCount(2).build()));
+        keys.add(ResultCache.key(input, null, null, params().toBuilder().engine(Engine.PIXEL).build()));
+        keys.add(ResultCache.key(input, null, null, params().toBuilder().geodesic(true).build()));
+        keys.add(ResultCache.key(input, null, null, params().toBuilder().minSeedArea(4).build()));
+
+        assertEquals(14, keys.size());
+    }
+}
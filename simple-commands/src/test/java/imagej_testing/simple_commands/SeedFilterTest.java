@@ -0,0 +1,245 @@
+package imagej_testing.simple_commands;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import dataTypes.RunLengthMask;
+import ij.gui.OvalRoi;
+import ij.gui.Roi;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import watershed.Engine;
+import watershed.Erode;
+import watershed.Threshold;
+import watershed.Watershed;
+import watershed.WatershedEngine;
+import watershed.WatershedParams;
+
+/**
+ * Tests of the seed filters against cell bodies found pixel by pixel: both
+ * engines keep the same seeds, number them without gaps, and treat the edge of
+ * a selection's bounds as the border.
+ */
+public class SeedFilterTest
+    extends TestCase
+{
+    private static final int THRESH_VAL = 150;
+
+    public SeedFilterTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( SeedFilterTest.class );
+    }
+
+    /**
+     * a seed found by flooding the eroded mask with 8 connectedness
+     */
+    private static class Seed
+    {
+        final List<Integer> pixels = new ArrayList<Integer>();
+        boolean touchesBorder = false;
+    }
+
+    /**
+     * @return the cell bodies left after eroding the threshold mask, flooded
+     * pixel by pixel
+     */
+    private static List<Seed> seeds(ImageProcessor input, int eroDilCount)
+    {
+        int width = input.getWidth();
+        int height = input.getHeight();
+        RunLengthMask mask = Threshold.thresholdRuns(input, input.getMin(), input.getMax(), THRESH_VAL);
+        for(int i = 0; i < eroDilCount; i++){
+            mask = Erode.erodeRuns(mask);
+        }
+        boolean[] left = new boolean[width * height];
+        for(int y = 0; y < height; y++){
+            for(int x = 0; x < width; x++){
+                left[y * width + x] = mask.isForeground(x, y);
+            }
+        }
+
+        List<Seed> seeds = new ArrayList<Seed>();
+        int[] stack = new int[width * height];
+        for(int start = 0; start < left.length; start++){
+            if(!left[start]){
+                continue;
+            }
+            Seed seed = new Seed();
+            left[start] = false;
+            int size = 0;
+            stack[size++] = start;
+            while(size > 0){
+                int i = stack[--size];
+                int x = i % width;
+                int y = i / width;
+                seed.pixels.add(i);
+                seed.touchesBorder |= x == 0 || y == 0 || x == width - 1 || y == height - 1;
+                for(int dy = -1; dy <= 1; dy++){
+                    for(int dx = -1; dx <= 1; dx++){
+                        int nx = x + dx;
+                        int ny = y + dy;
+                        if(nx >= 0 && ny >= 0 && nx < width && ny < height && left[ny * width + nx]){
+                            left[ny * width + nx] = false;
+                            stack[size++] = ny * width + nx;
+                        }
+                    }
+                }
+            }
+            seeds.add(seed);
+        }
+        return seeds;
+    }
+
+    private static boolean accepts(Seed seed, int minArea, int maxArea, boolean excludeBorder)
+    {
+        int area = seed.pixels.size();
+        return area >= minArea && (maxArea == 0 || area <= maxArea) && !(excludeBorder && seed.touchesBorder);
+    }
+
+    private static int[] values(ImageProcessor labels)
+    {
+        int[] values = new int[labels.getWidth() * labels.getHeight()];
+        for(int i = 0; i < values.length; i++){
+            values[i] = (int) labels.getf(i);
+        }
+        return values;
+    }
+
+    /**
+     * @return the cell labels of an image, checking they run from the first
+     * cell label up without a gap
+     */
+    private static Set<Integer> cellLabels(String message, int[] labels)
+    {
+        Set<Integer> cells = new TreeSet<Integer>();
+        for(int label : labels){
+            if(label > Watershed.WSHED_LABEL){
+                cells.add(label);
+            }
+        }
+        int expected = Watershed.LABEL_OFFSET + 1;
+        for(int label : cells){
+            assertEquals(message + " numbering", expected++, label);
+        }
+        return cells;
+    }
+
+    /**
+     * each kept seed lies inside a cell of its own and each dropped one leaves
+     * no cell behind, on both engines, which agree on every pixel up to their
+     * numbering
+     */
+    public void testBothEnginesKeepTheSameSeeds()
+    {
+        int[][] filters = {{0, 0, 1}, {30, 0, 0}, {0, 60, 0}, {15, 120, 1}, {1000, 0, 0}};
+        int[] dropped = new int[filters.length];
+        for(int trial = 0; trial < 10; trial++){
+            ByteProcessor input = WatershedEngineTest.blobs(80 + 7 * trial, 70 + 3 * trial, 60 + trial);
+            int eroDilCount = 1 + trial % 3;
+            List<Seed> seeds = seeds(input, eroDilCount);
+            for(int f = 0; f < filters.length; f++){
+                int[] filter = filters[f];
+                String message = "trial " + trial + " filter " + filter[0] + "-" + filter[1] + (filter[2] == 1 ? " border" : "");
+                List<Seed> kept = new ArrayList<Seed>();
+                for(Seed seed : seeds){
+                    if(accepts(seed, filter[0], filter[1], filter[2] == 1)){
+                        kept.add(seed);
+                    }
+                }
+                dropped[f] += seeds.size() - kept.size();
+
+                int[] runLength = null;
+                for(Engine engine : new Engine[]{Engine.RUN_LENGTH, Engine.PIXEL}){
+                    WatershedParams params = new WatershedParams.Builder().threshVal(THRESH_VAL).eroDilCount(eroDilCount)
+                            .minSeedArea(filter[0]).maxSeedArea(filter[1]).excludeBorderSeeds(filter[2] == 1).engine(engine).build();
+                    int[] labels = values(new WatershedEngine(params).run(input).getLabels());
+                    assertEquals(message + " " + engine, kept.size(), cellLabels(message + " " + engine, labels).size());
+
+                    Set<Integer> seen = new TreeSet<Integer>();
+                    for(Seed seed : kept){
+                        int label = labels[seed.pixels.get(0)];
+                        assertTrue(message + " " + engine, label > Watershed.WSHED_LABEL);
+                        assertTrue(message + " " + engine + " two seeds in one cell", seen.add(label));
+                        for(int i : seed.pixels){
+                            assertEquals(message + " " + engine, label, labels[i]);
+                        }
+                    }
+
+                    if(runLength == null){
+                        runLength = labels;
+                    } else {
+                        boolean[] unmatched = WatershedEngineTest.unmatched(runLength, labels);
+                        for(int i = 0; i < unmatched.length; i++){
+                            assertFalse(message + " engines differ at " + i, unmatched[i]);
+                        }
+                    }
+                }
+            }
+        }
+        for(int f = 0; f < filters.length; f++){
+            assertTrue("filter " + f + " never dropped a seed", dropped[f] > 0);
+        }
+    }
+
+    /**
+     * @return a 10x10 square in the middle of a 60x40 image, with its top left
+     * corner at 25,15, and another against the left edge of the image
+     */
+    private static ByteProcessor squares()
+    {
+        ByteProcessor input = new ByteProcessor(60, 40);
+        for(int y = 15; y < 25; y++){
+            for(int x = 0; x < 10; x++){
+                input.set(x, y, 255);
+                input.set(x + 25, y, 255);
+            }
+        }
+        return input;
+    }
+
+    /**
+     * inside a selection the border is the edge of the selection's bounds,
+     * clipped to the image, as those are the pixels watershedded: a cell the
+     * bounds cut through is dropped, but one the curve of an oval cuts through
+     * is kept if the bounds are clear of it
+     */
+    public void testBorderIsTheEdgeOfTheSelectionBounds()
+    {
+        ByteProcessor input = squares();
+        float first = Watershed.LABEL_OFFSET + 1;
+        for(Engine engine : new Engine[]{Engine.RUN_LENGTH, Engine.PIXEL}){
+            WatershedParams params = new WatershedParams.Builder().threshVal(THRESH_VAL).eroDilCount(1)
+                    .excludeBorderSeeds(true).engine(engine).build();
+            WatershedEngine watershed = new WatershedEngine(params);
+
+            ImageProcessor whole = watershed.run(input).getLabels();
+            assertEquals(engine.toString(), 0f, whole.getf(5, 20));
+            assertEquals(engine.toString(), first, whole.getf(30, 20));
+
+            /* the bounds cut the middle square, and reach past the image on the left */
+            ImageProcessor cut = watershed.run(input, new Roi(-5, 10, 35, 20)).toFullSize(60, 40);
+            assertEquals(engine.toString(), 0f, cut.getf(27, 20));
+            assertEquals(engine.toString(), 0f, cut.getf(5, 20));
+
+            /* the bounds are clear of the middle square */
+            ImageProcessor clear = watershed.run(input, new Roi(20, 10, 20, 20)).toFullSize(60, 40);
+            assertEquals(engine.toString(), first, clear.getf(30, 20));
+
+            /* the oval's curve cuts the corners of the square, its bounds do not */
+            OvalRoi oval = new OvalRoi(24, 14, 12, 12);
+            assertEquals(0, oval.getMask().get(25 - 24, 15 - 14));
+            ImageProcessor curved = watershed.run(input, oval).toFullSize(60, 40);
+            assertEquals(engine.toString(), first, curved.getf(30, 20));
+        }
+    }
+}
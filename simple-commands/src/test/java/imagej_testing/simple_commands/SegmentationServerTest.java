@@ -0,0 +1,196 @@
+package imagej_testing.simple_commands;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+
+import dataTypes.LabelStatistics;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import labelFiles.LabelFileReader;
+import service.SegmentationClient;
+import service.SegmentationServer;
+import watershed.Engine;
+import watershed.Watershed;
+import watershed.WatershedParams;
+
+/**
+ * Loopback tests of the segmentation server and client: jobs sent as pixels or
+ * as a path are answered with the labels Watershed.apply gives, and jobs the
+ * server cannot run are answered with an error.
+ */
+public class SegmentationServerTest
+    extends TestCase
+{
+    private SegmentationServer server;
+    private File directory;
+
+    public SegmentationServerTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( SegmentationServerTest.class );
+    }
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        server = new SegmentationServer(0, 1, 2);
+        server.start();
+        directory = File.createTempFile("segmentation", "");
+        directory.delete();
+        directory.mkdir();
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        server.close();
+        for(File file : directory.listFiles()){
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    private static ImageProcessor expected(ImageProcessor input)
+    {
+        WatershedParams params = new WatershedParams.Builder().threshVal(150).eroDilCount(3).engine(Engine.RUN_LENGTH).build();
+        return Watershed.apply(input, params);
+    }
+
+    private static void assertSameLabels(ImageProcessor expected, ImageProcessor actual)
+    {
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        for(int y = 0; y < expected.getHeight(); y++){
+            for(int x = 0; x < expected.getWidth(); x++){
+                assertEquals("at " + x + "," + y, expected.getf(x, y), actual.getf(x, y));
+            }
+        }
+    }
+
+    private static ImageProcessor read(File labelFile) throws IOException
+    {
+        LabelFileReader reader = new LabelFileReader(labelFile);
+        try {
+            return reader.read();
+        } finally {
+            reader.close();
+        }
+    }
+
+    public void testPixelsJob() throws IOException
+    {
+        ByteProcessor input = WatershedEngineTest.blobs(120, 90, 3);
+        ImageProcessor expected = expected(input);
+        File labelFile = new File(directory, "pixels.labels");
+        SegmentationClient client = new SegmentationClient(server.getPort());
+        try {
+            client.segment(input, 150, 3, Engine.RUN_LENGTH, false, false, labelFile);
+            assertSameLabels(expected, read(labelFile));
+
+            LabelStatistics[] expectedStats = LabelStatistics.measure(expected, Watershed.WSHED_LABEL);
+            LabelStatistics[] stats = client.measure(input, 150, 3, Engine.RUN_LENGTH, false, false);
+            assertTrue(stats.length > 1);
+            assertEquals(expectedStats.length, stats.length);
+            for(int i = 0; i < stats.length; i++){
+                assertEquals(expectedStats[i].getLabel(), stats[i].getLabel());
+                assertEquals(expectedStats[i].getArea(), stats[i].getArea());
+                assertEquals(expectedStats[i].getSumX(), stats[i].getSumX());
+                assertEquals(expectedStats[i].getSumY(), stats[i].getSumY());
+                assertEquals(expectedStats[i].getBounds(), stats[i].getBounds());
+            }
+        } finally {
+            client.close();
+        }
+    }
+
+    public void testPathJob() throws IOException
+    {
+        ByteProcessor input = WatershedEngineTest.blobs(100, 110, 4);
+        File image = new File(directory, "blobs.tif");
+        assertTrue(IJ.saveAsTiff(new ImagePlus("blobs", input), image.getPath()));
+        File labelFile = new File(directory, "path.labels");
+        SegmentationClient client = new SegmentationClient(server.getPort());
+        try {
+            client.segment(image.getPath(), 150, 3, Engine.RUN_LENGTH, false, false, labelFile);
+            assertSameLabels(expected(input), read(labelFile));
+        } finally {
+            client.close();
+        }
+    }
+
+    /**
+     * parameters the builder refuses, and a path that cannot be opened, are
+     * answered with an error, and the connection can still be used
+     */
+    public void testInvalidParametersAreAnsweredWithAnError() throws IOException
+    {
+        ByteProcessor input = WatershedEngineTest.blobs(40, 40, 5);
+        SegmentationClient client = new SegmentationClient(server.getPort());
+        try {
+            try {
+                client.measure(input, 150, -1, Engine.RUN_LENGTH, false, false);
+                fail("negative erosion count accepted");
+            } catch(IOException e){
+                assertTrue(e.getMessage(), e.getMessage().startsWith("Invalid parameters"));
+            }
+            try {
+                client.measure(new File(directory, "missing.tif").getPath(), 150, 3, Engine.RUN_LENGTH, false, false);
+                fail("missing image opened");
+            } catch(IOException e){
+                assertTrue(e.getMessage(), e.getMessage().startsWith("Could not open"));
+            }
+            assertEquals(LabelStatistics.measure(expected(input), Watershed.WSHED_LABEL).length,
+                    client.measure(input, 150, 3, Engine.RUN_LENGTH, false, false).length);
+        } finally {
+            client.close();
+        }
+    }
+
+    /**
+     * a header giving a size that is not positive, or more pixels than the
+     * server allows, is answered with an error before anything is allocated.
+     * The job is written by hand, as the client only sends real images.
+     */
+    public void testInvalidImageSizesAreAnsweredWithAnError() throws IOException
+    {
+        int[][] sizes = {{0, 10}, {-5, 10}, {10, -1}, {65536, 65536}, {1 << 20, 1 << 10}};
+        for(int[] size : sizes){
+            Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+            try {
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                out.writeInt(0x5753484A);
+                out.writeByte(2);
+                out.writeByte(2);
+                out.writeDouble(150);
+                out.writeInt(3);
+                out.writeBoolean(false);
+                out.writeBoolean(false);
+                out.writeUTF(Engine.RUN_LENGTH.name());
+                out.writeInt(size[0]);
+                out.writeInt(size[1]);
+                out.writeByte(8);
+                out.flush();
+
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                assertEquals("status for " + size[0] + "x" + size[1], 1, in.readByte());
+                assertTrue(in.readUTF().startsWith("Invalid image"));
+                assertEquals("the connection was left open", -1, in.read());
+            } finally {
+                socket.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package imagej_testing.simple_commands;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import watershed.Engine;
+import watershed.StreamingWatershed;
+import watershed.Watershed;
+import watershed.WatershedEngine;
+import watershed.WatershedParams;
+
+/**
+ * Tests of streamed watershedding against the run length engine on the same
+ * images, of how many rows the stream holds, and of cell bodies whose parts are
+ * only found to be one after rows of both have been handed on.
+ */
+public class StreamingWatershedTest
+    extends TestCase
+{
+    public StreamingWatershedTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( StreamingWatershedTest.class );
+    }
+
+    /**
+     * gathers the streamed rows into a label image, with the labels of the sink
+     * offset so that they never meet the watershed label, and follows merged()
+     * to the cell body each label ends up in
+     */
+    private static class Collector implements StreamingWatershed.LabelSink
+    {
+        final int width;
+        final int[] labels;
+        final Map<Integer, Integer> into = new HashMap<Integer, Integer>();
+        int rowCount = 0;
+
+        Collector(int width, int height)
+        {
+            this.width = width;
+            this.labels = new int[width * height];
+        }
+
+        public void row(int y, int[] cells, int[] watershed)
+        {
+            assertEquals("rows out of order", rowCount, y);
+            rowCount++;
+            for(int i = 0; i < cells.length; i += 3){
+                for(int x = cells[i]; x < cells[i + 1]; x++){
+                    labels[y * width + x] = cells[i + 2] + Watershed.LABEL_OFFSET;
+                }
+            }
+            for(int i = 0; i < watershed.length; i += 2){
+                for(int x = watershed[i]; x < watershed[i + 1]; x++){
+                    labels[y * width + x] = Watershed.WSHED_LABEL;
+                }
+            }
+        }
+
+        public void merged(int label, int into)
+        {
+            this.into.put(label + Watershed.LABEL_OFFSET, into + Watershed.LABEL_OFFSET);
+        }
+
+        int[] joined()
+        {
+            int[] joined = labels.clone();
+            for(int i = 0; i < joined.length; i++){
+                while(into.containsKey(joined[i])){
+                    joined[i] = into.get(joined[i]);
+                }
+            }
+            return joined;
+        }
+    }
+
+    /**
+     * @return the number of pixels where the streamed labels differ from the
+     * expected ones beyond a renumbering, failing if any is more than the
+     * watershed pixel a late join may leave inside a cell
+     */
+    private static int compare(String message, int[] expected, int[] streamed)
+    {
+        Map<Integer, Integer> forward = new HashMap<Integer, Integer>();
+        Map<Integer, Integer> backward = new HashMap<Integer, Integer>();
+        int extraLines = 0;
+        for(int i = 0; i < expected.length; i++){
+            int e = expected[i];
+            int s = streamed[i];
+            if(s == Watershed.WSHED_LABEL && e > Watershed.WSHED_LABEL){
+                extraLines++;
+                continue;
+            }
+            if(e <= Watershed.WSHED_LABEL || s <= Watershed.WSHED_LABEL){
+                assertEquals(message + " at " + i, e, s);
+                continue;
+            }
+            Integer to = forward.get(e);
+            Integer from = backward.get(s);
+            if(to == null && from == null){
+                forward.put(e, s);
+                backward.put(s, e);
+            } else {
+                assertEquals(message + " renumbering at " + i, to, Integer.valueOf(s));
+                assertEquals(message + " renumbering at " + i, from, Integer.valueOf(e));
+            }
+        }
+        return extraLines;
+    }
+
+    /**
+     * random blob images, in plain and geodesic mode, match the run length
+     * engine up to numbering. Where cell bodies were joined late the stream may
+     * also draw watershed pixels inside a cell, as the class says, but nowhere
+     * else.
+     */
+    public void testStreamMatchesRunLength()
+    {
+        int withoutJoins = 0;
+        for(int trial = 0; trial < 30; trial++){
+            int width = 60 + 5 * trial;
+            int height = 50 + 4 * trial;
+            ByteProcessor input = WatershedEngineTest.blobs(width, height, trial);
+            for(boolean geodesic : new boolean[]{false, true}){
+                WatershedParams params = new WatershedParams.Builder().threshVal(150).eroDilCount(1 + trial % 4).geodesic(geodesic).engine(Engine.RUN_LENGTH).build();
+                int[] expected = WatershedEngineTest.labels(new WatershedEngine(params), input);
+                Collector collector = new Collector(width, height);
+                StreamingWatershed.run(input, params, collector);
+                assertEquals(height, collector.rowCount);
+
+                int extraLines = compare("trial " + trial + (geodesic ? " geodesic" : ""), expected, collector.joined());
+                if(collector.into.isEmpty()){
+                    assertEquals("trial " + trial, 0, extraLines);
+                    withoutJoins++;
+                }
+            }
+        }
+        assertTrue(withoutJoins > 30);
+    }
+
+    /**
+     * a row is handed on when the row 3k below it is pushed, so no more than
+     * 3k + 1 rows are ever held, and the rest are handed on when the image is
+     * finished
+     */
+    public void testWindowIsThreeKPlusOneRows()
+    {
+        ByteProcessor input = WatershedEngineTest.blobs(80, 60, 7);
+        for(int k = 0; k <= 4; k++){
+            WatershedParams params = new WatershedParams.Builder().threshVal(150).eroDilCount(k).build();
+            Collector collector = new Collector(80, 60);
+            StreamingWatershed stream = new StreamingWatershed(80, input.getMin(), input.getMax(), params, collector);
+            assertEquals(3 * k + 1, stream.getWindowRows());
+            float[] values = new float[80];
+            for(int y = 0; y < 60; y++){
+                for(int x = 0; x < 80; x++){
+                    values[x] = input.getf(x, y);
+                }
+                stream.push(values);
+                int held = y + 1 - collector.rowCount;
+                assertEquals("k " + k + " after row " + y, Math.min(y + 1, stream.getWindowRows() - 1), held);
+            }
+            stream.finish();
+            assertEquals(60, collector.rowCount);
+        }
+    }
+
+    /**
+     * @return a U whose arms are only joined by its base, far below their tops,
+     * and a square beside it
+     */
+    private static ByteProcessor cup()
+    {
+        ByteProcessor input = new ByteProcessor(60, 50);
+        for(int y = 2; y < 48; y++){
+            for(int x = 2; x < 40; x++){
+                boolean arm = x < 12 || x >= 30;
+                if(arm || y >= 38){
+                    input.set(x, y, 255);
+                }
+            }
+        }
+        for(int y = 5; y < 15; y++){
+            for(int x = 46; x < 56; x++){
+                input.set(x, y, 255);
+            }
+        }
+        return input;
+    }
+
+    /**
+     * the arms of the U are labelled as two cell bodies until their base is
+     * reached, long after their first rows have been handed on, and are then
+     * reported as merged. The sink the engine streams into joins their numbers
+     * into one cell, numbered without a gap, and the cells are those of the run
+     * length engine.
+     */
+    public void testLateJoinIsMerged()
+    {
+        ByteProcessor input = cup();
+        input.setMinAndMax(0, 255);
+        WatershedParams params = new WatershedParams.Builder().threshVal(150).eroDilCount(2).build();
+        Collector collector = new Collector(60, 50);
+        StreamingWatershed.run(input, params, collector);
+        assertEquals(1, collector.into.size());
+        int[] streamed = collector.joined();
+        assertTrue(collector.labels[10 * 60 + 6] != collector.labels[10 * 60 + 34]);
+        assertEquals(streamed[10 * 60 + 6], streamed[10 * 60 + 34]);
+
+        StreamingWatershed.LabelImageSink sink = new StreamingWatershed.LabelImageSink(60, 50);
+        StreamingWatershed.run(input, params, sink);
+        assertTrue(sink.joinNumbers());
+        ImageProcessor labels = sink.toProcessor();
+        float cup = labels.getf(6, 10);
+        float square = labels.getf(50, 10);
+        assertEquals(cup, labels.getf(34, 10));
+        assertEquals(cup, labels.getf(20, 43));
+        assertEquals(Watershed.LABEL_OFFSET + 1f, cup);
+        assertEquals(Watershed.LABEL_OFFSET + 2f, square);
+
+        int[] expected = WatershedEngineTest.labels(new WatershedEngine(params.toBuilder().engine(Engine.RUN_LENGTH).build()), input);
+        for(int y = 0, i = 0; y < 50; y++){
+            for(int x = 0; x < 60; x++, i++){
+                assertEquals("at " + x + "," + y, (float) expected[i], labels.getf(x, y));
+            }
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package imagej_testing.simple_commands;
+
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import watershed.RunMetrics;
+import watershed.Threshold;
+import watershed.VolumeWatershed;
+import watershed.WatershedParams;
+
+/**
+ * Benchmark of the thresholding and mask erosion kernels, run by hand rather than
+ * as part of the build:
+ *
+ *     java -cp ... imagej_testing.simple_commands.ThresholdBenchmark
+ *
+ * The same 8 bit image is thresholded through the table of passing values and,
+ * converted to 32 bits, through scaling each pixel, which is how every pixel was
+ * thresholded before. The 3D stages are timed on a stack of the same kind of
+ * image with both connectivities. Each figure is the best of several runs.
+ */
+public class ThresholdBenchmark
+{
+    private static final int RUNS = 10;
+
+    public static void main( String[] args )
+    {
+        ByteProcessor bytes = WatershedEngineTest.blobs(4096, 4096, 3);
+        float[] values = new float[bytes.getWidth() * bytes.getHeight()];
+        for(int i = 0; i < values.length; i++){
+            values[i] = bytes.getf(i);
+        }
+        FloatProcessor floats = new FloatProcessor(bytes.getWidth(), bytes.getHeight(), values, null);
+        System.out.println("Thresholding 4096x4096 through the table: " + bestThreshold(bytes) + " ms");
+        System.out.println("Thresholding 4096x4096 by scaling each pixel: " + bestThreshold(floats) + " ms");
+
+        ImageStack stack = new ImageStack(512, 512);
+        for(int z = 0; z < 48; z++){
+            stack.addSlice("" + z, WatershedEngineTest.blobs(512, 512, z / 4));
+        }
+        WatershedParams params = new WatershedParams.Builder().threshVal(150).eroDilCount(3).build();
+        int[] connectivities = {VolumeWatershed.FACES, VolumeWatershed.VERTICES};
+        for(int connectivity : connectivities){
+            long threshold = Long.MAX_VALUE;
+            long erode = Long.MAX_VALUE;
+            for(int run = 0; run < RUNS; run++){
+                RunMetrics metrics = new VolumeWatershed(params, connectivity).run(stack, 0, 255, null).getMetrics();
+                threshold = Math.min(threshold, metrics.getStageNanos().get("Thresholding"));
+                erode = Math.min(erode, metrics.getStageNanos().get("Eroding"));
+            }
+            System.out.println("512x512x48, " + connectivity + " connected: thresholding " + threshold / 1000000
+                    + " ms, eroding 3 times " + erode / 1000000 + " ms");
+        }
+    }
+
+    private static long bestThreshold(ImageProcessor input)
+    {
+        long best = Long.MAX_VALUE;
+        for(int run = 0; run < RUNS; run++){
+            long start = System.nanoTime();
+            Threshold.thresholdRuns(input, 0, 255, 150);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best / 1000000;
+    }
+}
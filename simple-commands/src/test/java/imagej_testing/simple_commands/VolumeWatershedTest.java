@@ -0,0 +1,130 @@
+package imagej_testing.simple_commands;
+
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import watershed.VolumeResult;
+import watershed.VolumeWatershed;
+import watershed.Watershed;
+import watershed.WatershedParams;
+
+/**
+ * Tests of watershedding stacks as volumes on small shapes whose cells are
+ * known: two touching spheres, and a thin box whose erosion depends on the
+ * voxel calibration.
+ */
+public class VolumeWatershedTest
+    extends TestCase
+{
+    public VolumeWatershedTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( VolumeWatershedTest.class );
+    }
+
+    /**
+     * @return a stack of bright spheres on a dark background
+     */
+    private static ImageStack spheres(int width, int height, int depth, int[] centres, int radius)
+    {
+        ImageStack stack = new ImageStack(width, height);
+        for(int z = 0; z < depth; z++){
+            ByteProcessor slice = new ByteProcessor(width, height);
+            for(int c = 0; c < centres.length; c += 3){
+                for(int y = 0; y < height; y++){
+                    for(int x = 0; x < width; x++){
+                        int dx = x - centres[c];
+                        int dy = y - centres[c + 1];
+                        int dz = z - centres[c + 2];
+                        if(dx * dx + dy * dy + dz * dz <= radius * radius){
+                            slice.set(x, y, 255);
+                        }
+                    }
+                }
+            }
+            stack.addSlice(null, slice);
+        }
+        return stack;
+    }
+
+    private static float label(VolumeResult result, int x, int y, int z)
+    {
+        return result.getLabels().getProcessor(z + 1).getf(x, y);
+    }
+
+    /**
+     * two spheres joined by a narrow neck are split into two cells, each with a
+     * single label through every slice it spans, and a watershed between them.
+     * With more than one processor the spheres are cut by the boundaries of the
+     * slabs, so their halves are only one cell once the slabs are joined.
+     */
+    public void testTouchingSpheresAreTwoCells()
+    {
+        ImageStack input = spheres(40, 24, 20, new int[]{12, 12, 10, 25, 12, 10}, 7);
+        for(int connectivity : new int[]{VolumeWatershed.FACES, VolumeWatershed.VERTICES}){
+            WatershedParams params = new WatershedParams.Builder().threshVal(150).eroDilCount(4).geodesic(true).untilFilled(true).build();
+            VolumeResult result = new VolumeWatershed(params, connectivity).run(input, 0, 255, null);
+            assertEquals(2, result.getCellCount());
+
+            float left = label(result, 12, 12, 10);
+            float right = label(result, 25, 12, 10);
+            assertTrue(left > Watershed.WSHED_LABEL);
+            assertTrue(right > Watershed.WSHED_LABEL);
+            assertTrue(left != right);
+            assertEquals(left, label(result, 12, 12, 4));
+            assertEquals(left, label(result, 12, 12, 16));
+            assertEquals(right, label(result, 25, 12, 4));
+            assertEquals(right, label(result, 25, 12, 16));
+
+            boolean line = false;
+            for(int x = 12; x <= 25; x++){
+                line |= label(result, x, 12, 10) == Watershed.WSHED_LABEL;
+            }
+            assertTrue(line);
+            assertEquals(0f, label(result, 0, 0, 0));
+        }
+    }
+
+    /**
+     * a box three slices deep is eroded away when the voxels are cubes, but
+     * survives as a cell when the slices are three times further apart than the
+     * pixels, as only every third erosion then reaches across the slices, and
+     * the dilation grows it back across them in the same way
+     */
+    public void testCalibrationLimitsErosionAcrossSlices()
+    {
+        ImageStack input = new ImageStack(15, 15);
+        for(int z = 0; z < 5; z++){
+            ImageProcessor slice = new ByteProcessor(15, 15);
+            if(z >= 1 && z <= 3){
+                for(int y = 2; y < 13; y++){
+                    for(int x = 2; x < 13; x++){
+                        slice.set(x, y, 255);
+                    }
+                }
+            }
+            input.addSlice(null, slice);
+        }
+        WatershedParams params = new WatershedParams.Builder().threshVal(150).eroDilCount(3).build();
+        VolumeWatershed volume = new VolumeWatershed(params, VolumeWatershed.FACES);
+
+        assertEquals(0, volume.run(input, 0, 255, null).getCellCount());
+
+        Calibration calibration = new Calibration();
+        calibration.pixelDepth = 3;
+        VolumeResult result = volume.run(input, 0, 255, calibration);
+        assertEquals(1, result.getCellCount());
+        float cell = label(result, 7, 7, 2);
+        assertTrue(cell > Watershed.WSHED_LABEL);
+        assertEquals(cell, label(result, 7, 7, 1));
+        assertEquals(cell, label(result, 7, 7, 3));
+    }
+}
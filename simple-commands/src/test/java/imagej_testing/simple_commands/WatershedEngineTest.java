@@ -0,0 +1,283 @@
+package imagej_testing.simple_commands;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import watershed.Engine;
+import watershed.Watershed;
+import watershed.WatershedEngine;
+import watershed.WatershedParams;
+
+/**
+ * Concurrency stress test for the watershed engine: many threads share engines
+ * and an input image, and every run must give the same labels as a run on its own.
+ * Also compares the pixel and run length engines on random blob images.
+ */
+public class WatershedEngineTest
+    extends TestCase
+{
+    private static final int THREADS = 8;
+    private static final int RUNS_PER_THREAD = 6;
+
+    public WatershedEngineTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( WatershedEngineTest.class );
+    }
+
+    /**
+     * bright discs on a dark background, some of them touching so that the
+     * dilation has to draw watershed lines between them
+     */
+    static ByteProcessor blobs(int width, int height, long seed)
+    {
+        ByteProcessor bp = new ByteProcessor(width, height);
+        Random random = new Random(seed);
+        int blobCount = width * height / 400;
+        for(int b = 0; b < blobCount; b++){
+            int cx = random.nextInt(width);
+            int cy = random.nextInt(height);
+            int r = 4 + random.nextInt(7);
+            for(int y = Math.max(0, cy - r); y <= Math.min(height - 1, cy + r); y++){
+                for(int x = Math.max(0, cx - r); x <= Math.min(width - 1, cx + r); x++){
+                    int d2 = (x - cx) * (x - cx) + (y - cy) * (y - cy);
+                    if(d2 <= r * r){
+                        bp.set(x, y, Math.max(bp.get(x, y), 255 - 100 * d2 / (r * r)));
+                    }
+                }
+            }
+        }
+        return bp;
+    }
+
+    static int[] labels(WatershedEngine engine, ImageProcessor input)
+    {
+        ImageProcessor labels = engine.run(input).getLabels();
+        int[] values = new int[labels.getWidth() * labels.getHeight()];
+        for(int y = 0, i = 0; y < labels.getHeight(); y++){
+            for(int x = 0; x < labels.getWidth(); x++, i++){
+                values[i] = (int) labels.getf(x, y);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * @return the pixels whose labels do not match, once the cells of one image
+     * are renumbered to those of the other. A cell is matched to the first cell
+     * it meets in the other image, and every pixel of either that breaks the
+     * match is counted.
+     */
+    static boolean[] unmatched(int[] expected, int[] actual)
+    {
+        Map<Integer, Integer> forward = new HashMap<Integer, Integer>();
+        Map<Integer, Integer> backward = new HashMap<Integer, Integer>();
+        boolean[] unmatched = new boolean[expected.length];
+        for(int i = 0; i < expected.length; i++){
+            int e = expected[i];
+            int a = actual[i];
+            if(e <= Watershed.WSHED_LABEL || a <= Watershed.WSHED_LABEL){
+                unmatched[i] = e != a;
+                continue;
+            }
+            Integer to = forward.get(e);
+            Integer from = backward.get(a);
+            if(to == null && from == null){
+                forward.put(e, a);
+                backward.put(a, e);
+            } else {
+                unmatched[i] = to == null || from == null || to != a || from != e;
+            }
+        }
+        return unmatched;
+    }
+
+    private static boolean touchesLine(int[] labels, int x, int y, int width, int height)
+    {
+        for(int ny = Math.max(y - 1, 0); ny <= Math.min(y + 1, height - 1); ny++){
+            for(int nx = Math.max(x - 1, 0); nx <= Math.min(x + 1, width - 1); nx++){
+                if(labels[ny * width + nx] == Watershed.WSHED_LABEL){
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * with a fixed number of unlimited dilations the two engines give the same
+     * cells, up to numbering, and the same watershed lines
+     */
+    public void testPixelAndRunLengthAgreeInPlainMode()
+    {
+        for(int trial = 0; trial < 16; trial++){
+            ByteProcessor input = blobs(60 + 4 * trial, 50 + 3 * trial, trial);
+            WatershedParams.Builder builder = new WatershedParams.Builder().threshVal(120 + 5 * trial).eroDilCount(1 + trial % 4);
+            int[] pixel = labels(new WatershedEngine(builder.engine(Engine.PIXEL).build()), input);
+            int[] runLength = labels(new WatershedEngine(builder.engine(Engine.RUN_LENGTH).build()), input);
+            boolean[] unmatched = unmatched(pixel, runLength);
+            for(int i = 0; i < unmatched.length; i++){
+                assertFalse("trial " + trial + " at " + i, unmatched[i]);
+            }
+        }
+    }
+
+    /**
+     * with geodesic growth the engines settle clashing growth in a different
+     * order, so as the Engine documentation says they may differ where cells
+     * meet, but only on pixels that are on or beside the watershed line between
+     * them in both results
+     */
+    public void testGeodesicModeDiffersOnlyOnContactLines()
+    {
+        int differing = 0;
+        for(int trial = 0; trial < 16; trial++){
+            int width = 60 + 4 * trial;
+            int height = 50 + 3 * trial;
+            ByteProcessor input = blobs(width, height, trial);
+            WatershedParams.Builder builder = new WatershedParams.Builder().threshVal(150).eroDilCount(1 + trial % 4).geodesic(true).untilFilled(trial % 2 == 0);
+            int[] pixel = labels(new WatershedEngine(builder.engine(Engine.PIXEL).build()), input);
+            int[] runLength = labels(new WatershedEngine(builder.engine(Engine.RUN_LENGTH).build()), input);
+            boolean[] unmatched = unmatched(pixel, runLength);
+            for(int i = 0; i < unmatched.length; i++){
+                if(unmatched[i]){
+                    int x = i % width;
+                    int y = i / width;
+                    assertTrue("trial " + trial + " at " + x + "," + y, touchesLine(pixel, x, y, width, height) && touchesLine(runLength, x, y, width, height));
+                    differing++;
+                }
+            }
+        }
+        /* the lines do differ, so the test is not passing on identical results */
+        assertTrue(differing > 0);
+    }
+
+    private static List<WatershedParams> allModes()
+    {
+        List<WatershedParams> modes = new ArrayList<WatershedParams>();
+        for(Engine engine : Engine.values()){
+            WatershedParams.Builder builder = new WatershedParams.Builder().threshVal(150).eroDilCount(3).engine(engine);
+            modes.add(builder.build());
+            modes.add(builder.geodesic(true).build());
+            modes.add(builder.untilFilled(true).build());
+        }
+        return modes;
+    }
+
+    /**
+     * one engine per mode is shared by every thread, and all the threads read the
+     * same input image
+     */
+    public void testSharedEnginesGiveIdenticalLabels() throws Exception
+    {
+        final ByteProcessor input = blobs(96, 96, 7);
+        final List<WatershedParams> modes = allModes();
+        final List<WatershedEngine> engines = new ArrayList<WatershedEngine>();
+        final List<int[]> expected = new ArrayList<int[]>();
+        for(WatershedParams params : modes){
+            WatershedEngine engine = new WatershedEngine(params);
+            engines.add(engine);
+            expected.add(labels(engine, input));
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<String>> futures = new ArrayList<Future<String>>();
+            for(int t = 0; t < THREADS; t++){
+                final int offset = t;
+                futures.add(pool.submit(new Callable<String>() {
+                    public String call()
+                    {
+                        for(int run = 0; run < RUNS_PER_THREAD; run++){
+                            for(int m = 0; m < engines.size(); m++){
+                                int mode = (m + offset + run) % engines.size();
+                                int[] actual = labels(engines.get(mode), input);
+                                if(!Arrays.equals(expected.get(mode), actual)){
+                                    return "Run differed for " + modes.get(mode);
+                                }
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for(Future<String> future : futures){
+                assertNull(future.get());
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * threads each segment their own image with the same engine, so runs on
+     * different inputs overlap in time
+     */
+    public void testSharedEngineOnDifferentImages() throws Exception
+    {
+        final WatershedEngine engine = new WatershedEngine(new WatershedParams.Builder().threshVal(150).eroDilCount(3).build());
+        final ByteProcessor[] inputs = new ByteProcessor[THREADS];
+        final int[][] expected = new int[THREADS][];
+        for(int t = 0; t < THREADS; t++){
+            inputs[t] = blobs(256, 192, 100 + t);
+            expected[t] = labels(engine, inputs[t]);
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+            for(int t = 0; t < THREADS; t++){
+                final int index = t;
+                futures.add(pool.submit(new Callable<Boolean>() {
+                    public Boolean call()
+                    {
+                        for(int run = 0; run < RUNS_PER_THREAD * 4; run++){
+                            if(!Arrays.equals(expected[index], labels(engine, inputs[index]))){
+                                return false;
+                            }
+                        }
+                        return true;
+                    }
+                }));
+            }
+            for(Future<Boolean> future : futures){
+                assertTrue(future.get());
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    public void testParamsAreValidated()
+    {
+        try {
+            new WatershedParams.Builder().eroDilCount(-1).build();
+            fail("negative erosion count accepted");
+        } catch(IllegalArgumentException e){
+            // expected
+        }
+        try {
+            new WatershedEngine(null);
+            fail("missing parameters accepted");
+        } catch(IllegalArgumentException e){
+            // expected
+        }
+    }
+}